@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.math.BigDecimal.ZERO;
+import static org.killbill.billing.plugin.simpletax.SimpleTaxPlugin.ADJUSTMENT_ITEM_TYPES;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.amountWithAdjustments;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.plugin.simpletax.util.OpenAddressingUUIDMap;
+import org.killbill.billing.util.customfield.CustomField;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.SetMultimap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * An immutable index of all the invoice items of an account, that is built in
+ * one single pass over the invoices.
+ * <p>
+ * This index gathers all the lookups that are needed when computing tax items
+ * and tax adjustment items, so that invoices do not need to be scanned again
+ * and again.
+ * <p>
+ * Adjusted amounts are computed once for all items, and stored in a compact
+ * {@linkplain OpenAddressingUUIDMap table}, because they are looked up very
+ * often, typically when comparing tax items by adjusted amount.
+ * <p>
+ * The {@linkplain #signatureOf signature} of each invoice is derived from its
+ * items, from the adjustments of its items, and from the tax codes of its
+ * items, so that any change of these can be detected without relying on bus
+ * events.
+ *
+ * @author Benjamin Gandon
+ */
+public final class AccountInvoiceIndex {
+
+    private static final HashFunction TAX_FIELD_HASH = Hashing.murmur3_32();
+
+    private final Map<UUID, UUID> invoiceIdsByItemId;
+    private final SetMultimap<UUID, InvoiceItem> adjustmentsByAdjustedItem;
+    private final Map<UUID, SetMultimap<UUID, InvoiceItem>> taxItemsByInvoice;
+    private final SetMultimap<UUID, CustomField> taxFieldsByInvoice;
+    private final OpenAddressingUUIDMap<BigDecimal> adjustedAmounts;
+    private final Multiset<UUID> signatures;
+    private final Map<UUID, Integer> taxFieldHashes;
+    private final Map<UUID, String> taxCodesByItem;
+
+    private AccountInvoiceIndex(Map<UUID, UUID> invoiceIdsByItemId,
+            SetMultimap<UUID, InvoiceItem> adjustmentsByAdjustedItem,
+            Map<UUID, SetMultimap<UUID, InvoiceItem>> taxItemsByInvoice,
+            SetMultimap<UUID, CustomField> taxFieldsByInvoice, OpenAddressingUUIDMap<BigDecimal> adjustedAmounts,
+            Multiset<UUID> signatures, Map<UUID, Integer> taxFieldHashes, Map<UUID, String> taxCodesByItem) {
+        super();
+        this.invoiceIdsByItemId = invoiceIdsByItemId;
+        this.adjustmentsByAdjustedItem = adjustmentsByAdjustedItem;
+        this.taxItemsByInvoice = taxItemsByInvoice;
+        this.taxFieldsByInvoice = taxFieldsByInvoice;
+        this.adjustedAmounts = adjustedAmounts;
+        this.signatures = signatures;
+        this.taxFieldHashes = taxFieldHashes;
+        this.taxCodesByItem = taxCodesByItem;
+    }
+
+    /**
+     * Builds the index of a given set of invoices.
+     *
+     * @param allInvoices
+     *            The collection of all invoices for a given account. Must not
+     *            be {@code null}.
+     * @param invoiceItemFields
+     *            The custom fields on the invoice items of the account, or
+     *            {@code null} if there are none. Only the
+     *            {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+     *            fields are indexed.
+     * @return A new immutable index. Never {@code null}.
+     */
+    @Nonnull
+    public static AccountInvoiceIndex of(@Nonnull Iterable<Invoice> allInvoices,
+            @Nullable Iterable<CustomField> invoiceItemFields) {
+        Map<UUID, UUID> invoiceIdsByItemId = newHashMap();
+        ImmutableList.Builder<InvoiceItem> allItems = ImmutableList.builder();
+        ImmutableSetMultimap.Builder<UUID, InvoiceItem> adjustments = ImmutableSetMultimap.builder();
+        Map<UUID, ImmutableSetMultimap.Builder<UUID, InvoiceItem>> taxItems = newHashMap();
+        Multiset<UUID> signatures = HashMultiset.create();
+
+        for (Invoice invoice : allInvoices) {
+            UUID invoiceId = invoice.getId();
+            for (InvoiceItem item : invoice.getInvoiceItems()) {
+                invoiceIdsByItemId.put(item.getId(), invoiceId);
+                allItems.add(item);
+                signatures.add(invoiceId);
+
+                InvoiceItemType type = item.getInvoiceItemType();
+                if (ADJUSTMENT_ITEM_TYPES.contains(type)) {
+                    adjustments.put(item.getLinkedItemId(), item);
+                } else if (InvoiceItemType.TAX.equals(type)) {
+                    ImmutableSetMultimap.Builder<UUID, InvoiceItem> taxItemsOfInvoice = taxItems.get(invoiceId);
+                    if (taxItemsOfInvoice == null) {
+                        taxItemsOfInvoice = ImmutableSetMultimap.builder();
+                        taxItems.put(invoiceId, taxItemsOfInvoice);
+                    }
+                    taxItemsOfInvoice.put(item.getLinkedItemId(), item);
+                }
+            }
+        }
+
+        ImmutableMap.Builder<UUID, SetMultimap<UUID, InvoiceItem>> taxItemsByInvoice = ImmutableMap.builder();
+        for (Map.Entry<UUID, ImmutableSetMultimap.Builder<UUID, InvoiceItem>> entry : taxItems.entrySet()) {
+            taxItemsByInvoice.put(entry.getKey(), entry.getValue().build());
+        }
+
+        List<InvoiceItem> items = allItems.build();
+        OpenAddressingUUIDMap<BigDecimal> adjustedAmounts = new OpenAddressingUUIDMap<BigDecimal>(items.size());
+        for (InvoiceItem item : items) {
+            adjustedAmounts.put(item.getId(), item.getAmount() == null ? ZERO : item.getAmount());
+        }
+
+        SetMultimap<UUID, InvoiceItem> adjustmentsByAdjustedItem = adjustments.build();
+        for (InvoiceItem adjustment : adjustmentsByAdjustedItem.values()) {
+            UUID adjustedItemId = adjustment.getLinkedItemId();
+            UUID adjustedInvoiceId = invoiceIdsByItemId.get(adjustedItemId);
+            if (adjustedInvoiceId == null) {
+                continue;
+            }
+            signatures.add(adjustedInvoiceId);
+            if (adjustment.getAmount() != null) {
+                adjustedAmounts.put(adjustedItemId, adjustedAmounts.get(adjustedItemId).add(adjustment.getAmount()));
+            }
+        }
+
+        ImmutableSetMultimap.Builder<UUID, CustomField> taxFieldsByInvoice = ImmutableSetMultimap.builder();
+        Map<UUID, Integer> taxFieldHashes = newHashMap();
+        Map<UUID, String> taxCodesByItem = newHashMap();
+        if (invoiceItemFields != null) {
+            for (CustomField field : invoiceItemFields) {
+                if (!TAX_CODES_FIELD_NAME.equals(field.getFieldName())) {
+                    continue;
+                }
+                UUID invoiceId = invoiceIdsByItemId.get(field.getObjectId());
+                if (invoiceId != null) {
+                    taxFieldsByInvoice.put(invoiceId, field);
+                    taxCodesByItem.put(field.getObjectId(), field.getFieldValue());
+                    Integer hash = taxFieldHashes.get(invoiceId);
+                    // Summing is insensitive to the order in which fields are listed
+                    taxFieldHashes.put(invoiceId, (hash == null ? 0 : hash.intValue()) + hashOf(field));
+                }
+            }
+        }
+
+        return new AccountInvoiceIndex(invoiceIdsByItemId, adjustmentsByAdjustedItem, taxItemsByInvoice.build(),
+                taxFieldsByInvoice.build(), adjustedAmounts, signatures, taxFieldHashes, taxCodesByItem);
+    }
+
+    private static int hashOf(CustomField taxField) {
+        UUID itemId = taxField.getObjectId();
+        String taxCodes = taxField.getFieldValue();
+        return TAX_FIELD_HASH.newHasher()//
+                .putLong(itemId.getMostSignificantBits())//
+                .putLong(itemId.getLeastSignificantBits())//
+                .putString(taxCodes == null ? "" : taxCodes, UTF_8)//
+                .hash().asInt();
+    }
+
+    /**
+     * @param invoiceItemId
+     *            The identifier of an invoice item.
+     * @return The identifier of the invoice that contains this item, or
+     *         {@code null} if the item is not part of the indexed invoices.
+     */
+    @Nullable
+    public UUID invoiceIdOf(@Nullable UUID invoiceItemId) {
+        return invoiceIdsByItemId.get(invoiceItemId);
+    }
+
+    /**
+     * @param invoice
+     *            An indexed invoice.
+     * @return The {@linkplain SimpleTaxPlugin#isTaxItem tax items} of the
+     *         given invoice, grouped by the identifier of their
+     *         {@linkplain InvoiceItem#getLinkedItemId related} “taxable” items.
+     *         Never {@code null}.
+     */
+    @Nonnull
+    public SetMultimap<UUID, InvoiceItem> taxItemsOf(@Nonnull Invoice invoice) {
+        SetMultimap<UUID, InvoiceItem> taxItems = taxItemsByInvoice.get(invoice.getId());
+        if (taxItems == null) {
+            return ImmutableSetMultimap.of();
+        }
+        return taxItems;
+    }
+
+    /**
+     * @return The
+     *         {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+     *         custom fields on the items of the indexed invoices, grouped by
+     *         the identifier of their related invoices. Never {@code null}.
+     */
+    @Nonnull
+    public SetMultimap<UUID, CustomField> getTaxFieldsByInvoice() {
+        return taxFieldsByInvoice;
+    }
+
+    /**
+     * @param invoiceItemId
+     *            The identifier of an indexed invoice item.
+     * @return The raw value of the
+     *         {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+     *         custom field of the item, that is the comma-separated names of
+     *         its tax codes, or {@code null} if it has none.
+     */
+    @Nullable
+    public String taxCodesOf(@Nullable UUID invoiceItemId) {
+        return taxCodesByItem.get(invoiceItemId);
+    }
+
+    /**
+     * Returns the amount of a given invoice item, taking any adjustments into
+     * consideration.
+     *
+     * @param item
+     *            An invoice item. Must not be {@code null}.
+     * @return The adjusted amount, never {@code null}.
+     */
+    @Nonnull
+    public BigDecimal adjustedAmountOf(@Nonnull InvoiceItem item) {
+        BigDecimal amount = adjustedAmounts.get(item.getId());
+        if (amount == null) {
+            // Not an indexed item
+            return amountWithAdjustments(item, adjustmentsByAdjustedItem);
+        }
+        return amount;
+    }
+
+    /**
+     * Returns a signature of a given invoice, that changes whenever items are
+     * added to the invoice, whenever adjustments are made on its items,
+     * whichever invoice the adjustment items belong to, or whenever the tax
+     * codes of its items are added, changed or removed.
+     * <p>
+     * Signatures only depend on the indexed data, so that they are the same
+     * from one node or one run to another.
+     *
+     * @param invoiceId
+     *            The identifier of an indexed invoice.
+     * @return The signature of the invoice.
+     */
+    public int signatureOf(@Nullable UUID invoiceId) {
+        Integer taxFieldHash = taxFieldHashes.get(invoiceId);
+        return (31 * signatures.count(invoiceId)) + (taxFieldHash == null ? 0 : taxFieldHash.intValue());
+    }
+}
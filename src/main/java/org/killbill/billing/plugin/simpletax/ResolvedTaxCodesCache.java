@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import static java.math.BigDecimal.ZERO;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.killbill.billing.plugin.simpletax.SimpleTaxPlugin.TAXABLE_ITEM_TYPES;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.util.TenantScopedKey;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A short-lived cache of the tax codes that have been resolved for the items
+ * of new invoices.
+ * <p>
+ * Tax codes are resolved for a new invoice when it is being created, and then
+ * persisted as custom fields when the invoice creation event is received. This
+ * cache allows the second pass to reuse the results of the first one, instead
+ * of fetching the account, all its invoices, custom fields and the catalog
+ * again.
+ * <p>
+ * Cached results are keyed by invoice, and only returned when the taxable
+ * items of the invoice are the same, and when the tenant configuration has not
+ * changed. They expire after a few minutes, so that any other change in the
+ * meantime (like the tax country of the account) has a very limited window to
+ * be missed. The number of cached invoices is bounded.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public final class ResolvedTaxCodesCache {
+
+    /** The default maximum number of invoices to keep in memory. */
+    public static final long DEFAULT_MAX_INVOICES = 1000L;
+    /** The default number of minutes after which cached results expire. */
+    public static final long DEFAULT_EXPIRATION_MINUTES = 5L;
+
+    private final ConcurrentMap<TenantScopedKey, Resolution> resolutions;
+
+    /**
+     * Constructs a new cache with default bounds.
+     */
+    public ResolvedTaxCodesCache() {
+        this(DEFAULT_MAX_INVOICES, DEFAULT_EXPIRATION_MINUTES);
+    }
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param maxInvoices
+     *            The maximum number of invoices to keep in memory.
+     * @param expirationMinutes
+     *            The number of minutes after which cached results expire.
+     */
+    public ResolvedTaxCodesCache(long maxInvoices, long expirationMinutes) {
+        super();
+        resolutions = CacheBuilder.newBuilder()//
+                .maximumSize(maxInvoices)//
+                .expireAfterWrite(expirationMinutes, MINUTES)//
+                .<TenantScopedKey, Resolution> build().asMap();
+    }
+
+    /**
+     * Remembers the tax codes that have been resolved for the items of a new
+     * invoice.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null} for the default
+     *            tenant.
+     * @param invoice
+     *            The new invoice. Must not be {@code null}.
+     * @param cfg
+     *            The configuration that was used when resolving tax codes.
+     *            Must not be {@code null}.
+     * @param newTaxCodes
+     *            The resolved tax codes, mapped from their related invoice
+     *            item identifiers. Must not be {@code null}.
+     */
+    public void put(@Nullable UUID tenantId, @Nonnull Invoice invoice, @Nonnull SimpleTaxConfig cfg,
+            @Nonnull Map<UUID, TaxCode> newTaxCodes) {
+        if (invoice.getId() == null) {
+            return;
+        }
+        resolutions.put(new TenantScopedKey(tenantId, invoice.getId()), new Resolution(fingerprintOf(invoice), cfg,
+                newTaxCodes));
+    }
+
+    /**
+     * Returns the tax codes that have been resolved for the items of an
+     * invoice, provided that its taxable items and the configuration have not
+     * changed since then.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null} for the default
+     *            tenant.
+     * @param invoice
+     *            The invoice. Must not be {@code null}.
+     * @param cfg
+     *            The configuration that currently applies to the tenant. Must
+     *            not be {@code null}.
+     * @return The resolved tax codes, mapped from their related invoice item
+     *         identifiers, or {@code null} if none are cached, or if they are
+     *         stale.
+     */
+    @Nullable
+    public Map<UUID, TaxCode> get(@Nullable UUID tenantId, @Nonnull Invoice invoice, @Nonnull SimpleTaxConfig cfg) {
+        if (invoice.getId() == null) {
+            return null;
+        }
+        Resolution resolution = resolutions.get(new TenantScopedKey(tenantId, invoice.getId()));
+        if ((resolution == null) || (resolution.cfg != cfg)
+                || !resolution.fingerprint.equals(fingerprintOf(invoice))) {
+            return null;
+        }
+        return resolution.newTaxCodes;
+    }
+
+    /**
+     * Lists the properties of the taxable items of an invoice, that matter
+     * when resolving their tax codes. Other items, like the tax items that are
+     * added afterwards, are ignored.
+     *
+     * @param invoice
+     *            An invoice. Must not be {@code null}.
+     * @return A new immutable list that compares equal for equivalent
+     *         invoices. Never {@code null}.
+     */
+    private static List<Object> fingerprintOf(Invoice invoice) {
+        ImmutableList.Builder<Object> fingerprint = ImmutableList.builder();
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            if (!TAXABLE_ITEM_TYPES.contains(item.getInvoiceItemType())) {
+                continue;
+            }
+            fingerprint.add(new ItemFingerprint(item));
+        }
+        return fingerprint.build();
+    }
+
+    /**
+     * The properties of a taxable item. Amounts are compared regardless of
+     * their scale, because the amounts of new invoices differ in scale from
+     * the ones that are read back from the database.
+     */
+    private static final class ItemFingerprint {
+        private final Object[] properties;
+
+        private ItemFingerprint(InvoiceItem item) {
+            super();
+            properties = new Object[] { item.getId(), item.getInvoiceItemType(), item.getPlanName(),
+                    item.getStartDate(), item.getEndDate(), unscaled(item.getAmount()) };
+        }
+
+        @Nullable
+        private static BigDecimal unscaled(@Nullable BigDecimal amount) {
+            if (amount == null) {
+                return null;
+            }
+            return amount.signum() == 0 ? ZERO : amount.stripTrailingZeros();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof ItemFingerprint)) {
+                return false;
+            }
+            return Arrays.equals(properties, ((ItemFingerprint) obj).properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(properties);
+        }
+    }
+
+    private static final class Resolution {
+        private final List<Object> fingerprint;
+        private final SimpleTaxConfig cfg;
+        private final Map<UUID, TaxCode> newTaxCodes;
+
+        private Resolution(List<Object> fingerprint, SimpleTaxConfig cfg, Map<UUID, TaxCode> newTaxCodes) {
+            super();
+            this.fingerprint = fingerprint;
+            this.cfg = cfg;
+            this.newTaxCodes = newTaxCodes;
+        }
+    }
+}
@@ -17,34 +17,40 @@
 package org.killbill.billing.plugin.simpletax;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.collect.ImmutableSetMultimap.builder;
-import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Ordering.natural;
 import static java.math.BigDecimal.ZERO;
 import static java.math.RoundingMode.HALF_UP;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static org.killbill.billing.ObjectType.INVOICE;
 import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_DELETION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_ADJUSTMENT;
 import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_CHANGE;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_DELETION;
 import static org.killbill.billing.plugin.api.invoice.PluginInvoiceItem.createAdjustmentItem;
 import static org.killbill.billing.plugin.api.invoice.PluginInvoiceItem.createTaxItem;
 import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.DEFAULT_TAX_ITEM_DESC;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
 import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
-import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.amountWithAdjustments;
 import static org.killbill.billing.plugin.simpletax.util.InvoiceHelpers.sumAmounts;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -64,14 +70,25 @@ import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.PluginCallContext;
 import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.plugin.api.invoice.PluginInvoicePluginApi;
+import org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.TaxCodeWrite;
+import org.killbill.billing.plugin.simpletax.config.DryRunPolicy;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
+import org.killbill.billing.plugin.simpletax.dao.ReconciledInvoiceDao;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodeDao;
 import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
+import org.killbill.billing.plugin.simpletax.internal.TaxLedger;
+import org.killbill.billing.plugin.simpletax.internal.TaxLedger.AccountLedger;
+import org.killbill.billing.plugin.simpletax.plumbing.SecuritySessions;
 import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.TaxResolverFactory;
 import org.killbill.billing.plugin.simpletax.util.CheckedLazyValue;
 import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
 import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
@@ -86,14 +103,14 @@ import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIK
 import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.killbill.clock.Clock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -116,6 +133,33 @@ import org.slf4j.LoggerFactory;
  * <p>
  * The implementation is idempotent. Subsequent calls with the same inputs and
  * server state will results in no new item being created.
+ * <p>
+ * The taxes computed for each taxable item are recorded in a
+ * {@linkplain TaxLedger tax ledger}, so that historical items that have not
+ * changed since the last run are not taxed again. Historical invoices that have
+ * not changed since their last reconciliation are skipped altogether. Their
+ * {@linkplain AccountInvoiceIndex#signatureOf signature} covers their items,
+ * adjustments and tax codes, so that changes are detected even when no event
+ * is received on this node.
+ * <p>
+ * The products of catalog plans are {@linkplain PlanProductCache cached} per
+ * tenant, until a tenant configuration change tells that a new catalog might
+ * have been uploaded.
+ * <p>
+ * The tax codes that are resolved for a new invoice when it is being created
+ * are {@linkplain ResolvedTaxCodesCache kept for a short while}, so that they
+ * can be persisted without being resolved again when the invoice creation event
+ * is received.
+ * <p>
+ * Accounts with many invoices can have their historical invoices reconciled in
+ * parallel, on a bounded fork/join pool, when this is
+ * {@linkplain SimpleTaxConfig#getParallelReconciliationThreshold() enabled}
+ * for their tenant.
+ * <p>
+ * Invoices generated in dry-run mode can be taxed on their own, without
+ * reading nor reconciling the history of their account, when the
+ * {@linkplain DryRunPolicy#NEW_INVOICE_ONLY related policy} is configured for
+ * their tenant.
  *
  * @author Benjamin Gandon
  * @see SimpleTaxConfig
@@ -123,10 +167,26 @@ import org.slf4j.LoggerFactory;
  */
 public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillbillEventHandler {
 
+    /** The number of invoices below which a range is reconciled sequentially. */
+    private static final int RECONCILIATION_BATCH_SIZE = 4;
+    /** The number of threads that persist tax codes in the background. */
+    private static final int TAX_CODE_WRITERS = 2;
+    /** The delay before retrying to persist tax codes for the first time. */
+    private static final long TAX_CODE_RETRY_BACKOFF_MILLIS = 500L;
+
     private final Logger logger;
 
     private SimpleTaxConfigurationHandler configHandler;
     private CustomFieldService customFieldService;
+    private TaxCodeDao taxCodeDao;
+    private ReconciledInvoiceDao reconciledInvoiceDao;
+    private TaxLedger taxLedger;
+    private PlanProductCache planProducts;
+    private ResolvedTaxCodesCache resolvedTaxCodes;
+    private ForkJoinPool reconciliationPool;
+    private TaxCodeWriteBehind taxCodeWrites;
+    private SecuritySessions securitySessions;
+    private InvoiceItemIndex invoiceItemIndex;
 
     /**
      * Creates a new simple-tax plugin.
@@ -146,16 +206,126 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
                     OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService,
                     OSGIKillbillClock clockService, Logger logger) {
+        this(configHandler, customFieldService, null, null, metaApi, configService, clockService, logger);
+    }
+
+    SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+                    @Nullable TaxCodeDao taxCodeDao, @Nullable ReconciledInvoiceDao reconciledInvoiceDao,
+                    OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService,
+                    OSGIKillbillClock clockService, Logger logger) {
+        this(configHandler, customFieldService, taxCodeDao, reconciledInvoiceDao, metaApi, configService,
+                clockService,
+                newFixedThreadPool(TAX_CODE_WRITERS, new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("simple-tax-writer-%d").build()), TAX_CODE_WRITERS,
+                TAX_CODE_RETRY_BACKOFF_MILLIS, logger);
+    }
+
+    SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+                    @Nullable TaxCodeDao taxCodeDao, @Nullable ReconciledInvoiceDao reconciledInvoiceDao,
+                    OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService,
+                    OSGIKillbillClock clockService, Executor taxCodeWriteExecutor, int taxCodeWriters,
+                    long taxCodeRetryBackoffMillis, Logger logger) {
         super(metaApi, configService, clockService.getClock());
         this.configHandler = configHandler;
         this.customFieldService = customFieldService;
+        this.taxCodeDao = taxCodeDao;
+        this.reconciledInvoiceDao = reconciledInvoiceDao;
         this.logger = logger;
+        taxLedger = new TaxLedger();
+        planProducts = new PlanProductCache();
+        resolvedTaxCodes = new ResolvedTaxCodesCache();
+        reconciliationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        securitySessions = new SecuritySessions(metaApi);
+        invoiceItemIndex = new InvoiceItemIndex();
+        taxCodeWrites = new TaxCodeWriteBehind(new TaxCodeWriteBehind.Sink() {
+            @Override
+            public Map<TaxCodeWrite, Exception> write(UUID tenantId, List<TaxCodeWrite> writes) {
+                return persistTaxCodes(tenantId, writes);
+            }
+
+            @Override
+            public void release() {
+                securitySessions.logout();
+            }
+        }, taxCodeWriteExecutor, newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("simple-tax-writer-retry").build()), taxCodeWriters,
+                TaxCodeWriteBehind.DEFAULT_CAPACITY, taxCodeRetryBackoffMillis, logger);
     }
 
     public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
             OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService,
                            OSGIKillbillClock clockService) {
-        this(configHandler, customFieldService, metaApi, configService, clockService, LoggerFactory.getLogger(SimpleTaxPlugin.class));
+        this(configHandler, customFieldService, null, null, metaApi, configService, clockService);
+    }
+
+    /**
+     * Creates a new simple-tax plugin, that stores the tax codes of invoice
+     * items and the reconciled invoices in the dedicated tables of this
+     * plugin.
+     *
+     * @param configHandler
+     *            The configuration handler to use for this plugin instance.
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param taxCodeDao
+     *            The data access object for the tax codes of invoice items, or
+     *            {@code null} to rely on Kill Bill custom fields only.
+     * @param reconciledInvoiceDao
+     *            The data access object for reconciled invoices, or
+     *            {@code null} to keep them in memory only.
+     * @param metaApi
+     *            The Kill Bill meta-API.
+     * @param configService
+     *            The service to use for accessing the plugin configuration
+     *            properties.
+     * @param clockService
+     *            The clock service to use when accessing the current time.
+     */
+    public SimpleTaxPlugin(SimpleTaxConfigurationHandler configHandler, CustomFieldService customFieldService,
+            @Nullable TaxCodeDao taxCodeDao, @Nullable ReconciledInvoiceDao reconciledInvoiceDao,
+            OSGIKillbillAPI metaApi, OSGIConfigPropertiesService configService, OSGIKillbillClock clockService) {
+        this(configHandler, customFieldService, taxCodeDao, reconciledInvoiceDao, metaApi, configService,
+                clockService, LoggerFactory.getLogger(SimpleTaxPlugin.class));
+    }
+
+    /**
+     * Releases the threads that might have been started for reconciling
+     * historical invoices in parallel, and for persisting tax codes in the
+     * background, after having given them a chance to flush pending writes.
+     */
+    public void shutdown() {
+        reconciliationPool.shutdown();
+        taxCodeWrites.shutdown();
+    }
+
+    /**
+     * @return The security sessions that this plugin opens on its own behalf.
+     */
+    public SecuritySessions getSecuritySessions() {
+        return securitySessions;
+    }
+
+    /**
+     * @return The index of the invoices of invoice items, that this plugin
+     *         feeds with all the invoices it comes across.
+     */
+    public InvoiceItemIndex getInvoiceItemIndex() {
+        return invoiceItemIndex;
+    }
+
+    /**
+     * @return The per-tenant cache of the products of plans, that this plugin
+     *         invalidates whenever a new catalog is uploaded.
+     */
+    public PlanProductCache getPlanProducts() {
+        return planProducts;
+    }
+
+    /**
+     * @return The queue of tax codes that are persisted in the background.
+     */
+    TaxCodeWriteBehind getTaxCodeWrites() {
+        return taxCodeWrites;
     }
 
     /**
@@ -180,6 +350,13 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      * <p>
      * Plus, tax codes can be added, changed or removed on historical invoices.
      * The affected tax amounts will be adjusted accordingly.
+     * <p>
+     * In dry-run mode, nothing is kept for the new invoice, and the taxes that
+     * are computed are not recorded in the tax ledger of the account. And with
+     * the
+     * {@link DryRunPolicy#NEW_INVOICE_ONLY} policy, only the new invoice is
+     * taxed, out of configured tax codes, so that historical invoices and the
+     * tax codes of invoice items are not even read.
      *
      * @param newInvoice The invoice that is being created.
      * @param dryRun     Boolean flag determining if the request is dry-run
@@ -197,30 +374,198 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
     public List<InvoiceItem> getAdditionalInvoiceItems(Invoice newInvoice, boolean dryRun, Iterable<PluginProperty> properties,
                                                        CallContext callCtx) {
 
-        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, callCtx);
+        SimpleTaxConfig cfg = configHandler.getConfigurable(callCtx.getTenantId());
+        boolean newInvoiceOnly = dryRun && DryRunPolicy.NEW_INVOICE_ONLY.equals(cfg.getDryRunPolicy());
+
+        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, cfg, newInvoiceOnly, callCtx);
         TaxResolver taxResolver = instanciateTaxResolver(taxCtx);
-        Map<UUID, TaxCode> newTaxCodes = addMissingTaxCodes(newInvoice, taxResolver, taxCtx, callCtx);
+        SetMultimap<UUID, TaxCode> existingTaxCodes = taxCtx.getTaxCodeService().findExistingTaxCodes(newInvoice);
+        Map<UUID, TaxCode> newTaxCodes = addMissingTaxCodes(newInvoice, existingTaxCodes, taxResolver, taxCtx);
+        if (!dryRun) {
+            resolvedTaxCodes.put(callCtx.getTenantId(), newInvoice, taxCtx.getConfig(), newTaxCodes);
+        }
+
+        if (newInvoiceOnly) {
+            return computeTaxOrAdjustmentItemsForNewInvoice(newInvoice, taxCtx, existingTaxCodes, newTaxCodes,
+                    TaxLedger.detachedLedger(cfg));
+        }
+        // Dry runs must not leave anything behind in the shared ledger
+        AccountLedger ledger = dryRun ? TaxLedger.detachedLedger(cfg) : accountLedger(newInvoice.getAccountId(),
+                cfg, callCtx);
+
+        List<Invoice> allInvoices = ImmutableList.copyOf(taxCtx.getAllInvoices());
+        int threshold = taxCtx.getConfig().getParallelReconciliationThreshold();
+        List<InvoiceItem> additionalItems;
+        if ((threshold <= 0) || (allInvoices.size() < threshold)) {
+            additionalItems = reconcileInvoices(allInvoices, newInvoice, taxCtx, existingTaxCodes, newTaxCodes,
+                    ledger);
+        } else {
+            additionalItems = reconciliationPool.invoke(new InvoicesReconciliation(allInvoices, 0,
+                    allInvoices.size(), newInvoice, taxCtx, existingTaxCodes, newTaxCodes, ledger));
+        }
+        if (!dryRun) {
+            saveReconciledInvoices(newInvoice.getAccountId(), cfg, ledger, callCtx);
+        }
+        return additionalItems;
+    }
 
+    /**
+     * Returns the tax ledger of an account, restoring its reconciled invoices
+     * from the {@value ReconciledInvoiceDao#TABLE_NAME} table the first time
+     * it is used.
+     *
+     * @param accountId
+     *            The account identifier.
+     * @param cfg
+     *            The configuration of the tenant.
+     * @param tenantCtx
+     *            The context of the tenant.
+     * @return The tax ledger of the account. Never {@code null}.
+     */
+    private AccountLedger accountLedger(UUID accountId, SimpleTaxConfig cfg, TenantContext tenantCtx) {
+        AccountLedger ledger = taxLedger.forAccount(tenantCtx.getTenantId(), accountId, cfg);
+        if ((reconciledInvoiceDao != null) && ledger.claimRestoration()) {
+            try {
+                ledger.restoreReconciledInvoices(reconciledInvoiceDao.getReconciledInvoices(
+                        tenantCtx.getTenantId(), accountId, cfg.getFingerprint()));
+            } catch (SQLException exc) {
+                logger.warn("Cannot read reconciled invoices of account [" + accountId
+                        + "], reconciling all its invoices", exc);
+            }
+        }
+        return ledger;
+    }
+
+    /**
+     * Saves the invoices that have just been reconciled in the tax ledger of
+     * an account to the {@value ReconciledInvoiceDao#TABLE_NAME} table. A
+     * failure here is not fatal: those invoices will just be reconciled again
+     * after a restart.
+     */
+    private void saveReconciledInvoices(UUID accountId, SimpleTaxConfig cfg, AccountLedger ledger,
+            TenantContext tenantCtx) {
+        if (reconciledInvoiceDao == null) {
+            return;
+        }
+        Map<UUID, Integer> reconciled = ledger.drainUnsavedReconciliations();
+        try {
+            reconciledInvoiceDao.saveReconciledInvoices(tenantCtx.getTenantId(), accountId, cfg.getFingerprint(),
+                    reconciled);
+        } catch (SQLException exc) {
+            logger.warn("Cannot save reconciled invoices of account [" + accountId + "]", exc);
+        }
+    }
+
+    /**
+     * Computes the tax items or adjustment items to add to a sequence of
+     * invoices, skipping historical invoices that have already been
+     * reconciled.
+     *
+     * @param invoices
+     *            The invoices to reconcile, in order.
+     * @param newInvoice
+     *            The new invoice that is being created, if part of the given
+     *            invoices.
+     * @param taxCtx
+     *            The context data to use.
+     * @param existingTaxCodes
+     *            The tax codes that are already set on the items of the new
+     *            invoice.
+     * @param newTaxCodes
+     *            The map of new tax code that have just been created for the
+     *            new invoice.
+     * @param ledger
+     *            The tax ledger of the account.
+     * @return A new immutable list of new tax items, or new adjustment items,
+     *         in the order of the given invoices. Never {@code null}, and
+     *         guaranteed not having any {@code null} elements.
+     */
+    private List<InvoiceItem> reconcileInvoices(Iterable<Invoice> invoices, Invoice newInvoice,
+            TaxComputationContext taxCtx, SetMultimap<UUID, TaxCode> existingTaxCodes,
+            Map<UUID, TaxCode> newTaxCodes, AccountLedger ledger) {
         ImmutableList.Builder<InvoiceItem> additionalItems = ImmutableList.builder();
-        for (Invoice invoice : taxCtx.getAllInvoices()) {
+        for (Invoice invoice : invoices) {
 
             List<InvoiceItem> newItems;
             if (invoice.equals(newInvoice)) {
-                newItems = computeTaxOrAdjustmentItemsForNewInvoice(invoice, taxCtx, newTaxCodes);
+                newItems = computeTaxOrAdjustmentItemsForNewInvoice(invoice, taxCtx, existingTaxCodes, newTaxCodes,
+                        ledger);
             } else {
-                newItems = computeTaxOrAdjustmentItemsForHistoricalInvoice(invoice, taxCtx);
+                int signature = taxCtx.getInvoiceIndex().signatureOf(invoice.getId());
+                if (ledger.isReconciled(invoice.getId(), signature)) {
+                    continue;
+                }
+                newItems = computeTaxOrAdjustmentItemsForHistoricalInvoice(invoice, taxCtx, ledger);
+                if (newItems.isEmpty()) {
+                    ledger.markReconciled(invoice.getId(), signature);
+                }
             }
             additionalItems.addAll(newItems);
         }
         return additionalItems.build();
     }
 
+    /**
+     * A fork/join task that reconciles a range of invoices. Large ranges are
+     * split in halves that are reconciled in parallel, and the resulting items
+     * are concatenated in the order of the invoices, so that the result is the
+     * same as the one of a sequential reconciliation.
+     */
+    @SuppressWarnings("serial")
+    private final class InvoicesReconciliation extends RecursiveTask<List<InvoiceItem>> {
+
+        private final List<Invoice> invoices;
+        private final int from;
+        private final int to;
+        private final Invoice newInvoice;
+        private final TaxComputationContext taxCtx;
+        private final SetMultimap<UUID, TaxCode> existingTaxCodes;
+        private final Map<UUID, TaxCode> newTaxCodes;
+        private final AccountLedger ledger;
+
+        private InvoicesReconciliation(List<Invoice> invoices, int from, int to, Invoice newInvoice,
+                TaxComputationContext taxCtx, SetMultimap<UUID, TaxCode> existingTaxCodes,
+                Map<UUID, TaxCode> newTaxCodes, AccountLedger ledger) {
+            super();
+            this.invoices = invoices;
+            this.from = from;
+            this.to = to;
+            this.newInvoice = newInvoice;
+            this.taxCtx = taxCtx;
+            this.existingTaxCodes = existingTaxCodes;
+            this.newTaxCodes = newTaxCodes;
+            this.ledger = ledger;
+        }
+
+        private InvoicesReconciliation subRange(int subFrom, int subTo) {
+            return new InvoicesReconciliation(invoices, subFrom, subTo, newInvoice, taxCtx, existingTaxCodes,
+                    newTaxCodes, ledger);
+        }
+
+        @Override
+        protected List<InvoiceItem> compute() {
+            if ((to - from) <= RECONCILIATION_BATCH_SIZE) {
+                return reconcileInvoices(invoices.subList(from, to), newInvoice, taxCtx, existingTaxCodes,
+                        newTaxCodes, ledger);
+            }
+            int middle = (from + to) >>> 1;
+            InvoicesReconciliation secondHalf = subRange(middle, to);
+            secondHalf.fork();
+            List<InvoiceItem> firstItems = subRange(from, middle).compute();
+            return ImmutableList.<InvoiceItem> builder().addAll(firstItems).addAll(secondHalf.join()).build();
+        }
+    }
+
     @Override
     public void handleKillbillEvent(ExtBusEvent event) {
         logger.debug("Received event [" + event.getEventType() + "] for object [" + event.getObjectId()
                 + "] of type [" + event.getObjectType() + "] belonging to account [" + event.getAccountId()
                 + "] in tenant [" + event.getTenantId() + "]");
 
+        trackDirtyInvoices(event);
+        trackCatalogChanges(event);
+        trackAccountFieldChanges(event);
+
         if (!INVOICE_CREATION.equals(event.getEventType())) {
             return;
         }
@@ -246,21 +591,72 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                     exc);
         }
 
+        invoiceItemIndex.index(tenantId, newInvoice);
         CallContext callCtx = new PluginCallContext(PLUGIN_NAME, DateTime.now(), null, tenantId);
 
-        TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, callCtx);
-        TaxResolver taxResolver = instanciateTaxResolver(taxCtx);
-        Map<UUID, TaxCode> newTaxCodes = addMissingTaxCodes(newInvoice, taxResolver, taxCtx, callCtx);
+        SimpleTaxConfig cfg = configHandler.getConfigurable(tenantId);
+        Map<UUID, TaxCode> newTaxCodes = resolvedTaxCodes.get(tenantId, newInvoice, cfg);
+        if (newTaxCodes == null) {
+            TaxComputationContext taxCtx = createTaxComputationContext(newInvoice, cfg, false, callCtx);
+            TaxResolver taxResolver = instanciateTaxResolver(taxCtx);
+            SetMultimap<UUID, TaxCode> existingTaxCodes = taxCtx.getTaxCodeService()
+                    .findExistingTaxCodes(newInvoice);
+            newTaxCodes = addMissingTaxCodes(newInvoice, existingTaxCodes, taxResolver, taxCtx);
+        }
 
-        // Since we're coming from the bus, we need to log-in manually
-        // TODO The plugin should have its own table instead of relying on custom fields for this
-        killbillAPI.getSecurityApi().login("admin", "password");
+        // Need to do it by listening to the event since we cannot add custom fields until the invoice is created
+        // Writes are not waited for: the ones that are given up on are dead-lettered and replayed in the background
+        taxCodeWrites.submit(tenantId, newInvoice.getAccountId(), invoiceId, newTaxCodes);
+    }
 
-        for (Entry<UUID, TaxCode> entry : newTaxCodes.entrySet()) {
-            UUID invoiceItemId = entry.getKey();
-            TaxCode taxCode = entry.getValue();
-            // Need to do it by listening to the event since we cannot add custom fields until the invoice is created
-            persistTaxCode(taxCode, invoiceItemId, newInvoice, callCtx);
+    /**
+     * Marks invoices as dirty in the tax ledger, when an event tells that they
+     * might need to be reconciled again.
+     * <p>
+     * Adjustments make the adjusted invoice dirty. Changes of tax codes need no
+     * event, because they change the signature of the related invoices.
+     *
+     * @param event
+     *            The event received from the bus.
+     */
+    private void trackDirtyInvoices(ExtBusEvent event) {
+        UUID accountId = event.getAccountId();
+        if (accountId == null) {
+            return;
+        }
+        if (INVOICE_ADJUSTMENT.equals(event.getEventType()) && INVOICE.equals(event.getObjectType())) {
+            taxLedger.markDirty(event.getTenantId(), accountId, event.getObjectId());
+        }
+    }
+
+    /**
+     * Discards the cached products of catalog plans, when an event tells that
+     * the configuration of a tenant has changed. Catalog uploads are tenant
+     * configuration changes.
+     *
+     * @param event
+     *            The event received from the bus.
+     */
+    private void trackCatalogChanges(ExtBusEvent event) {
+        if (TENANT_CONFIG_CHANGE.equals(event.getEventType()) || TENANT_CONFIG_DELETION.equals(event.getEventType())) {
+            planProducts.invalidate(event.getTenantId());
+        }
+    }
+
+    /**
+     * Discards the cached tax fields of an account, when an event tells that
+     * any of its custom fields might have changed, possibly from another node.
+     *
+     * @param event
+     *            The event received from the bus.
+     */
+    private void trackAccountFieldChanges(ExtBusEvent event) {
+        UUID accountId = event.getAccountId();
+        if (accountId == null) {
+            return;
+        }
+        if (CUSTOM_FIELD_CREATION.equals(event.getEventType()) || CUSTOM_FIELD_DELETION.equals(event.getEventType())) {
+            customFieldService.invalidateAccount(event.getTenantId(), accountId);
         }
     }
 
@@ -270,14 +666,19 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *
      * @param newInvoice
      *            The invoice that is being created.
+     * @param cfg
+     *            The plugin configuration for the current tenant.
+     * @param newInvoiceOnly
+     *            Whether the new invoice should be considered alone, without
+     *            reading the other invoices of the account, nor the tax codes
+     *            of their items.
      * @param tenantCtx
      *            The context in which this code is running.
      * @return An immutable holder for helpful pre-computed data when adding or
      *         adjusting taxes in the account invoices. Never {@code null}.
      */
-    private TaxComputationContext createTaxComputationContext(Invoice newInvoice, TenantContext tenantCtx) {
-
-        SimpleTaxConfig cfg = configHandler.getConfigurable(tenantCtx.getTenantId());
+    private TaxComputationContext createTaxComputationContext(Invoice newInvoice, SimpleTaxConfig cfg,
+            boolean newInvoiceOnly, TenantContext tenantCtx) {
 
         UUID accountId = newInvoice.getAccountId();
         Account account = getAccount(accountId, tenantCtx);
@@ -293,15 +694,52 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
             }
         }
 
-        Set<Invoice> allInvoices = allInvoicesOfAccount(account, newInvoice, tenantCtx);
+        Set<Invoice> allInvoices;
+        List<CustomField> invoiceItemFields;
+        if (newInvoiceOnly) {
+            allInvoices = ImmutableSet.of(newInvoice);
+            invoiceItemFields = null;
+        } else {
+            allInvoices = allInvoicesOfAccount(account, newInvoice, tenantCtx);
+            invoiceItemIndex.index(tenantCtx.getTenantId(), allInvoices);
+            invoiceItemFields = taxFieldsOfAccount(accountId, tenantCtx);
+        }
+        AccountInvoiceIndex invoiceIndex = AccountInvoiceIndex.of(allInvoices, invoiceItemFields);
 
-        Function<InvoiceItem, BigDecimal> toAdjustedAmount = toAdjustedAmount(allInvoices);
+        Function<InvoiceItem, BigDecimal> toAdjustedAmount = toAdjustedAmount(invoiceIndex);
         Ordering<InvoiceItem> byAdjustedAmount = natural().onResultOf(toAdjustedAmount);
 
-        TaxCodeService taxCodeService = taxCodeService(account, allInvoices, cfg, tenantCtx);
+        TaxCodeService taxCodeService = taxCodeService(invoiceIndex, cfg, tenantCtx);
 
-        return new TaxComputationContext(cfg, account, accountTaxCountry, allInvoices, toAdjustedAmount,
-                byAdjustedAmount, taxCodeService);
+        return new TaxComputationContext(cfg, account, accountTaxCountry, allInvoices, invoiceIndex,
+                toAdjustedAmount, byAdjustedAmount, taxCodeService);
+    }
+
+    /**
+     * Lists the tax codes of all invoice items of an account, as custom fields.
+     * <p>
+     * They are read from the dedicated table of this plugin with one single
+     * indexed query, when available, because this table is then their
+     * authoritative store. Otherwise, or when the table cannot be read, they
+     * are read from the Kill Bill custom fields of the account, that the
+     * plugin keeps as a mirror of the table.
+     *
+     * @param accountId
+     *            The account identifier.
+     * @param tenantCtx
+     *            The context in which this code is running.
+     * @return The custom fields on the invoice items of the account.
+     */
+    private List<CustomField> taxFieldsOfAccount(UUID accountId, TenantContext tenantCtx) {
+        if (taxCodeDao != null) {
+            try {
+                return taxCodeDao.getTaxCodesOfAccount(tenantCtx.getTenantId(), accountId);
+            } catch (SQLException exc) {
+                logger.warn("Cannot read tax codes of account [" + accountId + "] for tenant ["
+                        + tenantCtx.getTenantId() + "], falling back to custom fields", exc);
+            }
+        }
+        return services().getCustomFieldUserApi().getCustomFieldsForAccountType(accountId, INVOICE_ITEM, tenantCtx);
     }
 
     /**
@@ -338,62 +776,33 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      * Creates the {@linkplain Function function} that returns the adjusted
      * amount out of a given {@linkplain InvoiceItem invoice item}.
      *
-     * @param allInvoices
-     *            The collection of all invoices for a given account.
+     * @param invoiceIndex
+     *            The index of all invoices for a given account.
      * @return The function that returns the adjusted amount of an invoice item.
      *         Never {@code null}.
      */
-    private Function<InvoiceItem, BigDecimal> toAdjustedAmount(Set<Invoice> allInvoices) {
-        final Multimap<UUID, InvoiceItem> allAdjustments = allAjdustmentsGroupedByAdjustedItem(allInvoices);
-
+    private Function<InvoiceItem, BigDecimal> toAdjustedAmount(final AccountInvoiceIndex invoiceIndex) {
         return new Function<InvoiceItem, BigDecimal>() {
             @Override
             public BigDecimal apply(InvoiceItem item) {
-                return amountWithAdjustments(item, allAdjustments);
+                return invoiceIndex.adjustedAmountOf(item);
             }
         };
     }
 
-    /**
-     * Groups the {@linkplain #isAdjustmentItem adjustment items} (found in a
-     * given set of invoices) by the identifier of their
-     * {@linkplain InvoiceItem#getLinkedItemId related} “adjusted” items.
-     * <p>
-     * The resulting collection is typically computed on all invoices of a given
-     * account.
-     *
-     * @param allInvoices
-     *            A list of invoices.
-     * @return A new immutable multi-map of the adjustment items, grouped by the
-     *         items they relate to. Never {@code null}, and guaranteed not
-     *         having any {@code null} elements.
-     */
-    private Multimap<UUID, InvoiceItem> allAjdustmentsGroupedByAdjustedItem(Set<Invoice> allInvoices) {
-        ImmutableSetMultimap.Builder<UUID, InvoiceItem> builder = builder();
-        for (Invoice invoice : allInvoices) {
-            for (InvoiceItem item : invoice.getInvoiceItems()) {
-                if (isAdjustmentItem(item)) {
-                    builder.put(item.getLinkedItemId(), item);
-                }
-            }
-        }
-        return builder.build();
-    }
-
     /**
      * Creates an instance of a tax code service.
      *
-     * @param account
-     *            The account to consider.
-     * @param allInvoices
-     *            The collection of all invoices for the given account.
+     * @param invoiceIndex
+     *            The index of all invoices for the given account.
      * @param cfg
      *            The plugin configuration.
      * @param tenantCtx
      *            The context in which this code is running.
-     * @return A new tax codes service.
+     * @return A new tax codes service, that relies on the cached products of
+     *         the tenant catalog.
      */
-    private TaxCodeService taxCodeService(Account account, Set<Invoice> allInvoices, SimpleTaxConfig cfg,
+    private TaxCodeService taxCodeService(AccountInvoiceIndex invoiceIndex, SimpleTaxConfig cfg,
             final TenantContext tenantCtx) {
         CheckedSupplier<StaticCatalog, CatalogApiException> catalog = new CheckedLazyValue<StaticCatalog, CatalogApiException>() {
             @Override
@@ -401,51 +810,8 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                 return services().getCatalogUserApi().getCurrentCatalog(null, tenantCtx);
             }
         };
-        SetMultimap<UUID, CustomField> taxFieldsOfAllInvoices = taxFieldsOfInvoices(account, allInvoices, tenantCtx);
-        return new TaxCodeService(catalog, cfg, taxFieldsOfAllInvoices);
-    }
-
-    /**
-     * Groups the {@linkplain CustomField custom fields} on
-     * {@linkplain #INVOICE_ITEM invoice items} by the
-     * {@linkplain Invoice#getId() identifier} of their related
-     * {@linkplain Invoice invoices}.
-     *
-     * @param account
-     *            The account to consider
-     * @param allInvoices
-     *            The collection of all invoices for the given account.
-     * @param tenantCtx
-     *            The context in which this code is running.
-     * @return A new immutable multi-map containing the custom fields on all
-     *         invoice items of the given account, grouped by the identifier of
-     *         their relate invoice. Never {@code null}, and guaranteed not
-     *         having any {@code null} elements.
-     */
-    private SetMultimap<UUID, CustomField> taxFieldsOfInvoices(Account account, Set<Invoice> allInvoices,
-            TenantContext tenantCtx) {
-        CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
-        List<CustomField> allCustomFields = customFieldsService.getCustomFieldsForAccountType(account.getId(),
-                INVOICE_ITEM, tenantCtx);
-        if ((allCustomFields == null) || allCustomFields.isEmpty()) {
-            return ImmutableSetMultimap.of();
-        }
-
-        Map<UUID, Invoice> invoiceOfItem = newHashMap();
-        for (Invoice invoice : allInvoices) {
-            for (InvoiceItem item : invoice.getInvoiceItems()) {
-                invoiceOfItem.put(item.getId(), invoice);
-            }
-        }
-
-        ImmutableSetMultimap.Builder<UUID, CustomField> taxFieldsOfInvoice = ImmutableSetMultimap.builder();
-        for (CustomField field : allCustomFields) {
-            if (TAX_CODES_FIELD_NAME.equals(field.getFieldName())) {
-                Invoice invoice = invoiceOfItem.get(field.getObjectId());
-                taxFieldsOfInvoice.put(invoice.getId(), field);
-            }
-        }
-        return taxFieldsOfInvoice.build();
+        return new TaxCodeService(catalog, cfg, invoiceIndex.getTaxFieldsByInvoice(),
+                planProducts.forTenant(tenantCtx.getTenantId()));
     }
 
     /**
@@ -454,24 +820,15 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *
      * @param taxCtx
      *            The context data to use when resolving tax codes.
-     * @return A new instance of the configured {@link TaxResolver}, or an
+     * @return An instance of the configured {@link TaxResolver}, or an
      *         instance of {@link NullTaxResolver} if none was configured. Never
      *         {@code null}.
      */
     private TaxResolver instanciateTaxResolver(TaxComputationContext taxCtx) {
-        Constructor<? extends TaxResolver> constructor = taxCtx.getConfig().getTaxResolverConstructor();
+        TaxResolverFactory factory = taxCtx.getConfig().getTaxResolverFactory();
         Throwable issue;
         try {
-            return constructor.newInstance(taxCtx);
-        } catch (IllegalAccessException shouldNeverHappen) {
-            // This should not happen because we are supposed to deal with a
-            // public constructor by SimpleTaxConfig contract. Let it crash.
-            throw new RuntimeException(shouldNeverHappen);
-        } catch (IllegalArgumentException shouldNeverHappen) {
-            // This should not happen because by SimpleTaxConfig contract, we
-            // are supposed to deal with a constructor that accepts the expected
-            // arguments types. Let it crash.
-            throw shouldNeverHappen;
+            return factory.newResolver(taxCtx);
         } catch (InstantiationException exc) {
             issue = exc;
         } catch (InvocationTargetException exc) {
@@ -490,24 +847,24 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *
      * @param newInvoice
      *            The new invoice that is being created.
+     * @param existingTaxCodesForInvoiceItems
+     *            The tax codes that are already set on the items of the new
+     *            invoice.
      * @param resolver
      *            The tax resolver to use.
      * @param taxCtx
      *            The context data to use when computing taxes.
-     * @param callCtx
-     *            The context in which this code is running.
      * @return A new immutable map of the tax codes to add, mapped from their
      *         related invoice item identifier. Never {@code null}, and
      *         guaranteed not having any {@code null} elements.
      */
-    private Map<UUID, TaxCode> addMissingTaxCodes(Invoice newInvoice, TaxResolver resolver,
-            final TaxComputationContext taxCtx, CallContext callCtx) {
+    private Map<UUID, TaxCode> addMissingTaxCodes(Invoice newInvoice,
+            SetMultimap<UUID, TaxCode> existingTaxCodesForInvoiceItems, TaxResolver resolver,
+            final TaxComputationContext taxCtx) {
         // Obtain tax codes from products of invoice items
         TaxCodeService taxCodesService = taxCtx.getTaxCodeService();
-        SetMultimap<UUID, TaxCode> configuredTaxCodesForInvoiceItems = taxCodesService
-                .resolveTaxCodesFromConfig(newInvoice);
-
-        SetMultimap<UUID, TaxCode> existingTaxCodesForInvoiceItems = taxCodesService.findExistingTaxCodes(newInvoice);
+        Map<UUID, TaxCodeTimeline> configuredTaxCodesForInvoiceItems = taxCodesService
+                .resolveTaxCodeTimelinesFromConfig(newInvoice, taxCtx.getAccountTaxCountry());
 
         ImmutableMap.Builder<UUID, TaxCode> newTaxCodes = ImmutableMap.builder();
         // Add product tax codes to custom field if null or empty
@@ -515,9 +872,9 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
             if (!isTaxableItem(item)) {
                 continue;
             }
-            Set<TaxCode> expectedTaxCodes = configuredTaxCodesForInvoiceItems.get(item.getId());
-            // Note: expectedTaxCodes != null as per the Multimap contract
-            if (expectedTaxCodes.isEmpty()) {
+            // Tax codes here are already restricted to the account tax country
+            TaxCodeTimeline expectedTaxCodes = configuredTaxCodesForInvoiceItems.get(item.getId());
+            if (expectedTaxCodes == null) {
                 continue;
             }
             Set<TaxCode> existingTaxCodes = existingTaxCodesForInvoiceItems.get(item.getId());
@@ -527,17 +884,8 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
                 continue;
             }
 
-            final String accountTaxCountry = taxCtx.getAccountTaxCountry() == null ? null : taxCtx
-                    .getAccountTaxCountry().getCode();
-            Iterable<TaxCode> expectedInAccountCountry = filter(expectedTaxCodes, new Predicate<TaxCode>() {
-                @Override
-                public boolean apply(TaxCode taxCode) {
-                    Country restrict = taxCode.getCountry();
-                    return (restrict == null) || restrict.getCode().equals(accountTaxCountry);
-                }
-            });
             // resolve tax codes using regulation-specific logic
-            TaxCode applicableCode = resolver.applicableCodeForItem(expectedInAccountCountry, item);
+            TaxCode applicableCode = resolver.applicableCodeForItem(expectedTaxCodes, item);
             if (applicableCode == null) {
                 continue;
             }
@@ -547,43 +895,131 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
         return newTaxCodes.build();
     }
 
-    private void persistTaxCode(TaxCode applicableCode, UUID invoiceItemId, Invoice newInvoice, CallContext callCtx) {
+    /**
+     * Persists the tax codes of many invoice items of a given tenant, in the
+     * dedicated table of this plugin when available, and as custom fields that
+     * are all added in one single batched call, within one single security
+     * session.
+     * <p>
+     * The table is written first, because its writes are idempotent, so that
+     * custom fields are not added twice when writes are retried.
+     * <p>
+     * When the batched call fails, the fields are added one by one, so that
+     * only the very items that caused errors are reported as failed, and all
+     * other items still get their tax codes.
+     *
+     * @param tenantId
+     *            The tenant of the invoice items.
+     * @param writes
+     *            The tax codes to persist.
+     * @return The writes that have failed, with the cause of their failure.
+     */
+    private Map<TaxCodeWrite, Exception> persistTaxCodes(UUID tenantId, List<TaxCodeWrite> writes) {
+        Map<TaxCodeWrite, Exception> failures = newLinkedHashMap();
+        List<TaxCodeWrite> stored = storeTaxCodes(tenantId, writes, failures);
+        if (stored.isEmpty()) {
+            return failures;
+        }
+
+        ImmutableList.Builder<CustomField> taxFields = ImmutableList.builder();
+        for (TaxCodeWrite write : stored) {
+            taxFields.add(ImmutableCustomField.builder()//
+                    .withFieldName(TAX_CODES_FIELD_NAME)//
+                    .withFieldValue(write.getTaxCodes())//
+                    .withObjectType(INVOICE_ITEM)//
+                    .withObjectId(write.getInvoiceItemId())//
+                    .build());
+        }
+        List<CustomField> fields = taxFields.build();
+
+        CallContext callCtx = new PluginCallContext(PLUGIN_NAME, DateTime.now(), null, tenantId);
         CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
-        ImmutableCustomField.Builder taxCodesField = ImmutableCustomField.builder()//
-                .withFieldName(TAX_CODES_FIELD_NAME)//
-                .withFieldValue(applicableCode.getName())//
-                .withObjectType(INVOICE_ITEM)//
-                .withObjectId(invoiceItemId);
-        CustomField field = taxCodesField.build();
-        SimpleTaxConfig config = configHandler.getConfigurable(callCtx.getTenantId());
+        SimpleTaxConfig config = configHandler.getConfigurable(tenantId);
+        // added for UnauthenticatedException, logs out once all pending writes are flushed
+        securitySessions.login(config.getCredentials().get("username"), config.getCredentials().get("password"));
         try {
-            // added for UnauthenticatedException
-            killbillAPI.getSecurityApi().login(
-                    config.getCredentials().get("username"),
-                    config.getCredentials().get("password"));
-            customFieldsService.addCustomFields(newArrayList(field), callCtx);
+            customFieldsService.addCustomFields(fields, callCtx);
         } catch (CustomFieldApiException exc) {
-            logger.error("Cannot add custom field [" + field.getFieldName() + "] with value [" + field.getFieldValue()
-                    + "] to invoice item [" + invoiceItemId + "] of invoice [" + newInvoice.getId()
-                    + "] for tenant [" + callCtx.getTenantId() + "]", exc);
-            throw new RuntimeException("unexpected error while adding custom field [" + field.getFieldName()
-                    + "] with value [" + field.getFieldValue() + "] to invoice item [" + invoiceItemId
-                    + "] of invoice [" + newInvoice.getId() + "] for tenant [" + callCtx.getTenantId() + "]", exc);
+            addOneByOne(stored, fields, callCtx, exc, failures);
         } catch (IllegalStateException exc) {
-            if (!"org.killbill.billing.util.callcontext.InternalCallContextFactory$ObjectDoesNotExist".equals(exc
-                    .getClass().getName())) {
-                throw exc;
+            addOneByOne(stored, fields, callCtx, exc, failures);
+        }
+        return failures;
+    }
+
+    /**
+     * Stores tax codes in the dedicated table of this plugin, with one batch
+     * per invoice.
+     *
+     * @return The writes that have been stored, or all of them when there is
+     *         no such table.
+     */
+    private List<TaxCodeWrite> storeTaxCodes(UUID tenantId, List<TaxCodeWrite> writes,
+            Map<TaxCodeWrite, Exception> failures) {
+        if (taxCodeDao == null) {
+            return writes;
+        }
+        ListMultimap<UUID, TaxCodeWrite> writesByInvoice = LinkedListMultimap.create();
+        for (TaxCodeWrite write : writes) {
+            writesByInvoice.put(write.getInvoiceId(), write);
+        }
+        ImmutableList.Builder<TaxCodeWrite> stored = ImmutableList.builder();
+        for (UUID invoiceId : writesByInvoice.keySet()) {
+            List<TaxCodeWrite> writesOfInvoice = writesByInvoice.get(invoiceId);
+            ImmutableMap.Builder<UUID, String> taxCodes = ImmutableMap.builder();
+            for (TaxCodeWrite write : writesOfInvoice) {
+                taxCodes.put(write.getInvoiceItemId(), write.getTaxCodes());
+            }
+            try {
+                taxCodeDao.saveTaxCodes(tenantId, writesOfInvoice.get(0).getAccountId(), invoiceId,
+                        taxCodes.build());
+                stored.addAll(writesOfInvoice);
+            } catch (SQLException exc) {
+                for (TaxCodeWrite write : writesOfInvoice) {
+                    failures.put(write, exc);
+                }
+            }
+        }
+        return stored.build();
+    }
+
+    /**
+     * Adds custom fields one by one, after a batched call has failed.
+     * <p>
+     * A single field is not added again, and directly reported as failed.
+     */
+    private void addOneByOne(List<TaxCodeWrite> writes, List<CustomField> fields, CallContext callCtx,
+            Exception batchFailure, Map<TaxCodeWrite, Exception> failures) {
+        CustomFieldUserApi customFieldsService = services().getCustomFieldUserApi();
+        for (int i = 0; i < fields.size(); i++) {
+            TaxCodeWrite write = writes.get(i);
+            Exception failure = batchFailure;
+            if (fields.size() > 1) {
+                try {
+                    customFieldsService.addCustomFields(newArrayList(fields.get(i)), callCtx);
+                    continue;
+                } catch (CustomFieldApiException exc) {
+                    failure = exc;
+                } catch (IllegalStateException exc) {
+                    failure = exc;
+                }
+            }
+            if (isNonExistingObject(failure)) {
+                logger.error("Cannot add custom field [" + TAX_CODES_FIELD_NAME + "] with value ["
+                        + write.getTaxCodes() + "] to *non-existing* invoice item [" + write.getInvoiceItemId()
+                        + "] of invoice [" + write.getInvoiceId() + "] for tenant [" + callCtx.getTenantId() + "]",
+                        failure);
+                continue;
             }
-            logger.error(
-                    "Cannot add custom field [" + field.getFieldName() + "] with value [" + field.getFieldValue()
-                            + "] to *non-existing* invoice item [" + invoiceItemId + "] of invoice ["
-                            + newInvoice.getId() + "] for tenant [" + callCtx.getTenantId() + "]", exc);
-        } finally {
-            // logs out
-            killbillAPI.getSecurityApi().logout();
+            failures.put(write, failure);
         }
     }
 
+    private static boolean isNonExistingObject(Exception exc) {
+        return "org.killbill.billing.util.callcontext.InternalCallContextFactory$ObjectDoesNotExist".equals(exc
+                .getClass().getName());
+    }
+
     /**
      * Compute tax items against taxable items, in a <em>newly created</em>
      * invoice, or adjust existing tax items that don't match the expected tax
@@ -593,19 +1029,23 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      *            The new invoice being created.
      * @param ctx
      *            The context data to use.
+     * @param existingTaxCodes
+     *            The tax codes that are already set on the items of the new
+     *            invoice.
      * @param newTaxCodes
      *            The map of new tax code that have just been created for the
      *            given invoice.
+     * @param ledger
+     *            The tax ledger of the account, in which the expected taxes
+     *            are recorded.
      * @return A new immutable list of new tax items, or new adjustment items to
      *         add to the invoice. Never {@code null}, and guaranteed not having
      *         any {@code null} elements.
      */
     private List<InvoiceItem> computeTaxOrAdjustmentItemsForNewInvoice(Invoice newInvoice, TaxComputationContext ctx,
-            Map<UUID, TaxCode> newTaxCodes) {
-
-        SetMultimap<UUID, InvoiceItem> currentTaxItems = taxItemsGroupedByRelatedTaxedItems(newInvoice);
+            SetMultimap<UUID, TaxCode> existingTaxCodes, Map<UUID, TaxCode> newTaxCodes, AccountLedger ledger) {
 
-        SetMultimap<UUID, TaxCode> existingTaxCodes = ctx.getTaxCodeService().findExistingTaxCodes(newInvoice);
+        SetMultimap<UUID, InvoiceItem> currentTaxItems = ctx.getInvoiceIndex().taxItemsOf(newInvoice);
 
         ImmutableList.Builder<InvoiceItem> newItems = ImmutableList.builder();
         for (InvoiceItem item : newInvoice.getInvoiceItems()) {
@@ -625,6 +1065,12 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
 
             BigDecimal adjustedAmount = ctx.toAdjustedAmount().apply(item);
             BigDecimal expectedTaxAmount = computeTaxAmount(item, adjustedAmount, tax, ctx.getConfig());
+            String taxCodesCSV = ctx.getInvoiceIndex().taxCodesOf(item.getId());
+            if ((taxCodesCSV == null) && (tax != null)) {
+                // The custom field of new tax codes is not written yet
+                taxCodesCSV = tax.getName();
+            }
+            ledger.record(item.getId(), adjustedAmount, taxCodesCSV, expectedTaxAmount);
 
             Set<InvoiceItem> relatedTaxItems = currentTaxItems.get(item.getId());
             BigDecimal currentTaxAmount = sumAmounts(transform(relatedTaxItems, ctx.toAdjustedAmount()));
@@ -666,28 +1112,6 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
         return newItems.build();
     }
 
-    /**
-     * Groups the {@linkplain #isTaxItem tax items} (found in a given invoice)
-     * by the identifier of their {@linkplain InvoiceItem#getLinkedItemId
-     * related} “taxable” items.
-     *
-     * @param invoice
-     *            An invoice.
-     * @return An immutable multi-map of the tax items for the given invoice,
-     *         grouped by the identifier of their related (taxed) item. Never
-     *         {@code null}, and guaranteed not having any {@code null}
-     *         elements.
-     */
-    private SetMultimap<UUID, InvoiceItem> taxItemsGroupedByRelatedTaxedItems(Invoice invoice) {
-        ImmutableSetMultimap.Builder<UUID, InvoiceItem> currentTaxItemsBuilder = builder();
-        for (InvoiceItem item : invoice.getInvoiceItems()) {
-            if (isTaxItem(item)) {
-                currentTaxItemsBuilder.put(item.getLinkedItemId(), item);
-            }
-        }
-        return currentTaxItemsBuilder.build();
-    }
-
     /**
      * Computes the amount of tax for a given amount, in the context of a given
      * invoice item, invoice, and account.
@@ -795,43 +1219,61 @@ public class SimpleTaxPlugin extends PluginInvoicePluginApi implements OSGIKillb
      * <p>
      * Tax codes are allowed to change on historical invoice. They can be
      * removed, changed or added. Then taxes are adjusted or added accordingly.
+     * <p>
+     * Taxable items that are {@linkplain AccountLedger#isSettled settled} in
+     * the tax ledger of the account are skipped, because nothing has changed
+     * on them since their taxes were last computed. This is checked on the raw
+     * tax codes of the items, so that the tax codes of an invoice are only
+     * resolved when one of its items is not settled.
      *
      * @param oldInvoice
      *            An historical invoice.
      * @param ctx
      *            The context data to use.
+     * @param ledger
+     *            The tax ledger of the account.
      * @return A new immutable list of new adjustment items to add to the
      *         invoice. Never {@code null}, and guaranteed not having any
      *         {@code null} elements.
      */
     private List<InvoiceItem> computeTaxOrAdjustmentItemsForHistoricalInvoice(Invoice oldInvoice,
-            TaxComputationContext ctx) {
+            TaxComputationContext ctx, AccountLedger ledger) {
 
-        SetMultimap<UUID, InvoiceItem> currentTaxItems = taxItemsGroupedByRelatedTaxedItems(oldInvoice);
-
-        SetMultimap<UUID, TaxCode> existingTaxCodes = ctx.getTaxCodeService().findExistingTaxCodes(oldInvoice);
+        SetMultimap<UUID, InvoiceItem> currentTaxItems = ctx.getInvoiceIndex().taxItemsOf(oldInvoice);
 
+        SetMultimap<UUID, TaxCode> existingTaxCodes = null;
         ImmutableList.Builder<InvoiceItem> newItems = ImmutableList.builder();
         for (InvoiceItem item : oldInvoice.getInvoiceItems()) {
             if (!isTaxableItem(item)) {
                 continue;
             }
+            String taxCodesCSV = ctx.getInvoiceIndex().taxCodesOf(item.getId());
+            if (taxCodesCSV == null) {
+                // For safety, to avoid adjusting old invoices without tax codes
+                continue;
+            }
 
+            // Settled items are skipped before any tax code is resolved
             Set<InvoiceItem> relatedTaxItems = currentTaxItems.get(item.getId());
+            BigDecimal adjustedAmount = ctx.toAdjustedAmount().apply(item);
+            BigDecimal currentTaxAmount = sumAmounts(transform(relatedTaxItems, ctx.toAdjustedAmount()));
+            if (ledger.isSettled(item.getId(), adjustedAmount, taxCodesCSV, currentTaxAmount)) {
+                continue;
+            }
 
-            TaxCode tax = null;
+            if (existingTaxCodes == null) {
+                existingTaxCodes = ctx.getTaxCodeService().findExistingTaxCodes(oldInvoice);
+            }
             Set<TaxCode> taxes = existingTaxCodes.get(item.getId());
             // Note: taxes != null as per the Multimap contract
             if (taxes.isEmpty()) {
                 // For safety, to avoid adjusting old invoices without tax codes
                 continue;
-            } else {
-                tax = taxes.iterator().next();
             }
+            TaxCode tax = taxes.iterator().next();
 
-            BigDecimal adjustedAmount = ctx.toAdjustedAmount().apply(item);
             BigDecimal expectedTaxAmount = computeTaxAmount(item, adjustedAmount, tax, ctx.getConfig());
-            BigDecimal currentTaxAmount = sumAmounts(transform(relatedTaxItems, ctx.toAdjustedAmount()));
+            ledger.record(item.getId(), adjustedAmount, taxCodesCSV, expectedTaxAmount);
 
             if (currentTaxAmount.compareTo(expectedTaxAmount) != 0) {
                 BigDecimal adjustmentAmount = expectedTaxAmount.subtract(currentTaxAmount);
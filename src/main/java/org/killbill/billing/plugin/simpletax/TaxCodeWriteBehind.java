@@ -0,0 +1,587 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.killbill.billing.plugin.simpletax;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.lang.Boolean.TRUE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.slf4j.Logger;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A bounded write-behind queue for the tax codes of new invoice items.
+ * <p>
+ * Writes are {@linkplain #submit submitted} from the bus threads. They are
+ * then flushed in batches by background workers, that run on the given
+ * {@link Executor}, and that hand all writes of a given tenant to the
+ * {@link Sink} at once, so that the writes of concurrent events share the same
+ * round trips.
+ * <p>
+ * Writes are idempotent, and keyed by invoice item and tax codes. A write that
+ * is already pending shares the outcome of the pending one, and a write that
+ * has recently been flushed is ignored.
+ * <p>
+ * Failed writes are retried with an exponential backoff. Retries are
+ * scheduled on the given {@link ScheduledExecutorService}, so that workers
+ * never wait for them and keep on flushing the writes of other tenants.
+ * <p>
+ * After {@value #DEFAULT_MAX_ATTEMPTS} attempts, or when the queue is full,
+ * writes are given up on. Their outcome then fails, so that callers can report
+ * the failure, and they are logged as errors and kept aside as dead letters.
+ * At most {@value #MAX_DEAD_LETTERS} dead letters are kept, the oldest ones
+ * being dropped first. Dead letters are replayed as soon as some other write
+ * of the same tenant succeeds, and a dead letter that is submitted again is
+ * no longer considered as such. A write that is still given up on after
+ * {@value #MAX_REPLAYS} replays is dropped for good, so that writes which can
+ * never succeed do not keep on taking turns with healthy ones.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TaxCodeWriteBehind {
+
+    /** The default maximum number of pending writes. */
+    public static final int DEFAULT_CAPACITY = 10000;
+    /** The maximum number of writes that are flushed at once. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /** The number of attempts after which a write is dead-lettered. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    /** The maximum number of dead letters to keep. */
+    static final int MAX_DEAD_LETTERS = 1000;
+    /** The number of times a dead letter is replayed before being dropped. */
+    static final int MAX_REPLAYS = 3;
+    /** The maximum number of recently flushed writes to remember. */
+    private static final long MAX_REMEMBERED_WRITES = 10000L;
+    /** The maximum delay between two attempts. */
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    /**
+     * The destination of tax code writes.
+     *
+     * @author Benjamin Gandon
+     */
+    public interface Sink {
+        /**
+         * Persists the tax codes of many invoice items of a given tenant.
+         *
+         * @param tenantId
+         *            The tenant of the invoice items, or {@code null}.
+         * @param writes
+         *            The writes to persist. Never {@code null}, nor empty.
+         * @return The writes that have failed and should be retried, with the
+         *         cause of their failure. Never {@code null}.
+         */
+        @Nonnull
+        Map<TaxCodeWrite, Exception> write(@Nullable UUID tenantId, @Nonnull List<TaxCodeWrite> writes);
+
+        /**
+         * Releases any resource that has been held by the current thread for
+         * writing, once it has no more writes to flush.
+         */
+        void release();
+    }
+
+    private final Sink sink;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final int workers;
+    private final long initialBackoffMillis;
+    private final Logger logger;
+
+    private final BlockingQueue<TaxCodeWrite> queue;
+    private final ConcurrentMap<TaxCodeWrite, PendingWrite> pending;
+    private final Cache<TaxCodeWrite, Boolean> flushed;
+    private final BlockingDeque<DeadLetter> deadLetters;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                List<TaxCodeWrite> batch = newArrayList();
+                while (queue.drainTo(batch, DEFAULT_BATCH_SIZE) > 0) {
+                    flush(batch);
+                    batch.clear();
+                }
+            } finally {
+                sink.release();
+                activeWorkers.decrementAndGet();
+                if (!queue.isEmpty()) {
+                    startWorker();
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructs a new write-behind queue.
+     *
+     * @param sink
+     *            The destination of writes.
+     * @param executor
+     *            The executor on which background flushes are run.
+     * @param scheduler
+     *            The executor on which retries are scheduled.
+     * @param workers
+     *            The maximum number of concurrent flushes.
+     * @param capacity
+     *            The maximum number of pending writes.
+     * @param initialBackoffMillis
+     *            The delay before the first retry, in milliseconds. It doubles
+     *            on each subsequent attempt.
+     * @param logger
+     *            The logger to use.
+     */
+    public TaxCodeWriteBehind(Sink sink, Executor executor, ScheduledExecutorService scheduler, int workers,
+            int capacity, long initialBackoffMillis, Logger logger) {
+        super();
+        checkArgument(workers > 0, "non-positive number of workers: %s", workers);
+        this.sink = sink;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.workers = workers;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.logger = logger;
+        queue = new LinkedBlockingQueue<TaxCodeWrite>(capacity);
+        pending = Maps.newConcurrentMap();
+        flushed = CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_WRITES).build();
+        deadLetters = new LinkedBlockingDeque<DeadLetter>(MAX_DEAD_LETTERS);
+    }
+
+    /**
+     * Queues the tax codes of the items of an invoice, to be persisted in the
+     * background.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null}.
+     * @param accountId
+     *            The account of the invoice.
+     * @param invoiceId
+     *            The invoice identifier.
+     * @param taxCodes
+     *            The tax codes to persist, by invoice item identifier.
+     * @return The outcome of the writes, that succeeds once they have all been
+     *         flushed, or fails with the cause of the first write that has
+     *         been given up on. Never {@code null}.
+     */
+    @Nonnull
+    public ListenableFuture<Void> submit(@Nullable UUID tenantId, @Nonnull UUID accountId,
+            @Nonnull UUID invoiceId, @Nonnull Map<UUID, TaxCode> taxCodes) {
+        ImmutableList.Builder<ListenableFuture<Void>> outcomes = ImmutableList.builder();
+        for (Map.Entry<UUID, TaxCode> entry : taxCodes.entrySet()) {
+            TaxCodeWrite write = new TaxCodeWrite(tenantId, accountId, invoiceId, entry.getKey(), entry
+                    .getValue().getName());
+            removeDeadLetter(write);
+            outcomes.add(submit(write, 0));
+        }
+        startWorker();
+
+        final SettableFuture<Void> outcome = SettableFuture.create();
+        Futures.addCallback(Futures.allAsList(outcomes.build()), new FutureCallback<List<Void>>() {
+            @Override
+            public void onSuccess(List<Void> result) {
+                outcome.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                outcome.setException(cause);
+            }
+        });
+        return outcome;
+    }
+
+    private ListenableFuture<Void> submit(TaxCodeWrite write, int replays) {
+        if (flushed.getIfPresent(write) != null) {
+            return immediateFuture(null);
+        }
+        PendingWrite newWrite = new PendingWrite(replays);
+        PendingWrite pendingWrite = pending.putIfAbsent(write, newWrite);
+        if (pendingWrite != null) {
+            return pendingWrite.outcome;
+        }
+        if (!queue.offer(write)) {
+            giveUp(write, "the write-behind queue is full", new RejectedExecutionException(
+                    "the write-behind queue is full"));
+        }
+        return newWrite.outcome;
+    }
+
+    private void startWorker() {
+        int active;
+        do {
+            active = activeWorkers.get();
+            if (active >= workers) {
+                return;
+            }
+        } while (!activeWorkers.compareAndSet(active, active + 1));
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException exc) {
+            activeWorkers.decrementAndGet();
+            if (activeWorkers.get() == 0) {
+                List<TaxCodeWrite> unflushed = newArrayList();
+                queue.drainTo(unflushed);
+                for (TaxCodeWrite write : unflushed) {
+                    giveUp(write, "because no worker can be started", exc);
+                }
+            }
+        }
+    }
+
+    private void flush(List<TaxCodeWrite> batch) {
+        ListMultimap<UUID, TaxCodeWrite> writesByTenant = LinkedListMultimap.create();
+        for (TaxCodeWrite write : batch) {
+            writesByTenant.put(write.getTenantId(), write);
+        }
+        for (UUID tenantId : writesByTenant.keySet()) {
+            flush(tenantId, writesByTenant.get(tenantId));
+        }
+    }
+
+    private void flush(UUID tenantId, List<TaxCodeWrite> writes) {
+        Map<TaxCodeWrite, Exception> failures;
+        try {
+            failures = sink.write(tenantId, writes);
+        } catch (RuntimeException exc) {
+            ImmutableMap.Builder<TaxCodeWrite, Exception> allFailed = ImmutableMap.builder();
+            for (TaxCodeWrite write : writes) {
+                allFailed.put(write, exc);
+            }
+            failures = allFailed.build();
+        }
+        ListMultimap<Integer, TaxCodeWrite> retriesByAttempt = LinkedListMultimap.create();
+        for (TaxCodeWrite write : writes) {
+            PendingWrite pendingWrite = pending.get(write);
+            Exception failure = failures.get(write);
+            if (failure == null) {
+                flushed.put(write, TRUE);
+                pending.remove(write);
+                if (pendingWrite != null) {
+                    pendingWrite.outcome.set(null);
+                }
+                continue;
+            }
+            int attempt = pendingWrite == null ? DEFAULT_MAX_ATTEMPTS : pendingWrite.attempts.incrementAndGet();
+            if (attempt >= DEFAULT_MAX_ATTEMPTS) {
+                giveUp(write, "after " + attempt + " attempts", failure);
+            } else {
+                retriesByAttempt.put(attempt, write);
+            }
+        }
+        for (Integer attempt : retriesByAttempt.keySet()) {
+            List<TaxCodeWrite> retries = ImmutableList.copyOf(retriesByAttempt.get(attempt));
+            long backoff = Math.min(initialBackoffMillis << (attempt - 1), MAX_BACKOFF_MILLIS);
+            logger.warn("Retrying " + retries.size() + " tax code writes for tenant [" + tenantId + "] in "
+                    + backoff + " ms, after attempt " + attempt, failures.get(retries.get(0)));
+            retry(retries, backoff);
+        }
+        if (failures.isEmpty()) {
+            replayDeadLetters(tenantId);
+        }
+    }
+
+    private void retry(final List<TaxCodeWrite> writes, long backoffMillis) {
+        if (backoffMillis <= 0L) {
+            requeue(writes);
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requeue(writes);
+                    startWorker();
+                }
+            }, backoffMillis, MILLISECONDS);
+        } catch (RejectedExecutionException exc) {
+            for (TaxCodeWrite write : writes) {
+                giveUp(write, "because no retry can be scheduled", exc);
+            }
+        }
+    }
+
+    private void requeue(List<TaxCodeWrite> writes) {
+        for (TaxCodeWrite write : writes) {
+            if (!queue.offer(write)) {
+                giveUp(write, "the write-behind queue is full", new RejectedExecutionException(
+                        "the write-behind queue is full"));
+            }
+        }
+    }
+
+    private void giveUp(TaxCodeWrite write, String reason, Exception cause) {
+        PendingWrite pendingWrite = pending.remove(write);
+        int replays = pendingWrite == null ? 0 : pendingWrite.replays;
+        if (replays >= MAX_REPLAYS) {
+            logger.error("Cannot add tax codes [" + write.getTaxCodes() + "] to invoice item ["
+                    + write.getInvoiceItemId() + "] of invoice [" + write.getInvoiceId() + "] for tenant ["
+                    + write.getTenantId() + "] " + reason + ", write has been dropped after " + replays
+                    + " replays", cause);
+            pendingWrite.outcome.setException(cause);
+            return;
+        }
+        DeadLetter deadLetter = new DeadLetter(write, replays);
+        while (!deadLetters.offerLast(deadLetter)) {
+            DeadLetter dropped = deadLetters.pollFirst();
+            if (dropped != null) {
+                logger.error("Dropping dead-lettered tax codes [" + dropped.write.getTaxCodes()
+                        + "] of invoice item [" + dropped.write.getInvoiceItemId() + "] of invoice ["
+                        + dropped.write.getInvoiceId() + "] for tenant [" + dropped.write.getTenantId()
+                        + "], too many dead letters");
+            }
+        }
+        logger.error("Cannot add tax codes [" + write.getTaxCodes() + "] to invoice item ["
+                + write.getInvoiceItemId() + "] of invoice [" + write.getInvoiceId() + "] for tenant ["
+                + write.getTenantId() + "] " + reason + ", write has been dead-lettered", cause);
+        if (pendingWrite != null) {
+            pendingWrite.outcome.setException(cause);
+        }
+    }
+
+    /**
+     * Submits again the writes of a tenant that have been given up on, once
+     * some other write of that tenant has succeeded.
+     */
+    private void replayDeadLetters(@Nullable UUID tenantId) {
+        List<DeadLetter> replayed = newArrayList();
+        Iterator<DeadLetter> iter = deadLetters.iterator();
+        while (iter.hasNext()) {
+            DeadLetter deadLetter = iter.next();
+            if (Objects.equal(tenantId, deadLetter.write.getTenantId()) && deadLetters.remove(deadLetter)) {
+                replayed.add(deadLetter);
+            }
+        }
+        if (replayed.isEmpty()) {
+            return;
+        }
+        logger.info("Replaying " + replayed.size() + " dead-lettered tax code writes for tenant [" + tenantId
+                + "]");
+        for (DeadLetter deadLetter : replayed) {
+            submit(deadLetter.write, deadLetter.replays + 1);
+        }
+    }
+
+    private void removeDeadLetter(TaxCodeWrite write) {
+        Iterator<DeadLetter> iter = deadLetters.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().write.equals(write)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return A new immutable list of the writes that have been given up on.
+     *         Never {@code null}.
+     */
+    @Nonnull
+    List<TaxCodeWrite> getDeadLetters() {
+        ImmutableList.Builder<TaxCodeWrite> writes = ImmutableList.builder();
+        for (DeadLetter deadLetter : deadLetters) {
+            writes.add(deadLetter.write);
+        }
+        return writes.build();
+    }
+
+    /**
+     * @return The number of writes that are waiting to be flushed.
+     */
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the background workers, after giving them a few seconds to flush
+     * pending writes, when they run on an {@link ExecutorService}. Scheduled
+     * retries are cancelled, and the writes that could not be flushed are
+     * given up on.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (executor instanceof ExecutorService) {
+            ExecutorService executorService = (ExecutorService) executor;
+            executorService.shutdown();
+            try {
+                if (!executorService.awaitTermination(10L, SECONDS)) {
+                    logger.warn("Stopped with " + pending.size() + " pending tax code writes");
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (TaxCodeWrite write : ImmutableList.copyOf(pending.keySet())) {
+            giveUp(write, "on shutdown", new IllegalStateException("the write-behind queue has been shut down"));
+        }
+    }
+
+    /**
+     * The outcome of a pending write, the number of times it has been
+     * attempted so far, and the number of times it has been replayed as a dead
+     * letter.
+     */
+    private static final class PendingWrite {
+        private final SettableFuture<Void> outcome = SettableFuture.create();
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final int replays;
+
+        private PendingWrite(int replays) {
+            super();
+            this.replays = replays;
+        }
+    }
+
+    /**
+     * A write that has been given up on, and the number of times it has
+     * already been replayed.
+     */
+    private static final class DeadLetter {
+        private final TaxCodeWrite write;
+        private final int replays;
+
+        private DeadLetter(TaxCodeWrite write, int replays) {
+            super();
+            this.write = write;
+            this.replays = replays;
+        }
+    }
+
+    /**
+     * An idempotent write of the tax codes of an invoice item.
+     * <p>
+     * Two writes are equal when they set the same tax codes on the same
+     * invoice item.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class TaxCodeWrite {
+        private final UUID tenantId;
+        private final UUID accountId;
+        private final UUID invoiceId;
+        private final UUID invoiceItemId;
+        private final String taxCodes;
+
+        /**
+         * Constructs a new write.
+         *
+         * @param tenantId
+         *            The tenant of the invoice item, or {@code null}.
+         * @param accountId
+         *            The account of the invoice item.
+         * @param invoiceId
+         *            The invoice of the invoice item.
+         * @param invoiceItemId
+         *            The invoice item identifier.
+         * @param taxCodes
+         *            The comma-separated list of tax codes names.
+         */
+        public TaxCodeWrite(@Nullable UUID tenantId, UUID accountId, UUID invoiceId, UUID invoiceItemId,
+                String taxCodes) {
+            super();
+            this.tenantId = tenantId;
+            this.accountId = accountId;
+            this.invoiceId = invoiceId;
+            this.invoiceItemId = invoiceItemId;
+            this.taxCodes = taxCodes;
+        }
+
+        /** @return The tenant of the invoice item, or {@code null}. */
+        @Nullable
+        public UUID getTenantId() {
+            return tenantId;
+        }
+
+        /** @return The account of the invoice item. */
+        public UUID getAccountId() {
+            return accountId;
+        }
+
+        /** @return The invoice of the invoice item. */
+        public UUID getInvoiceId() {
+            return invoiceId;
+        }
+
+        /** @return The invoice item identifier. */
+        public UUID getInvoiceItemId() {
+            return invoiceItemId;
+        }
+
+        /** @return The comma-separated list of tax codes names. */
+        public String getTaxCodes() {
+            return taxCodes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            TaxCodeWrite rhs = (TaxCodeWrite) obj;
+            return Objects.equal(invoiceItemId, rhs.invoiceItemId) && Objects.equal(taxCodes, rhs.taxCodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(invoiceItemId, taxCodes);
+        }
+
+        @Override
+        public String toString() {
+            return invoiceItemId + "=" + taxCodes;
+        }
+    }
+}
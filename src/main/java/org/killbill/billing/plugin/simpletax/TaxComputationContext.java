@@ -63,6 +63,8 @@ public class TaxComputationContext {
 
     private Set<Invoice> allInvoices;
 
+    private AccountInvoiceIndex invoiceIndex;
+
     private Function<InvoiceItem, BigDecimal> toAdjustedAmount;
 
     private Ordering<InvoiceItem> byAdjustedAmount;
@@ -92,11 +94,42 @@ public class TaxComputationContext {
     public TaxComputationContext(SimpleTaxConfig config, Account account, Country accountTaxCountry,
             Set<Invoice> allInvoices, Function<InvoiceItem, BigDecimal> toAdjustedAmount,
             Ordering<InvoiceItem> byAdjustedAmount, TaxCodeService taxCodeService) {
+        this(config, account, accountTaxCountry, allInvoices, AccountInvoiceIndex.of(allInvoices, null),
+                toAdjustedAmount, byAdjustedAmount, taxCodeService);
+    }
+
+    /**
+     * Constructs an immutable holder for pre-comuted data.
+     *
+     * @param config
+     *            The plugin configuration.
+     * @param account
+     *            The account that the newly created invoice relates to.
+     * @param accountTaxCountry
+     *            The tax country for the given account.
+     * @param allInvoices
+     *            The set of all invoices for the given account.
+     * @param invoiceIndex
+     *            The index of all invoices for the given account.
+     * @param toAdjustedAmount
+     *            A function that computes adjusted amounts for the listed
+     *            invoices of the given account.
+     * @param byAdjustedAmount
+     *            An ordering that orders {@link InvoiceItem}s by adjusted
+     *            amount.
+     * @param taxCodeService
+     *            The tax code service to use.
+     */
+    public TaxComputationContext(SimpleTaxConfig config, Account account, Country accountTaxCountry,
+            Set<Invoice> allInvoices, AccountInvoiceIndex invoiceIndex,
+            Function<InvoiceItem, BigDecimal> toAdjustedAmount, Ordering<InvoiceItem> byAdjustedAmount,
+            TaxCodeService taxCodeService) {
         super();
         this.config = config;
         this.account = account;
         this.accountTaxCountry = accountTaxCountry;
         this.allInvoices = allInvoices;
+        this.invoiceIndex = invoiceIndex;
         this.toAdjustedAmount = toAdjustedAmount;
         this.byAdjustedAmount = byAdjustedAmount;
         this.taxCodeService = taxCodeService;
@@ -131,6 +164,14 @@ public class TaxComputationContext {
         return allInvoices;
     }
 
+    /**
+     * @return The index of all invoices for the {@linkplain #getAccount()
+     *         given account}.
+     */
+    public AccountInvoiceIndex getInvoiceIndex() {
+        return invoiceIndex;
+    }
+
     /**
      * @return A function that computes adjusted amounts for the
      *         {@linkplain #getAllInvoices() set of invoices} of the
@@ -16,10 +16,12 @@
  */
 package org.killbill.billing.plugin.simpletax.config;
 
+import static com.google.common.base.Enums.getIfPresent;
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.primitives.Ints.tryParse;
 import static java.lang.Thread.currentThread;
+import static java.util.Locale.ENGLISH;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.split;
 import static org.apache.commons.lang3.StringUtils.trim;
@@ -202,6 +204,33 @@ public final class ConvertionHelpers {
         return asConstructorOfTaxResolver(constructor);
     }
 
+    /**
+     * Returns a constant of an enum type from a configuration property, or
+     * return a default value when the property is blank, inexistent, or does
+     * not name any constant of the enum type. Names are matched ignoring case.
+     *
+     * @param cfg
+     *            The plugin configuration properties.
+     * @param propName
+     *            The property name.
+     * @param enumType
+     *            The enum type.
+     * @param defaultValue
+     *            The default value.
+     * @return The enum constant designated by the configuration property, or
+     *         the given default value.
+     * @throws NullPointerException
+     *             When {@code cfg} is {@code null}.
+     */
+    static <E extends Enum<E>> E enumConstant(Map<String, String> cfg, String propName, Class<E> enumType,
+            E defaultValue) {
+        String name = cfg.get(propName);
+        if (isBlank(name)) {
+            return defaultValue;
+        }
+        return getIfPresent(enumType, trim(name).toUpperCase(ENGLISH)).or(defaultValue);
+    }
+
     /**
      * The point here is just to reduce the amount of code in which we suppress
      * {@code "unchecked"} warnings with {@code @SuppressWarnings("unchecked")}.
@@ -397,4 +426,48 @@ public final class ConvertionHelpers {
             return null;
         }
     }
+
+    private static final int UUID_LENGTH = 36;
+
+    /**
+     * Converts the canonical representation of a {@link UUID} into a UUID
+     * instance, without resorting to any regular expression.
+     * <p>
+     * Contrary to {@link #toUUIDOrNull(String)}, only the 36-character
+     * representations that conform to {@link #UUID_EXACT_PATTERN} are
+     * accepted, so that no prior matching is required.
+     *
+     * @param name
+     *            A string representation of a UUID, or {@code null}.
+     * @return A UUID instance, or {@code null} if the string is not the
+     *         canonical representation of a UUID.
+     */
+    @Nullable
+    public static UUID toCanonicalUUIDOrNull(@Nullable String name) {
+        if ((name == null) || (name.length() != UUID_LENGTH)) {
+            return null;
+        }
+        long mostSigBits = 0L;
+        long leastSigBits = 0L;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = name.charAt(i);
+            if ((i == 8) || (i == 13) || (i == 18) || (i == 23)) {
+                if (c != '-') {
+                    return null;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if ((digit < 0) || (c > 'f')) {
+                // Also reject non-ASCII digits, that Character.digit() accepts
+                return null;
+            }
+            if (i < 19) {
+                mostSigBits = (mostSigBits << 4) | digit;
+            } else {
+                leastSigBits = (leastSigBits << 4) | digit;
+            }
+        }
+        return new UUID(mostSigBits, leastSigBits);
+    }
 }
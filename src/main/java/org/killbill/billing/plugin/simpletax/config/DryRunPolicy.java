@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config;
+
+/**
+ * The policies for computing taxes when Kill Bill generates invoices in
+ * dry-run mode, i.e. when invoices are previewed and never persisted.
+ *
+ * @author Benjamin Gandon
+ */
+public enum DryRunPolicy {
+
+    /**
+     * Dry runs compute the same items as real invoice runs, including the
+     * adjustments of historical invoices. No tax code is persisted.
+     */
+    FULL,
+
+    /**
+     * Dry runs only tax the new invoice, from configured tax codes. Neither
+     * historical invoices nor the tax codes of invoice items are read, so
+     * that dry runs do not depend on the size of the account history.
+     */
+    NEW_INVOICE_ONLY
+}
@@ -16,15 +16,27 @@
  */
 package org.killbill.billing.plugin.simpletax.config;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxPlan;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.TaxResolverFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,12 +45,16 @@ import javax.annotation.Nullable;
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.collect.Sets.newLinkedHashSet;
 import static java.lang.Thread.currentThread;
+import static java.util.Collections.unmodifiableMap;
 import static org.apache.commons.lang3.StringUtils.*;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.*;
 
@@ -86,6 +102,32 @@ import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.*;
  * <dt>{@value #TAXATION_TIME_ZONE_PROPERTY}</dt>
  * <dd>The time zone to consider when using dates to apply taxes. It is up to
  * the {@link TaxResolver} implementation to use this property or not.</dd>
+ * <dt>{@value #PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY}</dt>
+ * <dd>The number of invoices of an account, starting from which its historical
+ * invoices are reconciled in parallel. When zero or negative, which is the
+ * default, historical invoices are always reconciled sequentially.</dd>
+ * <dt>{@value #ASYNC_THREADS_PROPERTY}</dt>
+ * <dd>The number of threads that serve the long-running requests made to the
+ * plugin endpoints, like listings of all accounts or imports. Defaults to
+ * {@value org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor#DEFAULT_THREADS}.
+ * This property is only read from Java system properties, when the plugin
+ * starts.</dd>
+ * <dt>{@value #ASYNC_MAX_REQUESTS_PER_TENANT_PROPERTY}</dt>
+ * <dd>The number of long-running requests that a tenant can have in progress,
+ * above which its requests are refused. Defaults to
+ * {@value org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor#DEFAULT_MAX_REQUESTS_PER_TENANT}.
+ * This property is only read from Java system properties, when the plugin
+ * starts.</dd>
+ * <dt>{@value #ASYNC_TIMEOUT_PROPERTY}</dt>
+ * <dd>The number of seconds after which long-running requests are abandoned.
+ * Defaults to
+ * {@value org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor#DEFAULT_TIMEOUT_SECONDS}
+ * seconds. This property is only read from Java system properties, when the
+ * plugin starts.</dd>
+ * <dt>{@value #DRY_RUN_POLICY_PROPERTY}</dt>
+ * <dd>The {@linkplain DryRunPolicy policy} to apply when invoices are
+ * generated in dry-run mode, either {@code FULL} (the default) or
+ * {@code NEW_INVOICE_ONLY}.</dd>
  * </dl>
  * </blockquote>
  * <p>
@@ -117,6 +159,13 @@ public class SimpleTaxConfig {
     private static final String TAXATION_TIME_ZONE_PROPERTY = PROPERTY_PREFIX + "taxationTimeZone";
     private static final String TAX_AMOUNT_PRECISION_PROPERTY = PROPERTY_PREFIX + "taxItem.amount.precision";
     private static final String TAX_RESOLVER_PROPERTY = PROPERTY_PREFIX + "taxResolver";
+    private static final String PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY = PROPERTY_PREFIX
+            + "parallelReconciliation.threshold";
+    private static final String ASYNC_THREADS_PROPERTY = PROPERTY_PREFIX + "servlet.async.threads";
+    private static final String ASYNC_MAX_REQUESTS_PER_TENANT_PROPERTY = PROPERTY_PREFIX
+            + "servlet.async.maxRequestsPerTenant";
+    private static final String ASYNC_TIMEOUT_PROPERTY = PROPERTY_PREFIX + "servlet.async.timeoutSeconds";
+    private static final String DRY_RUN_POLICY_PROPERTY = PROPERTY_PREFIX + "dryRun.policy";
 
     private static final String PRODUCT_TAX_CODE_PREFIX = PROPERTY_PREFIX + "products.";
     private static final String TAX_CODES_PREFIX = PROPERTY_PREFIX + "taxCodes.";
@@ -135,6 +184,8 @@ public class SimpleTaxConfig {
     public static final String DEFAULT_TAX_ITEM_DESC = "tax";
     private static final DateTimeZone DEFAULT_TAXATION_TIME_ZONE = null;
     private static final int DEFAULT_TAX_AMOUNT_PRECISION = 2;
+    private static final int DEFAULT_PARALLEL_RECONCILIATION_THRESHOLD = 0;
+    private static final DryRunPolicy DEFAULT_DRY_RUN_POLICY = DryRunPolicy.FULL;
     private static final BigDecimal DEFAULT_TAX_RATE = new BigDecimal("0.00");
     private static final Class<? extends TaxResolver> DEFAULT_RESOLVER = NullTaxResolver.class;
     private static final Constructor<? extends TaxResolver> DEFAULT_RESOLVER_CONSTRUCTOR;
@@ -146,13 +197,40 @@ public class SimpleTaxConfig {
         }
     }
 
+    /**
+     * The maximum number of distinct lists of tax codes, as found in custom
+     * fields, that are kept parsed in memory.
+     */
+    private static final long MAX_PARSED_TAX_CODES = 1000L;
+
     private Map<String, String> cfg;
 
+    private final LoadingCache<String, ParsedTaxCodes> parsedTaxCodes = CacheBuilder.newBuilder()//
+            .maximumSize(MAX_PARSED_TAX_CODES)//
+            .recordStats()//
+            .build(new CacheLoader<String, ParsedTaxCodes>() {
+                @Override
+                public ParsedTaxCodes load(String names) {
+                    return parseTaxCodes(names);
+                }
+            });
+
     private Map<String, TaxCode> taxCodesByName;
+    private Map<String, Set<TaxCode>> taxCodesByProduct;
+    private ListMultimap<String, String> undefinedTaxCodesByProduct;
+    private TaxPlan taxPlan;
 
     private DateTimeZone taxationTimeZone;
     private int taxAmountPrecision;
+    private int parallelReconciliationThreshold;
+    private int asyncThreads;
+    private int asyncMaxRequestsPerTenant;
+    private int asyncTimeoutSeconds;
+    private DryRunPolicy dryRunPolicy;
     private Constructor<? extends TaxResolver> taxResolverConstructor;
+    private TaxResolverFactory taxResolverFactory;
+    private Map<String, String> credentials;
+    private int fingerprint;
 
     public SimpleTaxConfig(Map<String, String> cfg, Logger logger) {
         this.cfg = cfg;
@@ -178,11 +256,82 @@ public class SimpleTaxConfig {
     }
 
     private void parseConfig() {
+        Map<String, String> creds = new HashMap<String, String>();
+        creds.put("username", cfg.get(PROPERTY_PREFIX + "credentials.username"));
+        creds.put("password", cfg.get(PROPERTY_PREFIX + "credentials.password"));
+        credentials = unmodifiableMap(creds);
         taxationTimeZone = timeZone(cfg, TAXATION_TIME_ZONE_PROPERTY, DEFAULT_TAXATION_TIME_ZONE);
         taxAmountPrecision = integer(cfg, TAX_AMOUNT_PRECISION_PROPERTY, DEFAULT_TAX_AMOUNT_PRECISION);
+        parallelReconciliationThreshold = integer(cfg, PARALLEL_RECONCILIATION_THRESHOLD_PROPERTY,
+                DEFAULT_PARALLEL_RECONCILIATION_THRESHOLD);
+        asyncThreads = positiveInteger(cfg, ASYNC_THREADS_PROPERTY, AsyncRequestExecutor.DEFAULT_THREADS);
+        asyncMaxRequestsPerTenant = positiveInteger(cfg, ASYNC_MAX_REQUESTS_PER_TENANT_PROPERTY,
+                AsyncRequestExecutor.DEFAULT_MAX_REQUESTS_PER_TENANT);
+        asyncTimeoutSeconds = positiveInteger(cfg, ASYNC_TIMEOUT_PROPERTY,
+                AsyncRequestExecutor.DEFAULT_TIMEOUT_SECONDS);
+        dryRunPolicy = enumConstant(cfg, DRY_RUN_POLICY_PROPERTY, DryRunPolicy.class, DEFAULT_DRY_RUN_POLICY);
         taxResolverConstructor = resolverConstructor(cfg, TAX_RESOLVER_PROPERTY, DEFAULT_RESOLVER_CONSTRUCTOR);
+        try {
+            taxResolverFactory = TaxResolverFactory.of(taxResolverConstructor);
+        } catch (IllegalArgumentException exc) {
+            logger.error("Cannot access the constructor of tax resolver [" + taxResolverConstructor
+                    .getDeclaringClass().getName() + "]." + DEFAULT_TAXATION_MSG, exc);
+            taxResolverConstructor = DEFAULT_RESOLVER_CONSTRUCTOR;
+            taxResolverFactory = TaxResolverFactory.of(DEFAULT_RESOLVER_CONSTRUCTOR);
+        }
 
         taxCodesByName = parseTaxCodes(cfg);
+        compileProductTaxCodes();
+        fingerprint = fingerprintOf(cfg);
+    }
+
+    private static int fingerprintOf(Map<String, String> cfg) {
+        Hasher hasher = Hashing.murmur3_32().newHasher();
+        // Sorted, so that the fingerprint does not depend on the map ordering
+        for (Entry<String, String> prop : new TreeMap<String, String>(cfg).entrySet()) {
+            if (prop.getKey().startsWith(PROPERTY_PREFIX + "credentials.")) {
+                continue;
+            }
+            hasher.putString(prop.getKey(), UTF_8).putChar('=').putString(prop.getValue(), UTF_8).putChar('\n');
+        }
+        return hasher.hash().asInt();
+    }
+
+    private static int positiveInteger(Map<String, String> cfg, String propName, int defaultValue) {
+        int value = integer(cfg, propName, defaultValue);
+        return value > 0 ? value : defaultValue;
+    }
+
+    /**
+     * Resolves the tax codes configured for each product once and for all,
+     * and compiles them into a {@linkplain TaxPlan tax plan}.
+     * <p>
+     * Undefined tax codes are remembered, in order to be reported whenever the
+     * tax codes of their product are requested.
+     */
+    private void compileProductTaxCodes() {
+        ImmutableMap.Builder<String, Set<TaxCode>> byProduct = ImmutableMap.builder();
+        ImmutableListMultimap.Builder<String, String> undefinedByProduct = ImmutableListMultimap.builder();
+        for (Entry<String, String> prop : cfg.entrySet()) {
+            String propName = prop.getKey();
+            if (!startsWith(propName, PRODUCT_TAX_CODE_PREFIX)) {
+                continue;
+            }
+            String productName = propName.substring(PRODUCT_TAX_CODE_PREFIX.length());
+            ImmutableSet.Builder<TaxCode> taxCodes = ImmutableSet.builder();
+            for (String name : splitTaxCodes(prop.getValue())) {
+                TaxCode taxCode = findTaxCode(name);
+                if (taxCode == null) {
+                    undefinedByProduct.put(productName, name);
+                } else {
+                    taxCodes.add(taxCode);
+                }
+            }
+            byProduct.put(productName, taxCodes.build());
+        }
+        taxCodesByProduct = byProduct.build();
+        undefinedTaxCodesByProduct = undefinedByProduct.build();
+        taxPlan = new TaxPlan(taxCodesByProduct);
     }
 
     private static final String DEFAULT_TAXATION_MSG = " Default taxation of [" + DEFAULT_RESOLVER
@@ -222,6 +371,13 @@ public class SimpleTaxConfig {
             }
         }
 
+        String dryRunPolicyName = cfg.get(DRY_RUN_POLICY_PROPERTY);
+        if (!isBlank(dryRunPolicyName) && !dryRunPolicy.name().equalsIgnoreCase(trim(dryRunPolicyName))) {
+            logger.warn("Unknown dry-run policy [" + dryRunPolicyName + "] specified by the ["
+                    + DRY_RUN_POLICY_PROPERTY + "] configuration property. Default policy [" + DEFAULT_DRY_RUN_POLICY
+                    + "] will be applied.");
+        }
+
         for (Entry<String, String> prop : cfg.entrySet()) {
             String propName = prop.getKey();
             if (!startsWith(propName, PRODUCT_TAX_CODE_PREFIX)) {
@@ -301,6 +457,57 @@ public class SimpleTaxConfig {
         return taxAmountPrecision;
     }
 
+    /**
+     * @return A fingerprint of the configuration properties, that is the same
+     *         for equal properties, from one node or one run to another.
+     *         Credentials are not taken into account.
+     */
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of invoices of an account, starting from which its
+     *         historical invoices are reconciled in parallel, or zero (or a
+     *         negative value) when parallel reconciliation is disabled.
+     */
+    public int getParallelReconciliationThreshold() {
+        return parallelReconciliationThreshold;
+    }
+
+    /**
+     * @return The positive number of threads that serve the long-running
+     *         requests made to the plugin endpoints.
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * @return The positive number of long-running requests that a tenant can
+     *         have in progress.
+     */
+    public int getAsyncMaxRequestsPerTenant() {
+        return asyncMaxRequestsPerTenant;
+    }
+
+    /**
+     * @return The positive number of seconds after which long-running
+     *         requests are abandoned.
+     */
+    public int getAsyncTimeoutSeconds() {
+        return asyncTimeoutSeconds;
+    }
+
+    /**
+     * @return The policy to apply when invoices are generated in dry-run mode.
+     *         Never {@code null}.
+     */
+    @Nonnull
+    public DryRunPolicy getDryRunPolicy() {
+        return dryRunPolicy;
+    }
+
     /**
      * A factory for building the configured {@link TaxResolver} implementation.
      *
@@ -313,6 +520,18 @@ public class SimpleTaxConfig {
         return taxResolverConstructor;
     }
 
+    /**
+     * The factory for building the configured {@link TaxResolver}
+     * implementation, that is compiled once when the configuration is loaded.
+     *
+     * @return The factory to use when building the applicable
+     *         {@linkplain TaxResolver tax resolver}. Never {@code null}.
+     */
+    @Nonnull
+    public TaxResolverFactory getTaxResolverFactory() {
+        return taxResolverFactory;
+    }
+
     /**
      * Finds the definition of a tax code, as identified by its (unique) name.
      *
@@ -337,12 +556,36 @@ public class SimpleTaxConfig {
      */
     @Nonnull
     public Set<TaxCode> getConfiguredTaxCodes(@Nonnull String productName) {
-        String names = cfg.get(PRODUCT_TAX_CODE_PREFIX + productName);
-        if (names == null) {
+        Set<TaxCode> taxCodes = taxCodesByProduct.get(productName);
+        if (taxCodes == null) {
             return ImmutableSet.of();
         }
-        return findTaxCodesInternal(names, "taxCode [%1$s] configured for product [" + productName
-                + "] is undefined. Config spelling error? Ignoring it.");
+        reportUndefinedTaxCodes(productName);
+        return taxCodes;
+    }
+
+    /**
+     * Reports the tax codes that are configured for a given product of the
+     * catalog, but that are not defined, and are thus ignored.
+     *
+     * @param productName
+     *            The name of a product in the catalog. Should not be
+     *            {@code null}.
+     */
+    public void reportUndefinedTaxCodes(@Nonnull String productName) {
+        for (String name : undefinedTaxCodesByProduct.get(productName)) {
+            logger.error("taxCode [" + name + "] configured for product [" + productName
+                    + "] is undefined. Config spelling error? Ignoring it.");
+        }
+    }
+
+    /**
+     * @return The tax plan that is compiled out of the tax codes configured
+     *         for products. Never {@code null}.
+     */
+    @Nonnull
+    public TaxPlan getTaxPlan() {
+        return taxPlan;
     }
 
     /**
@@ -352,6 +595,10 @@ public class SimpleTaxConfig {
      * Tax codes are identified by their name, which are supposed to be unique.
      * The resulting set is ordered in the same way as tax codes were listed,
      * with no duplicates.
+     * <p>
+     * Lists of tax codes are parsed once, and then kept in memory, because
+     * the same few lists are typically met again and again in the custom fields
+     * of invoice items. Undefined tax codes are still reported on each call.
      *
      * @param names
      *            A comma-separated list of tax codes names. Must not be
@@ -359,54 +606,79 @@ public class SimpleTaxConfig {
      * @param errMsgContext
      *            An context message for errors, that tells where the
      *            {@code names} value comes from. Should not be {@code null}.
-     * @return A new immutable set of configured tax code definitions that match
-     *         the given list of names. Never {@code null}, with no {@code null}
+     * @return An immutable set of configured tax code definitions that match
+     *         the given list of names, shared by all calls with the same list. Never {@code null}, with no {@code null}
      *         elements.
      * @throws NullPointerException
      *             when {@code names} is null.
      */
     @Nonnull
     public Set<TaxCode> findTaxCodes(@Nonnull String names, @Nonnull String errMsgContext) {
-        return findTaxCodesInternal(names, "taxCode [%1$s] " + errMsgContext + " is undefined."
-                + " Erroneously removed from config? Ignoring it.");
+        ParsedTaxCodes parsed = parsedTaxCodes.getUnchecked(names);
+        for (String name : parsed.undefinedNames) {
+            logger.error("taxCode [" + name + "] " + errMsgContext + " is undefined."
+                    + " Erroneously removed from config? Ignoring it.");
+        }
+        return parsed.taxCodes;
+    }
+
+    /**
+     * @return Hit and miss counters for the parsed lists of tax codes that
+     *         {@link #findTaxCodes} keeps in memory. Never {@code null}.
+     */
+    @Nonnull
+    public CacheStats getParsedTaxCodesStats() {
+        return parsedTaxCodes.stats();
     }
 
     /**
      * @param names
      *            A comma-separated list of tax code names. Must not be
      *            {@code null}.
-     * @param errMsgFmt
-     *            An error message {@linkplain java.util.Formatter format} where
-     *            {@code %1$s} will be replaced by the tax code that cannot be
-     *            found in the config. Must not be {@code null}.
-     * @return A set of configured tax code definitions. Never {@code null}.
+     * @return The configured tax code definitions, along with the names that
+     *         are not defined in the config. Never {@code null}.
      * @throws NullPointerException
-     *             when {@code names} is {@code null} or when {@code errMsgFmt}
-     *             is {@code null}.
+     *             when {@code names} is {@code null}.
      */
     @Nonnull
-    private Set<TaxCode> findTaxCodesInternal(@Nonnull String names, @Nonnull String errMsgFmt) {
+    private ParsedTaxCodes parseTaxCodes(@Nonnull String names) {
         ImmutableSet.Builder<TaxCode> taxCodes = ImmutableSet.builder();
+        ImmutableList.Builder<String> undefinedNames = ImmutableList.builder();
         for (String name : splitTaxCodes(names)) {
             TaxCode taxCode = findTaxCode(name);
             if (taxCode == null) {
-                logger.error(String.format(errMsgFmt, name));
+                undefinedNames.add(name);
                 continue;
             }
             taxCodes.add(taxCode);
         }
-        return taxCodes.build();
+        return new ParsedTaxCodes(taxCodes.build(), undefinedNames.build());
     }
 
     /**
      * Retrieve credentials for simpletax authorization
+     * <p>
+     * They are read once, when the configuration is parsed.
      * 
-     * @return Map of credentials (contains 'username' & 'password')
+     * @return Unmodifiable map of credentials (contains 'username' &
+     *         'password')
      */
     public Map<String, String> getCredentials(){
-        return new HashMap<String, String>() {{
-            put("username", cfg.get(PROPERTY_PREFIX + "credentials.username"));
-            put("password", cfg.get(PROPERTY_PREFIX + "credentials.password"));
-        }};
+        return credentials;
+    }
+
+    /**
+     * An immutable list of tax codes, as parsed from a comma-separated list of
+     * tax code names.
+     */
+    private static final class ParsedTaxCodes {
+        private final Set<TaxCode> taxCodes;
+        private final List<String> undefinedNames;
+
+        private ParsedTaxCodes(Set<TaxCode> taxCodes, List<String> undefinedNames) {
+            super();
+            this.taxCodes = taxCodes;
+            this.undefinedNames = undefinedNames;
+        }
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes the long-running requests made to the {@link SimpleTaxServlet}, like
+ * tenant-wide listings or imports, out of the threads of the servlet
+ * container.
+ * <p>
+ * Requests are put in {@linkplain AsyncContext asynchronous mode} and run by a
+ * dedicated pool of threads, which queue of pending requests is bounded. So
+ * that one tenant cannot hog this pool, the number of requests that are
+ * executed or pending for a given tenant is capped. Requests are given a
+ * deadline, after which the work is interrupted and the client gets a
+ * {@code 503 Service Unavailable} response. Requests are also refused with
+ * this status when the queue is full, or when their tenant has too many
+ * requests in progress.
+ * <p>
+ * Workers only get {@linkplain GuardedExchange guarded} requests and
+ * responses, so that once a request has been abandoned and completed, its
+ * worker can no longer read or write anything that the container might have
+ * recycled for another client.
+ * <p>
+ * When the container does not support asynchronous processing for a request,
+ * it is run on the calling thread instead, still within the limits of its
+ * tenant.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class AsyncRequestExecutor {
+
+    /** The default number of threads that execute long-running requests. */
+    public static final int DEFAULT_THREADS = 4;
+
+    /** The default number of requests that a tenant can have in progress. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_TENANT = 2;
+
+    /** The default number of seconds after which a request is abandoned. */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+    private static final int QUEUED_REQUESTS_PER_THREAD = 16;
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRequestExecutor.class);
+
+    private final ExecutorService executor;
+    private final int maxRequestsPerTenant;
+    private final long timeoutMillis;
+    private final Multiset<UUID> requestsByTenant = ConcurrentHashMultiset.create();
+
+    /**
+     * Constructs a new executor of long-running requests.
+     *
+     * @param threads
+     *            The number of threads that execute requests. Must be
+     *            positive.
+     * @param maxRequestsPerTenant
+     *            The maximum number of requests that a tenant can have in
+     *            progress. Must be positive.
+     * @param timeoutSeconds
+     *            The number of seconds after which a request is abandoned. Must
+     *            be positive.
+     */
+    public AsyncRequestExecutor(int threads, int maxRequestsPerTenant, long timeoutSeconds) {
+        this(newBoundedThreadPool(threads), maxRequestsPerTenant, SECONDS.toMillis(timeoutSeconds));
+    }
+
+    @VisibleForTesting
+    AsyncRequestExecutor(ExecutorService executor, int maxRequestsPerTenant, long timeoutMillis) {
+        super();
+        checkArgument(maxRequestsPerTenant > 0, "illegal max requests per tenant: %s", maxRequestsPerTenant);
+        checkArgument(timeoutMillis > 0L, "illegal timeout: %s", timeoutMillis);
+        this.executor = checkNotNull(executor, "executor");
+        this.maxRequestsPerTenant = maxRequestsPerTenant;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static ExecutorService newBoundedThreadPool(int threads) {
+        checkArgument(threads > 0, "illegal number of threads: %s", threads);
+        return new ThreadPoolExecutor(threads, threads, 0L, MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads
+                * QUEUED_REQUESTS_PER_THREAD), new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("simple-tax-http-%d").build());
+    }
+
+    /**
+     * A long-running request handler.
+     */
+    public interface Task {
+        /**
+         * Handles a request.
+         *
+         * @param req
+         *            The request to handle.
+         * @param resp
+         *            The response to write.
+         * @throws IOException
+         *             when the response cannot be written.
+         */
+        void run(HttpServletRequest req, HttpServletResponse resp) throws IOException;
+    }
+
+    /**
+     * Executes a long-running request, asynchronously when the container
+     * supports it.
+     *
+     * @param tenantId
+     *            The identifier of the tenant that makes the request.
+     * @param req
+     *            The request to handle.
+     * @param resp
+     *            The response to write.
+     * @param task
+     *            The handler of the request.
+     * @throws IOException
+     *             when the request is run on the calling thread and its
+     *             response cannot be written, or when a refusal cannot be
+     *             sent.
+     */
+    public void execute(@Nonnull UUID tenantId, HttpServletRequest req, HttpServletResponse resp, Task task)
+            throws IOException {
+        checkNotNull(tenantId, "tenantId");
+        if (requestsByTenant.add(tenantId, 1) >= maxRequestsPerTenant) {
+            requestsByTenant.remove(tenantId);
+            refuse(resp, "Too many requests in progress for tenant [" + tenantId + "]");
+            return;
+        }
+        if (!req.isAsyncSupported()) {
+            try {
+                task.run(req, resp);
+            } finally {
+                requestsByTenant.remove(tenantId);
+            }
+            return;
+        }
+
+        AsyncContext async = req.startAsync(req, resp);
+        async.setTimeout(timeoutMillis);
+        AsyncRequest request = new AsyncRequest(tenantId, async, new GuardedExchange(req, resp), resp, task);
+        async.addListener(request);
+        try {
+            request.future = executor.submit(request);
+        } catch (RejectedExecutionException exc) {
+            request.abandon("Too many requests in progress");
+        }
+    }
+
+    /**
+     * @return The number of requests in progress for a given tenant.
+     */
+    @VisibleForTesting
+    int requestsInProgress(UUID tenantId) {
+        return requestsByTenant.count(tenantId);
+    }
+
+    /**
+     * Stops executing requests, interrupting those that are in progress.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static void refuse(HttpServletResponse resp, String message) throws IOException {
+        resp.setHeader(RETRY_AFTER_HEADER, "1");
+        resp.sendError(SC_SERVICE_UNAVAILABLE, message);
+    }
+
+    /**
+     * A request that is executed by the pool, and completed either by its
+     * worker thread, or by the container when its deadline is reached.
+     * <p>
+     * The request is completed once, by whoever {@linkplain GuardedExchange#end
+     * ends} its exchange first. The request slot of the tenant is released
+     * once, either when the work is done, or when the request is abandoned
+     * before its work has started.
+     */
+    private final class AsyncRequest implements Runnable, AsyncListener {
+        private final UUID tenantId;
+        private final AsyncContext async;
+        private final GuardedExchange exchange;
+        private final HttpServletResponse resp;
+        private final Task task;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Future<?> future;
+
+        private AsyncRequest(UUID tenantId, AsyncContext async, GuardedExchange exchange, HttpServletResponse resp,
+                Task task) {
+            super();
+            this.tenantId = tenantId;
+            this.async = async;
+            this.exchange = exchange;
+            this.resp = resp;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                task.run(exchange.getRequest(), exchange.getResponse());
+            } catch (IOException exc) {
+                failed(exc);
+            } catch (RuntimeException exc) {
+                failed(exc);
+            } finally {
+                requestsByTenant.remove(tenantId);
+                if (exchange.end()) {
+                    async.complete();
+                }
+            }
+        }
+
+        private void failed(Exception exc) {
+            if (exchange.isEnded()) {
+                return;
+            }
+            logger.error("Cannot serve request for tenant [" + tenantId + "]", exc);
+            sendErrorQuietly(exchange.getResponse(), SC_INTERNAL_SERVER_ERROR, "Unexpected error");
+        }
+
+        /**
+         * Ends the exchange, so that the worker can no longer use the request
+         * nor the response, responds with {@code 503 Service Unavailable}
+         * unless the response is already committed, completes the request,
+         * and finally interrupts its work if any.
+         */
+        private void abandon(String message) {
+            if (!exchange.end()) {
+                return;
+            }
+            if (started.compareAndSet(false, true)) {
+                requestsByTenant.remove(tenantId);
+            }
+            if (!resp.isCommitted()) {
+                resp.setHeader(RETRY_AFTER_HEADER, "1");
+                sendErrorQuietly(resp, SC_SERVICE_UNAVAILABLE, message);
+            }
+            async.complete();
+            Future<?> work = future;
+            if (work != null) {
+                work.cancel(true);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.warn("Request for tenant [" + tenantId + "] did not complete within " + timeoutMillis + " ms");
+            abandon("Request deadline exceeded");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            abandon("Request failed");
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static void sendErrorQuietly(HttpServletResponse resp, int status, String message) {
+        try {
+            resp.sendError(status, message);
+        } catch (IOException exc) {
+            logger.debug("Cannot send error " + status + " to client", exc);
+        } catch (IllegalStateException exc) {
+            logger.debug("Cannot send error " + status + " to client", exc);
+        }
+    }
+}
@@ -17,16 +17,23 @@
 package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Iterables.addAll;
 import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.tryFind;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.util.Collections.emptyIterator;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.killbill.billing.ObjectType.ACCOUNT;
 import static org.killbill.billing.ObjectType.INVOICE_ITEM;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
 
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -35,6 +42,7 @@ import org.joda.time.DateTime;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.plugin.api.PluginCallContext;
 import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
+import org.killbill.billing.plugin.simpletax.util.TenantScopedKey;
 import org.killbill.billing.util.api.CustomFieldApiException;
 import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -43,12 +51,28 @@ import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.billing.util.entity.Pagination;
 
 import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Table;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A service class that eases manipulating custom fields values.
+ * <p>
+ * The {@value #TAX_COUNTRY_CUSTOM_FIELD_NAME} and
+ * {@value #VATIN_CUSTOM_FIELD_NAME} fields of accounts are read on every
+ * invoice, but change very rarely. Thus, they are both fetched at once and
+ * cached in memory, for a limited number of accounts and a limited time. The
+ * cache is {@linkplain #invalidateAccount invalidated} whenever account
+ * fields are saved through this service, or when the bus tells that custom
+ * fields have changed. Invalidations bump a generation of the account, and
+ * fields that have been read before a bump are not cached, so that a slow
+ * read never puts back the values that an invalidation has just discarded.
  *
  * @author Benjamin Gandon
  */
@@ -63,8 +87,25 @@ public class CustomFieldService {
     private static final long START_OFFSET = 0L;
     private static final long PAGE_SIZE = 100L;
 
+    /** The maximum number of accounts which tax fields are cached. */
+    private static final long MAX_CACHED_ACCOUNTS = 10000L;
+    /** The number of minutes after which cached account tax fields expire. */
+    private static final long ACCOUNT_TAX_FIELDS_TTL_MINUTES = 10L;
+    /** The names of the account fields that are cached. */
+    private static final Set<String> TAX_FIELD_NAMES = ImmutableSet.of(TAX_COUNTRY_CUSTOM_FIELD_NAME,
+            VATIN_CUSTOM_FIELD_NAME);
+    /** The number of generations that accounts share, by hash of their key. */
+    private static final int ACCOUNT_GENERATIONS = 1024;
+
     private CustomFieldUserApi customFieldApi;
 
+    private final Cache<TenantScopedKey, AccountTaxFields> accountTaxFields = CacheBuilder.newBuilder()//
+            .maximumSize(MAX_CACHED_ACCOUNTS)//
+            .expireAfterWrite(ACCOUNT_TAX_FIELDS_TTL_MINUTES, MINUTES)//
+            .recordStats()//
+            .build();
+    private final AtomicLongArray accountGenerations = new AtomicLongArray(ACCOUNT_GENERATIONS);
+
     CustomFieldService(CustomFieldUserApi customFieldApi, Logger logger) {
         super();
         this.customFieldApi = customFieldApi;
@@ -122,6 +163,10 @@ public class CustomFieldService {
     /**
      * Finds all custom fields on account objects that match a specific field
      * name in the context of a given tenant.
+     * <p>
+     * All matching fields are held in memory. Prefer
+     * {@link #iterateAccountFieldsByFieldNameAndTenant} for tenants that can
+     * have many accounts.
      *
      * @param fieldName
      *            A specific field name that returned fields will match.
@@ -131,17 +176,86 @@ public class CustomFieldService {
      */
     @Nonnull
     public List<CustomField> findAllAccountFieldsByFieldNameAndTenant(String fieldName, TenantContext tenantContext) {
-        List<CustomField> fields = newArrayList();
-        Predicate<CustomField> onlyAccountFieldsWithExpectedName = new RetainFieldsWithNameAndObjectType(fieldName,
-                ACCOUNT);
-        Pagination<CustomField> page;
-        Long nextOffset = START_OFFSET;
-        do {
-            page = customFieldApi.searchCustomFields(fieldName, nextOffset, PAGE_SIZE, tenantContext);
-            addAll(fields, filter(page, onlyAccountFieldsWithExpectedName));
-            nextOffset = page.getNextOffset();
-        } while (nextOffset != null);
-        return fields;
+        return newArrayList(iterateAccountFieldsByFieldNameAndTenant(fieldName, tenantContext));
+    }
+
+    /**
+     * Iterates over all custom fields on account objects that match a specific
+     * field name in the context of a given tenant.
+     * <p>
+     * Fields are searched lazily, one page at a time, so that only one page is
+     * held in memory, whatever the number of matching fields.
+     *
+     * @param fieldName
+     *            A specific field name that returned fields will match.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return A lazy iterable over matching custom fields, that can be iterated
+     *         several times. Never {@code null}.
+     */
+    @Nonnull
+    public Iterable<CustomField> iterateAccountFieldsByFieldNameAndTenant(final String fieldName,
+            final TenantContext tenantContext) {
+        final Predicate<CustomField> onlyAccountFieldsWithExpectedName = new RetainFieldsWithNameAndObjectType(
+                fieldName, ACCOUNT);
+        return new Iterable<CustomField>() {
+            @Override
+            public Iterator<CustomField> iterator() {
+                return new AbstractIterator<CustomField>() {
+                    private Long nextOffset = START_OFFSET;
+                    private Iterator<CustomField> currentPage = emptyIterator();
+
+                    @Override
+                    protected CustomField computeNext() {
+                        while (!currentPage.hasNext()) {
+                            if (nextOffset == null) {
+                                return endOfData();
+                            }
+                            ListingPage<CustomField> page = searchPage(fieldName, onlyAccountFieldsWithExpectedName,
+                                    nextOffset, PAGE_SIZE, tenantContext);
+                            nextOffset = page.getNextOffset();
+                            currentPage = page.iterator();
+                        }
+                        return currentPage.next();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Finds one page of the custom fields on account objects that match a
+     * specific field name in the context of a given tenant.
+     *
+     * @param fieldName
+     *            A specific field name that returned fields will match.
+     * @param offset
+     *            The offset in search results where the page starts.
+     * @param limit
+     *            The maximum number of search results to consider.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The page of matching custom fields. Never {@code null}.
+     */
+    @Nonnull
+    public ListingPage<CustomField> findAccountFieldsByFieldNameAndTenant(String fieldName, long offset, long limit,
+            TenantContext tenantContext) {
+        return searchPage(fieldName, new RetainFieldsWithNameAndObjectType(fieldName, ACCOUNT), offset, limit,
+                tenantContext);
+    }
+
+    private ListingPage<CustomField> searchPage(String fieldName, Predicate<CustomField> retainedFields,
+            long offset, long limit, TenantContext tenantContext) {
+        Pagination<CustomField> page = customFieldApi.searchCustomFields(fieldName, offset, limit, tenantContext);
+        try {
+            return new ListingPage<CustomField>(filter(page, retainedFields), page.getNextOffset());
+        } finally {
+            try {
+                page.close();
+            } catch (IOException exc) {
+                logger.warn("while releasing search results for custom fields [" + fieldName + "]", exc);
+            }
+        }
     }
 
     @Nullable
@@ -155,6 +269,29 @@ public class CustomFieldService {
         return tryFind(invoiceItemFields, new RetainFieldsWithName(fieldName)).orNull();
     }
 
+    /**
+     * Finds all custom fields on the invoice items of a given account that
+     * match a specific field name, with one single call to Kill Bill.
+     *
+     * @param fieldName
+     *            A specific field name that returned fields will match.
+     * @param accountId
+     *            The account identifier.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The list of matching custom fields. Never {@code null}.
+     */
+    @Nonnull
+    public List<CustomField> findAllInvoiceItemFieldsByFieldNameAndAccount(String fieldName, UUID accountId,
+            TenantContext tenantContext) {
+        List<CustomField> invoiceItemFields = customFieldApi.getCustomFieldsForAccountType(accountId,
+                INVOICE_ITEM, tenantContext);
+        if (invoiceItemFields == null) {
+            return newArrayList();
+        }
+        return newArrayList(filter(invoiceItemFields, new RetainFieldsWithName(fieldName)));
+    }
+
     /**
      * Finds a custom field on a given account object that matches a specific
      * field name in the context of a given tenant.
@@ -170,6 +307,12 @@ public class CustomFieldService {
      */
     @Nullable
     public CustomField findFieldByNameAndAccountAndTenant(String fieldName, UUID accountId, TenantContext tenantContext) {
+        if (TAX_COUNTRY_CUSTOM_FIELD_NAME.equals(fieldName)) {
+            return findAccountTaxFields(accountId, tenantContext).taxCountry;
+        }
+        if (VATIN_CUSTOM_FIELD_NAME.equals(fieldName)) {
+            return findAccountTaxFields(accountId, tenantContext).vatin;
+        }
         List<CustomField> accountFields = customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, tenantContext);
         if (accountFields == null) {
             return null;
@@ -177,6 +320,49 @@ public class CustomFieldService {
         return tryFind(accountFields, new RetainFieldsWithName(fieldName)).orNull();
     }
 
+    private AccountTaxFields findAccountTaxFields(UUID accountId, TenantContext tenantContext) {
+        TenantScopedKey key = new TenantScopedKey(tenantContext.getTenantId(), accountId);
+        AccountTaxFields taxFields = accountTaxFields.getIfPresent(key);
+        if (taxFields == null) {
+            long generation = accountGenerations.get(generationIndex(key));
+            List<CustomField> accountFields = customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT,
+                    tenantContext);
+            taxFields = new AccountTaxFields(accountFields);
+            accountTaxFields.put(key, taxFields);
+            // Checked after the put, so that an invalidation between the check and the put cannot be missed
+            if (accountGenerations.get(generationIndex(key)) != generation) {
+                accountTaxFields.invalidate(key);
+            }
+        }
+        return taxFields;
+    }
+
+    private static int generationIndex(TenantScopedKey key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % ACCOUNT_GENERATIONS;
+    }
+
+    /**
+     * Discards the cached tax fields of an account.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null}.
+     * @param accountId
+     *            The account identifier.
+     */
+    public void invalidateAccount(@Nullable UUID tenantId, @Nonnull UUID accountId) {
+        TenantScopedKey key = new TenantScopedKey(tenantId, accountId);
+        accountGenerations.incrementAndGet(generationIndex(key));
+        accountTaxFields.invalidate(key);
+    }
+
+    /**
+     * @return The statistics of the cache of account tax fields.
+     */
+    @Nonnull
+    public CacheStats getAccountTaxFieldsStats() {
+        return accountTaxFields.stats();
+    }
+
     /**
      * Persists a new value for a custom field on a given account object.
      *
@@ -192,7 +378,11 @@ public class CustomFieldService {
      *         {@code false} otherwise.
      */
     public boolean saveAccountField(String fieldValue, String fieldName, UUID accountId, TenantContext tenantContext) {
-        return saveAccountField(fieldValue, fieldName, accountId, ACCOUNT, tenantContext);
+        try {
+            return saveAccountField(fieldValue, fieldName, accountId, ACCOUNT, tenantContext);
+        } finally {
+            invalidateAccount(tenantContext.getTenantId(), accountId);
+        }
     }
 
     public boolean saveInvoiceItemField(String fieldValue, String fieldName, UUID invoiceItemId,
@@ -244,4 +434,128 @@ public class CustomFieldService {
             return false;
         }
     }
+
+    /**
+     * @return The fields of an account that might be replaced by new values
+     *         of the given fields, or {@code null} if there are none.
+     */
+    @Nullable
+    private List<CustomField> findPreviousAccountFields(UUID accountId, Set<String> fieldNames,
+            TenantContext tenantContext) {
+        if (!TAX_FIELD_NAMES.containsAll(fieldNames)) {
+            return customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, tenantContext);
+        }
+        AccountTaxFields taxFields = findAccountTaxFields(accountId, tenantContext);
+        List<CustomField> accountFields = newArrayList();
+        if (taxFields.taxCountry != null) {
+            accountFields.add(taxFields.taxCountry);
+        }
+        if (taxFields.vatin != null) {
+            accountFields.add(taxFields.vatin);
+        }
+        return accountFields;
+    }
+
+    /**
+     * Persists new values for custom fields on many account objects, with one
+     * batched removal of the previous values and one batched addition of the
+     * new ones. Values that are unchanged are not written again.
+     * <p>
+     * The previous values of {@value #TAX_COUNTRY_CUSTOM_FIELD_NAME} and
+     * {@value #VATIN_CUSTOM_FIELD_NAME} fields are read through the cache of
+     * account tax fields. Kill Bill offers no way to read the custom fields of
+     * many objects at once, so other fields, and the tax fields of accounts
+     * that are not cached, still cost one read per account.
+     * <p>
+     * When the batched writes fail, fields are saved one account after the
+     * other, so that only the faulty accounts are reported.
+     *
+     * @param newValues
+     *            The new field values, by account identifier and field name.
+     *            Must not be {@code null}.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The accounts which fields could not be saved. Never {@code null}.
+     */
+    @Nonnull
+    public Set<UUID> saveAccountFields(@Nonnull Table<UUID, String, String> newValues, TenantContext tenantContext) {
+        try {
+            List<CustomField> removedFields = newArrayList();
+            List<CustomField> addedFields = newArrayList();
+            for (Map.Entry<UUID, Map<String, String>> row : newValues.rowMap().entrySet()) {
+                UUID accountId = row.getKey();
+                Map<String, String> newFields = newHashMap(row.getValue());
+                List<CustomField> accountFields = findPreviousAccountFields(accountId, newFields.keySet(),
+                        tenantContext);
+                if (accountFields != null) {
+                    for (CustomField field : accountFields) {
+                        String newValue = row.getValue().get(field.getFieldName());
+                        if (newValue == null) {
+                            continue;
+                        }
+                        if (newValue.equals(field.getFieldValue())) {
+                            newFields.remove(field.getFieldName());
+                        } else {
+                            removedFields.add(field);
+                        }
+                    }
+                }
+                for (Map.Entry<String, String> newField : newFields.entrySet()) {
+                    addedFields.add(ImmutableCustomField.builder()//
+                            .withObjectType(ACCOUNT).withObjectId(accountId)//
+                            .withFieldName(newField.getKey()).withFieldValue(newField.getValue())//
+                            .build());
+                }
+            }
+            CallContext context = new PluginCallContext(PLUGIN_NAME, new DateTime(), null,
+                    tenantContext.getTenantId());
+            try {
+                if (!removedFields.isEmpty()) {
+                    customFieldApi.removeCustomFields(removedFields, context);
+                }
+                if (!addedFields.isEmpty()) {
+                    customFieldApi.addCustomFields(addedFields, context);
+                }
+                return ImmutableSet.of();
+            } catch (CustomFieldApiException exc) {
+                logger.warn("while saving " + addedFields.size() + " custom fields on "
+                        + newValues.rowKeySet().size() + " accounts at once, saving them one by one", exc);
+                return saveAccountFieldsOneByOne(newValues, tenantContext);
+            }
+        } finally {
+            for (UUID accountId : newValues.rowKeySet()) {
+                invalidateAccount(tenantContext.getTenantId(), accountId);
+            }
+        }
+    }
+
+    private Set<UUID> saveAccountFieldsOneByOne(Table<UUID, String, String> newValues, TenantContext tenantContext) {
+        ImmutableSet.Builder<UUID> failedAccounts = ImmutableSet.builder();
+        for (Table.Cell<UUID, String, String> cell : newValues.cellSet()) {
+            if (!saveAccountField(cell.getValue(), cell.getColumnKey(), cell.getRowKey(), ACCOUNT, tenantContext)) {
+                failedAccounts.add(cell.getRowKey());
+            }
+        }
+        return failedAccounts.build();
+    }
+
+    /**
+     * The tax-related custom fields of an account, any of which might be
+     * {@code null}.
+     */
+    private static final class AccountTaxFields {
+        private final CustomField taxCountry;
+        private final CustomField vatin;
+
+        private AccountTaxFields(@Nullable List<CustomField> accountFields) {
+            super();
+            if (accountFields == null) {
+                taxCountry = null;
+                vatin = null;
+                return;
+            }
+            taxCountry = tryFind(accountFields, new RetainFieldsWithName(TAX_COUNTRY_CUSTOM_FIELD_NAME)).orNull();
+            vatin = tryFind(accountFields, new RetainFieldsWithName(VATIN_CUSTOM_FIELD_NAME)).orNull();
+        }
+    }
 }
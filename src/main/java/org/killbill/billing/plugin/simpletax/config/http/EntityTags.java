@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.util.customfield.CustomField;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Helpers for computing and comparing the strong entity tags (ETags) of the
+ * resources served by the {@link SimpleTaxServlet}, so that clients can make
+ * conditional requests.
+ * <p>
+ * Tags are computed from the underlying data, and never from serialized
+ * representations, so that unchanged resources need not be serialized at all.
+ *
+ * @author Benjamin Gandon
+ */
+public final class EntityTags {
+
+    private static final char SEPARATOR = '\0';
+    private static final String ANY_TAG = "*";
+    private static final String WEAK_TAG_PREFIX = "W/";
+    private static final Splitter TAG_LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private EntityTags() {
+    }
+
+    /**
+     * @return A new hasher to be fed with the data of a resource, before
+     *         being turned into a tag with {@link #toTag(Hasher)}.
+     */
+    @Nonnull
+    public static Hasher newHasher() {
+        return Hashing.murmur3_128().newHasher();
+    }
+
+    /**
+     * Feeds a hasher with the string form of a nullable value, in a way that
+     * keeps successive values distinct.
+     *
+     * @param hasher
+     *            The hasher to feed.
+     * @param value
+     *            The value, or {@code null}.
+     * @return The given hasher.
+     */
+    @Nonnull
+    public static Hasher putValue(@Nonnull Hasher hasher, @Nullable Object value) {
+        if (value != null) {
+            hasher.putString(value.toString(), UTF_8);
+        }
+        return hasher.putChar(SEPARATOR);
+    }
+
+    /**
+     * @param hasher
+     *            A hasher that has been fed with the data of a resource.
+     * @return The strong entity tag of the resource, quoted as expected in the
+     *         {@code ETag} header.
+     */
+    @Nonnull
+    public static String toTag(@Nonnull Hasher hasher) {
+        return '"' + hasher.hash().toString() + '"';
+    }
+
+    /**
+     * Computes the entity tag of a resource that is built out of custom
+     * fields, from their identifiers, owners, names, values, and dates of last
+     * update.
+     *
+     * @param fields
+     *            The custom fields, any of which can be {@code null} when
+     *            absent.
+     * @return The strong entity tag of the resource.
+     */
+    @Nonnull
+    public static String ofFields(@Nonnull CustomField... fields) {
+        Hasher hasher = newHasher();
+        for (CustomField field : fields) {
+            if (field == null) {
+                putValue(hasher, null);
+                continue;
+            }
+            putValue(hasher, field.getId());
+            putValue(hasher, field.getObjectId());
+            putValue(hasher, field.getFieldName());
+            putValue(hasher, field.getFieldValue());
+            putValue(hasher, field.getUpdatedDate() == null ? null : field.getUpdatedDate().getMillis());
+        }
+        return toTag(hasher);
+    }
+
+    /**
+     * Tells whether an {@code If-None-Match} header matches the current tag of
+     * a resource, using the weak comparison that is mandated for this header.
+     *
+     * @param ifNoneMatch
+     *            The value of the {@code If-None-Match} header, or
+     *            {@code null}.
+     * @param tag
+     *            The current tag of the resource.
+     * @return {@code true} if the client already has the current
+     *         representation of the resource, {@code false} otherwise.
+     */
+    public static boolean matches(@Nullable String ifNoneMatch, @Nonnull String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : TAG_LIST_SPLITTER.split(ifNoneMatch)) {
+            if (ANY_TAG.equals(candidate)) {
+                return true;
+            }
+            if (candidate.startsWith(WEAK_TAG_PREFIX)) {
+                candidate = candidate.substring(WEAK_TAG_PREFIX.length());
+            }
+            if (tag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
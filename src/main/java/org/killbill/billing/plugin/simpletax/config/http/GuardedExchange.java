@@ -0,0 +1,535 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A request and its response, as handed over to a worker thread, that can be
+ * {@linkplain #end() ended} at any time by another thread.
+ * <p>
+ * Once the exchange has ended, the container may recycle the underlying
+ * request and response for serving another client. Thus, the worker only
+ * gets wrappers, which bodies fail with an {@link IOException} after the end,
+ * and which headers and status are left untouched.
+ * <p>
+ * Headers and status are set while holding a lock, so that ending the
+ * exchange waits for any such change in progress. Reads and writes of the
+ * bodies never hold it, because they block for as long as the client is slow,
+ * which is when the exchange has to be ended without waiting. They check
+ * that the exchange has not ended before and after each call instead.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+final class GuardedExchange {
+
+    private final Object lock = new Object();
+    private volatile boolean ended;
+
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+
+    /**
+     * Constructs a new exchange.
+     *
+     * @param req
+     *            The request to guard.
+     * @param resp
+     *            The response to guard.
+     */
+    GuardedExchange(HttpServletRequest req, HttpServletResponse resp) {
+        super();
+        request = new GuardedRequest(req);
+        response = new GuardedResponse(resp);
+    }
+
+    /**
+     * @return The request, for the worker to read.
+     */
+    HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return The response, for the worker to write.
+     */
+    HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Ends this exchange, after having waited for any change of headers or
+     * status that is in progress, but not for any read or write of the
+     * bodies.
+     *
+     * @return {@code true} if this call has ended the exchange, {@code false}
+     *         if it had already ended.
+     */
+    boolean end() {
+        synchronized (lock) {
+            if (ended) {
+                return false;
+            }
+            ended = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether this exchange has ended.
+     */
+    boolean isEnded() {
+        return ended;
+    }
+
+    private void checkNotEnded() throws IOException {
+        if (ended) {
+            throw new IOException("Request has been abandoned");
+        }
+    }
+
+    private final class GuardedRequest extends HttpServletRequestWrapper {
+        private final ServletInputStream input;
+        private BufferedReader reader;
+
+        private GuardedRequest(HttpServletRequest req) {
+            super(req);
+            input = new GuardedInputStream(req);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            synchronized (lock) {
+                checkNotEnded();
+                super.getInputStream();
+                return input;
+            }
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            synchronized (lock) {
+                checkNotEnded();
+                if (reader == null) {
+                    reader = new BufferedReader(new GuardedReader(super.getReader()));
+                }
+                return reader;
+            }
+        }
+    }
+
+    private final class GuardedInputStream extends ServletInputStream {
+        private final HttpServletRequest req;
+
+        private GuardedInputStream(HttpServletRequest req) {
+            super();
+            this.req = req;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkNotEnded();
+            int b = req.getInputStream().read();
+            checkNotEnded();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            checkNotEnded();
+            int count = req.getInputStream().read(buf, off, len);
+            checkNotEnded();
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkNotEnded();
+            int count = req.getInputStream().available();
+            checkNotEnded();
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ended) {
+                req.getInputStream().close();
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            if (ended) {
+                return true;
+            }
+            try {
+                return req.getInputStream().isFinished();
+            } catch (IOException exc) {
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return !isFinished();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("blocking reads only");
+        }
+    }
+
+    private final class GuardedReader extends Reader {
+        private final Reader reader;
+
+        private GuardedReader(Reader reader) {
+            super();
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+            checkNotEnded();
+            int count = reader.read(buf, off, len);
+            checkNotEnded();
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ended) {
+                reader.close();
+            }
+        }
+    }
+
+    private final class GuardedResponse extends HttpServletResponseWrapper {
+        private final HttpServletResponse resp;
+        private final ServletOutputStream output;
+        private PrintWriter writer;
+
+        private GuardedResponse(HttpServletResponse resp) {
+            super(resp);
+            this.resp = resp;
+            output = new GuardedOutputStream(resp);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            synchronized (lock) {
+                checkNotEnded();
+                resp.getOutputStream();
+                return output;
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            synchronized (lock) {
+                checkNotEnded();
+                if (writer == null) {
+                    writer = new PrintWriter(new GuardedWriter(resp.getWriter()));
+                }
+                return writer;
+            }
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            checkNotEnded();
+            resp.sendError(sc, msg);
+            checkNotEnded();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            checkNotEnded();
+            resp.sendError(sc);
+            checkNotEnded();
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            checkNotEnded();
+            resp.sendRedirect(location);
+            checkNotEnded();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            checkNotEnded();
+            resp.flushBuffer();
+            checkNotEnded();
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setStatus(sc);
+                }
+            }
+        }
+
+        @Override
+        @Deprecated
+        public void setStatus(int sc, String sm) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setStatus(sc, sm);
+                }
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.addHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setDateHeader(name, date);
+                }
+            }
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.addDateHeader(name, date);
+                }
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setIntHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.addIntHeader(name, value);
+                }
+            }
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.addCookie(cookie);
+                }
+            }
+        }
+
+        @Override
+        public void setContentType(String type) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setContentType(type);
+                }
+            }
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setCharacterEncoding(charset);
+                }
+            }
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setContentLength(len);
+                }
+            }
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setContentLengthLong(len);
+                }
+            }
+        }
+
+        @Override
+        public void setLocale(Locale loc) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setLocale(loc);
+                }
+            }
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.setBufferSize(size);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.reset();
+                }
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            synchronized (lock) {
+                if (!ended) {
+                    resp.resetBuffer();
+                }
+            }
+        }
+
+        @Override
+        public boolean isCommitted() {
+            synchronized (lock) {
+                return ended || resp.isCommitted();
+            }
+        }
+    }
+
+    private final class GuardedOutputStream extends ServletOutputStream {
+        private final HttpServletResponse resp;
+
+        private GuardedOutputStream(HttpServletResponse resp) {
+            super();
+            this.resp = resp;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkNotEnded();
+            resp.getOutputStream().write(b);
+            checkNotEnded();
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            checkNotEnded();
+            resp.getOutputStream().write(buf, off, len);
+            checkNotEnded();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkNotEnded();
+            resp.getOutputStream().flush();
+            checkNotEnded();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ended) {
+                resp.getOutputStream().close();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return !ended;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new UnsupportedOperationException("blocking writes only");
+        }
+    }
+
+    private final class GuardedWriter extends Writer {
+        private final Writer writer;
+
+        private GuardedWriter(Writer writer) {
+            super();
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            checkNotEnded();
+            writer.write(buf, off, len);
+            checkNotEnded();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkNotEnded();
+            writer.flush();
+            checkNotEnded();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ended) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.VATIN;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A controller that serves the end point for importing the tax countries and
+ * VAT Identification Numbers (VATINs) of many accounts at once.
+ * <p>
+ * Records are read one line at a time from newline-delimited JSON, validated,
+ * and then saved in batches of accounts, so that memory use does not depend on
+ * the number of records.
+ *
+ * @author Benjamin Gandon
+ */
+public class ImportController {
+    private static final Logger logger = LoggerFactory.getLogger(ImportController.class);
+
+    /** The default number of accounts which fields are saved at once. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /** The maximum number of errors that are detailed in import reports. */
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private CustomFieldService customFieldService;
+    private int batchSize;
+
+    /**
+     * Constructs a new controller for importing account tax fields.
+     *
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     */
+    public ImportController(CustomFieldService customFieldService) {
+        this(customFieldService, DEFAULT_BATCH_SIZE);
+    }
+
+    ImportController(CustomFieldService customFieldService, int batchSize) {
+        super();
+        this.customFieldService = customFieldService;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports the tax countries and VAT Identification Numbers (VATINs) of
+     * accounts, from newline-delimited {@linkplain AccountTaxFieldsRsc JSON
+     * records}.
+     * <p>
+     * Blank lines are ignored. Invalid records are reported and skipped, and
+     * do not prevent other records from being imported.
+     *
+     * @param records
+     *            The newline-delimited JSON records to import.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A report of the import, with the errors of each faulty line.
+     *         Never {@code null}.
+     * @throws IOException
+     *             when the records cannot be read.
+     */
+    @Nonnull
+    public ImportReportRsc importAccountTaxFields(@Nonnull Reader records, @Nonnull Tenant tenant)
+            throws IOException {
+        TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+        BufferedReader lines = new BufferedReader(records);
+        ImportReportRsc report = new ImportReportRsc();
+
+        Table<UUID, String, String> batch = HashBasedTable.create();
+        ListMultimap<UUID, Integer> lineNumbers = ArrayListMultimap.create();
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            ++lineNumber;
+            if (isBlank(line)) {
+                continue;
+            }
+            ++report.records;
+            AccountTaxFieldsRsc record;
+            try {
+                record = JSON_MAPPER.readValue(line, AccountTaxFieldsRsc.class);
+            } catch (JsonProcessingException exc) {
+                report.addError(lineNumber, null, "Malformed JSON record");
+                continue;
+            }
+            String error = validate(record);
+            if (error != null) {
+                report.addError(lineNumber, record.accountId, error);
+                continue;
+            }
+            if (record.taxCountry != null) {
+                batch.put(record.accountId, TAX_COUNTRY_CUSTOM_FIELD_NAME, record.taxCountry);
+            }
+            if (record.vatin != null) {
+                batch.put(record.accountId, VATIN_CUSTOM_FIELD_NAME, record.vatin);
+            }
+            lineNumbers.put(record.accountId, lineNumber);
+            if (batch.rowKeySet().size() >= batchSize) {
+                saveBatch(batch, lineNumbers, report, tenantContext);
+                logger.info("Imported " + lineNumber + " lines of account tax fields in tenant ["
+                        + tenant.getApiKey() + "]: " + report.saved + " records saved, " + report.failed
+                        + " records failed");
+            }
+        }
+        saveBatch(batch, lineNumbers, report, tenantContext);
+        logger.info("Done importing " + lineNumber + " lines of account tax fields in tenant ["
+                + tenant.getApiKey() + "]: " + report.saved + " records saved, " + report.failed
+                + " records failed");
+        return report;
+    }
+
+    @Nullable
+    private static String validate(AccountTaxFieldsRsc record) {
+        if (record.accountId == null) {
+            return "Missing account identifier";
+        }
+        if ((record.taxCountry == null) && (record.vatin == null)) {
+            return "Missing tax country or VAT Identification Number";
+        }
+        if (record.taxCountry != null) {
+            try {
+                new Country(record.taxCountry);
+            } catch (IllegalArgumentException exc) {
+                return exc.getMessage();
+            }
+        }
+        if (record.vatin != null) {
+            try {
+                new VATIN(record.vatin);
+            } catch (IllegalArgumentException exc) {
+                return exc.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves a batch of account tax fields, in which the records of a same
+     * account have been merged, the last ones taking precedence.
+     */
+    private void saveBatch(Table<UUID, String, String> batch, ListMultimap<UUID, Integer> lineNumbers,
+            ImportReportRsc report, TenantContext tenantContext) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Set<UUID> failedAccounts = customFieldService.saveAccountFields(batch, tenantContext);
+        for (Map.Entry<UUID, Integer> line : lineNumbers.entries()) {
+            UUID accountId = line.getKey();
+            if (failedAccounts.contains(accountId)) {
+                report.addError(line.getValue(), accountId, "Could not save account tax fields");
+            } else {
+                ++report.saved;
+            }
+        }
+        batch.clear();
+        lineNumbers.clear();
+    }
+
+    /**
+     * A record for the tax fields of an account, as one line of an import.
+     * Any of the tax country or the VAT Identification Number can be omitted.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class AccountTaxFieldsRsc {
+        /** The identifier of the account. */
+        public UUID accountId;
+        /** The tax country of the account, or {@code null}. */
+        public String taxCountry;
+        /** The VAT Identification Number of the account, or {@code null}. */
+        public String vatin;
+
+        /**
+         * Constructs a new record for the tax fields of an account.
+         *
+         * @param accountId
+         *            An account identifier.
+         * @param taxCountry
+         *            A two-letter country code, or {@code null}.
+         * @param vatin
+         *            A VAT Identification Number, or {@code null}.
+         */
+        @JsonCreator
+        public AccountTaxFieldsRsc(@JsonProperty("accountId") UUID accountId,
+                @JsonProperty("taxCountry") String taxCountry, @JsonProperty("vatin") String vatin) {
+            super();
+            this.accountId = accountId;
+            this.taxCountry = taxCountry;
+            this.vatin = vatin;
+        }
+    }
+
+    /**
+     * A resource that reports the outcome of an import.
+     * <p>
+     * This resource is meant to be serialized and transmitted to the client,
+     * but not meant to be deserialized from the client.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class ImportReportRsc {
+        /** The number of non-blank lines that have been read. */
+        public long records;
+        /** The number of records that have been saved. */
+        public long saved;
+        /** The number of records that could not be saved. */
+        public long failed;
+        /** The first {@value ImportController#MAX_REPORTED_ERRORS} errors. */
+        public List<ImportErrorRsc> errors = newArrayList();
+
+        private void addError(int line, @Nullable UUID accountId, String message) {
+            ++failed;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new ImportErrorRsc(line, accountId, message));
+            }
+        }
+    }
+
+    /**
+     * A resource that describes why a line could not be imported.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class ImportErrorRsc {
+        /** The number of the faulty line, starting at 1. */
+        public int line;
+        /** The account of the faulty line, or {@code null} if unknown. */
+        public UUID accountId;
+        /** The description of the error. */
+        public String message;
+
+        private ImportErrorRsc(int line, @Nullable UUID accountId, String message) {
+            super();
+            this.line = line;
+            this.accountId = accountId;
+            this.message = message;
+        }
+    }
+}
@@ -18,31 +18,55 @@ package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Lists.newArrayList;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceApiException;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
 import org.killbill.billing.util.callcontext.TenantContext;
-import org.killbill.billing.util.entity.Pagination;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A service class that eases accessing invoices.
+ * <p>
+ * Invoices of invoice items are looked up in an
+ * {@linkplain InvoiceItemIndex index} that is shared with the plugin, and
+ * fed with all the invoices it comes across. Kill Bill is only asked for the
+ * invoice of an item when the item is not indexed.
+ *
+ * @author Benjamin Gandon
+ */
 public class InvoiceService {
     private static final Logger logger = LoggerFactory.getLogger(InvoiceService.class);
-    private static final long START_OFFSET = 0L;
-    private static final long PAGE_SIZE = 1L;
 
     private InvoiceUserApi invoiceApi;
+    private InvoiceItemIndex invoiceItemIndex;
 
+    /**
+     * @param invoiceApi
+     *            The Kill Bill service API class to use.
+     */
     public InvoiceService(InvoiceUserApi invoiceApi) {
+        this(invoiceApi, new InvoiceItemIndex());
+    }
+
+    /**
+     * @param invoiceApi
+     *            The Kill Bill service API class to use.
+     * @param invoiceItemIndex
+     *            The index of the invoices of invoice items.
+     */
+    public InvoiceService(InvoiceUserApi invoiceApi, InvoiceItemIndex invoiceItemIndex) {
         super();
         this.invoiceApi = invoiceApi;
+        this.invoiceItemIndex = invoiceItemIndex;
     }
 
     @Nonnull
@@ -54,18 +78,36 @@ public class InvoiceService {
             logger.error("while accessing invoice [" + invoiceId + "] in order to list its items", exc);
             return newArrayList();
         }
+        invoiceItemIndex.index(tenantContext.getTenantId(), invoice);
         return invoice.getInvoiceItems();
     }
 
+    /**
+     * Finds the invoice that contains a given invoice item.
+     *
+     * @param invoiceItemId
+     *            The identifier of an invoice item.
+     * @param tenantContext
+     *            The tenant on which to operate.
+     * @return The invoice that contains the given item, or {@code null} if
+     *         none can be found.
+     */
+    @Nullable
     public Invoice findInvoiceByInvoiceItem(UUID invoiceItemId, TenantContext tenantContext) {
-        String searchTerm = invoiceItemId.toString();
-        // TODO: ask the Kill Bill guys whether such search query would actually
-        // find the right invoice
-        Pagination<Invoice> invoices = invoiceApi.searchInvoices(searchTerm, START_OFFSET, PAGE_SIZE, tenantContext);
-        Iterator<Invoice> itr = invoices.iterator();
-        if (!itr.hasNext()) {
+        UUID tenantId = tenantContext.getTenantId();
+        UUID invoiceId = invoiceItemIndex.invoiceIdOf(tenantId, invoiceItemId);
+        try {
+            if (invoiceId != null) {
+                return invoiceApi.getInvoice(invoiceId, tenantContext);
+            }
+            Invoice invoice = invoiceApi.getInvoiceByInvoiceItem(invoiceItemId, tenantContext);
+            if (invoice != null) {
+                invoiceItemIndex.index(tenantId, invoice);
+            }
+            return invoice;
+        } catch (InvoiceApiException exc) {
+            logger.debug("while accessing the invoice of invoice item [" + invoiceItemId + "]", exc);
             return null;
         }
-        return itr.next();
     }
 }
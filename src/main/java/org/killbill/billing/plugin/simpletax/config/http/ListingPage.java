@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of a listing, that holds a bounded number of elements, and tells
+ * where the next page starts.
+ * <p>
+ * Offsets are the ones of the underlying Kill Bill search, which results might
+ * have been filtered. Thus, a page can hold fewer elements than requested,
+ * even when more pages follow.
+ *
+ * @author Benjamin Gandon
+ * @param <T>
+ *            The type of elements.
+ */
+public final class ListingPage<T> implements Iterable<T> {
+
+    private final List<T> elements;
+    private final Long nextOffset;
+
+    /**
+     * Constructs a new page.
+     *
+     * @param elements
+     *            The elements of this page. Must not be {@code null}.
+     * @param nextOffset
+     *            The offset of the next page, or {@code null} if this page is
+     *            the last one.
+     */
+    public ListingPage(@Nonnull Iterable<? extends T> elements, @Nullable Long nextOffset) {
+        super();
+        this.elements = ImmutableList.copyOf(elements);
+        this.nextOffset = nextOffset;
+    }
+
+    /**
+     * @return The elements of this page. Never {@code null}.
+     */
+    @Nonnull
+    public List<T> getElements() {
+        return elements;
+    }
+
+    /**
+     * @return The offset of the next page, or {@code null} if this page is the
+     *         last one.
+     */
+    @Nullable
+    public Long getNextOffset() {
+        return nextOffset;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return elements.iterator();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.math.BigDecimal.ZERO;
+import static java.math.RoundingMode.HALF_UP;
+import static java.util.UUID.randomUUID;
+
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.CatalogUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.api.invoice.PluginInvoiceItem;
+import org.killbill.billing.plugin.simpletax.AccountInvoiceIndex;
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache.TenantProducts;
+import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
+import org.killbill.billing.plugin.simpletax.internal.TaxPlan;
+import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
+import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
+import org.killbill.billing.plugin.simpletax.util.CheckedLazyValue;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A controller that previews the taxes of hypothetical invoice items, without
+ * reading nor writing any invoice or custom field.
+ * <p>
+ * Previews rely on the compiled {@linkplain TaxPlan tax plan} of the tenant
+ * configuration, and on the configured {@link TaxResolver}, exactly as when
+ * invoices are created. The products of plans are looked up in the
+ * {@linkplain PlanProductCache same cache} as the plugin, so that the catalog
+ * is only fetched for plans that have never been met before.
+ * <p>
+ * As there is no account, the resolver is given a context with no account and
+ * no invoices, and the items dates are not converted to any taxation time
+ * zone.
+ *
+ * @author Benjamin Gandon
+ */
+public class PreviewController {
+    private static final Logger logger = LoggerFactory.getLogger(PreviewController.class);
+
+    /** The maximum number of items in one single preview. */
+    static final int MAX_PREVIEW_ITEMS = 1000;
+
+    private static final AccountInvoiceIndex NO_INVOICES = AccountInvoiceIndex.of(ImmutableSet.<Invoice> of(), null);
+
+    private SimpleTaxConfigurationHandler configHandler;
+    private PlanProductCache planProducts;
+    private CatalogUserApi catalogApi;
+
+    /**
+     * Constructs a new controller for previewing taxes.
+     *
+     * @param configHandler
+     *            The handler of the per-tenant plugin configurations.
+     * @param planProducts
+     *            The cache of the products of plans, that is shared with the
+     *            plugin.
+     * @param catalogApi
+     *            The catalog service to use, when the product of a plan is not
+     *            cached yet.
+     */
+    public PreviewController(SimpleTaxConfigurationHandler configHandler, PlanProductCache planProducts,
+            CatalogUserApi catalogApi) {
+        super();
+        this.configHandler = configHandler;
+        this.planProducts = planProducts;
+        this.catalogApi = catalogApi;
+    }
+
+    /**
+     * Computes the taxes of hypothetical invoice items.
+     *
+     * @param preview
+     *            The items to preview taxes for. Must not be {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The items with their applicable tax codes and tax amounts, in
+     *         the same order. Never {@code null}.
+     * @throws IllegalArgumentException
+     *             when there are no items or too many of them, or when an
+     *             item has no amount, no date, or a malformed date.
+     */
+    @Nonnull
+    public PreviewGETRsc previewTaxes(@Nonnull PreviewPOSTRsc preview, final Tenant tenant)
+            throws IllegalArgumentException {
+        List<PreviewItemPOSTRsc> items = preview.items;
+        checkArgument((items != null) && !items.isEmpty(), "No items to preview");
+        checkArgument(items.size() <= MAX_PREVIEW_ITEMS, "Cannot preview more than %s items at once",
+                MAX_PREVIEW_ITEMS);
+
+        SimpleTaxConfig cfg = configHandler.getConfigurable(tenant.getId());
+        TaxPlan taxPlan = cfg.getTaxPlan();
+        TenantProducts products = planProducts.forTenant(tenant.getId());
+        CheckedSupplier<StaticCatalog, CatalogApiException> catalog = new CheckedLazyValue<StaticCatalog, CatalogApiException>() {
+            @Override
+            protected StaticCatalog initialize() throws CatalogApiException {
+                TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+                return catalogApi.getCurrentCatalog(null, tenantContext);
+            }
+        };
+        TaxResolver resolver = taxResolver(cfg, preview.taxCountry);
+
+        ImmutableList.Builder<PreviewItemGETRsc> taxedItems = ImmutableList.builder();
+        BigDecimal totalTaxAmount = ZERO;
+        for (int i = 0; i < items.size(); i++) {
+            PreviewItemPOSTRsc item = items.get(i);
+            checkArgument(item != null, "No item at index %s", i);
+            checkArgument(item.amount != null, "No amount for item at index %s", i);
+            LocalDate startDate = dateOrNull(item.startDate, "startDate", i);
+            LocalDate endDate = dateOrNull(item.endDate, "endDate", i);
+            checkArgument((startDate != null) || (endDate != null), "No date for item at index %s", i);
+
+            String productName = item.productName;
+            if ((productName == null) && (item.planName != null)) {
+                productName = products.productNameOf(item.planName, catalog);
+            }
+
+            TaxCode tax = null;
+            TaxCodeTimeline timeline = taxPlan.timelineFor(productName, preview.taxCountry);
+            if ((timeline != null) && !timeline.isEmpty()) {
+                tax = resolver.applicableCodeForItem(timeline,
+                        previewItem(item, startDate, endDate, preview.currency));
+            }
+
+            BigDecimal taxAmount = ZERO;
+            if (tax != null) {
+                taxAmount = item.amount.multiply(tax.getRate()).setScale(cfg.getTaxAmountPrecision(), HALF_UP);
+            }
+            totalTaxAmount = totalTaxAmount.add(taxAmount);
+            taxedItems.add(new PreviewItemGETRsc(item, productName, tax, taxAmount));
+        }
+        return new PreviewGETRsc(preview.taxCountry, preview.currency, taxedItems.build(), totalTaxAmount);
+    }
+
+    @Nullable
+    private static LocalDate dateOrNull(@Nullable String date, String name, int index) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date);
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("Illegal " + name + " [" + date + "] for item at index " + index,
+                    exc);
+        }
+    }
+
+    /**
+     * Instantiates the configured {@link TaxResolver}, with a context that has
+     * no account and no invoices. When instantiation fails, a fail-safe
+     * {@link NullTaxResolver} is returned.
+     */
+    private static TaxResolver taxResolver(SimpleTaxConfig cfg, @Nullable Country taxCountry) {
+        TaxComputationContext ctx = new TaxComputationContext(cfg, null, taxCountry, ImmutableSet.<Invoice> of(),
+                NO_INVOICES, null, null, null);
+        Throwable issue;
+        try {
+            return cfg.getTaxResolverFactory().newResolver(ctx);
+        } catch (InstantiationException exc) {
+            issue = exc;
+        } catch (InvocationTargetException exc) {
+            issue = exc;
+        } catch (ExceptionInInitializerError err) {
+            issue = err;
+        }
+        logger.error("Cannot instanciate tax resolver. Defaulting to [" + NullTaxResolver.class.getName()
+                + "].", issue);
+        return new NullTaxResolver(ctx);
+    }
+
+    private static InvoiceItem previewItem(PreviewItemPOSTRsc item, @Nullable LocalDate startDate,
+            @Nullable LocalDate endDate, @Nullable Currency currency) {
+        return new PluginInvoiceItem(randomUUID(), InvoiceItemType.EXTERNAL_CHARGE, null, null, null, startDate,
+                endDate, item.amount, currency, null, null, null, null, null, null, item.planName, null, null, null,
+                null, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * A resource for the hypothetical items to preview taxes for.
+     *
+     * @author Benjamin Gandon
+     */
+    public static class PreviewPOSTRsc {
+        /** The tax country of the hypothetical account, if any. */
+        public Country taxCountry;
+        /** The currency of the items, if any. */
+        public Currency currency;
+        public List<PreviewItemPOSTRsc> items;
+
+        @JsonCreator
+        public PreviewPOSTRsc(@JsonProperty("taxCountry") Country taxCountry,
+                @JsonProperty("currency") Currency currency, @JsonProperty("items") List<PreviewItemPOSTRsc> items) {
+            super();
+            this.taxCountry = taxCountry;
+            this.currency = currency;
+            this.items = items;
+        }
+    }
+
+    /**
+     * A resource for a hypothetical invoice item, that designates its product
+     * either directly or through its plan.
+     *
+     * @author Benjamin Gandon
+     */
+    public static class PreviewItemPOSTRsc {
+        public String planName;
+        public String productName;
+        public BigDecimal amount;
+        /** The service period start, formatted as {@code yyyy-MM-dd}. */
+        public String startDate;
+        /** The service period end, formatted as {@code yyyy-MM-dd}. */
+        public String endDate;
+
+        @JsonCreator
+        public PreviewItemPOSTRsc(@JsonProperty("planName") String planName,
+                @JsonProperty("productName") String productName, @JsonProperty("amount") BigDecimal amount,
+                @JsonProperty("startDate") String startDate, @JsonProperty("endDate") String endDate) {
+            super();
+            this.planName = planName;
+            this.productName = productName;
+            this.amount = amount;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+    }
+
+    /**
+     * A resource for the previewed taxes of a hypothetical invoice.
+     * <p>
+     * This resource is meant to be serialized and transmitted to the client,
+     * but not meant to be deserialized from the client.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class PreviewGETRsc {
+        public Country taxCountry;
+        public Currency currency;
+        public List<PreviewItemGETRsc> items;
+        public BigDecimal totalTaxAmount;
+
+        public PreviewGETRsc(Country taxCountry, Currency currency, List<PreviewItemGETRsc> items,
+                BigDecimal totalTaxAmount) {
+            super();
+            this.taxCountry = taxCountry;
+            this.currency = currency;
+            this.items = items;
+            this.totalTaxAmount = totalTaxAmount;
+        }
+    }
+
+    /**
+     * A resource for the previewed tax of a hypothetical invoice item.
+     * <p>
+     * This resource is meant to be serialized and transmitted to the client,
+     * but not meant to be deserialized from the client.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class PreviewItemGETRsc extends PreviewItemPOSTRsc {
+        /** The name of the applicable tax code, or {@code null} if none. */
+        public String taxCode;
+        public BigDecimal taxRate;
+        public BigDecimal taxAmount;
+        public String taxItemDescription;
+
+        /**
+         * @param item
+         *            The previewed item.
+         * @param productName
+         *            The product of the item, if known.
+         * @param tax
+         *            The applicable tax code, or {@code null} if none.
+         * @param taxAmount
+         *            The amount of tax for the item.
+         */
+        public PreviewItemGETRsc(PreviewItemPOSTRsc item, @Nullable String productName, @Nullable TaxCode tax,
+                BigDecimal taxAmount) {
+            super(item.planName, productName, item.amount, item.startDate, item.endDate);
+            taxCode = tax == null ? null : tax.getName();
+            taxRate = tax == null ? null : tax.getRate();
+            this.taxAmount = taxAmount;
+            taxItemDescription = tax == null ? null : tax.getTaxItemDescription();
+        }
+    }
+}
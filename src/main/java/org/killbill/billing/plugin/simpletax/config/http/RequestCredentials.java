@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.simpletax.plumbing.SecuritySessions;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Logs the threads that serve the {@link SimpleTaxServlet} in and out, with
+ * the credentials that are sent with HTTP Basic authentication.
+ * <p>
+ * Credentials are decoded for each request and never kept once the request is
+ * served: threads are expected to {@linkplain #logout() log out} at the end of
+ * each request, so that no subject stays bound to a thread of the servlet
+ * container.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class RequestCredentials {
+
+    private final SecuritySessions sessions;
+
+    /**
+     * Constructs a new manager of request credentials.
+     *
+     * @param killbillAPI
+     *            The Kill Bill meta-API.
+     */
+    public RequestCredentials(OSGIKillbillAPI killbillAPI) {
+        this(new SecuritySessions(killbillAPI));
+    }
+
+    @VisibleForTesting
+    RequestCredentials(SecuritySessions sessions) {
+        super();
+        this.sessions = sessions;
+    }
+
+    /**
+     * Logs the current thread in with the credentials of an
+     * {@code Authorization} header.
+     * <p>
+     * Missing or malformed headers log the current thread out, so that it
+     * never keeps serving requests with the credentials of a previous one.
+     *
+     * @param authorization
+     *            The value of the {@code Authorization} header, or
+     *            {@code null}.
+     */
+    public void login(@Nullable String authorization) {
+        Credentials creds = authorization == null ? null : decode(authorization);
+        if (creds == null) {
+            sessions.logout();
+            return;
+        }
+        sessions.login(creds.username, creds.password);
+    }
+
+    /**
+     * Logs the current thread out, if it has been logged in.
+     */
+    public void logout() {
+        sessions.logout();
+    }
+
+    @Nullable
+    @VisibleForTesting
+    static Credentials decode(@Nonnull String authorization) {
+        String[] chunks = authorization.trim().split(" +");
+        if (chunks.length < 2) {
+            return null;
+        }
+        String decoded;
+        try {
+            decoded = new String(BaseEncoding.base64().decode(chunks[1]), UTF_8);
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+        int colon = decoded.indexOf(':');
+        if (colon == -1) {
+            return null;
+        }
+        return new Credentials(decoded.substring(0, colon).trim(), decoded.substring(colon + 1).trim());
+    }
+
+    @VisibleForTesting
+    static final class Credentials {
+        final String username;
+        final String password;
+
+        private Credentials(String username, String password) {
+            super();
+            this.username = username;
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newHashMap;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toCanonicalUUIDOrNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A table of routes, that maps HTTP methods and request paths to handlers.
+ * <p>
+ * Routes are stored in a trie of path segments, so that a request path is
+ * matched in one single pass over its segments, whatever the number of
+ * routes. Segments are either literal names, or the {@value #UUID_SEGMENT}
+ * placeholder, that matches the canonical representation of any {@link UUID}.
+ * Identifiers are parsed as the path is walked, without resorting to any
+ * regular expression.
+ * <p>
+ * This class is not thread-safe while routes are being added. It is meant to
+ * be filled once, and then only read after having been safely published.
+ *
+ * @author Benjamin Gandon
+ * @param <H>
+ *            The type of route handlers.
+ */
+public final class RouteTable<H> {
+
+    /** The path segment that matches any UUID. */
+    public static final String UUID_SEGMENT = "{uuid}";
+
+    private static final char SEPARATOR = '/';
+
+    private final Node<H> root = new Node<H>();
+
+    /**
+     * Adds a route to this table.
+     *
+     * @param method
+     *            The HTTP method of the route, like {@code GET}.
+     * @param path
+     *            The path of the route, like {@code /accounts/{uuid}/vatin},
+     *            where {@value #UUID_SEGMENT} segments match any UUID.
+     * @param handler
+     *            The handler of the route.
+     * @return This table, for chaining calls.
+     * @throws IllegalArgumentException
+     *             when the path does not start with a slash or has an empty
+     *             segment, or when a route is already defined for the same
+     *             method and path.
+     */
+    @Nonnull
+    public RouteTable<H> route(@Nonnull String method, @Nonnull String path, @Nonnull H handler) {
+        checkNotNull(method, "method");
+        checkNotNull(handler, "handler");
+        checkArgument(path.length() > 1 && path.charAt(0) == SEPARATOR, "illegal route path: [%s]", path);
+        Node<H> node = root;
+        int start = 1;
+        while (start <= path.length()) {
+            int end = segmentEnd(path, start);
+            checkArgument(end > start, "empty segment in route path: [%s]", path);
+            String segment = path.substring(start, end);
+            if (UUID_SEGMENT.equals(segment)) {
+                if (node.uuidChild == null) {
+                    node.uuidChild = new Node<H>();
+                }
+                node = node.uuidChild;
+            } else {
+                Node<H> child = node.literalChildren.get(segment);
+                if (child == null) {
+                    child = new Node<H>();
+                    node.literalChildren.put(segment, child);
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        checkArgument(!node.handlers.containsKey(method), "duplicate route: %s %s", method, path);
+        node.handlers.put(method, handler);
+        return this;
+    }
+
+    /**
+     * Finds the route that matches a given request.
+     * <p>
+     * Literal segments take precedence over {@value #UUID_SEGMENT} segments.
+     *
+     * @param method
+     *            The HTTP method of the request.
+     * @param path
+     *            The path of the request, or {@code null}.
+     * @return The matching route, or {@code null} if none matches.
+     */
+    @Nullable
+    public Match<H> match(@Nonnull String method, @Nullable String path) {
+        if ((path == null) || (path.length() <= 1) || (path.charAt(0) != SEPARATOR)) {
+            return null;
+        }
+        ImmutableList.Builder<UUID> identifiers = ImmutableList.builder();
+        Node<H> node = root;
+        int start = 1;
+        while (start <= path.length()) {
+            int end = segmentEnd(path, start);
+            if (end == start) {
+                return null;
+            }
+            String segment = path.substring(start, end);
+            Node<H> child = node.literalChildren.get(segment);
+            if (child == null) {
+                UUID identifier = node.uuidChild == null ? null : toCanonicalUUIDOrNull(segment);
+                if (identifier == null) {
+                    return null;
+                }
+                identifiers.add(identifier);
+                child = node.uuidChild;
+            }
+            node = child;
+            start = end + 1;
+        }
+        H handler = node.handlers.get(method);
+        if (handler == null) {
+            return null;
+        }
+        return new Match<H>(handler, identifiers.build());
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf(SEPARATOR, start);
+        return end < 0 ? path.length() : end;
+    }
+
+    /**
+     * A node of the trie, that holds the handlers of the routes which path
+     * ends here.
+     */
+    private static final class Node<H> {
+        private final Map<String, Node<H>> literalChildren = newHashMap();
+        private Node<H> uuidChild;
+        private final Map<String, H> handlers = newHashMap();
+    }
+
+    /**
+     * A route that matches a request.
+     *
+     * @author Benjamin Gandon
+     * @param <H>
+     *            The type of route handlers.
+     */
+    public static final class Match<H> {
+        private final H handler;
+        private final List<UUID> identifiers;
+
+        private Match(H handler, List<UUID> identifiers) {
+            super();
+            this.handler = handler;
+            this.identifiers = identifiers;
+        }
+
+        /**
+         * @return The handler of the matching route. Never {@code null}.
+         */
+        @Nonnull
+        public H getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return The identifiers that matched the {@value RouteTable#UUID_SEGMENT}
+         *         segments of the route, in order. Never {@code null}.
+         */
+        @Nonnull
+        public List<UUID> getIdentifiers() {
+            return identifiers;
+        }
+    }
+}
@@ -17,33 +17,40 @@
 package org.killbill.billing.plugin.simpletax.config.http;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.core.PluginServlet;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewPOSTRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesGETRsc;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPOSTRsc;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPUTRsc;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController.TaxCountryRsc;
 import org.killbill.billing.plugin.simpletax.config.http.VatinController.VATINRsc;
 import org.killbill.billing.tenant.api.Tenant;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.BaseEncoding;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
-import static java.util.regex.Pattern.compile;
+import static com.fasterxml.jackson.databind.SerializationFeature.FLUSH_AFTER_WRITE_VALUE;
+import static com.google.common.base.Charsets.UTF_8;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static org.apache.commons.lang3.StringUtils.isBlank;
-import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.UUID_LOOSE_PATTERN;
-import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toUUIDOrNull;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toCanonicalUUIDOrNull;
+import static org.killbill.billing.plugin.simpletax.config.http.RouteTable.UUID_SEGMENT;
 import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.PLUGIN_NAME;
 
 /**
@@ -56,11 +63,13 @@ import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.
  * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
  * PUT /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
  * GET /vatins
+ * GET /vatins?offset={offset:\d+}&amp;limit={limit:\d+}
  * GET /vatins?account={accountId:\w+-\w+-\w+-\w+-\w+}
  *
  * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
  * PUT /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
  * GET /taxCountries
+ * GET /taxCountries?offset={offset:\d+}&amp;limit={limit:\d+}
  * GET /taxCountries?account={accountId:\w+-\w+-\w+-\w+-\w+}
  *
  * GET /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
@@ -68,8 +77,32 @@ import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.
  *
  * GET /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
  * PUT /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+ *
+ * POST /accountTaxFields
+ *
+ * POST /preview
+ *
+ * GET /stats
  * </pre>
  * <p>
+ * Listings of all accounts are streamed, so that memory use does not depend
+ * on the number of accounts. When an {@code offset} or a {@code limit} is
+ * specified, only one page is returned instead, and the offset of the next
+ * page, if any, is set in the {@value #NEXT_OFFSET_HEADER} header.
+ * <p>
+ * Requests are dispatched through a {@link RouteTable} that is built once at
+ * construction time.
+ * <p>
+ * Listings of all accounts and imports can take long. When an
+ * {@link AsyncRequestExecutor} is given, they are run by its own bounded pool of
+ * threads, with a deadline and a cap on the number of requests per tenant, so
+ * that they don't hold the threads of the servlet container.
+ * <p>
+ * The tax country and VATIN of an account, and the tax codes of an invoice,
+ * are served with {@linkplain EntityTags strong entity tags}, so that clients
+ * can make conditional requests with the {@code If-None-Match} header, and get
+ * a {@code 304 Not Modified} response when nothing has changed.
+ * <p>
  * We don't use the standard <code>/accounts/{accountId}/customFields</code>
  * endpoint here because they don't enforce any data validation.
  *
@@ -92,25 +125,41 @@ public class SimpleTaxServlet extends PluginServlet {
 
     private static final String PLUGIN_BASE_PATH = "/plugins/" + PLUGIN_NAME;
 
+    private static final String GET = "GET";
+    private static final String POST = "POST";
+    private static final String PUT = "PUT";
+
     private static final String ACCOUNTS_PATH = "/accounts";
-    private static final Pattern ACCOUNT_PATTERN = compile(ACCOUNTS_PATH + "/(" + UUID_LOOSE_PATTERN + ")/(\\w+)");
-    private static final int RESOURCE_IDENTIFIER_GROUP = 1;
-    private static final int RESOURCE_NAME_GROUP = 2;
     private static final String VATIN_RESOURCE_NAME = "vatin";
     private static final String TAX_COUNTRY_RESOURCE_NAME = "taxCountry";
 
     private static final String TAX_COUNTRIES_PATH = "/taxCountries";
     private static final String VATINS_PATH = "/vatins";
     private static final String ACCOUNT_PARAM_NAME = "account";
-    private static final Pattern LOOSE_UUID = compile(UUID_LOOSE_PATTERN);
+    private static final String OFFSET_PARAM_NAME = "offset";
+    private static final String LIMIT_PARAM_NAME = "limit";
+    private static final long START_OFFSET = 0L;
+    private static final long DEFAULT_LIMIT = 100L;
+    private static final long MAX_LIMIT = 1000L;
+    private static final String CURRENT_OFFSET_HEADER = "X-Killbill-Pagination-CurrentOffset";
+    private static final String NEXT_OFFSET_HEADER = "X-Killbill-Pagination-NextOffset";
+
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String CACHE_CONTROL_HEADER = "Cache-Control";
+    /** Tenant data must not be shared, and can be cached only if revalidated. */
+    private static final String REVALIDATE_CACHE_CONTROL = "private, no-cache";
 
     private static final String INVOICES_PATH = "/invoices";
-    private static final Pattern INVOICE_PATTERN = compile(INVOICES_PATH + "/(" + UUID_LOOSE_PATTERN + ")/(\\w+)");
     private static final String INVOICE_ITEMS_PATH = "/invoiceItems";
-    private static final Pattern INVOICE_ITEM_PATTERN = compile(INVOICE_ITEMS_PATH + "/(" + UUID_LOOSE_PATTERN
-            + ")/(\\w+)");
     private static final String TAX_CODES_RESOURCE_NAME = "taxCodes";
 
+    private static final String ACCOUNT_TAX_FIELDS_PATH = "/accountTaxFields";
+
+    private static final String PREVIEW_PATH = "/preview";
+
+    private static final String STATS_PATH = "/stats";
+
     private static String accountResourceUri(UUID accountId, String resourceName) {
         return resourceUri(ACCOUNTS_PATH, accountId, resourceName).toString();
     }
@@ -128,12 +177,22 @@ public class SimpleTaxServlet extends PluginServlet {
                 .append(subResourceName);
     }
 
+    private static String routePath(String resourceName, String subResourceName) {
+        return resourceName + '/' + UUID_SEGMENT + '/' + subResourceName;
+    }
+
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectWriter JSON_STREAM_WRITER = JSON_MAPPER.writer().without(FLUSH_AFTER_WRITE_VALUE);
 
     private TaxCountryController taxCountryController;
     private VatinController vatinController;
     private TaxCodeController taxCodeController;
-    private OSGIKillbillAPI killbillAPI;
+    private ImportController importController;
+    private PreviewController previewController;
+    private RequestCredentials requestCredentials;
+    private AsyncRequestExecutor asyncRequests;
+    private StatsController statsController;
+    private final RouteTable<RouteHandler> routes;
 
     /**
      * Constructs a new servlet for configuring data related to the simple tax
@@ -147,194 +206,511 @@ public class SimpleTaxServlet extends PluginServlet {
      */
     public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
                             TaxCodeController taxCodeController, OSGIKillbillAPI killbillAPI) {
-        super();
-        this.taxCountryController = taxCountryController;
-        this.vatinController = vatinController;
-        this.taxCodeController = taxCodeController;
-        this.killbillAPI = killbillAPI;
+        this(vatinController, taxCountryController, taxCodeController, null, killbillAPI);
     }
 
     /**
-     * This implementation serves these HTTP end points:
+     * Constructs a new servlet for configuring data related to the simple tax
+     * plugin.
      *
-     * <pre>
-     * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
-     * GET /taxCountries
-     * GET /taxCountries?account={accountId:\w+-\w+-\w+-\w+-\w+}
+     * @param vatinController
+     *            The VATIN controller to use.
+     * @param taxCountryController
+     *            The tax country controller to use.
+     * @param taxCodeController
+     *            The tax code controller to use.
+     * @param importController
+     *            The controller to use for importing account tax fields, or
+     *            {@code null} if imports are not supported.
+     * @param killbillAPI
+     *            The Kill Bill meta-API.
+     */
+    public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
+            TaxCodeController taxCodeController, @Nullable ImportController importController,
+            OSGIKillbillAPI killbillAPI) {
+        this(vatinController, taxCountryController, taxCodeController, importController, new RequestCredentials(
+                killbillAPI));
+    }
+
+    /**
+     * Constructs a new servlet for configuring data related to the simple tax
+     * plugin.
      *
-     * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
-     * GET /vatins
-     * GET /vatins?account={accountId:\w+-\w+-\w+-\w+-\w+}
+     * @param vatinController
+     *            The VATIN controller to use.
+     * @param taxCountryController
+     *            The tax country controller to use.
+     * @param taxCodeController
+     *            The tax code controller to use.
+     * @param importController
+     *            The controller to use for importing account tax fields, or
+     *            {@code null} if imports are not supported.
+     * @param requestCredentials
+     *            The credentials to use when logging requests in and out.
+     */
+    public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
+            TaxCodeController taxCodeController, @Nullable ImportController importController,
+            RequestCredentials requestCredentials) {
+        this(vatinController, taxCountryController, taxCodeController, importController, null, requestCredentials);
+    }
+
+    /**
+     * Constructs a new servlet for configuring data related to the simple tax
+     * plugin.
      *
-     * GET /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
-     * </pre>
+     * @param vatinController
+     *            The VATIN controller to use.
+     * @param taxCountryController
+     *            The tax country controller to use.
+     * @param taxCodeController
+     *            The tax code controller to use.
+     * @param importController
+     *            The controller to use for importing account tax fields, or
+     *            {@code null} if imports are not supported.
+     * @param previewController
+     *            The controller to use for previewing taxes, or {@code null}
+     *            if previews are not supported.
+     * @param requestCredentials
+     *            The credentials to use when logging requests in and out.
+     */
+    public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
+            TaxCodeController taxCodeController, @Nullable ImportController importController,
+            @Nullable PreviewController previewController, RequestCredentials requestCredentials) {
+        this(vatinController, taxCountryController, taxCodeController, importController, previewController,
+                requestCredentials, null);
+    }
+
+    /**
+     * Constructs a new servlet for configuring data related to the simple tax
+     * plugin.
      *
-     * Other endpoints could be provided in the future, when the Kill Bill API
-     * make them reasonable to provide:
+     * @param vatinController
+     *            The VATIN controller to use.
+     * @param taxCountryController
+     *            The tax country controller to use.
+     * @param taxCodeController
+     *            The tax code controller to use.
+     * @param importController
+     *            The controller to use for importing account tax fields, or
+     *            {@code null} if imports are not supported.
+     * @param previewController
+     *            The controller to use for previewing taxes, or {@code null}
+     *            if previews are not supported.
+     * @param requestCredentials
+     *            The credentials to use when logging requests in and out.
+     * @param asyncRequests
+     *            The executor of long-running requests, or {@code null} if
+     *            they should run on the threads of the servlet container.
+     */
+    public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
+            TaxCodeController taxCodeController, @Nullable ImportController importController,
+            @Nullable PreviewController previewController, RequestCredentials requestCredentials,
+            @Nullable AsyncRequestExecutor asyncRequests) {
+        this(vatinController, taxCountryController, taxCodeController, importController, previewController,
+                requestCredentials, asyncRequests, null);
+    }
+
+    /**
+     * Constructs a new servlet for configuring data related to the simple tax
+     * plugin.
      *
-     * <pre>
-     * GET /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
-     * </pre>
+     * @param vatinController
+     *            The VATIN controller to use.
+     * @param taxCountryController
+     *            The tax country controller to use.
+     * @param taxCodeController
+     *            The tax code controller to use.
+     * @param importController
+     *            The controller to use for importing account tax fields, or
+     *            {@code null} if imports are not supported.
+     * @param previewController
+     *            The controller to use for previewing taxes, or {@code null}
+     *            if previews are not supported.
+     * @param requestCredentials
+     *            The credentials to use when logging requests in and out.
+     * @param asyncRequests
+     *            The executor of long-running requests, or {@code null} if
+     *            they should run on the threads of the servlet container.
+     * @param statsController
+     *            The controller to use for serving the statistics of the
+     *            plugin, or {@code null} if they are not served.
      */
-    @Override
-    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        Tenant tenant = getTenant(req);
-        if (tenant == null) {
-            buildNotFoundResponse("No tenant specified by the 'X-Killbill-ApiKey'"
-                    + " and 'X-Killbill-ApiSecret' headers", resp);
-            return;
-        }
-        String pathInfo = req.getPathInfo();
-        Matcher matcher = ACCOUNT_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID accountId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (accountId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
+    public SimpleTaxServlet(VatinController vatinController, TaxCountryController taxCountryController,
+            TaxCodeController taxCodeController, @Nullable ImportController importController,
+            @Nullable PreviewController previewController, RequestCredentials requestCredentials,
+            @Nullable AsyncRequestExecutor asyncRequests, @Nullable StatsController statsController) {
+        super();
+        this.taxCountryController = taxCountryController;
+        this.vatinController = vatinController;
+        this.taxCodeController = taxCodeController;
+        this.importController = importController;
+        this.previewController = previewController;
+        this.requestCredentials = requestCredentials;
+        this.asyncRequests = asyncRequests;
+        this.statsController = statsController;
+        routes = buildRoutes();
+    }
+
+    /**
+     * A handler of the requests that match a route.
+     */
+    private interface RouteHandler {
+        /**
+         * @param identifiers
+         *            The identifiers that matched the
+         *            {@value RouteTable#UUID_SEGMENT} segments of the route.
+         */
+        void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> identifiers)
+                throws IOException;
+    }
+
+    /**
+     * Wraps the handler of a long-running route, so that its requests are run
+     * by the {@linkplain #asyncRequests executor of long-running requests},
+     * when there is one.
+     * <p>
+     * Worker threads are logged in with the credentials of the requests that
+     * need them, because security sessions are bound to threads. They are
+     * always logged out at the end of each request, so that the next request
+     * they serve never runs with the credentials of a previous one.
+     */
+    private RouteHandler longRunning(final RouteHandler handler) {
+        return new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, final Tenant tenant,
+                    final List<UUID> ids) throws IOException {
+                if (asyncRequests == null) {
+                    handler.handle(req, resp, tenant, ids);
+                    return;
+                }
+                asyncRequests.execute(tenant.getId(), req, resp, new AsyncRequestExecutor.Task() {
+                    @Override
+                    public void run(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                        try {
+                            if (!GET.equals(req.getMethod())) {
+                                login(req);
+                            }
+                            handler.handle(req, resp, tenant, ids);
+                        } finally {
+                            requestCredentials.logout();
+                        }
+                    }
+                });
             }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (TAX_COUNTRY_RESOURCE_NAME.equals(resourceName)) {
+        };
+    }
+
+    /**
+     * Builds the table of all the routes that this servlet serves, once for
+     * all, so that requests are dispatched with one single lookup.
+     */
+    private RouteTable<RouteHandler> buildRoutes() {
+        RouteTable<RouteHandler> routes = new RouteTable<RouteHandler>();
+
+        routes.route(GET, routePath(ACCOUNTS_PATH, TAX_COUNTRY_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID accountId = ids.get(0);
+                if (isNotModified(taxCountryController.getAccountTaxCountryTag(accountId, tenant), req, resp)) {
+                    return;
+                }
                 Object value = taxCountryController.getAccountTaxCountry(accountId, tenant);
                 writeJsonOkResponse(value, resp);
-                return;
-            } else if (VATIN_RESOURCE_NAME.equals(resourceName)) {
-                Object value = vatinController.getAccountVatin(accountId, tenant);
-                writeJsonOkResponse(value, resp);
-                return;
-            } else {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
             }
-        }
-
-        if (TAX_COUNTRIES_PATH.equals(pathInfo)) {
-            String account = req.getParameter(ACCOUNT_PARAM_NAME);
-            if (isBlank(account)) {
-                Object value = taxCountryController.listTaxCountries(null, tenant);
+        });
+        routes.route(PUT, routePath(ACCOUNTS_PATH, TAX_COUNTRY_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID accountId = ids.get(0);
+                TaxCountryRsc taxCountry;
+                try {
+                    taxCountry = JSON_MAPPER.readValue(getRequestData(req), TaxCountryRsc.class);
+                } catch (JsonProcessingException exc) {
+                    taxCountry = null;
+                }
+                if (taxCountry == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Invalid tax country resource in request body");
+                    return;
+                }
+                boolean saved = taxCountryController.saveAccountTaxCountry(accountId, taxCountry, tenant);
+                if (!saved) {
+                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save tax country resource");
+                    return;
+                }
+                buildCreatedResponse(accountResourceUri(accountId, TAX_COUNTRY_RESOURCE_NAME), resp);
+            }
+        });
+        routes.route(GET, TAX_COUNTRIES_PATH, longRunning(new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                String account = req.getParameter(ACCOUNT_PARAM_NAME);
+                if (isBlank(account)) {
+                    Paging paging;
+                    try {
+                        paging = pagingOf(req);
+                    } catch (IllegalArgumentException exc) {
+                        resp.sendError(SC_BAD_REQUEST, exc.getMessage());
+                        return;
+                    }
+                    if (paging == null) {
+                        writeJsonStreamOkResponse(taxCountryController.streamTaxCountries(tenant), resp);
+                        return;
+                    }
+                    ListingPage<?> page = taxCountryController.listTaxCountries(paging.offset, paging.limit, tenant);
+                    writeJsonPageOkResponse(page, paging, resp);
+                    return;
+                }
+                UUID accountId = toCanonicalUUIDOrNull(account);
+                if (accountId == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Illegal value [" + account + "] for request parameter ["
+                            + ACCOUNT_PARAM_NAME + "]");
+                    return;
+                }
+                Object value = taxCountryController.listTaxCountries(accountId, tenant);
                 writeJsonOkResponse(value, resp);
-                return;
             }
-            UUID accountId = null;
-            if (LOOSE_UUID.matcher(account).matches()) {
-                accountId = toUUIDOrNull(account);
+        }));
+
+        routes.route(GET, routePath(ACCOUNTS_PATH, VATIN_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID accountId = ids.get(0);
+                if (isNotModified(vatinController.getAccountVatinTag(accountId, tenant), req, resp)) {
+                    return;
+                }
+                Object value = vatinController.getAccountVatin(accountId, tenant);
+                writeJsonOkResponse(value, resp);
             }
-            if (accountId == null) {
-                resp.sendError(SC_BAD_REQUEST, "Illegal value [" + account + "] for request parameter ["
-                        + ACCOUNT_PARAM_NAME + "]");
-                return;
+        });
+        routes.route(PUT, routePath(ACCOUNTS_PATH, VATIN_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID accountId = ids.get(0);
+                VATINRsc vatin;
+                try {
+                    vatin = JSON_MAPPER.readValue(getRequestData(req), VATINRsc.class);
+                } catch (JsonProcessingException exc) {
+                    vatin = null;
+                }
+                if (vatin == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Invalid VAT Identification Number resource in request body");
+                    return;
+                }
+                boolean saved = vatinController.saveAccountVatin(accountId, vatin, tenant);
+                if (!saved) {
+                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save VAT Identification Number resource");
+                    return;
+                }
+                buildCreatedResponse(accountResourceUri(accountId, VATIN_RESOURCE_NAME), resp);
             }
-            Object value = taxCountryController.listTaxCountries(accountId, tenant);
-            writeJsonOkResponse(value, resp);
-            return;
-        }
-        if (VATINS_PATH.equals(pathInfo)) {
-            String account = req.getParameter(ACCOUNT_PARAM_NAME);
-            if (isBlank(account)) {
-                Object value = vatinController.listVatins(null, tenant);
+        });
+        routes.route(GET, VATINS_PATH, longRunning(new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                String account = req.getParameter(ACCOUNT_PARAM_NAME);
+                if (isBlank(account)) {
+                    Paging paging;
+                    try {
+                        paging = pagingOf(req);
+                    } catch (IllegalArgumentException exc) {
+                        resp.sendError(SC_BAD_REQUEST, exc.getMessage());
+                        return;
+                    }
+                    if (paging == null) {
+                        writeJsonStreamOkResponse(vatinController.streamVatins(tenant), resp);
+                        return;
+                    }
+                    ListingPage<?> page = vatinController.listVatins(paging.offset, paging.limit, tenant);
+                    writeJsonPageOkResponse(page, paging, resp);
+                    return;
+                }
+                UUID accountId = toCanonicalUUIDOrNull(account);
+                if (accountId == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Illegal value [" + account + "] for request parameter ["
+                            + ACCOUNT_PARAM_NAME + "]");
+                    return;
+                }
+                Object value = vatinController.listVatins(accountId, tenant);
                 writeJsonOkResponse(value, resp);
-                return;
             }
-            UUID accountId = null;
-            if (LOOSE_UUID.matcher(account).matches()) {
-                accountId = toUUIDOrNull(account);
+        }));
+
+        routes.route(GET, routePath(INVOICES_PATH, TAX_CODES_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                List<TaxCodesGETRsc> value = taxCodeController.listInvoiceTaxCodes(ids.get(0), tenant);
+                if (isNotModified(TaxCodeController.entityTagOf(value), req, resp)) {
+                    return;
+                }
+                writeJsonOkResponse(value, resp);
             }
-            if (accountId == null) {
-                resp.sendError(SC_BAD_REQUEST, "Illegal value [" + account + "] for request parameter ["
-                        + ACCOUNT_PARAM_NAME + "]");
-                return;
+        });
+        routes.route(POST, routePath(INVOICES_PATH, TAX_CODES_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID invoiceId = ids.get(0);
+                TaxCodesPOSTRsc taxCodesRsc;
+                try {
+                    taxCodesRsc = JSON_MAPPER.readValue(getRequestData(req), TaxCodesPOSTRsc.class);
+                } catch (JsonProcessingException exc) {
+                    taxCodesRsc = null;
+                }
+                if (taxCodesRsc == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Invalid Tax Codes resource in request body");
+                    return;
+                }
+                boolean saved = taxCodeController.saveInvoiceTaxCodes(invoiceId, taxCodesRsc, tenant);
+                if (!saved) {
+                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save Tax Codes resource");
+                    return;
+                }
+                buildCreatedResponse(invoiceResourceUri(invoiceId, TAX_CODES_RESOURCE_NAME), resp);
             }
-            Object value = vatinController.listVatins(accountId, tenant);
-            writeJsonOkResponse(value, resp);
-            return;
-        }
+        });
 
-        matcher = INVOICE_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID invoiceId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (invoiceId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
+        routes.route(GET, routePath(INVOICE_ITEMS_PATH, TAX_CODES_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                Object value = taxCodeController.getTaxCodesOfInvoiceItem(ids.get(0), tenant);
+                writeJsonOkResponse(value, resp);
             }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (!TAX_CODES_RESOURCE_NAME.equals(resourceName)) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
+        });
+        routes.route(PUT, routePath(INVOICE_ITEMS_PATH, TAX_CODES_RESOURCE_NAME), new RouteHandler() {
+            @Override
+            public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                    throws IOException {
+                UUID invoiceItemId = ids.get(0);
+                TaxCodesPUTRsc taxCodesRsc;
+                try {
+                    taxCodesRsc = JSON_MAPPER.readValue(getRequestData(req), TaxCodesPUTRsc.class);
+                } catch (JsonProcessingException exc) {
+                    taxCodesRsc = null;
+                }
+                if (taxCodesRsc == null) {
+                    resp.sendError(SC_BAD_REQUEST, "Invalid Tax Codes resource in request body");
+                    return;
+                }
+                boolean saved = taxCodeController.saveTaxCodesOfInvoiceItem(invoiceItemId, taxCodesRsc, tenant);
+                if (!saved) {
+                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save Tax Codes resource");
+                    return;
+                }
+                buildCreatedResponse(invoiceItemResourceUri(invoiceItemId, TAX_CODES_RESOURCE_NAME), resp);
             }
-            Object value = taxCodeController.listInvoiceTaxCodes(invoiceId, tenant);
-            writeJsonOkResponse(value, resp);
-            return;
+        });
+
+        if (importController != null) {
+            routes.route(POST, ACCOUNT_TAX_FIELDS_PATH, longRunning(new RouteHandler() {
+                @Override
+                public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                        throws IOException {
+                    Reader records = new InputStreamReader(req.getInputStream(), UTF_8);
+                    Object report = importController.importAccountTaxFields(records, tenant);
+                    writeJsonOkResponse(report, resp);
+                }
+            }));
         }
 
-        matcher = INVOICE_ITEM_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID invoiceItemId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (invoiceItemId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (!TAX_CODES_RESOURCE_NAME.equals(resourceName)) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            Object value = taxCodeController.getTaxCodesOfInvoiceItem(invoiceItemId, tenant);
-            writeJsonOkResponse(value, resp);
+        if (previewController != null) {
+            routes.route(POST, PREVIEW_PATH, new RouteHandler() {
+                @Override
+                public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                        throws IOException {
+                    PreviewPOSTRsc preview;
+                    try {
+                        preview = JSON_MAPPER.readValue(getRequestData(req), PreviewPOSTRsc.class);
+                    } catch (JsonProcessingException exc) {
+                        preview = null;
+                    }
+                    if (preview == null) {
+                        resp.sendError(SC_BAD_REQUEST, "Invalid preview resource in request body");
+                        return;
+                    }
+                    Object value;
+                    try {
+                        value = previewController.previewTaxes(preview, tenant);
+                    } catch (IllegalArgumentException exc) {
+                        resp.sendError(SC_BAD_REQUEST, exc.getMessage());
+                        return;
+                    }
+                    writeJsonOkResponse(value, resp);
+                }
+            });
         }
 
-        buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
+        if (statsController != null) {
+            routes.route(GET, STATS_PATH, new RouteHandler() {
+                @Override
+                public void handle(HttpServletRequest req, HttpServletResponse resp, Tenant tenant, List<UUID> ids)
+                        throws IOException {
+                    writeJsonOkResponse(statsController.getStats(tenant), resp);
+                }
+            });
+        }
+        return routes;
+    }
+
+    /**
+     * This implementation serves these HTTP end points:
+     *
+     * <pre>
+     * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/taxCountry
+     * GET /taxCountries
+     * GET /taxCountries?account={accountId:\w+-\w+-\w+-\w+-\w+}
+     *
+     * GET /accounts/{accountId:\w+-\w+-\w+-\w+-\w+}/vatin
+     * GET /vatins
+     * GET /vatins?account={accountId:\w+-\w+-\w+-\w+-\w+}
+     *
+     * GET /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+     *
+     * GET /invoiceItems/{invoiceItemId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+     *
+     * GET /stats
+     * </pre>
+     */
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        dispatch(GET, req, resp);
     }
 
     /**
-     * This implementation serves this HTTP end point:
+     * This implementation serves these HTTP end points:
      *
      * <pre>
      * POST /invoices/{invoiceId:\w+-\w+-\w+-\w+-\w+}/taxCodes
+     *
+     * POST /accountTaxFields
+     *
+     * POST /preview
      * </pre>
+     *
+     * The {@code /accountTaxFields} end point expects newline-delimited JSON
+     * {@linkplain ImportController.AccountTaxFieldsRsc records} in the request
+     * body, that are read as they arrive, and responds with a
+     * {@linkplain ImportController.ImportReportRsc report}.
+     * <p>
+     * The {@code /preview} end point computes the taxes of the
+     * {@linkplain PreviewController.PreviewPOSTRsc hypothetical items} in the
+     * request body, and persists nothing.
      */
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         login(req);
-
-        Tenant tenant = getTenant(req);
-        if (tenant == null) {
-            buildNotFoundResponse("No tenant specified by the 'X-Killbill-ApiKey'"
-                    + " and 'X-Killbill-ApiSecret' headers", resp);
-            return;
-        }
-        String pathInfo = req.getPathInfo();
-
-        Matcher matcher = INVOICE_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID invoiceId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (invoiceId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (!TAX_CODES_RESOURCE_NAME.equals(resourceName)) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            TaxCodesPOSTRsc taxCodesRsc;
-            try {
-                taxCodesRsc = JSON_MAPPER.readValue(getRequestData(req), TaxCodesPOSTRsc.class);
-            } catch (JsonProcessingException exc) {
-                taxCodesRsc = null;
-            }
-            if (taxCodesRsc == null) {
-                resp.sendError(SC_BAD_REQUEST, "Invalid Tax Codes resource in request body");
-                return;
-            }
-            boolean saved = taxCodeController.saveInvoiceTaxCodes(invoiceId, taxCodesRsc, tenant);
-            if (!saved) {
-                resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save Tax Codes resource");
-                return;
-            }
-            buildCreatedResponse(invoiceResourceUri(invoiceId, TAX_CODES_RESOURCE_NAME), resp);
-            return;
+        try {
+            dispatch(POST, req, resp);
+        } finally {
+            requestCredentials.logout();
         }
-
-        buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
     }
 
     /**
@@ -351,7 +727,14 @@ public class SimpleTaxServlet extends PluginServlet {
     @Override
     public void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         login(req);
+        try {
+            dispatch(PUT, req, resp);
+        } finally {
+            requestCredentials.logout();
+        }
+    }
 
+    private void dispatch(String method, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         Tenant tenant = getTenant(req);
         if (tenant == null) {
             buildNotFoundResponse("No tenant specified by the 'X-Killbill-ApiKey'"
@@ -359,89 +742,36 @@ public class SimpleTaxServlet extends PluginServlet {
             return;
         }
         String pathInfo = req.getPathInfo();
-
-        Matcher matcher = ACCOUNT_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID accountId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (accountId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (TAX_COUNTRY_RESOURCE_NAME.equals(resourceName)) {
-                TaxCountryRsc taxCountry;
-                try {
-                    taxCountry = JSON_MAPPER.readValue(getRequestData(req), TaxCountryRsc.class);
-                } catch (JsonProcessingException exc) {
-                    taxCountry = null;
-                }
-                if (taxCountry == null) {
-                    resp.sendError(SC_BAD_REQUEST, "Invalid tax country resource in request body");
-                    return;
-                }
-                boolean saved = taxCountryController.saveAccountTaxCountry(accountId, taxCountry, tenant);
-                if (!saved) {
-                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save tax country resource");
-                    return;
-                }
-                buildCreatedResponse(accountResourceUri(accountId, TAX_COUNTRY_RESOURCE_NAME), resp);
-                return;
-            } else if (VATIN_RESOURCE_NAME.equals(resourceName)) {
-                VATINRsc vatin;
-                try {
-                    vatin = JSON_MAPPER.readValue(getRequestData(req), VATINRsc.class);
-                } catch (JsonProcessingException exc) {
-                    vatin = null;
-                }
-                if (vatin == null) {
-                    resp.sendError(SC_BAD_REQUEST, "Invalid VAT Identification Number resource in request body");
-                    return;
-                }
-                boolean saved = vatinController.saveAccountVatin(accountId, vatin, tenant);
-                if (!saved) {
-                    resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save VAT Identification Number resource");
-                    return;
-                }
-                buildCreatedResponse(accountResourceUri(accountId, VATIN_RESOURCE_NAME), resp);
-                return;
-            } else {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-        }
-
-        matcher = INVOICE_ITEM_PATTERN.matcher(pathInfo);
-        if (matcher.matches()) {
-            UUID invoiceItemId = toUUIDOrNull(matcher.group(RESOURCE_IDENTIFIER_GROUP));
-            if (invoiceItemId == null) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            String resourceName = matcher.group(RESOURCE_NAME_GROUP);
-            if (!TAX_CODES_RESOURCE_NAME.equals(resourceName)) {
-                buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
-                return;
-            }
-            TaxCodesPUTRsc taxCodesRsc;
-            try {
-                taxCodesRsc = JSON_MAPPER.readValue(getRequestData(req), TaxCodesPUTRsc.class);
-            } catch (JsonProcessingException exc) {
-                taxCodesRsc = null;
-            }
-            if (taxCodesRsc == null) {
-                resp.sendError(SC_BAD_REQUEST, "Invalid Tax Codes resource in request body");
-                return;
-            }
-            boolean saved = taxCodeController.saveTaxCodesOfInvoiceItem(invoiceItemId, taxCodesRsc, tenant);
-            if (!saved) {
-                resp.sendError(SC_INTERNAL_SERVER_ERROR, "Could not save Tax Codes resource");
-                return;
-            }
-            buildCreatedResponse(invoiceItemResourceUri(invoiceItemId, TAX_CODES_RESOURCE_NAME), resp);
+        RouteTable.Match<RouteHandler> route = routes.match(method, pathInfo);
+        if (route == null) {
+            buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
             return;
         }
+        route.getHandler().handle(req, resp, tenant, route.getIdentifiers());
+    }
 
-        buildNotFoundResponse("Resource " + pathInfo + " not found", resp);
+    /**
+     * Sets the {@code ETag} and {@code Cache-Control} headers of a resource,
+     * and responds with {@code 304 Not Modified} when the client already has
+     * its current representation.
+     *
+     * @param tag
+     *            The current tag of the resource, or {@code null} if it
+     *            cannot be tagged.
+     * @return {@code true} if the response is complete, {@code false} if the
+     *         resource should be written as usual.
+     */
+    private static boolean isNotModified(@Nullable String tag, HttpServletRequest req, HttpServletResponse resp) {
+        if (tag == null) {
+            return false;
+        }
+        resp.setHeader(ETAG_HEADER, tag);
+        resp.setHeader(CACHE_CONTROL_HEADER, REVALIDATE_CACHE_CONTROL);
+        if (!EntityTags.matches(req.getHeader(IF_NONE_MATCH_HEADER), tag)) {
+            return false;
+        }
+        resp.setStatus(SC_NOT_MODIFIED);
+        return true;
     }
 
     private void writeJsonOkResponse(Object value, HttpServletResponse resp) throws IOException {
@@ -450,28 +780,89 @@ public class SimpleTaxServlet extends PluginServlet {
         buildOKResponse(data, resp);
     }
 
-    private void login(final HttpServletRequest req) {
-        String authHeader = req.getHeader("Authorization");
-        if (authHeader == null) {
-            return;
+    /**
+     * Writes a JSON array of the given values, one value at a time, straight
+     * into the response, so that the whole array is never held in memory.
+     * <p>
+     * The status is committed as soon as the first bytes are sent. So when
+     * the values fail to be read half-way, the array is deliberately left
+     * unterminated, in order for clients to detect the truncated response as
+     * invalid JSON, instead of taking it for a complete, shorter list.
+     */
+    private void writeJsonStreamOkResponse(Iterable<?> values, HttpServletResponse resp) throws IOException {
+        resp.setStatus(SC_OK);
+        setJsonContentType(resp);
+        JsonGenerator json = JSON_MAPPER.getFactory().createGenerator(resp.getOutputStream())
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        try {
+            json.writeStartArray();
+            for (Object value : values) {
+                JSON_STREAM_WRITER.writeValue(json, value);
+            }
+            json.writeEndArray();
+        } finally {
+            json.close();
         }
+    }
 
-        final String[] authHeaderChunks = authHeader.split(" ");
-        if (authHeaderChunks.length < 2) {
-            return;
+    private void writeJsonPageOkResponse(ListingPage<?> page, Paging paging, HttpServletResponse resp)
+            throws IOException {
+        resp.setHeader(CURRENT_OFFSET_HEADER, String.valueOf(paging.offset));
+        if (page.getNextOffset() != null) {
+            resp.setHeader(NEXT_OFFSET_HEADER, String.valueOf(page.getNextOffset()));
+        }
+        writeJsonStreamOkResponse(page, resp);
+    }
+
+    /**
+     * @return The paging that is requested, or {@code null} if neither any
+     *         offset nor any limit is specified.
+     * @throws IllegalArgumentException
+     *             when the offset or the limit is invalid.
+     */
+    @Nullable
+    private static Paging pagingOf(HttpServletRequest req) {
+        String offset = req.getParameter(OFFSET_PARAM_NAME);
+        String limit = req.getParameter(LIMIT_PARAM_NAME);
+        if (isBlank(offset) && isBlank(limit)) {
+            return null;
         }
+        return new Paging(longParameter(OFFSET_PARAM_NAME, offset, START_OFFSET, 0L, Long.MAX_VALUE),
+                longParameter(LIMIT_PARAM_NAME, limit, DEFAULT_LIMIT, 1L, MAX_LIMIT));
+    }
 
+    private static long longParameter(String name, @Nullable String value, long defaultValue, long min, long max) {
+        if (isBlank(value)) {
+            return defaultValue;
+        }
+        String illegalValue = "Illegal value [" + value + "] for request parameter [" + name + "]";
+        long parsed;
         try {
-            final String credentials = new String(BaseEncoding.base64().decode(authHeaderChunks[1]), "UTF-8");
-            int p = credentials.indexOf(":");
-            if (p == -1) {
-                return;
-            }
+            parsed = Long.parseLong(value.trim());
+        } catch (NumberFormatException exc) {
+            throw new IllegalArgumentException(illegalValue, exc);
+        }
+        if ((parsed < min) || (parsed > max)) {
+            throw new IllegalArgumentException(illegalValue);
+        }
+        return parsed;
+    }
 
-            final String login = credentials.substring(0, p).trim();
-            final String password = credentials.substring(p + 1).trim();
-            killbillAPI.getSecurityApi().login(login, password);
-        } catch (UnsupportedEncodingException ignored) {
+    /**
+     * The offset and limit of a requested page.
+     */
+    private static final class Paging {
+        private final long offset;
+        private final long limit;
+
+        private Paging(long offset, long limit) {
+            super();
+            this.offset = offset;
+            this.limit = limit;
         }
     }
+
+    private void login(final HttpServletRequest req) {
+        requestCredentials.login(req.getHeader("Authorization"));
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import javax.annotation.Nonnull;
+
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
+import org.killbill.billing.plugin.simpletax.plumbing.SecuritySessions;
+import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * A controller that serves the statistics of the caches and security sessions
+ * of the plugin, so that their efficiency can be monitored.
+ * <p>
+ * Security sessions, cached account tax fields and the index of invoice items
+ * are shared by all tenants. Parsed tax codes are cached in the configuration
+ * of each tenant.
+ *
+ * @author Benjamin Gandon
+ */
+public class StatsController {
+
+    private SimpleTaxConfigurationHandler configHandler;
+    private SecuritySessions securitySessions;
+    private CustomFieldService customFieldService;
+    private InvoiceItemIndex invoiceItemIndex;
+
+    /**
+     * Constructs a new controller for the statistics of the plugin.
+     *
+     * @param configHandler
+     *            The handler of the per-tenant plugin configurations.
+     * @param securitySessions
+     *            The security sessions that the plugin opens on its own
+     *            behalf.
+     * @param customFieldService
+     *            The service that caches the tax fields of accounts.
+     * @param invoiceItemIndex
+     *            The index of the invoices of invoice items.
+     */
+    public StatsController(SimpleTaxConfigurationHandler configHandler, SecuritySessions securitySessions,
+            CustomFieldService customFieldService, InvoiceItemIndex invoiceItemIndex) {
+        super();
+        this.configHandler = configHandler;
+        this.securitySessions = securitySessions;
+        this.customFieldService = customFieldService;
+        this.invoiceItemIndex = invoiceItemIndex;
+    }
+
+    /**
+     * Returns the current statistics of the plugin.
+     *
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The {@linkplain StatsGETRsc statistics resource}. Never
+     *         {@code null}.
+     */
+    @Nonnull
+    public StatsGETRsc getStats(@Nonnull Tenant tenant) {
+        SimpleTaxConfig cfg = configHandler.getConfigurable(tenant.getId());
+        return new StatsGETRsc(securitySessions.getLoginCount(), securitySessions.getReusedSessionCount(),
+                new CacheStatsRsc(customFieldService.getAccountTaxFieldsStats()), new CacheStatsRsc(
+                        invoiceItemIndex.stats()), new CacheStatsRsc(cfg.getParsedTaxCodesStats()));
+    }
+
+    /**
+     * A resource for the statistics of the plugin.
+     * <p>
+     * This resource is meant to be serialized and transmitted to the client,
+     * but not meant to be deserialized from the client.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class StatsGETRsc {
+        /** The number of times the plugin has actually logged in. */
+        public long logins;
+        /** The number of times a security session has been reused. */
+        public long reusedSessions;
+        /** The statistics of the cached tax fields of accounts. */
+        public CacheStatsRsc accountTaxFields;
+        /** The statistics of the index of the invoices of invoice items. */
+        public CacheStatsRsc invoiceItems;
+        /** The statistics of the parsed tax codes of the tenant. */
+        public CacheStatsRsc parsedTaxCodes;
+
+        public StatsGETRsc(long logins, long reusedSessions, CacheStatsRsc accountTaxFields,
+                CacheStatsRsc invoiceItems, CacheStatsRsc parsedTaxCodes) {
+            super();
+            this.logins = logins;
+            this.reusedSessions = reusedSessions;
+            this.accountTaxFields = accountTaxFields;
+            this.invoiceItems = invoiceItems;
+            this.parsedTaxCodes = parsedTaxCodes;
+        }
+    }
+
+    /**
+     * A resource for the statistics of a cache.
+     * <p>
+     * This resource is meant to be serialized and transmitted to the client,
+     * but not meant to be deserialized from the client.
+     *
+     * @author Benjamin Gandon
+     */
+    public static final class CacheStatsRsc {
+        public long hitCount;
+        public long missCount;
+        public double hitRate;
+        public long evictionCount;
+
+        public CacheStatsRsc(CacheStats stats) {
+            super();
+            hitCount = stats.hitCount();
+            missCount = stats.missCount();
+            hitRate = stats.hitRate();
+            evictionCount = stats.evictionCount();
+        }
+    }
+}
@@ -17,19 +17,24 @@
 package org.killbill.billing.plugin.simpletax.config.http;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.TAX_CODES_JOIN_SEPARATOR;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.splitTaxCodes;
 import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
 
+import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodeDao;
 import org.killbill.billing.plugin.simpletax.internal.TaxCodeService;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -38,10 +43,18 @@ import org.killbill.billing.util.customfield.CustomField;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A controller for the tax codes of invoice items.
+ * <p>
+ * When the dedicated table of this plugin is available, it is the
+ * authoritative store of tax codes. It is written first, and the custom fields
+ * of invoice items are only kept as a mirror of it. Otherwise, tax codes are
+ * only stored as custom fields.
+ *
  * @author Benjamin Gandon
  */
 public class TaxCodeController {
@@ -49,6 +62,7 @@ public class TaxCodeController {
 
     private CustomFieldService customFieldService;
     private InvoiceService invoiceService;
+    private TaxCodeDao taxCodeDao;
 
     /**
      * @param customFieldService
@@ -57,19 +71,57 @@ public class TaxCodeController {
      *            The service to use when accessing invoices.
      */
     public TaxCodeController(CustomFieldService customFieldService, InvoiceService invoiceService) {
+        this(customFieldService, invoiceService, null);
+    }
+
+    /**
+     * @param customFieldService
+     *            The service to use when accessing custom fields.
+     * @param invoiceService
+     *            The service to use when accessing invoices.
+     * @param taxCodeDao
+     *            The data access object for the tax codes of invoice items, or
+     *            {@code null} to rely on Kill Bill custom fields only.
+     */
+    public TaxCodeController(CustomFieldService customFieldService, InvoiceService invoiceService,
+            @Nullable TaxCodeDao taxCodeDao) {
         super();
         this.customFieldService = customFieldService;
         this.invoiceService = invoiceService;
+        this.taxCodeDao = taxCodeDao;
     }
 
+    /**
+     * Lists the tax codes of all the items of an invoice.
+     * <p>
+     * The tax codes of all items are fetched at once, from the dedicated table
+     * of this plugin when available, or from the custom fields on the invoice
+     * items of the account otherwise, and then grouped by invoice item.
+     *
+     * @param invoiceId
+     *            The invoice identifier.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The tax codes of the invoice items that have some, in the order
+     *         of the invoice items. Never {@code null}.
+     */
     public List<TaxCodesGETRsc> listInvoiceTaxCodes(@Nonnull UUID invoiceId, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
 
         List<InvoiceItem> items = invoiceService.findAllInvoiceItemsByInvoice(invoiceId, tenantContext);
+        if (items.isEmpty()) {
+            return newArrayList();
+        }
+        Map<UUID, String> taxCodesByItem = fetchTaxCodesOfInvoice(invoiceId, items.get(0).getAccountId(),
+                tenantContext);
 
         List<TaxCodesGETRsc> taxCodes = newArrayList();
         for (InvoiceItem item : items) {
-            TaxCodesGETRsc rsc = fetchTaxCodesOfInvoiceItem(invoiceId, item.getId(), tenantContext);
+            String names = taxCodesByItem.get(item.getId());
+            if (names == null) {
+                continue;
+            }
+            TaxCodesGETRsc rsc = toTaxCodesGETRscOrNull(invoiceId, item.getId(), names);
             if (rsc != null) {
                 taxCodes.add(rsc);
             }
@@ -78,6 +130,63 @@ public class TaxCodeController {
         return taxCodes;
     }
 
+    /**
+     * Computes the entity tag of a listing of invoice tax codes, from the
+     * identifiers of the invoice items and the names of their tax codes.
+     * <p>
+     * Tax codes that are read from the plugin tables have no custom field
+     * identifiers nor dates, thus the listed data is used instead.
+     *
+     * @param taxCodes
+     *            The tax codes of the items of an invoice, as returned by
+     *            {@link #listInvoiceTaxCodes(UUID, Tenant)}.
+     * @return The strong entity tag of the listing. Never {@code null}.
+     */
+    @Nonnull
+    public static String entityTagOf(@Nonnull List<TaxCodesGETRsc> taxCodes) {
+        Hasher hasher = EntityTags.newHasher();
+        for (TaxCodesGETRsc rsc : taxCodes) {
+            EntityTags.putValue(hasher, rsc.invoiceItemId);
+            for (TaxCodeRsc taxCode : rsc.taxCodes) {
+                EntityTags.putValue(hasher, taxCode.name);
+            }
+            EntityTags.putValue(hasher, null);
+        }
+        return EntityTags.toTag(hasher);
+    }
+
+    /**
+     * @param invoiceId
+     *            Not {@code null}.
+     * @param accountId
+     *            The account of the invoice. Not {@code null}.
+     * @param tenantContext
+     *            Not {@code null}
+     * @return The comma-separated lists of tax codes names, by invoice item
+     *         identifier. Never {@code null}.
+     */
+    private Map<UUID, String> fetchTaxCodesOfInvoice(@Nonnull UUID invoiceId, @Nonnull UUID accountId,
+            TenantContext tenantContext) {
+        List<CustomField> fields = null;
+        if (taxCodeDao != null) {
+            try {
+                fields = taxCodeDao.getTaxCodesOfInvoice(tenantContext.getTenantId(), invoiceId);
+            } catch (SQLException exc) {
+                logger.warn("Cannot read tax codes of invoice [" + invoiceId + "] for tenant ["
+                        + tenantContext.getTenantId() + "], falling back to custom fields", exc);
+            }
+        }
+        if (fields == null) {
+            fields = customFieldService.findAllInvoiceItemFieldsByFieldNameAndAccount(TAX_CODES_FIELD_NAME,
+                    accountId, tenantContext);
+        }
+        Map<UUID, String> taxCodesByItem = newHashMap();
+        for (CustomField field : fields) {
+            taxCodesByItem.put(field.getObjectId(), field.getFieldValue());
+        }
+        return taxCodesByItem;
+    }
+
     public boolean saveInvoiceTaxCodes(@Nonnull UUID invoiceId, TaxCodesPOSTRsc taxCodes, Tenant tenant) {
         return saveTaxCodesOfInvoiceItem(taxCodes.invoiceItemId, taxCodes, tenant);
     }
@@ -98,16 +207,17 @@ public class TaxCodeController {
 
         Invoice invoice = invoiceService.findInvoiceByInvoiceItem(invoiceItemId, tenantContext);
         if (invoice == null) {
-            logger.debug("No invoice found for invoice item [" + invoiceItemId + "] in tenant [" + tenant.getApiKey() + "]");
+            logger.debug("No invoice found for invoice item [" + invoiceItemId + "] in tenant ["
+                    + tenant.getApiKey() + "]");
             return null;
         }
 
-        return fetchTaxCodesOfInvoiceItem(invoice.getId(), invoiceItemId, tenantContext);
+        return fetchTaxCodesOfInvoiceItem(invoice, invoiceItemId, tenantContext);
     }
 
     /**
-     * @param invoiceId
-     *            Not {@code null}.
+     * @param invoice
+     *            The invoice of the invoice item. Not {@code null}.
      * @param invoiceItemId
      *            Not {@code null}.
      * @param tenantContext
@@ -115,8 +225,14 @@ public class TaxCodeController {
      * @return A resource. Or {@code null} if no tax codes are set on the
      *         specified invoice item.
      */
-    private TaxCodesGETRsc fetchTaxCodesOfInvoiceItem(@Nonnull UUID invoiceId, @Nonnull UUID invoiceItemId,
+    private TaxCodesGETRsc fetchTaxCodesOfInvoiceItem(@Nonnull Invoice invoice, @Nonnull UUID invoiceItemId,
             TenantContext tenantContext) {
+        UUID invoiceId = invoice.getId();
+        if (taxCodeDao != null) {
+            String names = fetchTaxCodesOfInvoice(invoiceId, invoice.getAccountId(), tenantContext).get(
+                    invoiceItemId);
+            return names == null ? null : toTaxCodesGETRscOrNull(invoiceId, invoiceItemId, names);
+        }
         CustomField field = customFieldService.findFieldByNameAndInvoiceItemAndTenant(
                 // TODO: think about any better place for TAX_CODES_FIELD_NAME
                 TaxCodeService.TAX_CODES_FIELD_NAME, invoiceItemId, tenantContext);
@@ -127,10 +243,49 @@ public class TaxCodeController {
         return toTaxCodesGETRscOrNull(invoiceId, field.getObjectId(), field.getFieldValue());
     }
 
+    /**
+     * Saves the tax codes of an invoice item.
+     * <p>
+     * When the dedicated table of this plugin is available, the tax codes are
+     * stored there first, and nothing else is written if this fails. They are
+     * then mirrored in the custom field of the invoice item, on a best-effort
+     * basis.
+     *
+     * @param invoiceItemId
+     *            The invoice item identifier.
+     * @param taxCodes
+     *            The tax codes to set on the invoice item.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return {@code true} if the tax codes have been saved in the
+     *         authoritative store, {@code false} otherwise.
+     */
     public boolean saveTaxCodesOfInvoiceItem(@Nonnull UUID invoiceItemId, TaxCodesPUTRsc taxCodes, Tenant tenant) {
         TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
-        return customFieldService.saveInvoiceItemField(joinTaxCodes(taxCodes.taxCodes), TAX_CODES_FIELD_NAME,
-                invoiceItemId, tenantContext);
+        String names = joinTaxCodes(taxCodes.taxCodes);
+        if (taxCodeDao == null) {
+            return customFieldService.saveInvoiceItemField(names, TAX_CODES_FIELD_NAME, invoiceItemId,
+                    tenantContext);
+        }
+        Invoice invoice = invoiceService.findInvoiceByInvoiceItem(invoiceItemId, tenantContext);
+        if (invoice == null) {
+            logger.error("Cannot store tax codes [" + names + "] of invoice item [" + invoiceItemId
+                    + "] in tenant [" + tenant.getApiKey() + "]: no invoice found for this item");
+            return false;
+        }
+        try {
+            taxCodeDao.saveTaxCodes(tenant.getId(), invoice.getAccountId(), invoice.getId(), invoiceItemId, names);
+        } catch (SQLException exc) {
+            logger.error("while storing tax codes [" + names + "] of invoice item [" + invoiceItemId
+                    + "] in tenant [" + tenant.getApiKey() + "]", exc);
+            return false;
+        }
+        if (!customFieldService.saveInvoiceItemField(names, TAX_CODES_FIELD_NAME, invoiceItemId, tenantContext)) {
+            logger.warn("Tax codes [" + names + "] of invoice item [" + invoiceItemId + "] in tenant ["
+                    + tenant.getApiKey() + "] have been stored, but not mirrored in custom field '"
+                    + TAX_CODES_FIELD_NAME + "'");
+        }
+        return true;
     }
 
     private static TaxCodesGETRsc toTaxCodesGETRscOrNull(UUID invoiceId, UUID invoiceItemId, String taxCodes) {
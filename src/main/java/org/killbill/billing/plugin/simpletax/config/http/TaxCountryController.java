@@ -16,6 +16,9 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static com.google.common.base.Predicates.notNull;
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
 
@@ -33,6 +36,7 @@ import org.killbill.billing.util.customfield.CustomField;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -97,6 +101,54 @@ public class TaxCountryController {
         return taxCountries;
     }
 
+    /**
+     * Streams JSON resources for the tax countries of all accounts.
+     * <p>
+     * Custom fields are searched lazily, one page at a time, while the returned
+     * iterable is being iterated, so that memory use does not depend on the
+     * number of accounts of the tenant.
+     *
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A lazy iterable over {@linkplain TaxCountryRsc account tax
+     *         countries resources}. Never {@code null}.
+     */
+    @Nonnull
+    public Iterable<TaxCountryRsc> streamTaxCountries(@Nonnull Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+        Iterable<CustomField> fields = customFieldService.iterateAccountFieldsByFieldNameAndTenant(
+                TAX_COUNTRY_CUSTOM_FIELD_NAME, tenantContext);
+        return filter(transform(fields, toTaxCountryRsc), notNull());
+    }
+
+    /**
+     * Lists JSON resources for the tax countries of one page of accounts.
+     *
+     * @param offset
+     *            The offset where the page starts.
+     * @param limit
+     *            The maximum size of the page.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A page of {@linkplain TaxCountryRsc account tax countries
+     *         resources}. Never {@code null}.
+     */
+    @Nonnull
+    public ListingPage<TaxCountryRsc> listTaxCountries(long offset, long limit, @Nonnull Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+        ListingPage<CustomField> fields = customFieldService.findAccountFieldsByFieldNameAndTenant(
+                TAX_COUNTRY_CUSTOM_FIELD_NAME, offset, limit, tenantContext);
+        return new ListingPage<TaxCountryRsc>(filter(transform(fields, toTaxCountryRsc), notNull()),
+                fields.getNextOffset());
+    }
+
+    private final Function<CustomField, TaxCountryRsc> toTaxCountryRsc = new Function<CustomField, TaxCountryRsc>() {
+        @Override
+        public TaxCountryRsc apply(CustomField field) {
+            return toTaxCountryJsonOrNull(field.getObjectId(), field.getFieldValue());
+        }
+    };
+
     /**
      * Returns a JSON resource for any tax country that could be attached to the
      * given account.
@@ -121,6 +173,23 @@ public class TaxCountryController {
         return toTaxCountryJsonOrNull(accountId, field.getFieldValue());
     }
 
+    /**
+     * Returns the entity tag of the tax country resource of a given account,
+     * that changes whenever the underlying custom field does.
+     *
+     * @param accountId
+     *            An account identifier. Must not be {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The strong entity tag of the resource. Never {@code null}.
+     */
+    @Nonnull
+    public String getAccountTaxCountryTag(@Nonnull UUID accountId, Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(accountId, tenant.getId());
+        return EntityTags.ofFields(customFieldService.findFieldByNameAndAccountAndTenant(
+                TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, tenantContext));
+    }
+
     /**
      * Persists a new tax country value for a given account.
      *
@@ -16,6 +16,9 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static com.google.common.base.Predicates.notNull;
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Lists.newArrayList;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
 
@@ -33,6 +36,7 @@ import org.killbill.billing.util.customfield.CustomField;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -98,6 +102,55 @@ public class VatinController {
         return vatins;
     }
 
+    /**
+     * Streams JSON resources for the VAT Identification Numbers (VATINs) of
+     * all accounts.
+     * <p>
+     * Custom fields are searched lazily, one page at a time, while the returned
+     * iterable is being iterated, so that memory use does not depend on the
+     * number of accounts of the tenant.
+     *
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A lazy iterable over {@linkplain VATINRsc account VAT
+     *         Identification Number (VATIN) resources}. Never {@code null}.
+     */
+    @Nonnull
+    public Iterable<VATINRsc> streamVatins(@Nonnull Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+        Iterable<CustomField> fields = customFieldService.iterateAccountFieldsByFieldNameAndTenant(
+                VATIN_CUSTOM_FIELD_NAME, tenantContext);
+        return filter(transform(fields, toVATINRsc), notNull());
+    }
+
+    /**
+     * Lists JSON resources for the VAT Identification Numbers (VATINs) of one
+     * page of accounts.
+     *
+     * @param offset
+     *            The offset where the page starts.
+     * @param limit
+     *            The maximum size of the page.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return A page of {@linkplain VATINRsc account VAT Identification Number
+     *         (VATIN) resources}. Never {@code null}.
+     */
+    @Nonnull
+    public ListingPage<VATINRsc> listVatins(long offset, long limit, @Nonnull Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(null, tenant.getId());
+        ListingPage<CustomField> fields = customFieldService.findAccountFieldsByFieldNameAndTenant(
+                VATIN_CUSTOM_FIELD_NAME, offset, limit, tenantContext);
+        return new ListingPage<VATINRsc>(filter(transform(fields, toVATINRsc), notNull()), fields.getNextOffset());
+    }
+
+    private final Function<CustomField, VATINRsc> toVATINRsc = new Function<CustomField, VATINRsc>() {
+        @Override
+        public VATINRsc apply(CustomField field) {
+            return toVATINJsonOrNull(field.getObjectId(), field.getFieldValue());
+        }
+    };
+
     /**
      * Returns a JSON resource for any VAT Identification Number that could be
      * attached to the given account.
@@ -122,6 +175,23 @@ public class VatinController {
         return toVATINJsonOrNull(accountId, field.getFieldValue());
     }
 
+    /**
+     * Returns the entity tag of the VAT Identification Number resource of a
+     * given account, that changes whenever the underlying custom field does.
+     *
+     * @param accountId
+     *            An account identifier. Must not be {@code null}.
+     * @param tenant
+     *            The tenant on which to operate.
+     * @return The strong entity tag of the resource. Never {@code null}.
+     */
+    @Nonnull
+    public String getAccountVatinTag(@Nonnull UUID accountId, @Nonnull Tenant tenant) {
+        TenantContext tenantContext = new PluginTenantContext(accountId, tenant.getId());
+        return EntityTags.ofFields(customFieldService.findFieldByNameAndAccountAndTenant(VATIN_CUSTOM_FIELD_NAME,
+                accountId, tenantContext));
+    }
+
     /**
      * Persists a new VAT Identification Number value for a given account.
      *
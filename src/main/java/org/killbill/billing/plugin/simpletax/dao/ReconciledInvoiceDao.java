@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A data access object for the invoices that have been reconciled by the tax
+ * ledger, that are stored in the {@value #TABLE_NAME} table of this plugin.
+ * <p>
+ * Each reconciled invoice is stored with its signature, and the fingerprint of
+ * the configuration it was reconciled with, so that reconciled invoices
+ * survive restarts, and are shared between the nodes of a cluster, as long as
+ * the configuration does not change.
+ *
+ * @author Benjamin Gandon
+ */
+public class ReconciledInvoiceDao {
+
+    /** The name of the table where reconciled invoices are stored. */
+    public static final String TABLE_NAME = "simple_tax_reconciled_invoices";
+
+    private static final String PROBE = "select 1 from " + TABLE_NAME + " where 1 = 0";
+    private static final String SELECT_BY_ACCOUNT = "select kb_invoice_id, signature from " + TABLE_NAME
+            + " where kb_tenant_id = ? and kb_account_id = ? and config_fingerprint = ?";
+    private static final String SELECT_BY_INVOICE = "select 1 from " + TABLE_NAME
+            + " where kb_tenant_id = ? and kb_invoice_id = ?";
+    private static final String UPDATE_BY_INVOICE = "update " + TABLE_NAME
+            + " set signature = ?, config_fingerprint = ?, updated_date = ?"
+            + " where kb_tenant_id = ? and kb_invoice_id = ?";
+    private static final String INSERT = "insert into " + TABLE_NAME
+            + " (kb_tenant_id, kb_account_id, kb_invoice_id, signature, config_fingerprint,"
+            + " created_date, updated_date) values (?, ?, ?, ?, ?, ?, ?)";
+
+    private final DataSource dataSource;
+
+    /**
+     * Constructs a new data access object.
+     *
+     * @param dataSource
+     *            The Kill Bill data source, where the {@value #TABLE_NAME}
+     *            table has been created.
+     */
+    public ReconciledInvoiceDao(DataSource dataSource) {
+        super();
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Tells whether the {@value #TABLE_NAME} table has been created in the
+     * database.
+     *
+     * @return {@code true} if the table can be queried, {@code false}
+     *         otherwise.
+     */
+    public boolean isInstalled() {
+        try {
+            Connection conn = dataSource.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(PROBE);
+                try {
+                    stmt.executeQuery().close();
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            return true;
+        } catch (SQLException exc) {
+            return false;
+        }
+    }
+
+    private static String tenantIdOf(@Nullable UUID tenantId) {
+        return tenantId == null ? TaxCodeDao.DEFAULT_TENANT_ID : tenantId.toString();
+    }
+
+    /**
+     * Lists the invoices of an account that have been reconciled with a given
+     * configuration.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account identifier. Must not be {@code null}.
+     * @param configFingerprint
+     *            The {@linkplain
+     *            org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig#getFingerprint
+     *            fingerprint} of the current configuration.
+     * @return A new immutable map of invoice signatures, by invoice
+     *         identifier. Never {@code null}.
+     * @throws SQLException
+     *             when reconciled invoices cannot be read.
+     */
+    @Nonnull
+    public Map<UUID, Integer> getReconciledInvoices(@Nullable UUID tenantId, @Nonnull UUID accountId,
+            int configFingerprint) throws SQLException {
+        ImmutableMap.Builder<UUID, Integer> signatures = ImmutableMap.builder();
+        Connection conn = dataSource.getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(SELECT_BY_ACCOUNT);
+            try {
+                stmt.setString(1, tenantIdOf(tenantId));
+                stmt.setString(2, accountId.toString());
+                stmt.setInt(3, configFingerprint);
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        signatures.put(UUID.fromString(rs.getString(1)), rs.getInt(2));
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+        return signatures.build();
+    }
+
+    /**
+     * Stores reconciled invoices of an account, replacing any previous
+     * signatures, with one batch of updates and one batch of inserts.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account identifier. Must not be {@code null}.
+     * @param configFingerprint
+     *            The {@linkplain
+     *            org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig#getFingerprint
+     *            fingerprint} of the configuration the invoices have been
+     *            reconciled with.
+     * @param signatures
+     *            The invoice signatures, by invoice identifier. Must not be
+     *            {@code null}.
+     * @throws SQLException
+     *             when reconciled invoices cannot be stored.
+     */
+    public void saveReconciledInvoices(@Nullable UUID tenantId, @Nonnull UUID accountId, int configFingerprint,
+            @Nonnull Map<UUID, Integer> signatures) throws SQLException {
+        if (signatures.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<UUID, Integer>> entries = ImmutableList.copyOf(signatures.entrySet());
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Connection conn = dataSource.getConnection();
+        try {
+            List<Map.Entry<UUID, Integer>> missing = newArrayList();
+            PreparedStatement update = conn.prepareStatement(UPDATE_BY_INVOICE);
+            try {
+                for (Map.Entry<UUID, Integer> entry : entries) {
+                    update.setInt(1, entry.getValue());
+                    update.setInt(2, configFingerprint);
+                    update.setTimestamp(3, now);
+                    update.setString(4, tenantIdOf(tenantId));
+                    update.setString(5, entry.getKey().toString());
+                    update.addBatch();
+                }
+                int[] counts = update.executeBatch();
+                for (int i = 0; i < entries.size(); i++) {
+                    if ((counts[i] == 0)
+                            || ((counts[i] < 0) && !exists(conn, tenantId, entries.get(i).getKey()))) {
+                        missing.add(entries.get(i));
+                    }
+                }
+            } finally {
+                update.close();
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            PreparedStatement insert = conn.prepareStatement(INSERT);
+            try {
+                for (Map.Entry<UUID, Integer> entry : missing) {
+                    insert.setString(1, tenantIdOf(tenantId));
+                    insert.setString(2, accountId.toString());
+                    insert.setString(3, entry.getKey().toString());
+                    insert.setInt(4, entry.getValue());
+                    insert.setInt(5, configFingerprint);
+                    insert.setTimestamp(6, now);
+                    insert.setTimestamp(7, now);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Tells whether an invoice has a row, when the driver could not tell how
+     * many rows were updated, i.e. when it returned
+     * {@link Statement#SUCCESS_NO_INFO}.
+     */
+    private static boolean exists(Connection conn, @Nullable UUID tenantId, UUID invoiceId) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(SELECT_BY_INVOICE);
+        try {
+            stmt.setString(1, tenantIdOf(tenantId));
+            stmt.setString(2, invoiceId.toString());
+            ResultSet rs = stmt.executeQuery();
+            try {
+                return rs.next();
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+}
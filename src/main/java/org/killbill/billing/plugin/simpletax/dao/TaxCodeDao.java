@@ -0,0 +1,316 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
+import org.killbill.billing.util.customfield.CustomField;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A data access object for the tax codes of invoice items, that are stored in
+ * the {@value #TABLE_NAME} table of this plugin.
+ * <p>
+ * Tax codes are indexed by tenant, account, invoice and invoice item, so that
+ * reading all tax codes of an account is one single indexed query, instead of
+ * a scan of all the custom fields of all the invoice items of the account.
+ * <p>
+ * Tax codes are returned as
+ * {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+ * {@linkplain CustomField custom fields}, so that they can be used
+ * interchangeably with the ones that are stored by Kill Bill.
+ * <p>
+ * Once the table is {@linkplain #isInstalled() installed}, it is the
+ * authoritative store of tax codes. The custom fields that the plugin keeps
+ * adding are only a mirror, and the ones that are set through the Kill Bill
+ * API are not read.
+ *
+ * @author Benjamin Gandon
+ */
+public class TaxCodeDao {
+
+    /** The name of the table where tax codes are stored. */
+    public static final String TABLE_NAME = "simple_tax_codes";
+
+    /**
+     * The tenant identifier to store, when no tenant is specified, because the
+     * tenant column is not nullable.
+     */
+    static final String DEFAULT_TENANT_ID = new UUID(0L, 0L).toString();
+
+    private static final String PROBE = "select 1 from " + TABLE_NAME + " where 1 = 0";
+    private static final String SELECT_BY_ACCOUNT = "select kb_invoice_item_id, tax_codes"
+            + " from " + TABLE_NAME + " where kb_tenant_id = ? and kb_account_id = ?";
+    private static final String SELECT_BY_INVOICE = "select kb_invoice_item_id, tax_codes"
+            + " from " + TABLE_NAME + " where kb_tenant_id = ? and kb_invoice_id = ?";
+    private static final String SELECT_BY_INVOICE_ITEM = "select 1"
+            + " from " + TABLE_NAME + " where kb_tenant_id = ? and kb_invoice_item_id = ?";
+    private static final String UPDATE_BY_INVOICE_ITEM = "update " + TABLE_NAME
+            + " set tax_codes = ?, updated_date = ? where kb_tenant_id = ? and kb_invoice_item_id = ?";
+    private static final String INSERT = "insert into " + TABLE_NAME
+            + " (kb_tenant_id, kb_account_id, kb_invoice_id, kb_invoice_item_id, tax_codes,"
+            + " created_date, updated_date) values (?, ?, ?, ?, ?, ?, ?)";
+
+    private final DataSource dataSource;
+
+    /**
+     * Constructs a new data access object.
+     *
+     * @param dataSource
+     *            The Kill Bill data source, where the {@value #TABLE_NAME}
+     *            table has been created.
+     */
+    public TaxCodeDao(DataSource dataSource) {
+        super();
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Tells whether the {@value #TABLE_NAME} table has been created in the
+     * database.
+     *
+     * @return {@code true} if the table can be queried, {@code false}
+     *         otherwise.
+     */
+    public boolean isInstalled() {
+        try {
+            Connection conn = dataSource.getConnection();
+            try {
+                PreparedStatement stmt = conn.prepareStatement(PROBE);
+                try {
+                    stmt.executeQuery().close();
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            return true;
+        } catch (SQLException exc) {
+            return false;
+        }
+    }
+
+    private static String tenantIdOf(@Nullable UUID tenantId) {
+        return tenantId == null ? DEFAULT_TENANT_ID : tenantId.toString();
+    }
+
+    /**
+     * Lists the tax codes of all the invoice items of an account.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account identifier. Must not be {@code null}.
+     * @return A new immutable list of
+     *         {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+     *         custom fields on invoice items. Never {@code null}.
+     * @throws SQLException
+     *             when the tax codes cannot be read.
+     */
+    @Nonnull
+    public List<CustomField> getTaxCodesOfAccount(@Nullable UUID tenantId, @Nonnull UUID accountId)
+            throws SQLException {
+        return selectTaxCodes(SELECT_BY_ACCOUNT, tenantId, accountId);
+    }
+
+    /**
+     * Lists the tax codes of all the items of an invoice.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null} for the default
+     *            tenant.
+     * @param invoiceId
+     *            The invoice identifier. Must not be {@code null}.
+     * @return A new immutable list of
+     *         {@value org.killbill.billing.plugin.simpletax.internal.TaxCodeService#TAX_CODES_FIELD_NAME}
+     *         custom fields on invoice items. Never {@code null}.
+     * @throws SQLException
+     *             when the tax codes cannot be read.
+     */
+    @Nonnull
+    public List<CustomField> getTaxCodesOfInvoice(@Nullable UUID tenantId, @Nonnull UUID invoiceId)
+            throws SQLException {
+        return selectTaxCodes(SELECT_BY_INVOICE, tenantId, invoiceId);
+    }
+
+    private List<CustomField> selectTaxCodes(String query, @Nullable UUID tenantId, UUID ownerId)
+            throws SQLException {
+        ImmutableList.Builder<CustomField> taxFields = ImmutableList.builder();
+        Connection conn = dataSource.getConnection();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(query);
+            try {
+                stmt.setString(1, tenantIdOf(tenantId));
+                stmt.setString(2, ownerId.toString());
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        taxFields.add(ImmutableCustomField.builder()//
+                                .withObjectType(INVOICE_ITEM)//
+                                .withObjectId(UUID.fromString(rs.getString(1)))//
+                                .withFieldName(TAX_CODES_FIELD_NAME)//
+                                .withFieldValue(rs.getString(2))//
+                                .build());
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+        return taxFields.build();
+    }
+
+    /**
+     * Stores the tax codes of an invoice item, replacing any previous value.
+     *
+     * @param tenantId
+     *            The tenant of the invoice item, or {@code null} for the
+     *            default tenant.
+     * @param accountId
+     *            The account of the invoice item. Must not be {@code null}.
+     * @param invoiceId
+     *            The invoice of the invoice item. Must not be {@code null}.
+     * @param invoiceItemId
+     *            The invoice item identifier. Must not be {@code null}.
+     * @param taxCodes
+     *            The comma-separated list of tax codes names. Must not be
+     *            {@code null}.
+     * @throws SQLException
+     *             when the tax codes cannot be stored.
+     */
+    public void saveTaxCodes(@Nullable UUID tenantId, @Nonnull UUID accountId, @Nonnull UUID invoiceId,
+            @Nonnull UUID invoiceItemId, @Nonnull String taxCodes) throws SQLException {
+        saveTaxCodes(tenantId, accountId, invoiceId, ImmutableMap.of(invoiceItemId, taxCodes));
+    }
+
+    /**
+     * Stores the tax codes of several items of an invoice, replacing any
+     * previous values, with one batch of updates and one batch of inserts.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account of the invoice. Must not be {@code null}.
+     * @param invoiceId
+     *            The invoice identifier. Must not be {@code null}.
+     * @param taxCodesByItem
+     *            The comma-separated lists of tax codes names, by invoice item
+     *            identifier. Must not be {@code null}.
+     * @throws SQLException
+     *             when the tax codes cannot be stored.
+     */
+    public void saveTaxCodes(@Nullable UUID tenantId, @Nonnull UUID accountId, @Nonnull UUID invoiceId,
+            @Nonnull Map<UUID, String> taxCodesByItem) throws SQLException {
+        if (taxCodesByItem.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<UUID, String>> entries = ImmutableList.copyOf(taxCodesByItem.entrySet());
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Connection conn = dataSource.getConnection();
+        try {
+            List<Map.Entry<UUID, String>> missing = newArrayList();
+            PreparedStatement update = conn.prepareStatement(UPDATE_BY_INVOICE_ITEM);
+            try {
+                for (Map.Entry<UUID, String> entry : entries) {
+                    update.setString(1, entry.getValue());
+                    update.setTimestamp(2, now);
+                    update.setString(3, tenantIdOf(tenantId));
+                    update.setString(4, entry.getKey().toString());
+                    update.addBatch();
+                }
+                int[] counts = update.executeBatch();
+                for (int i = 0; i < entries.size(); i++) {
+                    if ((counts[i] == 0)
+                            || ((counts[i] < 0) && !exists(conn, tenantId, entries.get(i).getKey()))) {
+                        missing.add(entries.get(i));
+                    }
+                }
+            } finally {
+                update.close();
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            PreparedStatement insert = conn.prepareStatement(INSERT);
+            try {
+                for (Map.Entry<UUID, String> entry : missing) {
+                    insert.setString(1, tenantIdOf(tenantId));
+                    insert.setString(2, accountId.toString());
+                    insert.setString(3, invoiceId.toString());
+                    insert.setString(4, entry.getKey().toString());
+                    insert.setString(5, entry.getValue());
+                    insert.setTimestamp(6, now);
+                    insert.setTimestamp(7, now);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Tells whether an invoice item has a row, when the driver could not tell
+     * how many rows were updated, i.e. when it returned
+     * {@link Statement#SUCCESS_NO_INFO}.
+     */
+    private static boolean exists(Connection conn, @Nullable UUID tenantId, UUID invoiceItemId)
+            throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(SELECT_BY_INVOICE_ITEM);
+        try {
+            stmt.setString(1, tenantIdOf(tenantId));
+            stmt.setString(2, invoiceItemId.toString());
+            ResultSet rs = stmt.executeQuery();
+            try {
+                return rs.next();
+            } finally {
+                rs.close();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+}
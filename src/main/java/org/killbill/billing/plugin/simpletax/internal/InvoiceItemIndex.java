@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.util.TenantScopedKey;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded in-memory index of the invoices that invoice items belong to, for
+ * all tenants.
+ * <p>
+ * Invoice items never move from one invoice to another, so that entries never
+ * need to be invalidated. The index is fed with all the invoices that the
+ * plugin comes across, typically when computing taxes, or when an invoice is
+ * created. The least recently used entries are evicted first.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class InvoiceItemIndex {
+
+    /** The default maximum number of indexed invoice items. */
+    public static final long DEFAULT_MAX_ITEMS = 100000L;
+
+    private final Cache<TenantScopedKey, UUID> invoiceIdsByItem;
+
+    /**
+     * Constructs a new index with a default bound.
+     */
+    public InvoiceItemIndex() {
+        this(DEFAULT_MAX_ITEMS);
+    }
+
+    /**
+     * Constructs a new index.
+     *
+     * @param maxItems
+     *            The maximum number of invoice items to keep in memory.
+     */
+    public InvoiceItemIndex(long maxItems) {
+        super();
+        invoiceIdsByItem = CacheBuilder.newBuilder().maximumSize(maxItems).recordStats().build();
+    }
+
+    /**
+     * Indexes all the items of a given invoice.
+     *
+     * @param tenantId
+     *            The tenant of the invoice, or {@code null}.
+     * @param invoice
+     *            The invoice to index. Must not be {@code null}.
+     */
+    public void index(@Nullable UUID tenantId, @Nonnull Invoice invoice) {
+        UUID invoiceId = invoice.getId();
+        for (InvoiceItem item : invoice.getInvoiceItems()) {
+            invoiceIdsByItem.put(new TenantScopedKey(tenantId, item.getId()), invoiceId);
+        }
+    }
+
+    /**
+     * Indexes all the items of some invoices.
+     *
+     * @param tenantId
+     *            The tenant of the invoices, or {@code null}.
+     * @param invoices
+     *            The invoices to index. Must not be {@code null}.
+     */
+    public void index(@Nullable UUID tenantId, @Nonnull Iterable<Invoice> invoices) {
+        for (Invoice invoice : invoices) {
+            index(tenantId, invoice);
+        }
+    }
+
+    /**
+     * @param tenantId
+     *            The tenant of the invoice item, or {@code null}.
+     * @param invoiceItemId
+     *            The identifier of an invoice item. Must not be {@code null}.
+     * @return The identifier of the invoice that contains this item, or
+     *         {@code null} if the item is not indexed.
+     */
+    @Nullable
+    public UUID invoiceIdOf(@Nullable UUID tenantId, @Nonnull UUID invoiceItemId) {
+        return invoiceIdsByItem.getIfPresent(new TenantScopedKey(tenantId, invoiceItemId));
+    }
+
+    /**
+     * @return The statistics of lookups in this index.
+     */
+    @Nonnull
+    public CacheStats stats() {
+        return invoiceIdsByItem.stats();
+    }
+}
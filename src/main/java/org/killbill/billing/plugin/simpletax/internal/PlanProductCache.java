@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+
+import com.google.common.base.Objects;
+
+/**
+ * A per-tenant cache of the products that plans belong to, as defined in the
+ * catalog of each tenant.
+ * <p>
+ * Once a plan has been met, finding its product does not involve the catalog
+ * anymore, so that the catalog stays off the path of steady-state invoicing.
+ * The cache of a tenant is to be {@linkplain #invalidate invalidated} whenever
+ * a new catalog is uploaded for this tenant.
+ * <p>
+ * As a safety net, cached products are also keyed by the
+ * {@linkplain StaticCatalog#getEffectiveDate() effective date} of the catalog
+ * they have been found in. Whenever the catalog has to be fetched for an
+ * unknown plan, and turns out to be a different version, the whole cache of the
+ * tenant is discarded.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class PlanProductCache {
+
+    private static final UUID DEFAULT_TENANT = new UUID(0L, 0L);
+
+    private final ConcurrentMap<UUID, TenantProducts> tenants = new ConcurrentHashMap<UUID, TenantProducts>();
+
+    private static UUID keyOf(@Nullable UUID tenantId) {
+        return tenantId == null ? DEFAULT_TENANT : tenantId;
+    }
+
+    /**
+     * Returns the cached products of a given tenant, creating an empty cache if
+     * none exists yet.
+     *
+     * @param tenantId
+     *            The tenant, or {@code null} for the default tenant.
+     * @return The cached products of the tenant. Never {@code null}.
+     */
+    @Nonnull
+    public TenantProducts forTenant(@Nullable UUID tenantId) {
+        UUID key = keyOf(tenantId);
+        TenantProducts products = tenants.get(key);
+        if (products == null) {
+            TenantProducts fresh = new TenantProducts();
+            products = tenants.putIfAbsent(key, fresh);
+            if (products == null) {
+                products = fresh;
+            }
+        }
+        return products;
+    }
+
+    /**
+     * Discards the cached products of a given tenant, typically because a new
+     * catalog has been uploaded.
+     *
+     * @param tenantId
+     *            The tenant, or {@code null} for the default tenant.
+     */
+    public void invalidate(@Nullable UUID tenantId) {
+        tenants.remove(keyOf(tenantId));
+    }
+
+    /**
+     * The cached products of the plans of a single tenant.
+     * <p>
+     * This class is thread-safe.
+     */
+    public static final class TenantProducts {
+
+        /** Marks plans that are unknown to the catalog, or have no product. */
+        private static final String NO_PRODUCT = "";
+
+        private volatile CatalogVersion version = new CatalogVersion(null);
+
+        /**
+         * Finds the name of the product that a plan belongs to, looking into
+         * the catalog only if the plan has never been met before.
+         *
+         * @param planName
+         *            The name of a plan. Must not be {@code null}.
+         * @param catalog
+         *            The catalog of the tenant, to be fetched only when the
+         *            plan is not cached yet. Must not be {@code null}.
+         * @return The name of the product of the plan, or {@code null} if the
+         *         plan is unknown, or if the catalog cannot be fetched.
+         */
+        @Nullable
+        public String productNameOf(@Nonnull String planName,
+                @Nonnull CheckedSupplier<StaticCatalog, CatalogApiException> catalog) {
+            String productName = version.productNames.get(planName);
+            if (productName == null) {
+                productName = lookup(planName, catalog);
+            }
+            return NO_PRODUCT.equals(productName) ? null : productName;
+        }
+
+        private String lookup(String planName, CheckedSupplier<StaticCatalog, CatalogApiException> catalog) {
+            StaticCatalog staticCatalog;
+            try {
+                staticCatalog = catalog.get();
+            } catch (CatalogApiException exc) {
+                // Not cached, so that the catalog is fetched again next time
+                return null;
+            }
+            CatalogVersion current = version;
+            Date effectiveDate = staticCatalog.getEffectiveDate();
+            if (!Objects.equal(current.effectiveDate, effectiveDate)) {
+                current = new CatalogVersion(effectiveDate);
+                version = current;
+            }
+            String productName = NO_PRODUCT;
+            try {
+                Plan plan = staticCatalog.findPlan(planName);
+                Product product = plan == null ? null : plan.getProduct();
+                if ((product != null) && (product.getName() != null)) {
+                    productName = product.getName();
+                }
+            } catch (CatalogApiException notFound) {
+                // Remember that this plan is unknown to this catalog version
+            }
+            current.productNames.put(planName, productName);
+            return productName;
+        }
+
+        /**
+         * @return The number of plans cached for the current catalog version.
+         */
+        public int size() {
+            return version.productNames.size();
+        }
+    }
+
+    private static final class CatalogVersion {
+        private final Date effectiveDate;
+        private final ConcurrentMap<String, String> productNames = new ConcurrentHashMap<String, String>();
+
+        private CatalogVersion(@Nullable Date effectiveDate) {
+            super();
+            this.effectiveDate = effectiveDate;
+        }
+    }
+}
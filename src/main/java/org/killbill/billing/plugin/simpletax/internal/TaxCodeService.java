@@ -16,26 +16,23 @@
  */
 package org.killbill.billing.plugin.simpletax.internal;
 
-import static org.apache.commons.collections4.map.LazyMap.lazyMap;
-
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-import org.apache.commons.collections4.Transformer;
 import org.killbill.billing.catalog.api.CatalogApiException;
-import org.killbill.billing.catalog.api.Plan;
-import org.killbill.billing.catalog.api.Product;
 import org.killbill.billing.catalog.api.StaticCatalog;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache.TenantProducts;
 import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
 import org.killbill.billing.util.customfield.CustomField;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -53,9 +50,11 @@ public class TaxCodeService {
     private CheckedSupplier<StaticCatalog, CatalogApiException> catalog;
     private SimpleTaxConfig cfg;
     private SetMultimap<UUID, CustomField> taxFieldsOfInvoices;
+    private TenantProducts products;
 
     /**
-     * Creates a service that helps listing tax codes.
+     * Creates a service that helps listing tax codes, and that looks up the
+     * products of plans only once per instance.
      *
      * @param catalog
      *            The Kill Bill catalog to use.
@@ -67,10 +66,30 @@ public class TaxCodeService {
      */
     public TaxCodeService(CheckedSupplier<StaticCatalog, CatalogApiException> catalog, SimpleTaxConfig cfg,
             SetMultimap<UUID, CustomField> taxFieldsOfInvoices) {
+        this(catalog, cfg, taxFieldsOfInvoices, new TenantProducts());
+    }
+
+    /**
+     * Creates a service that helps listing tax codes.
+     *
+     * @param catalog
+     *            The Kill Bill catalog to use, when the product of a plan is not
+     *            cached yet.
+     * @param cfg
+     *            The plugin configuration.
+     * @param taxFieldsOfInvoices
+     *            The tax fields of all account invoices, grouped by their
+     *            related taxable items.
+     * @param products
+     *            The cached products of the plans of the tenant.
+     */
+    public TaxCodeService(CheckedSupplier<StaticCatalog, CatalogApiException> catalog, SimpleTaxConfig cfg,
+            SetMultimap<UUID, CustomField> taxFieldsOfInvoices, TenantProducts products) {
         super();
         this.catalog = catalog;
         this.cfg = cfg;
         this.taxFieldsOfInvoices = taxFieldsOfInvoices;
+        this.products = products;
     }
 
     /**
@@ -92,33 +111,18 @@ public class TaxCodeService {
     public SetMultimap<UUID, TaxCode> resolveTaxCodesFromConfig(Invoice invoice) {
         ImmutableSetMultimap.Builder<UUID, TaxCode> taxCodesOfInvoiceItems = ImmutableSetMultimap.builder();
 
-        // This lazy map helps us in building a cache for the values we've
-        // already met, and allows us an easy-to-understand syntax below.
-        Map<String, Product> productOfPlanName = lazyMap(new HashMap<String, Product>(),
-                new Transformer<String, Product>() {
-                    @Override
-                    public Product transform(String planName) {
-                        try {
-                            Plan plan = catalog.get().findPlan(planName);
-                            return plan.getProduct();
-                        } catch (CatalogApiException notFound) {
-                            return null;
-                        }
-                    }
-                });
-
         for (InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
             String planName = invoiceItem.getPlanName();
             if (planName == null) {
                 continue;
             }
 
-            Product product = productOfPlanName.get(planName);
-            if (product == null) {
+            String productName = products.productNameOf(planName, catalog);
+            if (productName == null) {
                 continue;
             }
 
-            Set<TaxCode> taxCodes = cfg.getConfiguredTaxCodes(product.getName());
+            Set<TaxCode> taxCodes = cfg.getConfiguredTaxCodes(productName);
             if (taxCodes.isEmpty()) {
                 continue;
             }
@@ -127,6 +131,52 @@ public class TaxCodeService {
         return taxCodesOfInvoiceItems.build();
     }
 
+    /**
+     * Enumerate configured tax codes for the items of a given invoice, as
+     * pre-compiled {@linkplain TaxCodeTimeline timelines} from the
+     * {@linkplain SimpleTaxConfig#getTaxPlan() tax plan}, retaining only the
+     * tax codes that are applicable in the tax country of the account.
+     * <p>
+     * Undefined tax codes that are configured for the products of the items
+     * are {@linkplain SimpleTaxConfig#reportUndefinedTaxCodes reported}.
+     *
+     * @param invoice
+     *            the invoice the items of which need to be taxed.
+     * @param accountTaxCountry
+     *            The tax country of the account, or {@code null} if unknown.
+     * @return An immutable map of non-empty timelines of applicable tax codes,
+     *         keyed by the identifiers of their related invoice items. Never
+     *         {@code null}, and guaranteed not having any {@code null} values.
+     * @throws NullPointerException
+     *             when {@code invoice} is {@code null}.
+     */
+    @Nonnull
+    public Map<UUID, TaxCodeTimeline> resolveTaxCodeTimelinesFromConfig(Invoice invoice,
+            @Nullable Country accountTaxCountry) {
+        ImmutableMap.Builder<UUID, TaxCodeTimeline> timelinesOfInvoiceItems = ImmutableMap.builder();
+        TaxPlan taxPlan = cfg.getTaxPlan();
+
+        for (InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
+            String planName = invoiceItem.getPlanName();
+            if (planName == null) {
+                continue;
+            }
+
+            String productName = products.productNameOf(planName, catalog);
+            if (productName == null) {
+                continue;
+            }
+
+            cfg.reportUndefinedTaxCodes(productName);
+            TaxCodeTimeline timeline = taxPlan.timelineFor(productName, accountTaxCountry);
+            if ((timeline == null) || timeline.isEmpty()) {
+                continue;
+            }
+            timelinesOfInvoiceItems.put(invoiceItem.getId(), timeline);
+        }
+        return timelinesOfInvoiceItems.build();
+    }
+
     /**
      * Find tax codes that apply to the items of a given invoice, looking for
      * custom fields named {@value #TAX_CODES_FIELD_NAME} that can be attached
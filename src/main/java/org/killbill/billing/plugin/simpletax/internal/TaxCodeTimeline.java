@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable list of candidate tax codes, that is pre-compiled into a
+ * timeline so that the tax code applicable on a given day can be found with a
+ * binary search.
+ * <p>
+ * The timeline is made of contiguous periods, delimited by the
+ * {@linkplain TaxCode#getStartingOn() starting} and
+ * {@linkplain TaxCode#getStoppingOn() stopping} days of all tax codes. For each
+ * period, the applicable tax code is the first one, in iteration order, whose
+ * validity range covers the period. This is the same tax code as a linear
+ * search over the candidates would find.
+ * <p>
+ * Iterating over a timeline returns the candidate tax codes in their original
+ * order, so that it can be passed to any
+ * {@link org.killbill.billing.plugin.simpletax.resolving.TaxResolver}.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TaxCodeTimeline implements Iterable<TaxCode> {
+
+    private final List<TaxCode> taxCodes;
+    private final int[] boundaries;
+    private final TaxCode[] applicableCodes;
+
+    /**
+     * Compiles a timeline out of some candidate tax codes.
+     *
+     * @param taxCodes
+     *            The candidate tax codes, in order of preference. Must not be
+     *            {@code null}, and must not contain any {@code null} element.
+     * @throws NullPointerException
+     *             when {@code taxCodes} is {@code null} or contains
+     *             {@code null} elements.
+     */
+    public TaxCodeTimeline(@Nonnull Iterable<TaxCode> taxCodes) {
+        super();
+        this.taxCodes = ImmutableList.copyOf(taxCodes);
+
+        SortedSet<Integer> days = new TreeSet<Integer>();
+        for (TaxCode taxCode : this.taxCodes) {
+            if (taxCode.getStartingOn() != null) {
+                days.add(epochDay(taxCode.getStartingOn()));
+            }
+            if (taxCode.getStoppingOn() != null) {
+                days.add(epochDay(taxCode.getStoppingOn()));
+            }
+        }
+        boundaries = new int[days.size()];
+        int idx = 0;
+        for (Integer day : days) {
+            boundaries[idx++] = day;
+        }
+
+        // Period 0 is before the first boundary, period i starts on
+        // boundaries[i - 1] (included) and ends on boundaries[i] (excluded)
+        applicableCodes = new TaxCode[boundaries.length + 1];
+        for (int period = 0; period < applicableCodes.length; period++) {
+            int firstDay = period == 0 ? (boundaries.length == 0 ? 0 : boundaries[0] - 1) : boundaries[period - 1];
+            applicableCodes[period] = firstApplicableCode(firstDay);
+        }
+    }
+
+    private TaxCode firstApplicableCode(int day) {
+        for (TaxCode taxCode : taxCodes) {
+            LocalDate startDay = taxCode.getStartingOn();
+            if ((startDay != null) && (day < epochDay(startDay))) {
+                continue;
+            }
+            LocalDate stopDay = taxCode.getStoppingOn();
+            if ((stopDay != null) && (day >= epochDay(stopDay))) {
+                continue;
+            }
+            return taxCode;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the tax code that applies on a given day.
+     *
+     * @param date
+     *            The taxation day. Must not be {@code null}.
+     * @return The first tax code that is applicable on that day, or
+     *         {@code null} if none applies.
+     * @throws NullPointerException
+     *             when {@code date} is {@code null}.
+     */
+    @Nullable
+    public TaxCode applicableCodeOn(@Nonnull LocalDate date) {
+        int idx = Arrays.binarySearch(boundaries, epochDay(checkNotNull(date, "date")));
+        // When found, the day is the first one of the period that follows
+        return applicableCodes[idx >= 0 ? idx + 1 : -(idx + 1)];
+    }
+
+    /**
+     * @return Whether this timeline has no candidate tax codes at all.
+     */
+    public boolean isEmpty() {
+        return taxCodes.isEmpty();
+    }
+
+    @Override
+    public Iterator<TaxCode> iterator() {
+        return taxCodes.iterator();
+    }
+
+    @Override
+    public String toString() {
+        return taxCodes.toString();
+    }
+
+    /**
+     * Converts a date into a number of days since 1970-01-01, without
+     * allocating any object.
+     *
+     * @param date
+     *            A date. Must not be {@code null}.
+     * @return The number of days since 1970-01-01, which is negative for
+     *         earlier dates.
+     */
+    static int epochDay(LocalDate date) {
+        // Days from civil algorithm, in the proleptic Gregorian calendar
+        int year = date.getYear();
+        int month = date.getMonthOfYear();
+        int day = date.getDayOfMonth();
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.killbill.billing.plugin.simpletax.util.ShortToStringStyle.SHORT_STYLE;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.util.TenantScopedKey;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A ledger of the taxes that this plugin has computed on the taxable items of
+ * accounts.
+ * <p>
+ * For each taxable item, the ledger records the taxed base (that is the
+ * adjusted amount of the item), the tax codes of the item, and the resulting
+ * tax amount. When nothing has changed on a taxable item since it was
+ * recorded, there is no need to resolve its tax codes nor to compute its taxes
+ * again.
+ * <p>
+ * Ledger entries are never trusted blindly. They are always compared to the
+ * current state of invoices, so that a lost or stale entry only results in
+ * taxes being computed again, and never in incorrect taxes.
+ * <p>
+ * The ledger of an account is discarded whenever the configuration of its
+ * tenant changes, because tax rates or amount precision might have changed.
+ * The number of accounts kept in memory is bounded, the least recently used
+ * ones being evicted first.
+ * <p>
+ * The ledger also remembers which invoices have been fully reconciled, so that
+ * clean invoices can be skipped altogether. An invoice stops being clean as
+ * soon as it is {@linkplain #markDirty marked dirty}, or when its
+ * {@linkplain AccountLedger#isReconciled signature} changes.
+ * <p>
+ * Ledgers are kept in memory. Item entries are rebuilt by the first invoice
+ * run of each account after a restart. Reconciled invoices can also be
+ * {@linkplain AccountLedger#restoreReconciledInvoices restored} from a
+ * persistent store, and the ones that are newly reconciled are
+ * {@linkplain AccountLedger#drainUnsavedReconciliations collected} for being
+ * saved there.
+ *
+ * @author Benjamin Gandon
+ */
+public class TaxLedger {
+
+    /** The default maximum number of account ledgers to keep in memory. */
+    public static final long DEFAULT_MAX_ACCOUNTS = 10000L;
+
+    private final ConcurrentMap<TenantScopedKey, AccountLedger> ledgers;
+
+    /**
+     * Constructs a new ledger with a default bound on the number of accounts.
+     */
+    public TaxLedger() {
+        this(DEFAULT_MAX_ACCOUNTS);
+    }
+
+    /**
+     * Constructs a new ledger.
+     *
+     * @param maxAccounts
+     *            The maximum number of account ledgers to keep in memory.
+     */
+    public TaxLedger(long maxAccounts) {
+        super();
+        ledgers = CacheBuilder.newBuilder().maximumSize(maxAccounts)//
+                .<TenantScopedKey, AccountLedger> build().asMap();
+    }
+
+    /**
+     * Returns the ledger of a given account, creating an empty one if none
+     * exists yet, or if the existing one was recorded with a different
+     * configuration.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account identifier. Must not be {@code null}.
+     * @param cfg
+     *            The configuration that currently applies to the tenant. Must
+     *            not be {@code null}.
+     * @return The ledger of the account. Never {@code null}.
+     */
+    @Nonnull
+    public AccountLedger forAccount(@Nullable UUID tenantId, @Nonnull UUID accountId, @Nonnull SimpleTaxConfig cfg) {
+        TenantScopedKey key = new TenantScopedKey(tenantId, accountId);
+        while (true) {
+            AccountLedger ledger = ledgers.get(key);
+            if ((ledger != null) && (ledger.cfg == cfg)) {
+                return ledger;
+            }
+            AccountLedger fresh = new AccountLedger(cfg);
+            boolean stored = ledger == null ? ledgers.putIfAbsent(key, fresh) == null : ledgers.replace(key, ledger,
+                    fresh);
+            if (stored) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Creates a ledger that is not kept in any tax ledger, so that whatever is
+     * recorded in it is discarded, typically when invoices are generated in
+     * dry-run mode.
+     *
+     * @param cfg
+     *            The configuration that currently applies to the tenant. Must
+     *            not be {@code null}.
+     * @return A new empty ledger. Never {@code null}.
+     */
+    @Nonnull
+    public static AccountLedger detachedLedger(@Nonnull SimpleTaxConfig cfg) {
+        return new AccountLedger(checkNotNull(cfg, "cfg"));
+    }
+
+    /**
+     * Marks an invoice as dirty, so that it is reconciled again on the next
+     * invoice run for its account.
+     *
+     * @param tenantId
+     *            The tenant of the account, or {@code null} for the default
+     *            tenant.
+     * @param accountId
+     *            The account identifier. Must not be {@code null}.
+     * @param invoiceId
+     *            The identifier of the invoice that has changed.
+     */
+    public void markDirty(@Nullable UUID tenantId, @Nonnull UUID accountId, @Nullable UUID invoiceId) {
+        AccountLedger ledger = ledgers.get(new TenantScopedKey(tenantId, accountId));
+        if (ledger != null) {
+            ledger.markDirty(invoiceId);
+        }
+    }
+
+    /**
+     * The ledger of a single account, holding one entry per taxable item.
+     * <p>
+     * This class is thread-safe.
+     */
+    public static final class AccountLedger {
+
+        private final SimpleTaxConfig cfg;
+        private final ConcurrentMap<UUID, Entry> entries = new ConcurrentHashMap<UUID, Entry>();
+        private final ConcurrentMap<UUID, Integer> reconciledInvoices = new ConcurrentHashMap<UUID, Integer>();
+        private final ConcurrentMap<UUID, Integer> unsavedInvoices = new ConcurrentHashMap<UUID, Integer>();
+        private final AtomicBoolean restored = new AtomicBoolean();
+
+        private AccountLedger(SimpleTaxConfig cfg) {
+            super();
+            this.cfg = cfg;
+        }
+
+        /**
+         * Tells whether the recorded taxes of a taxable item are still
+         * accurate, i.e. whether the item has the same taxed base and tax
+         * codes as when it was recorded, and whether its current tax amount is
+         * the one that was recorded.
+         * <p>
+         * Only raw tax code names are compared, so that this can be checked
+         * before any tax code is resolved.
+         *
+         * @param taxableItemId
+         *            The identifier of a taxable item. Must not be {@code null}
+         *            .
+         * @param taxedBase
+         *            The current adjusted amount of the taxable item.
+         * @param taxCodes
+         *            The comma-separated names of the tax codes that are
+         *            currently set on the item, or {@code null} if none is.
+         * @param taxAmount
+         *            The current amount of tax for the item, taking any
+         *            adjustments into account.
+         * @return {@code true} if nothing has changed since the item was
+         *         recorded, {@code false} otherwise.
+         */
+        public boolean isSettled(@Nonnull UUID taxableItemId, @Nonnull BigDecimal taxedBase,
+                @Nullable String taxCodes, @Nonnull BigDecimal taxAmount) {
+            Entry entry = entries.get(taxableItemId);
+            if (entry == null) {
+                return false;
+            }
+            return entry.matches(taxedBase, taxCodes, taxAmount);
+        }
+
+        /**
+         * Records the taxes that are expected for a taxable item.
+         *
+         * @param taxableItemId
+         *            The identifier of a taxable item. Must not be {@code null}
+         *            .
+         * @param taxedBase
+         *            The adjusted amount of the taxable item.
+         * @param taxCodes
+         *            The comma-separated names of the tax codes of the item, or
+         *            {@code null} if it has none.
+         * @param taxAmount
+         *            The expected amount of tax for the item.
+         */
+        public void record(@Nonnull UUID taxableItemId, @Nonnull BigDecimal taxedBase, @Nullable String taxCodes,
+                @Nonnull BigDecimal taxAmount) {
+            entries.put(taxableItemId, new Entry(taxedBase, taxCodes, taxAmount));
+        }
+
+        /**
+         * @param taxableItemId
+         *            The identifier of a taxable item.
+         * @return The recorded entry for this item, or {@code null} if none
+         *         exists.
+         */
+        @Nullable
+        public Entry get(@Nullable UUID taxableItemId) {
+            return taxableItemId == null ? null : entries.get(taxableItemId);
+        }
+
+        /**
+         * @return The number of taxable items recorded in this ledger.
+         */
+        public int size() {
+            return entries.size();
+        }
+
+        /**
+         * Tells whether an invoice is clean, i.e. whether it has been
+         * reconciled with the same signature and has not been marked dirty
+         * since then.
+         * <p>
+         * The signature is any value that changes whenever items or
+         * adjustments are added to the invoice, or whenever the tax codes of
+         * its items change. It does not depend on any event being received.
+         *
+         * @param invoiceId
+         *            The identifier of an invoice.
+         * @param signature
+         *            The current signature of the invoice.
+         * @return {@code true} if the invoice does not need to be reconciled
+         *         again, {@code false} otherwise.
+         */
+        public boolean isReconciled(@Nullable UUID invoiceId, int signature) {
+            if (invoiceId == null) {
+                return false;
+            }
+            Integer reconciledSignature = reconciledInvoices.get(invoiceId);
+            return (reconciledSignature != null) && (reconciledSignature.intValue() == signature);
+        }
+
+        /**
+         * Marks an invoice as clean, with the given signature.
+         *
+         * @param invoiceId
+         *            The identifier of an invoice. Must not be {@code null}.
+         * @param signature
+         *            The signature of the invoice, as of its reconciliation.
+         */
+        public void markReconciled(@Nonnull UUID invoiceId, int signature) {
+            reconciledInvoices.put(invoiceId, signature);
+            unsavedInvoices.put(invoiceId, signature);
+        }
+
+        /**
+         * Marks an invoice as dirty.
+         *
+         * @param invoiceId
+         *            The identifier of an invoice.
+         */
+        public void markDirty(@Nullable UUID invoiceId) {
+            if (invoiceId != null) {
+                reconciledInvoices.remove(invoiceId);
+                unsavedInvoices.remove(invoiceId);
+            }
+        }
+
+        /**
+         * Tells whether the reconciled invoices of this ledger still have to
+         * be restored from a persistent store. Only the first caller is told
+         * so, in order for the store to be read once.
+         *
+         * @return {@code true} for the first caller, {@code false} for all
+         *         subsequent ones.
+         */
+        public boolean claimRestoration() {
+            return restored.compareAndSet(false, true);
+        }
+
+        /**
+         * Restores reconciled invoices, as read from a persistent store.
+         * Invoices that have already been reconciled since this ledger was
+         * created are left untouched.
+         *
+         * @param signatures
+         *            The signatures of reconciled invoices, by invoice
+         *            identifier. Must not be {@code null}.
+         */
+        public void restoreReconciledInvoices(@Nonnull Map<UUID, Integer> signatures) {
+            for (Map.Entry<UUID, Integer> reconciled : signatures.entrySet()) {
+                reconciledInvoices.putIfAbsent(reconciled.getKey(), reconciled.getValue());
+            }
+        }
+
+        /**
+         * Collects the invoices that have been marked reconciled since the last
+         * call, so that they can be saved in a persistent store.
+         *
+         * @return A new immutable map of the signatures of newly reconciled
+         *         invoices, by invoice identifier. Never {@code null}.
+         */
+        @Nonnull
+        public Map<UUID, Integer> drainUnsavedReconciliations() {
+            ImmutableMap.Builder<UUID, Integer> drained = ImmutableMap.builder();
+            for (Map.Entry<UUID, Integer> unsaved : unsavedInvoices.entrySet()) {
+                if (unsavedInvoices.remove(unsaved.getKey(), unsaved.getValue())) {
+                    drained.put(unsaved.getKey(), unsaved.getValue());
+                }
+            }
+            return drained.build();
+        }
+    }
+
+    /**
+     * An immutable ledger entry for a taxable item.
+     */
+    public static final class Entry {
+
+        private final BigDecimal taxedBase;
+        private final String taxCodes;
+        private final BigDecimal taxAmount;
+
+        /**
+         * Constructs a new ledger entry.
+         *
+         * @param taxedBase
+         *            The adjusted amount of the taxable item. Must not be
+         *            {@code null}.
+         * @param taxCodes
+         *            The comma-separated names of the tax codes of the item, or
+         *            {@code null} if it has none.
+         * @param taxAmount
+         *            The amount of tax for the item. Must not be {@code null}.
+         */
+        public Entry(@Nonnull BigDecimal taxedBase, @Nullable String taxCodes, @Nonnull BigDecimal taxAmount) {
+            super();
+            this.taxedBase = checkNotNull(taxedBase, "taxedBase");
+            this.taxCodes = taxCodes;
+            this.taxAmount = checkNotNull(taxAmount, "taxAmount");
+        }
+
+        private boolean matches(BigDecimal otherBase, String otherTaxCodes, BigDecimal otherTaxAmount) {
+            // BigDecimal equality ignoring scale
+            return (taxedBase.compareTo(otherBase) == 0) && (taxAmount.compareTo(otherTaxAmount) == 0)
+                    && (taxCodes == null ? otherTaxCodes == null : taxCodes.equals(otherTaxCodes));
+        }
+
+        /**
+         * @return The adjusted amount of the taxable item.
+         */
+        public BigDecimal getTaxedBase() {
+            return taxedBase;
+        }
+
+        /**
+         * @return The comma-separated names of the tax codes of the item, or
+         *         {@code null} if it has none.
+         */
+        public String getTaxCodes() {
+            return taxCodes;
+        }
+
+        /**
+         * @return The amount of tax for the item.
+         */
+        public BigDecimal getTaxAmount() {
+            return taxAmount;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            Entry rhs = (Entry) obj;
+            return matches(rhs.taxedBase, rhs.taxCodes, rhs.taxAmount);
+        }
+
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder()//
+                    // Custom processing BigDecimal hash ignoring scale
+                    .append(taxedBase.stripTrailingZeros().toString())//
+                    .append(taxCodes)//
+                    .append(taxAmount.stripTrailingZeros().toString())//
+                    .toHashCode();
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, SHORT_STYLE)//
+                    .append("taxedBase", taxedBase)//
+                    .append("taxCodes", taxCodes)//
+                    .append("taxAmount", taxAmount)//
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Sets.newHashSet;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An immutable “tax plan”, that is compiled once out of the plugin
+ * configuration, and that indexes the candidate tax codes of products by
+ * product name and by country.
+ * <p>
+ * The candidate tax codes for a product in a given country are the ones that
+ * are not restricted to any country, plus the ones that are restricted to that
+ * country. They are provided as {@linkplain TaxCodeTimeline timelines}.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TaxPlan {
+
+    private static final String NO_COUNTRY = "";
+
+    private final Map<String, Map<String, TaxCodeTimeline>> timelinesByProduct;
+
+    /**
+     * Compiles a tax plan.
+     *
+     * @param taxCodesByProduct
+     *            The configured tax codes, in order of preference, grouped by
+     *            product name. Must not be {@code null}.
+     */
+    public TaxPlan(@Nonnull Map<String, Set<TaxCode>> taxCodesByProduct) {
+        super();
+        ImmutableMap.Builder<String, Map<String, TaxCodeTimeline>> byProduct = ImmutableMap.builder();
+        for (Entry<String, Set<TaxCode>> entry : taxCodesByProduct.entrySet()) {
+            Set<TaxCode> taxCodes = entry.getValue();
+            if (taxCodes.isEmpty()) {
+                continue;
+            }
+            ImmutableMap.Builder<String, TaxCodeTimeline> byCountry = ImmutableMap.builder();
+            byCountry.put(NO_COUNTRY, new TaxCodeTimeline(applicableIn(taxCodes, null)));
+            Set<String> countries = newHashSet();
+            for (TaxCode taxCode : taxCodes) {
+                Country country = taxCode.getCountry();
+                if ((country != null) && countries.add(country.getCode())) {
+                    byCountry.put(country.getCode(), new TaxCodeTimeline(applicableIn(taxCodes, country.getCode())));
+                }
+            }
+            byProduct.put(entry.getKey(), byCountry.build());
+        }
+        timelinesByProduct = byProduct.build();
+    }
+
+    private static Iterable<TaxCode> applicableIn(Set<TaxCode> taxCodes, @Nullable final String countryCode) {
+        return filter(taxCodes, new Predicate<TaxCode>() {
+            @Override
+            public boolean apply(TaxCode taxCode) {
+                Country restrict = taxCode.getCountry();
+                return (restrict == null) || restrict.getCode().equals(countryCode);
+            }
+        });
+    }
+
+    /**
+     * Returns the candidate tax codes of a product, for accounts in a given
+     * tax country.
+     *
+     * @param productName
+     *            The name of a product in the catalog.
+     * @param accountTaxCountry
+     *            The tax country of the account, or {@code null} if it is
+     *            unknown, in which case only the tax codes that are not
+     *            restricted to any country are candidates.
+     * @return The timeline of candidate tax codes, or {@code null} if no tax
+     *         code is configured for the product.
+     */
+    @Nullable
+    public TaxCodeTimeline timelineFor(@Nullable String productName, @Nullable Country accountTaxCountry) {
+        Map<String, TaxCodeTimeline> byCountry = timelinesByProduct.get(productName);
+        if (byCountry == null) {
+            return null;
+        }
+        TaxCodeTimeline timeline = null;
+        if (accountTaxCountry != null) {
+            timeline = byCountry.get(accountTaxCountry.getCode());
+        }
+        return timeline == null ? byCountry.get(NO_COUNTRY) : timeline;
+    }
+}
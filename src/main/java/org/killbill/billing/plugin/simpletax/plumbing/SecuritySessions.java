@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.plumbing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+
+/**
+ * A manager of the security sessions that this plugin opens when calling Kill
+ * Bill APIs on its own behalf, typically from bus or background threads.
+ * <p>
+ * Kill Bill subjects are bound to threads. A thread that has
+ * {@linkplain #login logged in} stays logged in across calls, as long as the
+ * same credentials are used, until it explicitly {@linkplain #logout() logs
+ * out} at the end of its batch of work. Thus, a batch that spans many calls
+ * for the same tenant authenticates only once.
+ * <p>
+ * Sessions can be given a maximum age, after which credentials are verified
+ * again. Sessions which subject is no longer authenticated, because some other
+ * code has logged the thread out, are opened again.
+ * <p>
+ * The numbers of actual logins and reused sessions are recorded, and served
+ * by the {@linkplain org.killbill.billing.plugin.simpletax.config.http.StatsController
+ * statistics endpoint}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Benjamin Gandon
+ */
+public class SecuritySessions {
+
+    private final OSGIKillbillAPI services;
+    private final long maxSessionAgeNanos;
+    private final Ticker ticker;
+
+    private final ThreadLocal<Session> loggedIn = new ThreadLocal<Session>();
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong reusedSessions = new AtomicLong();
+
+    /**
+     * Constructs a new manager of security sessions.
+     *
+     * @param services
+     *            The Kill Bill meta-API.
+     */
+    public SecuritySessions(OSGIKillbillAPI services) {
+        this(services, Long.MAX_VALUE, Ticker.systemTicker());
+    }
+
+    /**
+     * Constructs a new manager of security sessions, that verify credentials
+     * again once sessions are older than a given age.
+     *
+     * @param services
+     *            The Kill Bill meta-API.
+     * @param maxSessionAge
+     *            The maximum age of sessions.
+     * @param unit
+     *            The time unit of {@code maxSessionAge}.
+     */
+    public SecuritySessions(OSGIKillbillAPI services, long maxSessionAge, TimeUnit unit) {
+        this(services, unit.toNanos(maxSessionAge), Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    SecuritySessions(OSGIKillbillAPI services, long maxSessionAgeNanos, Ticker ticker) {
+        super();
+        this.services = services;
+        this.maxSessionAgeNanos = maxSessionAgeNanos;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Makes sure the current thread is logged in with the given credentials,
+     * logging in only when it is not already the case.
+     *
+     * @param username
+     *            The user name, or {@code null}.
+     * @param password
+     *            The password, or {@code null}.
+     */
+    public void login(@Nullable String username, @Nullable String password) {
+        Principal principal = new Principal(username, password);
+        Session current = loggedIn.get();
+        long now = ticker.read();
+        if ((current != null) && current.principal.equals(principal)
+                && (now - current.openedAt < maxSessionAgeNanos)
+                && services.getSecurityApi().isSubjectAuthenticated()) {
+            reusedSessions.incrementAndGet();
+            return;
+        }
+        if (current != null) {
+            logout();
+        }
+        services.getSecurityApi().login(username, password);
+        loggedIn.set(new Session(principal, now));
+        logins.incrementAndGet();
+    }
+
+    /**
+     * Logs the current thread out, if it has been logged in.
+     */
+    public void logout() {
+        if (loggedIn.get() == null) {
+            return;
+        }
+        loggedIn.remove();
+        services.getSecurityApi().logout();
+    }
+
+    /**
+     * @return The number of times the plugin has actually logged in.
+     */
+    public long getLoginCount() {
+        return logins.get();
+    }
+
+    /**
+     * @return The number of times an existing session has been reused instead
+     *         of logging in again.
+     */
+    public long getReusedSessionCount() {
+        return reusedSessions.get();
+    }
+
+    private static final class Session {
+        private final Principal principal;
+        private final long openedAt;
+
+        private Session(Principal principal, long openedAt) {
+            super();
+            this.principal = principal;
+            this.openedAt = openedAt;
+        }
+    }
+
+    private static final class Principal {
+        private final String username;
+        private final String password;
+
+        private Principal(String username, String password) {
+            super();
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null) {
+                return false;
+            }
+            if (obj == this) {
+                return true;
+            }
+            if (obj.getClass() != getClass()) {
+                return false;
+            }
+            Principal rhs = (Principal) obj;
+            return Objects.equal(username, rhs.username) && Objects.equal(password, rhs.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(username, password);
+        }
+    }
+}
@@ -27,13 +27,24 @@ import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.simpletax.SimpleTaxPlugin;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
+import org.killbill.billing.plugin.simpletax.config.http.ImportController;
 import org.killbill.billing.plugin.simpletax.config.http.InvoiceService;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController;
+import org.killbill.billing.plugin.simpletax.config.http.RequestCredentials;
 import org.killbill.billing.plugin.simpletax.config.http.SimpleTaxServlet;
+import org.killbill.billing.plugin.simpletax.config.http.StatsController;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController;
 import org.killbill.billing.plugin.simpletax.config.http.VatinController;
+import org.killbill.billing.plugin.simpletax.dao.ReconciledInvoiceDao;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodeDao;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache;
 import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static org.killbill.billing.osgi.api.OSGIPluginProperties.PLUGIN_NAME_PROP;
 
@@ -47,8 +58,11 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
     /** The name for this plugin. */
     public static final String PLUGIN_NAME = "killbill-simple-tax";
 
+    private static final Logger logger = LoggerFactory.getLogger(SimpleTaxActivator.class);
+
     private SimpleTaxConfigurationHandler configHandler;
     private SimpleTaxPlugin plugin;
+    private AsyncRequestExecutor asyncRequests;
 
     /**
      * This method is the first to be called.
@@ -66,19 +80,39 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
 
         configHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, killbillAPI);
 
-        createDefaultConfig();
+        SimpleTaxConfig defaultConfig = createDefaultConfig();
         CustomFieldService customFieldService = createCustomFieldService();
+        TaxCodeDao taxCodeDao = createTaxCodeDao();
 
-        plugin = createPlugin(customFieldService);
+        plugin = createPlugin(customFieldService, taxCodeDao, createReconciledInvoiceDao());
         register(InvoicePluginApi.class, plugin, context);
 
-        InvoiceService invoiceService = createInvoiceService();
-        HttpServlet servlet = createServlet(customFieldService, invoiceService);
+        InvoiceService invoiceService = createInvoiceService(plugin.getInvoiceItemIndex());
+        HttpServlet servlet = createServlet(customFieldService, invoiceService, taxCodeDao, defaultConfig,
+                plugin.getPlanProducts());
         register(Servlet.class, servlet, context);
 
         registerEventHandlers();
     }
 
+    /**
+     * Releases the resources of the plugin, before stopping the bundle.
+     * <p>
+     * {@inheritDoc}
+     *
+     * @see org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase#stop(org.osgi.framework.BundleContext)
+     */
+    @Override
+    public void stop(BundleContext context) throws Exception {
+        if (plugin != null) {
+            plugin.shutdown();
+        }
+        if (asyncRequests != null) {
+            asyncRequests.shutdown();
+        }
+        super.stop(context);
+    }
+
     private void registerEventHandlers() {
         final PluginConfigurationEventHandler handler = new PluginConfigurationEventHandler(configHandler);
         dispatcher.registerEventHandlers(handler, plugin);
@@ -94,29 +128,80 @@ public class SimpleTaxActivator extends KillbillActivatorBase {
      * Later on, the plugin will access any per-tenant configuration that might
      * have been uploaded into the database, with the use of the created
      * configuration manager (a.k.a. “config handler”).
+     *
+     * @return The default configuration.
      */
-    private void createDefaultConfig() {
+    private SimpleTaxConfig createDefaultConfig() {
         SimpleTaxConfig defaultConfig = configHandler.createConfigurable(getConfigService().getProperties());
         configHandler.setDefaultConfigurable(defaultConfig);
+        return defaultConfig;
     }
 
     private CustomFieldService createCustomFieldService() {
         return new CustomFieldService(killbillAPI.getCustomFieldUserApi());
     }
 
-    private InvoiceService createInvoiceService() {
-        return new InvoiceService(killbillAPI.getInvoiceUserApi());
+    /**
+     * Creates the data access object for the tax codes of invoice items, when
+     * the table of this plugin has been created. Otherwise, tax codes are only
+     * stored as Kill Bill custom fields, until the plugin is restarted.
+     *
+     * @return The data access object, or {@code null} if the table has not
+     *         been created.
+     */
+    private TaxCodeDao createTaxCodeDao() {
+        TaxCodeDao taxCodeDao = new TaxCodeDao(dataSource.getDataSource());
+        if (!taxCodeDao.isInstalled()) {
+            logger.warn("Table [" + TaxCodeDao.TABLE_NAME + "] not found, storing tax codes as custom fields only");
+            return null;
+        }
+        return taxCodeDao;
+    }
+
+    /**
+     * Creates the data access object for reconciled invoices, when the table
+     * of this plugin has been created. Otherwise, reconciled invoices are only
+     * kept in memory.
+     *
+     * @return The data access object, or {@code null} if the table has not
+     *         been created.
+     */
+    private ReconciledInvoiceDao createReconciledInvoiceDao() {
+        ReconciledInvoiceDao reconciledInvoiceDao = new ReconciledInvoiceDao(dataSource.getDataSource());
+        if (!reconciledInvoiceDao.isInstalled()) {
+            logger.warn("Table [" + ReconciledInvoiceDao.TABLE_NAME
+                    + "] not found, keeping reconciled invoices in memory only");
+            return null;
+        }
+        return reconciledInvoiceDao;
+    }
+
+    private InvoiceService createInvoiceService(InvoiceItemIndex invoiceItemIndex) {
+        return new InvoiceService(killbillAPI.getInvoiceUserApi(), invoiceItemIndex);
     }
 
-    private SimpleTaxPlugin createPlugin(CustomFieldService customFieldService) {
-        return new SimpleTaxPlugin(configHandler, customFieldService, killbillAPI, getConfigService(), clock);
+    private SimpleTaxPlugin createPlugin(CustomFieldService customFieldService, TaxCodeDao taxCodeDao,
+            ReconciledInvoiceDao reconciledInvoiceDao) {
+        return new SimpleTaxPlugin(configHandler, customFieldService, taxCodeDao, reconciledInvoiceDao, killbillAPI,
+                getConfigService(), clock);
     }
 
-    private HttpServlet createServlet(CustomFieldService customFieldService, InvoiceService invoiceService) {
+    private HttpServlet createServlet(CustomFieldService customFieldService, InvoiceService invoiceService,
+            TaxCodeDao taxCodeDao, SimpleTaxConfig defaultConfig, PlanProductCache planProducts) {
         TaxCountryController taxCountryController = new TaxCountryController(customFieldService);
         VatinController vatinController = new VatinController(customFieldService);
-        TaxCodeController taxCodeController = new TaxCodeController(customFieldService, invoiceService);
-        return new SimpleTaxServlet(vatinController, taxCountryController, taxCodeController, killbillAPI);
+        TaxCodeController taxCodeController = new TaxCodeController(customFieldService, invoiceService,
+                taxCodeDao);
+        ImportController importController = new ImportController(customFieldService);
+        PreviewController previewController = new PreviewController(configHandler, planProducts,
+                killbillAPI.getCatalogUserApi());
+        StatsController statsController = new StatsController(configHandler, plugin.getSecuritySessions(),
+                customFieldService, plugin.getInvoiceItemIndex());
+        RequestCredentials requestCredentials = new RequestCredentials(killbillAPI);
+        asyncRequests = new AsyncRequestExecutor(defaultConfig.getAsyncThreads(),
+                defaultConfig.getAsyncMaxRequestsPerTenant(), defaultConfig.getAsyncTimeoutSeconds());
+        return new SimpleTaxServlet(vatinController, taxCountryController, taxCodeController, importController,
+                previewController, requestCredentials, asyncRequests, statsController);
     }
 
     private <S> void register(Class<S> serviceClass, S serviceInstance, BundleContext context) {
@@ -27,6 +27,7 @@ import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxCodeTimeline;
 
 import com.google.common.base.Predicate;
 
@@ -49,6 +50,10 @@ import com.google.common.base.Predicate;
  * instant.</li>
  * <li>Otherwise, when no taxation time zone is configured, the applicable date
  * is kept interpreted in the time zone of the account.</li>
+ * <li>When there is no account, as for tax previews, the applicable date is
+ * kept as is.</li>
+ * <li>When candidate tax codes are provided as a {@link TaxCodeTimeline}, the
+ * applicable tax code is found with a binary search on the taxation date.</li>
  * </ul>
  *
  * @author Benjamin Gandon
@@ -73,13 +78,17 @@ public class InvoiceItemEndDateBasedResolver implements TaxResolver {
 
     @Override
     public TaxCode applicableCodeForItem(Iterable<TaxCode> taxCodes, InvoiceItem item) {
-        DateTimeZone accountTimeZone = account.getTimeZone();
+        DateTimeZone accountTimeZone = account == null ? null : account.getTimeZone();
         DateTimeZone taxationTimeZone = cfg.getTaxationTimeZone();
 
         LocalDate applicableDate = firstNonNull(item.getEndDate(), item.getStartDate());
 
-        final LocalDate taxationDate = taxationTimeZone == null ? applicableDate : convertTimeZone(applicableDate,
-                accountTimeZone, taxationTimeZone);
+        final LocalDate taxationDate = (taxationTimeZone == null) || (accountTimeZone == null) ? applicableDate
+                : convertTimeZone(applicableDate, accountTimeZone, taxationTimeZone);
+
+        if (taxCodes instanceof TaxCodeTimeline) {
+            return ((TaxCodeTimeline) taxCodes).applicableCodeOn(taxationDate);
+        }
 
         return tryFind(taxCodes, new Predicate<TaxCode>() {
             @Override
@@ -25,6 +25,7 @@ import org.killbill.billing.plugin.simpletax.internal.TaxCode;
  *
  * @author Benjamin Gandon
  */
+@Stateless
 public class NullTaxResolver implements TaxResolver {
 
     /**
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that a {@link TaxResolver} implementation keeps no state out of the
+ * {@link org.killbill.billing.plugin.simpletax.TaxComputationContext} it is
+ * constructed with.
+ * <p>
+ * One single instance of such resolvers is then shared among all invoices of
+ * all accounts in the same tenant, instead of a new instance being constructed
+ * for each invoice.
+ * <p>
+ * Annotated resolvers must therefore not read anything that is specific to an
+ * account or an invoice out of their context. They are constructed with a
+ * context that only holds the plugin configuration, with no account, no tax
+ * country and no invoices.
+ *
+ * @author Benjamin Gandon
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface Stateless {
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.plugin.simpletax.AccountInvoiceIndex;
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A factory for {@link TaxResolver} instances, that is compiled once out of
+ * the configured resolver constructor, so that no reflective lookup or access
+ * check is performed when invoices are being created.
+ * <p>
+ * Resolvers that are annotated {@link Stateless @Stateless} are instantiated
+ * only once, and the same instance is then returned by all subsequent calls.
+ * They are instantiated with a context that only holds the configuration of
+ * the first call, so that no account of any caller leaks into the shared
+ * instance.
+ * <p>
+ * Instantiation failures are reported with the same exceptions as
+ * {@link Constructor#newInstance}.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TaxResolverFactory {
+
+    private final Class<? extends TaxResolver> resolverClass;
+    private final MethodHandle constructorHandle;
+    private final boolean stateless;
+    private volatile TaxResolver singleton;
+
+    private TaxResolverFactory(Class<? extends TaxResolver> resolverClass, MethodHandle constructorHandle,
+            boolean stateless) {
+        super();
+        this.resolverClass = resolverClass;
+        this.constructorHandle = constructorHandle;
+        this.stateless = stateless;
+    }
+
+    /**
+     * Compiles a factory for a given tax resolver constructor.
+     *
+     * @param constructor
+     *            A <em>public</em> constructor of a {@link TaxResolver}
+     *            implementation, that accepts one single argument of type
+     *            {@link TaxComputationContext}.
+     * @return A new factory. Never {@code null}.
+     * @throws NullPointerException
+     *             when {@code constructor} is {@code null}.
+     * @throws IllegalArgumentException
+     *             when {@code constructor} is not accessible.
+     */
+    @Nonnull
+    public static TaxResolverFactory of(@Nonnull Constructor<? extends TaxResolver> constructor) {
+        Class<? extends TaxResolver> resolverClass = checkNotNull(constructor, "constructor").getDeclaringClass();
+        if (Modifier.isAbstract(resolverClass.getModifiers())) {
+            return new TaxResolverFactory(resolverClass, null, false);
+        }
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflectConstructor(constructor)
+                    .asType(methodType(TaxResolver.class, TaxComputationContext.class));
+        } catch (IllegalAccessException exc) {
+            throw new IllegalArgumentException("not a public constructor: " + constructor, exc);
+        }
+        return new TaxResolverFactory(resolverClass, handle, resolverClass.isAnnotationPresent(Stateless.class));
+    }
+
+    /**
+     * @return The implementation class of the resolvers that this factory
+     *         builds. Never {@code null}.
+     */
+    @Nonnull
+    public Class<? extends TaxResolver> getResolverClass() {
+        return resolverClass;
+    }
+
+    /**
+     * Builds a tax resolver for a given context, or returns the shared
+     * instance for {@link Stateless @Stateless} resolvers.
+     *
+     * @param ctx
+     *            The tax computation context to build the resolver with.
+     * @return A tax resolver. Never {@code null}.
+     * @throws InstantiationException
+     *             when the resolver class is abstract.
+     * @throws InvocationTargetException
+     *             when the resolver constructor throws an exception.
+     * @throws ExceptionInInitializerError
+     *             when the initialization of the resolver class fails.
+     */
+    @Nonnull
+    public TaxResolver newResolver(TaxComputationContext ctx) throws InstantiationException,
+            InvocationTargetException {
+        if (!stateless) {
+            return instantiate(ctx);
+        }
+        TaxResolver resolver = singleton;
+        if (resolver == null) {
+            // Racing threads might build several instances, which is harmless
+            // for stateless resolvers
+            resolver = instantiate(configurationOnly(ctx));
+            singleton = resolver;
+        }
+        return resolver;
+    }
+
+    private static TaxComputationContext configurationOnly(TaxComputationContext ctx) {
+        Set<Invoice> noInvoices = ImmutableSet.of();
+        return new TaxComputationContext(ctx.getConfig(), null, null, noInvoices, AccountInvoiceIndex.of(
+                noInvoices, null), null, null, null);
+    }
+
+    private TaxResolver instantiate(TaxComputationContext ctx) throws InstantiationException,
+            InvocationTargetException {
+        if (constructorHandle == null) {
+            throw new InstantiationException(resolverClass.getName());
+        }
+        try {
+            return (TaxResolver) constructorHandle.invokeExact(ctx);
+        } catch (ExceptionInInitializerError err) {
+            throw err;
+        } catch (Throwable exc) {
+            throw new InvocationTargetException(exc);
+        }
+    }
+}
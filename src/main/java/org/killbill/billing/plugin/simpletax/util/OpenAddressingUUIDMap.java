@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A compact map of {@link UUID} keys to non-null values, that uses open
+ * addressing with linear probing.
+ * <p>
+ * Keys are stored as pairs of primitive {@code long}s, so that no
+ * {@link java.util.Map.Entry entry} object or boxed key is allocated. The
+ * capacity is fixed at construction time, and entries cannot be removed.
+ * <p>
+ * This class is not thread-safe. It is meant to be filled once and then only
+ * read, after having been safely published.
+ *
+ * @author Benjamin Gandon
+ * @param <V>
+ *            The type of values.
+ */
+public final class OpenAddressingUUIDMap<V> {
+
+    private final long[] mostSigBits;
+    private final long[] leastSigBits;
+    private final Object[] values;
+    private final int mask;
+    private final int maxSize;
+    private int size = 0;
+
+    /**
+     * Constructs a new map, that can hold up to the given number of entries.
+     *
+     * @param expectedSize
+     *            The maximum number of entries that this map will hold.
+     * @throws IllegalArgumentException
+     *             when {@code expectedSize} is negative.
+     */
+    public OpenAddressingUUIDMap(int expectedSize) {
+        super();
+        checkArgument(expectedSize >= 0, "negative expected size: %s", expectedSize);
+        // Keep the load factor below 0.5 so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 1) * 2 - 1) << 1;
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        maxSize = expectedSize;
+    }
+
+    private int indexOf(long msb, long lsb) {
+        long hash = msb ^ lsb;
+        int h = (int) (hash ^ (hash >>> 32));
+        // Spread the bits, as java.util.HashMap does
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Associates a value to a given key, replacing any previous value.
+     *
+     * @param key
+     *            The key. Must not be {@code null}.
+     * @param value
+     *            The value. Must not be {@code null}.
+     * @throws NullPointerException
+     *             when {@code key} or {@code value} is {@code null}.
+     * @throws IllegalStateException
+     *             when the map is full and the key is a new one.
+     */
+    public void put(@Nonnull UUID key, @Nonnull V value) {
+        checkNotNull(value, "value");
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        int idx = indexOf(msb, lsb);
+        while (values[idx] != null) {
+            if ((mostSigBits[idx] == msb) && (leastSigBits[idx] == lsb)) {
+                values[idx] = value;
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+        if (size >= maxSize) {
+            throw new IllegalStateException("map is full with " + size + " entries");
+        }
+        mostSigBits[idx] = msb;
+        leastSigBits[idx] = lsb;
+        values[idx] = value;
+        size++;
+    }
+
+    /**
+     * Returns the value associated to a given key.
+     *
+     * @param key
+     *            The key, or {@code null}.
+     * @return The value associated to the key, or {@code null} if none.
+     */
+    @Nullable
+    public V get(@Nullable UUID key) {
+        if (key == null) {
+            return null;
+        }
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        int idx = indexOf(msb, lsb);
+        Object value;
+        while ((value = values[idx]) != null) {
+            if ((mostSigBits[idx] == msb) && (leastSigBits[idx] == lsb)) {
+                @SuppressWarnings("unchecked")
+                V v = (V) value;
+                return v;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of entries in this map.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.killbill.billing.plugin.simpletax.util.ShortToStringStyle.SHORT_STYLE;
+
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * An immutable cache key for objects that live in the scope of a tenant.
+ * <p>
+ * The tenant identifier is allowed to be {@code null}, which designates the
+ * default tenant, as the Kill Bill APIs do.
+ *
+ * @author Benjamin Gandon
+ */
+public final class TenantScopedKey {
+
+    private final UUID tenantId;
+    private final UUID objectId;
+
+    /**
+     * Constructs a new key.
+     *
+     * @param tenantId
+     *            The tenant in which the object lives, or {@code null} for the
+     *            default tenant.
+     * @param objectId
+     *            The identifier of the object. Must not be {@code null}.
+     * @throws NullPointerException
+     *             when {@code objectId} is {@code null}.
+     */
+    public TenantScopedKey(@Nullable UUID tenantId, @Nonnull UUID objectId) {
+        super();
+        this.tenantId = tenantId;
+        this.objectId = checkNotNull(objectId, "objectId");
+    }
+
+    /**
+     * @return The tenant in which the object lives, or {@code null} for the
+     *         default tenant.
+     */
+    @Nullable
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    /**
+     * @return The identifier of the object. Never {@code null}.
+     */
+    @Nonnull
+    public UUID getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (obj == this) {
+            return true;
+        }
+        if (obj.getClass() != getClass()) {
+            return false;
+        }
+        TenantScopedKey rhs = (TenantScopedKey) obj;
+        return new EqualsBuilder()//
+                .append(tenantId, rhs.tenantId)//
+                .append(objectId, rhs.objectId)//
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()//
+                .append(tenantId)//
+                .append(objectId)//
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, SHORT_STYLE)//
+                .append("tenantId", tenantId)//
+                .append("objectId", objectId)//
+                .toString();
+    }
+}
@@ -0,0 +1,34 @@
+/*! SET default_storage_engine=INNODB */;
+
+drop table if exists simple_tax_codes;
+create table simple_tax_codes (
+  record_id serial
+, kb_tenant_id char(36) not null
+, kb_account_id char(36) not null
+, kb_invoice_id char(36) not null
+, kb_invoice_item_id char(36) not null
+, tax_codes varchar(255) not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index simple_tax_codes_kb_invoice_item_id on simple_tax_codes(kb_tenant_id, kb_invoice_item_id);
+create index simple_tax_codes_kb_account_id on simple_tax_codes(kb_tenant_id, kb_account_id);
+create index simple_tax_codes_kb_invoice_id on simple_tax_codes(kb_tenant_id, kb_invoice_id);
+
+drop table if exists simple_tax_reconciled_invoices;
+create table simple_tax_reconciled_invoices (
+  record_id serial
+, kb_tenant_id char(36) not null
+, kb_account_id char(36) not null
+, kb_invoice_id char(36) not null
+, signature int not null
+, config_fingerprint int not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index simple_tax_reconciled_invoices_kb_invoice_id
+    on simple_tax_reconciled_invoices(kb_tenant_id, kb_invoice_id);
+create index simple_tax_reconciled_invoices_kb_account_id
+    on simple_tax_reconciled_invoices(kb_tenant_id, kb_account_id);
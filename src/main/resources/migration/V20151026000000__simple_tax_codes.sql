@@ -0,0 +1,36 @@
+create table simple_tax_codes (
+  record_id serial
+, kb_tenant_id char(36) not null
+, kb_account_id char(36) not null
+, kb_invoice_id char(36) not null
+, kb_invoice_item_id char(36) not null
+, tax_codes varchar(255) not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index simple_tax_codes_kb_invoice_item_id on simple_tax_codes(kb_tenant_id, kb_invoice_item_id);
+create index simple_tax_codes_kb_account_id on simple_tax_codes(kb_tenant_id, kb_account_id);
+create index simple_tax_codes_kb_invoice_id on simple_tax_codes(kb_tenant_id, kb_invoice_id);
+
+/* Copy the tax codes that were previously stored as Kill Bill custom fields,
+   keeping only the latest active field of each invoice item */
+insert into simple_tax_codes (kb_tenant_id, kb_account_id, kb_invoice_id, kb_invoice_item_id, tax_codes,
+    created_date, updated_date)
+select coalesce(t.id, '00000000-0000-0000-0000-000000000000'), ii.account_id, ii.invoice_id, ii.id,
+    cf.field_value, cf.created_date, cf.updated_date
+from custom_fields cf
+join invoice_items ii on ii.id = cf.object_id and ii.tenant_record_id = cf.tenant_record_id
+left join tenants t on t.record_id = cf.tenant_record_id
+where cf.object_type = 'INVOICE_ITEM'
+and cf.field_name = 'taxCodes'
+and cf.is_active = true
+and cf.record_id = (
+    select max(latest.record_id)
+    from custom_fields latest
+    where latest.object_id = cf.object_id
+    and latest.tenant_record_id = cf.tenant_record_id
+    and latest.object_type = 'INVOICE_ITEM'
+    and latest.field_name = 'taxCodes'
+    and latest.is_active = true
+);
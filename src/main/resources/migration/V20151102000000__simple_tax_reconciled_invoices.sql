@@ -0,0 +1,15 @@
+create table simple_tax_reconciled_invoices (
+  record_id serial
+, kb_tenant_id char(36) not null
+, kb_account_id char(36) not null
+, kb_invoice_id char(36) not null
+, signature int not null
+, config_fingerprint int not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index simple_tax_reconciled_invoices_kb_invoice_id
+    on simple_tax_reconciled_invoices(kb_tenant_id, kb_invoice_id);
+create index simple_tax_reconciled_invoices_kb_account_id
+    on simple_tax_reconciled_invoices(kb_tenant_id, kb_account_id);
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.TEN;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.ITEM_ADJ;
+import static org.killbill.billing.invoice.api.InvoiceItemType.RECURRING;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.killbill.billing.util.customfield.CustomField;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link AccountInvoiceIndex}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestAccountInvoiceIndex {
+
+    private static final BigDecimal TWO = new BigDecimal("2");
+
+    private Promise<InvoiceItem> taxableA, taxableB, taxA;
+    private Invoice invoiceA, invoiceB;
+    private CustomField taxFieldA, otherFieldB;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        Account account = buildAccount(EUR, "FR");
+        taxableA = holder();
+        taxableB = holder();
+        taxA = holder();
+
+        invoiceA = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(EXTERNAL_CHARGE).withAmount(TEN).thenSaveTo(taxableA))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(TAX).withLinkedItem(taxableA).withAmount(TWO).thenSaveTo(taxA))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(ITEM_ADJ).withLinkedItem(taxableA).withAmount(ONE.negate()))//
+                .build();
+        invoiceB = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(RECURRING).withAmount(TEN).thenSaveTo(taxableB))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(ITEM_ADJ).withLinkedItem(taxableA).withAmount(ONE.negate()))//
+                .build();
+
+        taxFieldA = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxableA.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_20_0%")//
+                .build();
+        otherFieldB = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxableB.get().getId())//
+                .withFieldName("other").withFieldValue("toto")//
+                .build();
+    }
+
+    private AccountInvoiceIndex index() {
+        return AccountInvoiceIndex.of(ImmutableSet.of(invoiceA, invoiceB), ImmutableList.of(taxFieldA, otherFieldB));
+    }
+
+    @Test(groups = "fast")
+    public void shouldMapItemsToTheirInvoice() {
+        // When
+        AccountInvoiceIndex index = index();
+
+        // Then
+        assertEquals(index.invoiceIdOf(taxableA.get().getId()), invoiceA.getId());
+        assertEquals(index.invoiceIdOf(taxableB.get().getId()), invoiceB.getId());
+        assertNull(index.invoiceIdOf(randomUUID()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldApplyIndexedAdjustmentsToItemsOfOtherInvoices() {
+        // When
+        AccountInvoiceIndex index = AccountInvoiceIndex.of(ImmutableSet.of(invoiceB), null);
+
+        // Then
+        assertNull(index.invoiceIdOf(taxableA.get().getId()));
+        assertEquals(index.adjustedAmountOf(taxableA.get()).compareTo(new BigDecimal("9")), 0);
+        assertEquals(index.adjustedAmountOf(taxableB.get()).compareTo(TEN), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldGroupTaxItemsWithinTheirInvoice() {
+        // When
+        AccountInvoiceIndex index = index();
+
+        // Then
+        assertEquals(index.taxItemsOf(invoiceA).get(taxableA.get().getId()), ImmutableSet.of(taxA.get()));
+        assertTrue(index.taxItemsOf(invoiceB).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldGroupOnlyTaxFieldsByInvoice() {
+        // When
+        AccountInvoiceIndex index = index();
+
+        // Then
+        assertEquals(index.getTaxFieldsByInvoice().get(invoiceA.getId()), ImmutableSet.of(taxFieldA));
+        assertTrue(index.getTaxFieldsByInvoice().get(invoiceB.getId()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldPrecomputeAdjustedAmounts() {
+        // When
+        AccountInvoiceIndex index = index();
+
+        // Then
+        assertEquals(index.adjustedAmountOf(taxableA.get()).compareTo(new BigDecimal("8")), 0);
+        assertEquals(index.adjustedAmountOf(taxableB.get()).compareTo(TEN), 0);
+        assertEquals(index.adjustedAmountOf(taxA.get()).compareTo(TWO), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldCountAdjustmentsInSignatureOfAdjustedInvoice() {
+        // When
+        AccountInvoiceIndex index = index();
+
+        // Then
+        assertEquals(index.signatureOf(invoiceB.getId()), 31 * 2);
+        assertEquals(index.signatureOf(randomUUID()), 0);
+
+        // When
+        AccountInvoiceIndex withoutAdjustments = AccountInvoiceIndex.of(ImmutableSet.of(invoiceA),
+                ImmutableList.of(taxFieldA));
+
+        // Then
+        assertNotEquals(withoutAdjustments.signatureOf(invoiceA.getId()), index.signatureOf(invoiceA.getId()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldChangeSignatureWhenTaxCodesChange() {
+        // Given
+        int signature = index().signatureOf(invoiceA.getId());
+        CustomField changedTaxFieldA = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxableA.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_5_5%")//
+                .build();
+        CustomField sameTaxFieldA = new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxableA.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue("VAT_20_0%")//
+                .build();
+
+        // When
+        AccountInvoiceIndex changed = AccountInvoiceIndex.of(ImmutableSet.of(invoiceA, invoiceB),
+                ImmutableList.of(changedTaxFieldA, otherFieldB));
+        AccountInvoiceIndex removed = AccountInvoiceIndex.of(ImmutableSet.of(invoiceA, invoiceB),
+                ImmutableList.of(otherFieldB));
+        AccountInvoiceIndex same = AccountInvoiceIndex.of(ImmutableSet.of(invoiceB, invoiceA),
+                ImmutableList.of(otherFieldB, sameTaxFieldA));
+
+        // Then
+        assertNotEquals(changed.signatureOf(invoiceA.getId()), signature);
+        assertNotEquals(removed.signatureOf(invoiceA.getId()), signature);
+        assertEquals(same.signatureOf(invoiceA.getId()), signature);
+        assertEquals(changed.signatureOf(invoiceB.getId()), index().signatureOf(invoiceB.getId()));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import static java.math.BigDecimal.TEN;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.RECURRING;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link ResolvedTaxCodesCache}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestResolvedTaxCodesCache {
+
+    private final SimpleTaxConfig cfg = new SimpleTaxConfig(ImmutableMap.<String, String> of());
+    private final TaxCode taxA = new TaxCodeBuilder().withName("taxA").build();
+
+    private Account account;
+    private Promise<InvoiceItem> taxable;
+    private Invoice invoice;
+    private Map<UUID, TaxCode> newTaxCodes;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        account = buildAccount(EUR, "FR");
+        taxable = holder();
+        invoice = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(EXTERNAL_CHARGE).withAmount(TEN).thenSaveTo(taxable))//
+                .build();
+        newTaxCodes = ImmutableMap.of(taxable.get().getId(), taxA);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnResolvedTaxCodesOfSameInvoice() {
+        // Given
+        ResolvedTaxCodesCache cache = new ResolvedTaxCodesCache();
+        UUID tenantId = randomUUID();
+
+        // When
+        cache.put(tenantId, invoice, cfg, newTaxCodes);
+
+        // Then
+        assertEquals(cache.get(tenantId, invoice, cfg), newTaxCodes);
+        assertNull(cache.get(null, invoice, cfg));
+        assertNull(cache.get(tenantId, new InvoiceBuilder(account).build(), cfg));
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreTaxItemsAddedAfterwards() {
+        // Given
+        ResolvedTaxCodesCache cache = new ResolvedTaxCodesCache();
+        cache.put(null, invoice, cfg, newTaxCodes);
+
+        // When
+        invoice.getInvoiceItems().add(new InvoiceItemBuilder()//
+                .withInvoice(invoice).withType(TAX).withLinkedItem(taxable).withAmount(TEN).build());
+
+        // Then
+        assertEquals(cache.get(null, invoice, cfg), newTaxCodes);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotReturnStaleTaxCodesWhenTaxableItemsChange() {
+        // Given
+        ResolvedTaxCodesCache cache = new ResolvedTaxCodesCache();
+        cache.put(null, invoice, cfg, newTaxCodes);
+
+        // When
+        invoice.getInvoiceItems().add(new InvoiceItemBuilder()//
+                .withInvoice(invoice).withType(RECURRING).withAmount(TEN).build());
+
+        // Then
+        assertNull(cache.get(null, invoice, cfg));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotReturnStaleTaxCodesWhenConfigChanges() {
+        // Given
+        ResolvedTaxCodesCache cache = new ResolvedTaxCodesCache();
+        cache.put(null, invoice, cfg, newTaxCodes);
+
+        // Expect
+        assertNull(cache.get(null, invoice, new SimpleTaxConfig(ImmutableMap.<String, String> of())));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnResolvedTaxCodesWhenAmountsDifferInScaleOnly() {
+        // Given
+        ResolvedTaxCodesCache cache = new ResolvedTaxCodesCache();
+        cache.put(null, invoice, cfg, newTaxCodes);
+
+        // When
+        Invoice readBack = withAmount(invoice, new BigDecimal("10.000000000"));
+
+        // Then
+        assertEquals(cache.get(null, readBack, cfg), newTaxCodes);
+        assertNull(cache.get(null, withAmount(invoice, new BigDecimal("10.000000001")), cfg));
+    }
+
+    private static Invoice withAmount(Invoice invoice, BigDecimal amount) {
+        InvoiceItem original = invoice.getInvoiceItems().get(0);
+        InvoiceItem item = mock(InvoiceItem.class);
+        when(item.getId()).thenReturn(original.getId());
+        when(item.getInvoiceItemType()).thenReturn(original.getInvoiceItemType());
+        when(item.getPlanName()).thenReturn(original.getPlanName());
+        when(item.getStartDate()).thenReturn(original.getStartDate());
+        when(item.getEndDate()).thenReturn(original.getEndDate());
+        when(item.getAmount()).thenReturn(amount);
+        Invoice copy = mock(Invoice.class);
+        when(copy.getId()).thenReturn(invoice.getId());
+        when(copy.getInvoiceItems()).thenReturn(ImmutableList.of(item));
+        return copy;
+    }
+}
@@ -18,8 +18,7 @@ package org.killbill.billing.plugin.simpletax;
 
 import static com.google.common.collect.Collections2.filter;
 import static com.google.common.collect.Lists.newArrayList;
-import static com.googlecode.catchexception.CatchException.catchException;
-import static com.googlecode.catchexception.CatchException.caughtException;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.math.BigDecimal.ONE;
 import static java.math.BigDecimal.TEN;
 import static java.math.BigDecimal.valueOf;
@@ -39,9 +38,12 @@ import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
 import static org.killbill.billing.invoice.api.InvoiceItemType.ITEM_ADJ;
 import static org.killbill.billing.invoice.api.InvoiceItemType.RECURRING;
 import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_CREATION;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.CUSTOM_FIELD_DELETION;
 import static org.killbill.billing.notification.plugin.api.ExtBusEventType.INVOICE_CREATION;
 import static org.killbill.billing.plugin.TestUtils.buildAccount;
 import static org.killbill.billing.plugin.TestUtils.buildOSGIKillbillAPI;
+import static org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.DEFAULT_MAX_ATTEMPTS;
 import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.PROPERTY_PREFIX;
 import static org.killbill.billing.plugin.simpletax.config.TestSimpleTaxConfig.TAX_RESOLVER_PROP;
 import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
@@ -50,14 +52,17 @@ import static org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxActivator.
 import static org.killbill.billing.test.helpers.Promise.holder;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -88,8 +93,10 @@ import org.killbill.billing.invoice.api.InvoiceUserApi;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.TaxCodeWrite;
 import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
 import org.killbill.billing.plugin.simpletax.config.http.CustomFieldService;
+import org.killbill.billing.plugin.simpletax.dao.ReconciledInvoiceDao;
 import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
 import org.killbill.billing.plugin.simpletax.resolving.InvoiceItemEndDateBasedResolver;
 import org.killbill.billing.plugin.simpletax.resolving.fixtures.AbstractTaxResolver;
@@ -114,6 +121,7 @@ import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -167,6 +175,8 @@ public class TestSimpleTaxPlugin {
     private OSGIConfigPropertiesService cfgService;
     @Mock
     private OSGIKillbillClock clock;
+    @Mock
+    private ReconciledInvoiceDao reconciledInvoiceDao;
 
     private Logger logger;
     private SimpleTaxPlugin plugin;
@@ -184,6 +194,10 @@ public class TestSimpleTaxPlugin {
 
     @Captor
     private ArgumentCaptor<List<CustomField>> fields;
+    @Captor
+    private ArgumentCaptor<Map<UUID, Integer>> signatures;
+
+    private ImmutableMap.Builder<String, String> cfg;
 
     @BeforeClass(groups = "fast")
     public void init() throws Exception {
@@ -203,7 +217,7 @@ public class TestSimpleTaxPlugin {
         when(services.getCatalogUserApi()).thenReturn(catalogUserApi);
         when(services.getSecurityApi()).thenReturn(securityApi);
 
-        ImmutableMap.Builder<String, String> cfg = ImmutableMap.builder();
+        cfg = ImmutableMap.builder();
         String pfx = PROPERTY_PREFIX;
         cfg.put(pfx + "taxResolver", InvoiceItemEndDateBasedResolver.class.getName());
         cfg.put(pfx + "taxCodes." + VAT_20_0 + ".taxItem.description", "Test VAT");
@@ -236,10 +250,17 @@ public class TestSimpleTaxPlugin {
     }
 
     private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg) {
+        return pluginForConfig(cfg, null);
+    }
+
+    private SimpleTaxPlugin pluginForConfig(Map<String, String> cfg, ReconciledInvoiceDao reconciledInvoiceDao) {
         SimpleTaxConfigurationHandler cfgHandler = new SimpleTaxConfigurationHandler(PLUGIN_NAME, services);
         logger = Mockito.spy(Logger.class);
         cfgHandler.setDefaultConfigurable(new SimpleTaxConfig(cfg, logger));
-        return new SimpleTaxPlugin(cfgHandler, customFieldService, services, cfgService, clock, logger);
+        // Persist tax codes synchronously, and retry immediately
+        return new SimpleTaxPlugin(cfgHandler, customFieldService, null, reconciledInvoiceDao, services, cfgService,
+                clock,
+                directExecutor(), 1, 0L, logger);
     }
 
     private void initInvoices(String taxCode) {
@@ -512,6 +533,162 @@ public class TestSimpleTaxPlugin {
         assertEquals(items.get(0).getAmount(), new BigDecimal("1.80"));
     }
 
+    @Test(groups = "fast")
+    public void shouldReconcileHistoricalInvoicesInParallelInSameOrder() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceA, invoiceC, invoiceE, invoiceF, newInvoice);
+        List<InvoiceItem> expectedItems = plugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        SimpleTaxPlugin parallelPlugin = pluginForConfig(cfg//
+                .put(PROPERTY_PREFIX + "parallelReconciliation.threshold", "1")//
+                .build());
+
+        // When
+        List<InvoiceItem> items = parallelPlugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        // Then
+        assertTrue(expectedItems.size() >= 2);
+        assertEquals(items.size(), expectedItems.size());
+        for (int i = 0; i < items.size(); i++) {
+            InvoiceItem item = items.get(i);
+            InvoiceItem expectedItem = expectedItems.get(i);
+            assertEquals(item.getInvoiceItemType(), expectedItem.getInvoiceItemType());
+            assertEquals(item.getInvoiceId(), expectedItem.getInvoiceId());
+            assertEquals(item.getLinkedItemId(), expectedItem.getLinkedItemId());
+            assertEquals(item.getAmount(), expectedItem.getAmount());
+        }
+        parallelPlugin.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void shouldReconcileHistoricalInvoicesAgainWhenTheirTaxCodesChangeWithoutEvent() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceF, newInvoice);
+        assertEquals(plugin.getAdditionalInvoiceItems(newInvoice, false, properties, context).size(), 0);
+
+        taxFields.add(new CustomFieldBuilder()//
+                .withObjectType(INVOICE_ITEM).withObjectId(taxableF.get().getId())//
+                .withFieldName(TAX_CODES_FIELD_NAME).withFieldValue(VAT_20_0)//
+                .build());
+        withInvoices(invoiceF, newInvoice);
+
+        // When
+        List<InvoiceItem> items = plugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        // Then
+        assertEquals(items.size(), 1);
+        assertEquals(items.get(0).getInvoiceId(), invoiceF.getId());
+        assertEquals(items.get(0).getLinkedItemId(), taxableF.get().getId());
+        assertEquals(items.get(0).getAmount(), new BigDecimal("1.00"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReconcileHistoricalInvoicesInFullDryRun() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceC, newInvoice);
+
+        // When
+        List<InvoiceItem> items = plugin.getAdditionalInvoiceItems(newInvoice, true, properties, context);
+
+        // Then
+        assertEquals(items.size(), 1);
+        assertEquals(items.get(0).getAmount(), new BigDecimal("1.60"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSaveReconciledInvoicesButNotInDryRun() throws Exception {
+        // Given
+        initCatalogStub();
+        SimpleTaxPlugin plugin = pluginForConfig(cfg.build(), reconciledInvoiceDao);
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceF, newInvoice);
+        plugin.getAdditionalInvoiceItems(newInvoice, true, properties, context);
+        verify(reconciledInvoiceDao, never()).saveReconciledInvoices(any(UUID.class), any(UUID.class), anyInt(),
+                Matchers.<Map<UUID, Integer>> any());
+
+        // When
+        plugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        // Then
+        verify(reconciledInvoiceDao).saveReconciledInvoices(any(UUID.class), eq(account.getId()), anyInt(),
+                signatures.capture());
+        assertTrue(signatures.getValue().containsKey(invoiceF.getId()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSkipHistoricalInvoicesThatWereReconciledBeforeRestart() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceC, newInvoice);
+        int signature = AccountInvoiceIndex.of(asList(invoiceC, newInvoice), fieldsRelatedTo(invoiceC, newInvoice))
+                .signatureOf(invoiceC.getId());
+        when(reconciledInvoiceDao.getReconciledInvoices(any(UUID.class), eq(account.getId()), anyInt()))//
+                .thenReturn(ImmutableMap.of(invoiceC.getId(), signature));
+        SimpleTaxPlugin plugin = pluginForConfig(cfg.build(), reconciledInvoiceDao);
+
+        // When
+        List<InvoiceItem> items = plugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        // Then
+        assertEquals(items.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldOnlyTaxNewInvoiceInDryRunWithNewInvoiceOnlyPolicy() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceF;
+        withInvoices(invoiceC, newInvoice);
+
+        SimpleTaxPlugin dryRunPlugin = pluginForConfig(cfg//
+                .put(PROPERTY_PREFIX + "dryRun.policy", "NEW_INVOICE_ONLY")//
+                .build());
+
+        // When
+        List<InvoiceItem> items = dryRunPlugin.getAdditionalInvoiceItems(newInvoice, true, properties, context);
+
+        // Then
+        assertEquals(items.size(), 1);
+        InvoiceItem item = items.get(0);
+        assertEquals(item.getInvoiceId(), invoiceF.getId());
+        assertEquals(item.getInvoiceItemType(), TAX);
+        assertEquals(item.getLinkedItemId(), taxableF.get().getId());
+        assertEquals(item.getAmount(), new BigDecimal("1.00"));
+
+        verify(invoiceUserApi, never()).getInvoicesByAccount(any(UUID.class), eq(false), eq(false),
+                any(TenantContext.class));
+        verify(customFieldUserApi, never()).getCustomFieldsForAccountType(any(UUID.class), eq(INVOICE_ITEM),
+                any(TenantContext.class));
+        dryRunPlugin.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadHistoricalInvoicesInRealRunWithNewInvoiceOnlyPolicy() throws Exception {
+        // Given
+        initCatalogStub();
+        Invoice newInvoice = invoiceD;
+        withInvoices(invoiceC, newInvoice);
+
+        SimpleTaxPlugin dryRunPlugin = pluginForConfig(cfg//
+                .put(PROPERTY_PREFIX + "dryRun.policy", "NEW_INVOICE_ONLY")//
+                .build());
+
+        // When
+        List<InvoiceItem> items = dryRunPlugin.getAdditionalInvoiceItems(newInvoice, false, properties, context);
+
+        // Then
+        assertEquals(items.size(), 1);
+        assertEquals(items.get(0).getAmount(), new BigDecimal("1.60"));
+        dryRunPlugin.shutdown();
+    }
+
     @Test(groups = "fast")
     public void shouldCreateMissingTaxItemInNewlyCreatedInvoice() throws Exception {
         // Given
@@ -732,24 +909,68 @@ public class TestSimpleTaxPlugin {
         when(event.getObjectId()).thenReturn(invoiceId);
 
         // When
-        catchException(plugin).handleKillbillEvent(event);
+        plugin.handleKillbillEvent(event);
 
         // Then
-        Exception exc = caughtException();
-        assertNotNull(exc);
-        assertEquals(exc.getClass(), RuntimeException.class);
-        assertNotNull(exc.getCause());
-        assertEquals(exc.getCause().getClass(), CustomFieldApiException.class);
+        verify(customFieldUserApi, times(DEFAULT_MAX_ATTEMPTS)).addCustomFields(anyListOf(CustomField.class),
+                any(CallContext.class));
+        List<TaxCodeWrite> deadLetters = plugin.getTaxCodeWrites().getDeadLetters();
+        assertEquals(deadLetters.size(), 1);
+        assertEquals(deadLetters.get(0).getInvoiceItemId(), taxableD.get().getId());
 
         verify(logger).debug(anyString());
         verify(logger).info(anyString());
+        verify(logger, times(DEFAULT_MAX_ATTEMPTS - 1)).warn(anyString(), any(CustomFieldApiException.class));
 
         verify(logger).error(
-                argThat(allOf(containsStringIgnoringCase("cannot add custom field"), containsString(VAT_20_0))),
+                argThat(allOf(containsStringIgnoringCase("cannot add tax codes"), containsString(VAT_20_0))),
                 any(CustomFieldApiException.class));
         verifyNoMoreInteractions(logger);
     }
 
+    @Test(groups = "fast")
+    public void shouldReplayDeadLetteredTaxCodesOnceOtherWritesSucceed() throws Exception {
+        // Given
+        initCatalogStub();
+        doThrow(new CustomFieldApiException(UNEXPECTED_ERROR, ""))//
+                .when(customFieldUserApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+        withInvoices(invoiceD);
+        plugin.handleKillbillEvent(invoiceCreationEvent(invoiceD));
+        assertEquals(plugin.getTaxCodeWrites().getDeadLetters().size(), 1);
+
+        initCatalogStub();
+        Promise<InvoiceItem> taxable1 = holder(), taxable2 = holder();
+        Invoice newInvoice = invoiceWithTwoTaxableItems(taxable1, taxable2);
+        withInvoices(newInvoice);
+        doNothing().when(customFieldUserApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+
+        // When
+        plugin.handleKillbillEvent(invoiceCreationEvent(newInvoice));
+
+        // Then
+        assertTrue(plugin.getTaxCodeWrites().getDeadLetters().isEmpty());
+        assertEquals(plugin.getTaxCodeWrites().pendingSize(), 0);
+        verify(customFieldUserApi, times(DEFAULT_MAX_ATTEMPTS + 2)).addCustomFields(fields.capture(),
+                any(CallContext.class));
+        assertEquals(fields.getValue().size(), 1);
+        assertEquals(fields.getValue().get(0).getObjectId(), taxableD.get().getId());
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotPersistSameTaxCodesTwice() throws Exception {
+        // Given
+        initCatalogStub();
+        withInvoices(invoiceD);
+        ExtBusEvent event = invoiceCreationEvent(invoiceD);
+
+        // When
+        plugin.handleKillbillEvent(event);
+        plugin.handleKillbillEvent(event);
+
+        // Then
+        verify(customFieldUserApi, times(1)).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+    }
+
     @Test(groups = "fast")
     public void shouldCreateMissingTaxItemFromConfiguredTaxCodesForProduct() throws Exception {
         // Given
@@ -791,6 +1012,101 @@ public class TestSimpleTaxPlugin {
         assertEquals(customField.getFieldValue(), VAT_20_0);
     }
 
+    private Invoice invoiceWithTwoTaxableItems(Promise<InvoiceItem> taxable1, Promise<InvoiceItem> taxable2) {
+        return new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(RECURRING).withPlanName("planA").withAmount(SIX)//
+                        .withStartDate(lastMonth).withEndDate(today).thenSaveTo(taxable1))//
+                .withItem(new InvoiceItemBuilder()//
+                        .withType(RECURRING).withPlanName("planA").withAmount(SEVEN)//
+                        .withStartDate(lastMonth).withEndDate(today).thenSaveTo(taxable2))//
+                .build();
+    }
+
+    private ExtBusEvent invoiceCreationEvent(Invoice invoice) {
+        ExtBusEvent event = mock(ExtBusEvent.class);
+        when(event.getEventType()).thenReturn(INVOICE_CREATION);
+        when(event.getObjectType()).thenReturn(INVOICE);
+        UUID invoiceId = invoice.getId();
+        when(event.getObjectId()).thenReturn(invoiceId);
+        return event;
+    }
+
+    @Test(groups = "fast")
+    public void shouldPersistAllTaxCodesOfInvoiceInOneBatch() throws Exception {
+        // Given
+        initCatalogStub();
+        Promise<InvoiceItem> taxable1 = holder(), taxable2 = holder();
+        Invoice newInvoice = invoiceWithTwoTaxableItems(taxable1, taxable2);
+        withInvoices(newInvoice);
+
+        // When
+        plugin.handleKillbillEvent(invoiceCreationEvent(newInvoice));
+
+        // Then
+        verify(customFieldUserApi, times(1)).addCustomFields(fields.capture(), any(CallContext.class));
+        assertEquals(fields.getValue().size(), 2);
+        assertEquals(fields.getValue().get(0).getObjectId(), taxable1.get().getId());
+        assertEquals(fields.getValue().get(1).getObjectId(), taxable2.get().getId());
+        verify(securityApi, times(1)).logout();
+    }
+
+    @Test(groups = "fast")
+    public void shouldPersistTaxCodesOneByOneWhenBatchFails() throws Exception {
+        // Given
+        initCatalogStub();
+        Promise<InvoiceItem> taxable1 = holder(), taxable2 = holder();
+        Invoice newInvoice = invoiceWithTwoTaxableItems(taxable1, taxable2);
+        withInvoices(newInvoice);
+        doThrow(new CustomFieldApiException(UNEXPECTED_ERROR, ""))//
+                .doNothing()//
+                .doThrow(new CustomFieldApiException(UNEXPECTED_ERROR, ""))//
+                .when(customFieldUserApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+
+        // When
+        plugin.handleKillbillEvent(invoiceCreationEvent(newInvoice));
+
+        // Then
+        verify(customFieldUserApi, times(3 + DEFAULT_MAX_ATTEMPTS - 1)).addCustomFields(fields.capture(),
+                any(CallContext.class));
+        assertEquals(fields.getAllValues().get(0).size(), 2);
+        assertEquals(fields.getAllValues().get(1).size(), 1);
+        assertEquals(fields.getAllValues().get(2).size(), 1);
+        assertEquals(fields.getAllValues().get(3).get(0).getObjectId(), taxable2.get().getId());
+
+        List<TaxCodeWrite> deadLetters = plugin.getTaxCodeWrites().getDeadLetters();
+        assertEquals(deadLetters.size(), 1);
+        assertEquals(deadLetters.get(0).getInvoiceItemId(), taxable2.get().getId());
+        verify(logger).error(
+                argThat(allOf(containsStringIgnoringCase("cannot add tax codes"),
+                        containsString(taxable2.get().getId().toString()))), any(CustomFieldApiException.class));
+        verify(logger, never()).error(argThat(containsString(taxable1.get().getId().toString())),
+                any(Throwable.class));
+        verify(securityApi, times(1)).login(any(), any());
+        verify(securityApi, times(1)).logout();
+        assertEquals(plugin.getSecuritySessions().getLoginCount(), 1L);
+        assertEquals(plugin.getSecuritySessions().getReusedSessionCount(), DEFAULT_MAX_ATTEMPTS - 1L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldInvalidateAccountTaxFieldsWhenCustomFieldsChange() throws Exception {
+        // Given
+        UUID accountId = account.getId();
+        ExtBusEvent creation = mock(ExtBusEvent.class);
+        when(creation.getEventType()).thenReturn(CUSTOM_FIELD_CREATION);
+        when(creation.getAccountId()).thenReturn(accountId);
+        ExtBusEvent deletion = mock(ExtBusEvent.class);
+        when(deletion.getEventType()).thenReturn(CUSTOM_FIELD_DELETION);
+        when(deletion.getAccountId()).thenReturn(accountId);
+
+        // When
+        plugin.handleKillbillEvent(creation);
+        plugin.handleKillbillEvent(deletion);
+
+        // Then
+        verify(customFieldService, times(2)).invalidateAccount(null, accountId);
+    }
+
     @Test(groups = "fast")
     public void shouldFilterOutTaxCodesOnIrrelevantCountries() throws Exception {
         // Given
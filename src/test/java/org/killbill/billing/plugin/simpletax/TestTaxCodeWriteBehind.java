@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.googlecode.catchexception.CatchException.catchException;
+import static com.googlecode.catchexception.CatchException.caughtException;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.containsString;
+import static org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.DEFAULT_MAX_ATTEMPTS;
+import static org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.MAX_DEAD_LETTERS;
+import static org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.MAX_REPLAYS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.Sink;
+import org.killbill.billing.plugin.simpletax.TaxCodeWriteBehind.TaxCodeWrite;
+import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link TaxCodeWriteBehind}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodeWriteBehind {
+
+    private static final Map<TaxCodeWrite, Exception> NO_FAILURE = ImmutableMap.of();
+
+    @Mock
+    private Sink sink;
+    @Mock
+    private ScheduledExecutorService scheduler;
+    @Mock
+    private Logger logger;
+    @Captor
+    private ArgumentCaptor<List<TaxCodeWrite>> writes;
+    @Captor
+    private ArgumentCaptor<Runnable> retry;
+
+    private final TaxCode vat = new TaxCodeBuilder().withName("VAT_20_0%").build();
+    private final UUID accountId = randomUUID();
+    private final UUID invoiceId = randomUUID();
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        when(sink.write(any(UUID.class), anyListOf(TaxCodeWrite.class))).thenReturn(NO_FAILURE);
+    }
+
+    private TaxCodeWriteBehind writeBehind(Executor executor, int capacity) {
+        return writeBehind(executor, capacity, 0L);
+    }
+
+    private TaxCodeWriteBehind writeBehind(Executor executor, int capacity, long backoffMillis) {
+        return new TaxCodeWriteBehind(sink, executor, scheduler, 1, capacity, backoffMillis, logger);
+    }
+
+    private static Executor idleExecutor(final List<Runnable> tasks) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void shouldFlushAllWritesOfInvoiceAtOnce() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10);
+        UUID itemA = randomUUID(), itemB = randomUUID();
+
+        // When
+        ListenableFuture<Void> outcome = writeBehind.submit(null, accountId, invoiceId,
+                ImmutableMap.of(itemA, vat, itemB, vat));
+
+        // Then
+        assertTrue(outcome.isDone());
+        verify(sink).write(eq((UUID) null), writes.capture());
+        assertEquals(writes.getValue().size(), 2);
+        assertEquals(writes.getValue().get(0).getInvoiceItemId(), itemA);
+        assertEquals(writes.getValue().get(1).getInvoiceItemId(), itemB);
+        assertEquals(writeBehind.pendingSize(), 0);
+        verifyZeroInteractions(logger);
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreWritesThatHaveAlreadyBeenFlushed() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10);
+        Map<UUID, TaxCode> taxCodes = ImmutableMap.of(randomUUID(), vat);
+
+        // When
+        writeBehind.submit(null, accountId, invoiceId, taxCodes);
+        writeBehind.submit(null, accountId, invoiceId, taxCodes);
+
+        // Then
+        verify(sink, times(1)).write(any(UUID.class), anyListOf(TaxCodeWrite.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRetryOnlyFailedWrites() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10);
+        UUID itemA = randomUUID(), itemB = randomUUID();
+        TaxCodeWrite failedWrite = new TaxCodeWrite(null, accountId, invoiceId, itemB, vat.getName());
+        Map<TaxCodeWrite, Exception> failure = ImmutableMap.<TaxCodeWrite, Exception> of(failedWrite,
+                new IllegalStateException("boom"));
+        when(sink.write(any(UUID.class), anyListOf(TaxCodeWrite.class))).thenReturn(failure, NO_FAILURE);
+
+        // When
+        writeBehind.submit(null, accountId, invoiceId, ImmutableMap.of(itemA, vat, itemB, vat));
+
+        // Then
+        verify(sink, times(2)).write(eq((UUID) null), writes.capture());
+        assertEquals(writes.getAllValues().get(1).size(), 1);
+        assertEquals(writes.getAllValues().get(1).get(0), failedWrite);
+        assertTrue(writeBehind.getDeadLetters().isEmpty());
+        verify(logger).warn(anyString(), any(IllegalStateException.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldScheduleRetriesWithoutWaitingForThem() throws Exception {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10, 100L);
+        UUID itemId = randomUUID();
+        TaxCodeWrite write = new TaxCodeWrite(null, accountId, invoiceId, itemId, vat.getName());
+        Map<TaxCodeWrite, Exception> failure = ImmutableMap.<TaxCodeWrite, Exception> of(write,
+                new IllegalStateException("boom"));
+        when(sink.write(any(UUID.class), anyListOf(TaxCodeWrite.class))).thenReturn(failure, NO_FAILURE);
+
+        // When
+        ListenableFuture<Void> outcome = writeBehind.submit(null, accountId, invoiceId, ImmutableMap.of(itemId, vat));
+
+        // Then
+        verify(sink, times(1)).write(any(UUID.class), anyListOf(TaxCodeWrite.class));
+        verify(scheduler).schedule(retry.capture(), eq(100L), eq(MILLISECONDS));
+        assertFalse(outcome.isDone());
+        assertEquals(writeBehind.pendingSize(), 1);
+
+        // When
+        retry.getValue().run();
+
+        // Then
+        verify(sink, times(2)).write(any(UUID.class), anyListOf(TaxCodeWrite.class));
+        assertTrue(outcome.isDone());
+        outcome.get();
+        assertEquals(writeBehind.pendingSize(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDeadLetterWritesAfterTooManyAttempts() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10);
+        UUID itemId = randomUUID();
+        when(sink.write(any(UUID.class), anyListOf(TaxCodeWrite.class))).thenThrow(
+                new IllegalStateException("boom"));
+
+        // When
+        ListenableFuture<Void> outcome = writeBehind.submit(null, accountId, invoiceId, ImmutableMap.of(itemId, vat));
+
+        // Then
+        catchException(outcome).get();
+        Exception exc = caughtException();
+        assertNotNull(exc);
+        assertEquals(exc.getClass(), ExecutionException.class);
+        assertEquals(exc.getCause().getClass(), IllegalStateException.class);
+
+        verify(sink, times(DEFAULT_MAX_ATTEMPTS)).write(any(UUID.class), anyListOf(TaxCodeWrite.class));
+        assertEquals(writeBehind.getDeadLetters().size(), 1);
+        assertEquals(writeBehind.getDeadLetters().get(0).getInvoiceItemId(), itemId);
+        assertEquals(writeBehind.pendingSize(), 0);
+        verify(logger).error(anyString(), any(IllegalStateException.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldDeadLetterWritesWhenFullAndReplayThemOnceTenantSucceeds() {
+        // Given
+        List<Runnable> tasks = newArrayList();
+        TaxCodeWriteBehind writeBehind = writeBehind(idleExecutor(tasks), 1);
+        UUID itemA = randomUUID(), itemB = randomUUID();
+
+        // When
+        ListenableFuture<Void> outcome = writeBehind.submit(null, accountId, invoiceId,
+                ImmutableMap.of(itemA, vat, itemB, vat));
+
+        // Then
+        assertTrue(outcome.isDone());
+        verifyZeroInteractions(sink);
+        assertEquals(writeBehind.pendingSize(), 1);
+        assertEquals(writeBehind.getDeadLetters().size(), 1);
+        assertEquals(writeBehind.getDeadLetters().get(0).getInvoiceItemId(), itemB);
+
+        // When
+        tasks.get(0).run();
+
+        // Then
+        verify(sink, times(2)).write(eq((UUID) null), writes.capture());
+        assertEquals(writes.getAllValues().get(0).get(0).getInvoiceItemId(), itemA);
+        assertEquals(writes.getAllValues().get(1).get(0).getInvoiceItemId(), itemB);
+        assertTrue(writeBehind.getDeadLetters().isEmpty());
+        assertEquals(writeBehind.pendingSize(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDropOldestDeadLettersWhenTooMany() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(idleExecutor(Lists.<Runnable> newArrayList()), 1);
+        ImmutableMap.Builder<UUID, TaxCode> taxCodes = ImmutableMap.builder();
+        UUID firstDeadLetter = randomUUID();
+        taxCodes.put(randomUUID(), vat).put(firstDeadLetter, vat);
+        for (int i = 0; i < MAX_DEAD_LETTERS; i++) {
+            taxCodes.put(randomUUID(), vat);
+        }
+
+        // When
+        writeBehind.submit(null, accountId, invoiceId, taxCodes.build());
+
+        // Then
+        assertEquals(writeBehind.getDeadLetters().size(), MAX_DEAD_LETTERS);
+        assertFalse(writeBehind.getDeadLetters().get(0).getInvoiceItemId().equals(firstDeadLetter));
+        verify(logger).error(argThat(containsString(firstDeadLetter.toString())));
+    }
+
+    @Test(groups = "fast")
+    public void shouldDropDeadLettersThatStillFailAfterTooManyReplays() {
+        // Given
+        TaxCodeWriteBehind writeBehind = writeBehind(directExecutor(), 10);
+        final UUID rejectedItem = randomUUID();
+        when(sink.write(any(UUID.class), anyListOf(TaxCodeWrite.class))).thenAnswer(
+                new Answer<Map<TaxCodeWrite, Exception>>() {
+                    @Override
+                    public Map<TaxCodeWrite, Exception> answer(InvocationOnMock invocation) {
+                        @SuppressWarnings("unchecked")
+                        List<TaxCodeWrite> batch = (List<TaxCodeWrite>) invocation.getArguments()[1];
+                        ImmutableMap.Builder<TaxCodeWrite, Exception> failures = ImmutableMap.builder();
+                        for (TaxCodeWrite write : batch) {
+                            if (rejectedItem.equals(write.getInvoiceItemId())) {
+                                failures.put(write, new IllegalStateException("rejected"));
+                            }
+                        }
+                        return failures.build();
+                    }
+                });
+        writeBehind.submit(null, accountId, invoiceId, ImmutableMap.of(rejectedItem, vat));
+
+        // When
+        for (int i = 0; i <= MAX_REPLAYS; i++) {
+            writeBehind.submit(null, accountId, invoiceId, ImmutableMap.of(randomUUID(), vat));
+        }
+
+        // Then
+        verify(sink, times(DEFAULT_MAX_ATTEMPTS * (MAX_REPLAYS + 1) + MAX_REPLAYS + 1)).write(any(UUID.class),
+                anyListOf(TaxCodeWrite.class));
+        assertTrue(writeBehind.getDeadLetters().isEmpty());
+        assertEquals(writeBehind.pendingSize(), 0);
+        verify(logger).error(argThat(containsString("dropped after " + MAX_REPLAYS + " replays")),
+                any(IllegalStateException.class));
+    }
+}
@@ -26,6 +26,7 @@ import static org.joda.time.DateTimeZone.forOffsetHours;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.bigDecimal;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.convertTimeZone;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.country;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.enumConstant;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.integer;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.joinTaxCodes;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.localDate;
@@ -33,6 +34,7 @@ import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.res
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.splitTaxCodes;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.string;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.timeZone;
+import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toCanonicalUUIDOrNull;
 import static org.killbill.billing.plugin.simpletax.config.ConvertionHelpers.toUUIDOrNull;
 import static org.killbill.billing.test.helpers.TestUtil.assertEqualsIgnoreScale;
 import static org.testng.Assert.assertEquals;
@@ -41,6 +43,7 @@ import static org.testng.Assert.assertNull;
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
 import java.util.Map;
+import java.util.UUID;
 
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
@@ -305,6 +308,25 @@ public class TestConvertionHelpers {
         convertTimeZone(today, PARIS, null);
     }
 
+    @Test(groups = "fast")
+    public void shouldConvertEnumConstant() {
+        // Given
+        String policy = "dryRun.policy";
+
+        // Expect
+        assertNull(enumConstant(EMPTY_CFG, policy, DryRunPolicy.class, null));
+        assertEquals(enumConstant(EMPTY_CFG, policy, DryRunPolicy.class, DryRunPolicy.FULL), DryRunPolicy.FULL);
+        assertEquals(enumConstant(cfgOf(policy, " \t"), policy, DryRunPolicy.class, DryRunPolicy.FULL),
+                DryRunPolicy.FULL);
+        assertEquals(enumConstant(cfgOf(policy, "boom"), policy, DryRunPolicy.class, DryRunPolicy.FULL),
+                DryRunPolicy.FULL);
+
+        assertEquals(enumConstant(cfgOf(policy, "NEW_INVOICE_ONLY"), policy, DryRunPolicy.class, null),
+                DryRunPolicy.NEW_INVOICE_ONLY);
+        assertEquals(enumConstant(cfgOf(policy, " new_invoice_only\n"), policy, DryRunPolicy.class, null),
+                DryRunPolicy.NEW_INVOICE_ONLY);
+    }
+
     @Test(groups = "fast")
     public void shouldConvertTimeZone() {
         assertEquals(convertTimeZone(today, PARIS, LONDON), yesterday);
@@ -324,4 +346,22 @@ public class TestConvertionHelpers {
         assertEquals(toUUIDOrNull("12345678-1234-5678-abcd-123456789abc").toString(),
                 "12345678-1234-5678-abcd-123456789abc");
     }
+
+    @Test(groups = "fast")
+    public void shouldConvertCanonicalUUID() {
+        // Expect
+        assertNull(toCanonicalUUIDOrNull(null));
+        assertNull(toCanonicalUUIDOrNull(""));
+        assertNull(toCanonicalUUIDOrNull("1-2-3-4-5"));
+        assertNull(toCanonicalUUIDOrNull("12345678-1234-5678-abcd-123456789abc\t"));
+        assertNull(toCanonicalUUIDOrNull("12345678-1234-5678-abcd-123456789abg"));
+        assertNull(toCanonicalUUIDOrNull("12345678-1234-5678-abcd+123456789abc"));
+        assertNull(toCanonicalUUIDOrNull("43210000-23456789-ABCD-0000-7FFF1234"));
+        assertNull(toCanonicalUUIDOrNull("12345678-1234-5678-abcd-123456789ab\uFF10"));
+
+        assertEquals(toCanonicalUUIDOrNull("12345678-1234-5678-abcd-123456789abc"),
+                UUID.fromString("12345678-1234-5678-abcd-123456789abc"));
+        assertEquals(toCanonicalUUIDOrNull("FFFFFFFF-FFFF-FFFF-FFFF-FFFFFFFFFFFF"), new UUID(-1L, -1L));
+        assertEquals(toCanonicalUUIDOrNull("00000000-0000-0000-0000-000000000000"), new UUID(0L, 0L));
+    }
 }
@@ -28,6 +28,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
@@ -37,8 +39,10 @@ import java.util.Set;
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor;
 import org.killbill.billing.plugin.simpletax.internal.Country;
 import org.killbill.billing.plugin.simpletax.internal.TaxCode;
+import org.killbill.billing.plugin.simpletax.internal.TaxPlan;
 import org.killbill.billing.plugin.simpletax.resolving.InvoiceItemEndDateBasedResolver;
 import org.killbill.billing.plugin.simpletax.resolving.NullTaxResolver;
 import org.killbill.billing.plugin.simpletax.resolving.TaxResolver;
@@ -52,6 +56,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
@@ -267,6 +272,68 @@ public class TestSimpleTaxConfig {
         verifyNoMoreInteractions(logger);
     }
 
+    @Test(groups = "fast")
+    public void shouldDefineAsyncRequestLimitsOrFallBackToDefaults() {
+        // Given
+        Map<String, String> cfg = cfgBuilder()//
+                .putAll(WITH_NOOP_TAX_RESOLVER)//
+                .put("org.killbill.billing.plugin.simpletax.servlet.async.threads", "8")//
+                .put("org.killbill.billing.plugin.simpletax.servlet.async.maxRequestsPerTenant", "0")//
+                .put("org.killbill.billing.plugin.simpletax.servlet.async.timeoutSeconds", "boom")//
+                .build();
+        final Logger logger = Mockito.spy(Logger.class);
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logger);
+
+        // Expect
+        assertEquals(config.getAsyncThreads(), 8);
+        assertEquals(config.getAsyncMaxRequestsPerTenant(), AsyncRequestExecutor.DEFAULT_MAX_REQUESTS_PER_TENANT);
+        assertEquals(config.getAsyncTimeoutSeconds(), AsyncRequestExecutor.DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDefaultToFullDryRunPolicy() {
+        // Given
+        final Logger logger = Mockito.spy(Logger.class);
+        SimpleTaxConfig config = new SimpleTaxConfig(WITH_NOOP_TAX_RESOLVER, logger);
+
+        // Expect
+        assertEquals(config.getDryRunPolicy(), DryRunPolicy.FULL);
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDefineDryRunPolicy() {
+        // Given
+        Map<String, String> cfg = cfgBuilder()//
+                .putAll(WITH_NOOP_TAX_RESOLVER)//
+                .put("org.killbill.billing.plugin.simpletax.dryRun.policy", "new_invoice_only")//
+                .build();
+        final Logger logger = Mockito.spy(Logger.class);
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logger);
+
+        // Expect
+        assertEquals(config.getDryRunPolicy(), DryRunPolicy.NEW_INVOICE_ONLY);
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test(groups = "fast")
+    public void shouldEarlyComplainOnUnknownDryRunPolicy() {
+        // Given
+        Map<String, String> cfg = cfgBuilder()//
+                .putAll(WITH_NOOP_TAX_RESOLVER)//
+                .put("org.killbill.billing.plugin.simpletax.dryRun.policy", "boom")//
+                .build();
+        final Logger logger = Mockito.spy(Logger.class);
+
+        // When
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logger);
+
+        // Then
+        assertEquals(config.getDryRunPolicy(), DryRunPolicy.FULL);
+        verify(logger).warn(argThat(allOf(containsString("dry-run policy"), containsString("[boom]"))));
+        verifyNoMoreInteractions(logger);
+    }
+
     @Test(groups = "fast")
     public void shouldReturnTaxResolverConstructor() throws Exception {
         // Given
@@ -336,6 +403,29 @@ public class TestSimpleTaxConfig {
         verifyNoMoreInteractions(logger);
     }
 
+    @Test(groups = "fast")
+    public void shouldCompileTaxPlanOfDefinedTaxCodes() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .putAll(WITH_TAX_CODE_C)//
+                .put("org.killbill.billing.plugin.simpletax.products.productA", "plop, taxC, taxA")//
+                .build();
+        final Logger logger = Mockito.spy(Logger.class);
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logger);
+        reset(logger);
+
+        // When
+        TaxPlan plan = config.getTaxPlan();
+
+        // Then
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", new Country("FR"))),
+                ImmutableList.of(TAX_C, TAX_A));
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", new Country("US"))), ImmutableList.of(TAX_A));
+        assertNull(plan.timelineFor("productB", new Country("FR")));
+        verifyNoMoreInteractions(logger);
+    }
+
     @Test(groups = "fast")
     public void shouldReturnedTaxCodesOrComplain() {
         // Given
@@ -355,6 +445,48 @@ public class TestSimpleTaxConfig {
         verifyNoMoreInteractions(logger);
     }
 
+    @Test(groups = "fast")
+    public void shouldParseTaxCodesOnlyOnceButComplainEachTime() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .putAll(WITH_TAX_CODE_A)//
+                .build();
+        final Logger logger = Mockito.spy(Logger.class);
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg, logger);
+        reset(logger);
+
+        // When
+        Set<TaxCode> first = config.findTaxCodes("taxA, bim", "from plop");
+        Set<TaxCode> second = config.findTaxCodes("taxA, bim", "from plip");
+
+        // Then
+        assertSame(second, first);
+        assertEquals(config.getParsedTaxCodesStats().missCount(), 1L);
+        assertEquals(config.getParsedTaxCodesStats().hitCount(), 1L);
+        verify(logger).error(argThat(allOf(containsString("bim"), containsString("from plop"))));
+        verify(logger).error(argThat(allOf(containsString("bim"), containsString("from plip"))));
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadCredentialsOnlyOnce() {
+        // Given
+        Map<String, String> cfg = cfgBuilder().putAll(WITH_NOOP_TAX_RESOLVER)//
+                .put("org.killbill.billing.plugin.simpletax.credentials.username", "user")//
+                .put("org.killbill.billing.plugin.simpletax.credentials.password", "secret")//
+                .build();
+        SimpleTaxConfig config = new SimpleTaxConfig(cfg);
+
+        // When
+        Map<String, String> credentials = config.getCredentials();
+
+        // Then
+        assertSame(config.getCredentials(), credentials);
+        assertEquals(credentials.get("username"), "user");
+        assertEquals(credentials.get("password"), "secret");
+        assertNull(new SimpleTaxConfig(WITH_NOOP_TAX_RESOLVER).getCredentials().get("username"));
+    }
+
     private static Builder<String, String> cfgBuilder() {
         return ImmutableMap.<String, String> builder();
     }
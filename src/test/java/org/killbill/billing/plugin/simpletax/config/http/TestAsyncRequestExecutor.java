@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.util.UUID.randomUUID;
+import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.killbill.billing.plugin.simpletax.config.http.AsyncRequestExecutor.Task;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link AsyncRequestExecutor}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestAsyncRequestExecutor {
+
+    private static final long TIMEOUT_MILLIS = 1000L;
+
+    @Mock
+    private HttpServletRequest req;
+    @Mock
+    private HttpServletResponse resp;
+    @Mock
+    private AsyncContext async;
+    @Mock
+    private Task task;
+    @Captor
+    private ArgumentCaptor<AsyncListener> listener;
+
+    private UUID tenantId;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        tenantId = randomUUID();
+        when(req.startAsync(req, resp)).thenReturn(async);
+        when(async.getRequest()).thenReturn(req);
+        when(async.getResponse()).thenReturn(resp);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRunOnCallingThreadWhenAsyncIsNotSupported() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(false);
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(newDirectExecutorService(), 1, TIMEOUT_MILLIS);
+
+        // When
+        executor.execute(tenantId, req, resp, task);
+
+        // Then
+        verify(task).run(req, resp);
+        verify(req, never()).startAsync(req, resp);
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRunAsyncWithDeadlineAndComplete() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(newDirectExecutorService(), 1, TIMEOUT_MILLIS);
+
+        // When
+        executor.execute(tenantId, req, resp, task);
+
+        // Then
+        verify(async).setTimeout(TIMEOUT_MILLIS);
+        verify(async).addListener(any(AsyncListener.class));
+        verify(task).run(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        verify(async).complete();
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRefuseRequestsAboveTenantCap() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(false);
+        final AsyncRequestExecutor executor = new AsyncRequestExecutor(newDirectExecutorService(), 1,
+                TIMEOUT_MILLIS);
+        final HttpServletResponse sameTenantResp = mock(HttpServletResponse.class);
+        final HttpServletResponse otherTenantResp = mock(HttpServletResponse.class);
+        final Task otherTask = mock(Task.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                executor.execute(tenantId, req, sameTenantResp, otherTask);
+                executor.execute(randomUUID(), req, otherTenantResp, otherTask);
+                return null;
+            }
+        }).when(task).run(req, resp);
+
+        // When
+        executor.execute(tenantId, req, resp, task);
+
+        // Then
+        verify(sameTenantResp).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(otherTenantResp, never()).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(otherTask, times(1)).run(req, otherTenantResp);
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondUnavailableWhenDeadlineIsExceeded() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        ExecutorService pool = mock(ExecutorService.class);
+        Future<?> future = mock(Future.class);
+        doReturn(future).when(pool).submit(any(Runnable.class));
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(pool, 1, TIMEOUT_MILLIS);
+        executor.execute(tenantId, req, resp, task);
+
+        verify(async).addListener(listener.capture());
+        ArgumentCaptor<Runnable> work = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool).submit(work.capture());
+
+        // When
+        listener.getValue().onTimeout(null);
+        work.getValue().run();
+
+        // Then
+        verify(future).cancel(true);
+        verify(resp).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(async, times(1)).complete();
+        verify(task, never()).run(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondUnavailableWhenQueueIsFull() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        ExecutorService pool = mock(ExecutorService.class);
+        doThrow(new RejectedExecutionException()).when(pool).submit(any(Runnable.class));
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(pool, 1, TIMEOUT_MILLIS);
+
+        // When
+        executor.execute(tenantId, req, resp, task);
+
+        // Then
+        verify(resp).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(async).complete();
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondErrorWhenRequestFails() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        doThrow(new IllegalStateException()).when(task).run(any(HttpServletRequest.class),
+                any(HttpServletResponse.class));
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(newDirectExecutorService(), 1, TIMEOUT_MILLIS);
+
+        // When
+        executor.execute(tenantId, req, resp, task);
+
+        // Then
+        verify(resp).sendError(eq(SC_INTERNAL_SERVER_ERROR), anyString());
+        verify(async).complete();
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDropWritesOfWorkerOnceAbandoned() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        ServletOutputStream out = mock(ServletOutputStream.class);
+        when(resp.getOutputStream()).thenReturn(out);
+        ExecutorService pool = mock(ExecutorService.class);
+        doReturn(mock(Future.class)).when(pool).submit(any(Runnable.class));
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(pool, 1, TIMEOUT_MILLIS);
+        executor.execute(tenantId, req, resp, new Task() {
+            @Override
+            public void run(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                resp.getOutputStream().write(1);
+                listener.getValue().onTimeout(null);
+                resp.setStatus(SC_OK);
+                resp.getOutputStream().write(2);
+            }
+        });
+
+        verify(async).addListener(listener.capture());
+        ArgumentCaptor<Runnable> work = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool).submit(work.capture());
+
+        // When
+        work.getValue().run();
+
+        // Then
+        verify(out).write(1);
+        verify(out, never()).write(2);
+        verify(resp, never()).setStatus(SC_OK);
+        verify(resp).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(async, times(1)).complete();
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldAbandonRequestWithoutWaitingForBlockedWrites() throws Exception {
+        // Given
+        when(req.isAsyncSupported()).thenReturn(true);
+        ServletOutputStream out = mock(ServletOutputStream.class);
+        when(resp.getOutputStream()).thenReturn(out);
+        final Thread timeout = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.getValue().onTimeout(null);
+                } catch (IOException exc) {
+                    throw new IllegalStateException(exc);
+                }
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                // The client stalls: the deadline expires while the write blocks
+                timeout.start();
+                timeout.join(TIMEOUT_MILLIS);
+                return null;
+            }
+        }).when(out).write(1);
+        ExecutorService pool = mock(ExecutorService.class);
+        doReturn(mock(Future.class)).when(pool).submit(any(Runnable.class));
+        AsyncRequestExecutor executor = new AsyncRequestExecutor(pool, 1, TIMEOUT_MILLIS);
+        executor.execute(tenantId, req, resp, new Task() {
+            @Override
+            public void run(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                resp.getOutputStream().write(1);
+                resp.getOutputStream().write(2);
+            }
+        });
+
+        verify(async).addListener(listener.capture());
+        ArgumentCaptor<Runnable> work = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool).submit(work.capture());
+
+        // When
+        work.getValue().run();
+
+        // Then
+        assertFalse(timeout.isAlive());
+        verify(out, never()).write(2);
+        verify(resp).sendError(eq(SC_SERVICE_UNAVAILABLE), anyString());
+        verify(async, times(1)).complete();
+        assertEquals(executor.requestsInProgress(tenantId), 0);
+    }
+}
@@ -25,9 +25,13 @@ import static org.hamcrest.Matchers.containsString;
 import static org.killbill.billing.ErrorCode.UNEXPECTED_ERROR;
 import static org.killbill.billing.ObjectType.ACCOUNT;
 import static org.killbill.billing.ObjectType.INVOICE;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
 import static org.killbill.billing.test.helpers.CustomFieldBuilder.copy;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
@@ -36,6 +40,7 @@ import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -47,7 +52,9 @@ import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.killbill.billing.ObjectType;
@@ -65,7 +72,9 @@ import org.slf4j.Logger;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
 
 /**
  * @author Benjamin Gandon
@@ -160,6 +169,59 @@ public class TestCustomFieldService {
         assertEquals(field3.getFieldValue(), "page2");
     }
 
+    @Test(groups = "fast")
+    public void shouldSearchAccountFieldsLazilyOnePageAtATime() throws Exception {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        reset(pageStart, pageMiddle, pageEnd);
+        withThreePagesOfSearchResults(tenant);
+        final Logger logger = Mockito.spy(Logger.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logger);
+
+        // When
+        Iterator<CustomField> fields = service.iterateAccountFieldsByFieldNameAndTenant("toto", tenant).iterator();
+
+        // Then
+        verify(customFieldApi, never()).searchCustomFields(anyString(), anyLong(), anyLong(), eq(tenant));
+
+        // When
+        CustomField first = fields.next();
+
+        // Then
+        assertEquals(first.getFieldValue(), "page0-account");
+        verify(customFieldApi, never()).searchCustomFields(anyString(), eq(PAGE_SIZE), eq(PAGE_SIZE), eq(tenant));
+        verify(pageStart).close();
+
+        // When
+        List<CustomField> others = newArrayList(fields);
+
+        // Then
+        assertEquals(others.size(), 2);
+        assertEquals(others.get(0).getFieldValue(), "page1-toto");
+        assertEquals(others.get(1).getFieldValue(), "page2");
+        verify(pageEnd).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindOnePageOfAccountFields() throws Exception {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        reset(pageStart, pageMiddle, pageEnd);
+        withThreePagesOfSearchResults(tenant);
+        final Logger logger = Mockito.spy(Logger.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logger);
+
+        // When
+        ListingPage<CustomField> page = service.findAccountFieldsByFieldNameAndTenant("toto", PAGE_SIZE, PAGE_SIZE,
+                tenant);
+
+        // Then
+        assertEquals(page.getElements().size(), 1);
+        assertEquals(page.getElements().get(0).getFieldValue(), "page1-toto");
+        assertEquals(page.getNextOffset(), Long.valueOf(2 * PAGE_SIZE));
+        verify(pageMiddle).close();
+    }
+
     private void withAccountFields(List<CustomField> fields, TenantContext tenant) {
         when(customFieldApi.getCustomFieldsForObject(any(UUID.class), any(ObjectType.class), eq(tenant)))//
                 .thenReturn(fields);
@@ -223,6 +285,111 @@ public class TestCustomFieldService {
         assertEquals(field.getFieldValue(), "bingo!");
     }
 
+    @Test(groups = "fast")
+    public void shouldFindAllInvoiceItemFieldsOfAccountInOneCall() {
+        // Given
+        TenantContext tenant = mock(TenantContext.class);
+        UUID accountId = randomUUID();
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldBuilder builder = new CustomFieldBuilder().withObjectType(INVOICE_ITEM);
+        when(customFieldApi.getCustomFieldsForAccountType(accountId, INVOICE_ITEM, tenant))//
+                .thenReturn(newArrayList(//
+                        copy(builder).withFieldName("toto").withFieldValue("item1").build(),//
+                        copy(builder).withFieldName("plop").withFieldValue("item1").build(),//
+                        copy(builder).withFieldName("toto").withFieldValue("item2").build()));
+        final Logger logger = Mockito.spy(Logger.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logger);
+
+        // When
+        List<CustomField> fields = service.findAllInvoiceItemFieldsByFieldNameAndAccount("toto", accountId, tenant);
+
+        // Then
+        assertEquals(fields.size(), 2);
+        assertEquals(fields.get(0).getFieldValue(), "item1");
+        assertEquals(fields.get(1).getFieldValue(), "item2");
+        verify(customFieldApi, times(1)).getCustomFieldsForAccountType(accountId, INVOICE_ITEM, tenant);
+        verify(customFieldApi, never()).getCustomFieldsForObject(any(UUID.class), any(ObjectType.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldFetchAccountTaxFieldsOnlyOnce() {
+        // Given
+        UUID accountId = randomUUID();
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant)).thenReturn(
+                newArrayList(//
+                        new CustomFieldBuilder().withObjectType(ACCOUNT).withObjectId(accountId)//
+                                .withFieldName(TAX_COUNTRY_CUSTOM_FIELD_NAME).withFieldValue("FR").build(),//
+                        new CustomFieldBuilder().withObjectType(ACCOUNT).withObjectId(accountId)//
+                                .withFieldName(VATIN_CUSTOM_FIELD_NAME).withFieldValue("FR78666666666").build()));
+        CustomFieldService service = new CustomFieldService(customFieldApi, Mockito.spy(Logger.class));
+
+        // When
+        CustomField taxCountry = service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME,
+                accountId, defaultTenant);
+        CustomField vatin = service.findFieldByNameAndAccountAndTenant(VATIN_CUSTOM_FIELD_NAME, accountId,
+                defaultTenant);
+        CustomField taxCountryAgain = service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME,
+                accountId, defaultTenant);
+
+        // Then
+        assertEquals(taxCountry.getFieldValue(), "FR");
+        assertEquals(vatin.getFieldValue(), "FR78666666666");
+        assertEquals(taxCountryAgain, taxCountry);
+        verify(customFieldApi, times(1)).getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant);
+        assertEquals(service.getAccountTaxFieldsStats().missCount(), 1L);
+        assertEquals(service.getAccountTaxFieldsStats().hitCount(), 2L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldFetchAccountTaxFieldsAgainWhenSavedOrInvalidated() {
+        // Given
+        UUID accountId = randomUUID();
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, Mockito.spy(Logger.class));
+        assertNull(service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId,
+                defaultTenant));
+
+        // When
+        service.saveAccountField("FR", TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+        service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+        service.invalidateAccount(defaultTenant.getTenantId(), accountId);
+        service.findFieldByNameAndAccountAndTenant(VATIN_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+
+        // Then
+        // One more fetch is made by the save itself
+        verify(customFieldApi, times(4)).getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant);
+        assertEquals(service.getAccountTaxFieldsStats().hitCount(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotCacheAccountTaxFieldsReadBeforeInvalidation() {
+        // Given
+        final UUID accountId = randomUUID();
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        final CustomFieldService service = new CustomFieldService(customFieldApi, Mockito.spy(Logger.class));
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant)).thenAnswer(
+                new Answer<List<CustomField>>() {
+                    @Override
+                    public List<CustomField> answer(InvocationOnMock invocation) {
+                        // The fields are saved while the old ones are being read
+                        service.invalidateAccount(defaultTenant.getTenantId(), accountId);
+                        return newArrayList(new CustomFieldBuilder().withObjectType(ACCOUNT)
+                                .withObjectId(accountId).withFieldName(TAX_COUNTRY_CUSTOM_FIELD_NAME)
+                                .withFieldValue("FR").build());
+                    }
+                });
+
+        // When
+        service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+        service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+
+        // Then
+        verify(customFieldApi, times(2)).getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant);
+        assertEquals(service.getAccountTaxFieldsStats().hitCount(), 0L);
+    }
+
     @Test(groups = "fast")
     public void shouldSaveFieldWhenNoneAlreadyExists() throws Exception {
         // Given
@@ -499,4 +666,137 @@ public class TestCustomFieldService {
         assertTrue(contains(errMsg2, "tata"));
         assertTrue(contains(errMsg2, accountId.toString()));
     }
+
+    @Test(groups = "fast")
+    public void shouldSaveFieldsOfManyAccountsInOneBatch() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        final Logger logger = Mockito.spy(Logger.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logger);
+
+        UUID accountA = randomUUID(), accountB = randomUUID();
+        when(customFieldApi.getCustomFieldsForObject(accountA, ACCOUNT, defaultTenant))//
+                .thenReturn(newArrayList(new CustomFieldBuilder()//
+                        .withObjectType(ACCOUNT).withObjectId(accountA)//
+                        .withFieldName("toto").withFieldValue("tata")//
+                        .build(), new CustomFieldBuilder()//
+                        .withObjectType(ACCOUNT).withObjectId(accountA)//
+                        .withFieldName("plop").withFieldValue("plip")//
+                        .build()));
+        when(customFieldApi.getCustomFieldsForObject(accountB, ACCOUNT, defaultTenant))//
+                .thenReturn(null);
+
+        Table<UUID, String, String> newValues = HashBasedTable.create();
+        newValues.put(accountA, "toto", "titi");
+        newValues.put(accountA, "plop", "plip");
+        newValues.put(accountB, "toto", "tutu");
+
+        // When
+        Set<UUID> failedAccounts = service.saveAccountFields(newValues, defaultTenant);
+
+        // Then
+        assertTrue(failedAccounts.isEmpty());
+        verify(customFieldApi).removeCustomFields(removedFields.capture(), any(CallContext.class));
+        assertEquals(removedFields.getValue().size(), 1);
+        assertEquals(removedFields.getValue().get(0).getFieldValue(), "tata");
+
+        verify(customFieldApi).addCustomFields(addedFields.capture(), any(CallContext.class));
+        assertEquals(addedFields.getValue().size(), 2);
+        for (CustomField addedField : addedFields.getValue()) {
+            assertEquals(addedField.getObjectType(), ACCOUNT);
+            assertEquals(addedField.getFieldName(), "toto");
+        }
+
+        verifyZeroInteractions(logger);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadPreviousTaxFieldsThroughCache() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, Mockito.spy(Logger.class));
+
+        UUID accountId = randomUUID();
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant))//
+                .thenReturn(newArrayList(new CustomFieldBuilder()//
+                        .withObjectType(ACCOUNT).withObjectId(accountId)//
+                        .withFieldName(TAX_COUNTRY_CUSTOM_FIELD_NAME).withFieldValue("FR")//
+                        .build()));
+        service.findFieldByNameAndAccountAndTenant(TAX_COUNTRY_CUSTOM_FIELD_NAME, accountId, defaultTenant);
+
+        Table<UUID, String, String> newValues = HashBasedTable.create();
+        newValues.put(accountId, TAX_COUNTRY_CUSTOM_FIELD_NAME, "DE");
+        newValues.put(accountId, VATIN_CUSTOM_FIELD_NAME, "DE123456789");
+
+        // When
+        Set<UUID> failedAccounts = service.saveAccountFields(newValues, defaultTenant);
+
+        // Then
+        assertTrue(failedAccounts.isEmpty());
+        verify(customFieldApi, times(1)).getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant);
+        verify(customFieldApi).removeCustomFields(removedFields.capture(), any(CallContext.class));
+        assertEquals(removedFields.getValue().size(), 1);
+        assertEquals(removedFields.getValue().get(0).getFieldValue(), "FR");
+        verify(customFieldApi).addCustomFields(addedFields.capture(), any(CallContext.class));
+        assertEquals(addedFields.getValue().size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotWriteUnchangedFields() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, Mockito.spy(Logger.class));
+
+        UUID accountId = randomUUID();
+        when(customFieldApi.getCustomFieldsForObject(accountId, ACCOUNT, defaultTenant))//
+                .thenReturn(newArrayList(new CustomFieldBuilder()//
+                        .withObjectType(ACCOUNT).withObjectId(accountId)//
+                        .withFieldName("toto").withFieldValue("tata")//
+                        .build()));
+
+        Table<UUID, String, String> newValues = HashBasedTable.create();
+        newValues.put(accountId, "toto", "tata");
+
+        // When
+        Set<UUID> failedAccounts = service.saveAccountFields(newValues, defaultTenant);
+
+        // Then
+        assertTrue(failedAccounts.isEmpty());
+        verify(customFieldApi, never()).removeCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+        verify(customFieldApi, never()).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSaveFieldsOneByOneWhenBatchFails() throws Exception {
+        // Given
+        CustomFieldUserApi customFieldApi = mock(CustomFieldUserApi.class);
+        final Logger logger = Mockito.spy(Logger.class);
+        CustomFieldService service = new CustomFieldService(customFieldApi, logger);
+
+        final UUID accountA = randomUUID(), accountB = randomUUID();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<CustomField> fields = (List<CustomField>) invocation.getArguments()[0];
+                if ((fields.size() > 1) || accountB.equals(fields.get(0).getObjectId())) {
+                    throw new CustomFieldApiException(UNEXPECTED_ERROR, "test");
+                }
+                return null;
+            }
+        }).when(customFieldApi).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+
+        Table<UUID, String, String> newValues = HashBasedTable.create();
+        newValues.put(accountA, "toto", "titi");
+        newValues.put(accountB, "toto", "tutu");
+
+        // When
+        Set<UUID> failedAccounts = service.saveAccountFields(newValues, defaultTenant);
+
+        // Then
+        assertEquals(failedAccounts.size(), 1);
+        assertTrue(failedAccounts.contains(accountB));
+        verify(customFieldApi, times(3)).addCustomFields(anyListOf(CustomField.class), any(CallContext.class));
+        verify(logger).warn(anyString(), any(CustomFieldApiException.class));
+    }
 }
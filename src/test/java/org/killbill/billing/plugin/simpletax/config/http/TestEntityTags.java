@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static org.killbill.billing.ObjectType.ACCOUNT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.killbill.billing.plugin.simpletax.util.ImmutableCustomField;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.util.customfield.CustomField;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link EntityTags}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestEntityTags {
+
+    private final CustomField field = new CustomFieldBuilder()//
+            .withObjectType(ACCOUNT).withFieldName("taxCountry").withFieldValue("FR")//
+            .build();
+
+    @Test(groups = "fast")
+    public void shouldComputeSameQuotedTagForSameFields() {
+        // When
+        String tag = EntityTags.ofFields(field);
+
+        // Then
+        assertTrue(tag.startsWith("\"") && tag.endsWith("\""));
+        assertEquals(EntityTags.ofFields(ImmutableCustomField.builder(field).build()), tag);
+    }
+
+    @Test(groups = "fast")
+    public void shouldComputeOtherTagWhenFieldChanges() {
+        // Given
+        String tag = EntityTags.ofFields(field);
+
+        // Expect
+        assertNotEquals(EntityTags.ofFields(ImmutableCustomField.builder(field).withFieldValue("US").build()), tag);
+        assertNotEquals(EntityTags.ofFields(new CustomFieldBuilder()//
+                .withObjectType(ACCOUNT).withFieldName("taxCountry").withFieldValue("FR")//
+                .build()), tag);
+        assertNotEquals(EntityTags.ofFields((CustomField) null), tag);
+        assertNotEquals(EntityTags.ofFields(field, null), tag);
+    }
+
+    @Test(groups = "fast")
+    public void shouldMatchIfNoneMatchHeaders() {
+        // Given
+        String tag = EntityTags.ofFields(field);
+
+        // Expect
+        assertTrue(EntityTags.matches(tag, tag));
+        assertTrue(EntityTags.matches("*", tag));
+        assertTrue(EntityTags.matches("\"plop\", " + tag, tag));
+        assertTrue(EntityTags.matches("W/" + tag, tag));
+
+        assertFalse(EntityTags.matches(null, tag));
+        assertFalse(EntityTags.matches("", tag));
+        assertFalse(EntityTags.matches("\"plop\"", tag));
+        assertFalse(EntityTags.matches(tag.substring(1, tag.length() - 1), tag));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.TAX_COUNTRY_CUSTOM_FIELD_NAME;
+import static org.killbill.billing.plugin.simpletax.config.http.CustomFieldService.VATIN_CUSTOM_FIELD_NAME;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.simpletax.config.http.ImportController.ImportReportRsc;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
+
+/**
+ * Tests for {@link ImportController}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestImportController {
+    private static final String FR_TEST6_NUM = "FR78666666666";
+
+    @Mock
+    private CustomFieldService customFieldService;
+    @Mock
+    private Tenant tenant;
+
+    private final List<Table<UUID, String, String>> savedBatches = Lists.newArrayList();
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        savedBatches.clear();
+        when(tenant.getId()).thenReturn(randomUUID());
+        when(customFieldService.saveAccountFields(any(Table.class), any(TenantContext.class))).then(
+                new Answer<ImmutableSet<UUID>>() {
+                    @Override
+                    public ImmutableSet<UUID> answer(InvocationOnMock invocation) throws Throwable {
+                        // Batches are cleared after having been saved
+                        @SuppressWarnings("unchecked")
+                        Table<UUID, String, String> batch = (Table<UUID, String, String>) invocation.getArguments()[0];
+                        savedBatches.add(HashBasedTable.create(batch));
+                        return ImmutableSet.of();
+                    }
+                });
+    }
+
+    private static String record(UUID accountId, String taxCountry, String vatin) {
+        StringBuilder record = new StringBuilder("{\"accountId\":\"").append(accountId).append('"');
+        if (taxCountry != null) {
+            record.append(",\"taxCountry\":\"").append(taxCountry).append('"');
+        }
+        if (vatin != null) {
+            record.append(",\"vatin\":\"").append(vatin).append('"');
+        }
+        return record.append('}').toString();
+    }
+
+    private static StringReader ndjson(String... lines) {
+        return new StringReader(Joiner.on('\n').join(lines));
+    }
+
+    @Test(groups = "fast")
+    public void shouldSaveRecordsInBatches() throws Exception {
+        // Given
+        ImportController controller = new ImportController(customFieldService, 2);
+        UUID account1 = randomUUID(), account2 = randomUUID(), account3 = randomUUID();
+
+        // When
+        ImportReportRsc report = controller.importAccountTaxFields(ndjson(//
+                record(account1, "FR", FR_TEST6_NUM),//
+                "",//
+                record(account2, "US", null),//
+                record(account3, null, FR_TEST6_NUM)), tenant);
+
+        // Then
+        assertEquals(report.records, 3);
+        assertEquals(report.saved, 3);
+        assertEquals(report.failed, 0);
+        assertEquals(savedBatches.size(), 2);
+        assertEquals(savedBatches.get(0).get(account1, TAX_COUNTRY_CUSTOM_FIELD_NAME), "FR");
+        assertEquals(savedBatches.get(0).get(account1, VATIN_CUSTOM_FIELD_NAME), FR_TEST6_NUM);
+        assertEquals(savedBatches.get(0).get(account2, TAX_COUNTRY_CUSTOM_FIELD_NAME), "US");
+        assertNull(savedBatches.get(0).get(account2, VATIN_CUSTOM_FIELD_NAME));
+        assertEquals(savedBatches.get(1).rowKeySet(), ImmutableSet.of(account3));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReportInvalidLinesAndSaveOthers() throws Exception {
+        // Given
+        ImportController controller = new ImportController(customFieldService);
+        UUID account = randomUUID();
+
+        // When
+        ImportReportRsc report = controller.importAccountTaxFields(ndjson(//
+                "{plop",//
+                "{\"taxCountry\":\"FR\"}",//
+                record(randomUUID(), null, null),//
+                record(randomUUID(), "ZZ", null),//
+                record(randomUUID(), null, "FR00000000000"),//
+                record(account, "FR", null)), tenant);
+
+        // Then
+        assertEquals(report.records, 6);
+        assertEquals(report.saved, 1);
+        assertEquals(report.failed, 5);
+        assertEquals(report.errors.size(), 5);
+        for (int i = 0; i < report.errors.size(); i++) {
+            assertEquals(report.errors.get(i).line, i + 1);
+        }
+        assertNull(report.errors.get(0).accountId);
+        assertEquals(savedBatches.size(), 1);
+        assertEquals(savedBatches.get(0).rowKeySet(), ImmutableSet.of(account));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReportAllLinesOfFailedAccounts() throws Exception {
+        // Given
+        ImportController controller = new ImportController(customFieldService);
+        UUID failing = randomUUID(), saved = randomUUID();
+        doReturn(ImmutableSet.of(failing)).when(customFieldService)//
+                .saveAccountFields(any(Table.class), any(TenantContext.class));
+
+        // When
+        ImportReportRsc report = controller.importAccountTaxFields(ndjson(//
+                record(failing, "FR", null),//
+                record(saved, "FR", null),//
+                record(failing, null, FR_TEST6_NUM)), tenant);
+
+        // Then
+        assertEquals(report.saved, 1);
+        assertEquals(report.failed, 2);
+        assertEquals(report.errors.get(0).line, 1);
+        assertEquals(report.errors.get(0).accountId, failing);
+        assertEquals(report.errors.get(1).line, 3);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotSaveAnythingWithoutValidRecords() throws Exception {
+        // Given
+        ImportController controller = new ImportController(customFieldService);
+
+        // When
+        ImportReportRsc report = controller.importAccountTaxFields(ndjson("", "  "), tenant);
+
+        // Then
+        assertEquals(report.records, 0);
+        verify(customFieldService, never()).saveAccountFields(any(Table.class), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldMergeRecordsOfSameAccountInBatch() throws Exception {
+        // Given
+        ImportController controller = new ImportController(customFieldService);
+        UUID account = randomUUID();
+
+        // When
+        ImportReportRsc report = controller.importAccountTaxFields(ndjson(//
+                record(account, "US", null),//
+                record(account, "FR", FR_TEST6_NUM)), tenant);
+
+        // Then
+        assertEquals(report.saved, 2);
+        verify(customFieldService, times(1)).saveAccountFields(any(Table.class), any(TenantContext.class));
+        assertEquals(savedBatches.get(0).get(account, TAX_COUNTRY_CUSTOM_FIELD_NAME), "FR");
+        assertEquals(savedBatches.get(0).get(account, VATIN_CUSTOM_FIELD_NAME), FR_TEST6_NUM);
+    }
+}
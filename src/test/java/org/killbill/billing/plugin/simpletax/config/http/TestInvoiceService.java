@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ErrorCode.INVOICE_NOT_FOUND;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link InvoiceService}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestInvoiceService {
+
+    @Mock
+    private InvoiceUserApi invoiceApi;
+    @Mock
+    private TenantContext tenantContext;
+
+    private Promise<InvoiceItem> item;
+    private Invoice invoice;
+    private InvoiceItemIndex index;
+    private InvoiceService service;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        item = holder();
+        invoice = new InvoiceBuilder(buildAccount(EUR, "FR"))//
+                .withItem(new InvoiceItemBuilder().withType(EXTERNAL_CHARGE).thenSaveTo(item))//
+                .build();
+        index = new InvoiceItemIndex();
+        service = new InvoiceService(invoiceApi, index);
+    }
+
+    @Test(groups = "fast")
+    public void shouldGetIndexedInvoiceDirectly() throws Exception {
+        // Given
+        index.index(null, invoice);
+        when(invoiceApi.getInvoice(invoice.getId(), tenantContext)).thenReturn(invoice);
+
+        // When
+        Invoice found = service.findInvoiceByInvoiceItem(item.get().getId(), tenantContext);
+
+        // Then
+        assertSame(found, invoice);
+        verify(invoiceApi, never()).getInvoiceByInvoiceItem(any(UUID.class), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldIndexInvoiceFoundByItem() throws Exception {
+        // Given
+        UUID itemId = item.get().getId();
+        when(invoiceApi.getInvoiceByInvoiceItem(itemId, tenantContext)).thenReturn(invoice);
+        when(invoiceApi.getInvoice(invoice.getId(), tenantContext)).thenReturn(invoice);
+
+        // When
+        service.findInvoiceByInvoiceItem(itemId, tenantContext);
+        Invoice found = service.findInvoiceByInvoiceItem(itemId, tenantContext);
+
+        // Then
+        assertSame(found, invoice);
+        assertEquals(index.invoiceIdOf(null, itemId), invoice.getId());
+        verify(invoiceApi, times(1)).getInvoiceByInvoiceItem(itemId, tenantContext);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnNullWhenNoInvoiceContainsItem() throws Exception {
+        // Given
+        UUID itemId = randomUUID();
+        when(invoiceApi.getInvoiceByInvoiceItem(itemId, tenantContext)).thenThrow(
+                new InvoiceApiException(INVOICE_NOT_FOUND, itemId));
+
+        // Expect
+        assertNull(service.findInvoiceByInvoiceItem(itemId, tenantContext));
+        assertNull(index.invoiceIdOf(null, itemId));
+    }
+
+    @Test(groups = "fast")
+    public void shouldIndexItemsOfListedInvoice() throws Exception {
+        // Given
+        when(invoiceApi.getInvoice(invoice.getId(), tenantContext)).thenReturn(invoice);
+
+        // When
+        service.findAllInvoiceItemsByInvoice(invoice.getId(), tenantContext);
+
+        // Then
+        assertEquals(index.invoiceIdOf(null, item.get().getId()), invoice.getId());
+    }
+}
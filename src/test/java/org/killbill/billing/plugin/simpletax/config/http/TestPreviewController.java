@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.math.BigDecimal.ZERO;
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.PROPERTY_PREFIX;
+import static org.killbill.billing.test.helpers.TestUtil.assertEqualsIgnoreScale;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.math.BigDecimal;
+
+import org.killbill.billing.catalog.api.CatalogUserApi;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewItemGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewItemPOSTRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewPOSTRsc;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache;
+import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
+import org.killbill.billing.plugin.simpletax.resolving.InvoiceItemEndDateBasedResolver;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link PreviewController}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestPreviewController {
+
+    private static final String VAT_20_0 = "VAT_20_0%";
+    private static final Country FRANCE = new Country("FR");
+    private static final Country USA = new Country("US");
+
+    @Mock
+    private SimpleTaxConfigurationHandler configHandler;
+    @Mock
+    private CatalogUserApi catalogApi;
+    @Mock
+    private StaticCatalog catalog;
+    @Mock
+    private Plan plan;
+    @Mock
+    private Product product;
+    @Mock
+    private Tenant tenant;
+
+    private PreviewController controller;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        initMocks(this);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        String pfx = PROPERTY_PREFIX;
+        SimpleTaxConfig cfg = new SimpleTaxConfig(ImmutableMap.<String, String> builder()//
+                .put(pfx + "taxResolver", InvoiceItemEndDateBasedResolver.class.getName())//
+                .put(pfx + "taxCodes." + VAT_20_0 + ".taxItem.description", "Test VAT")//
+                .put(pfx + "taxCodes." + VAT_20_0 + ".rate", "0.20")//
+                .put(pfx + "taxCodes." + VAT_20_0 + ".country", "FR")//
+                .put(pfx + "products.planA-product", VAT_20_0)//
+                .build());
+        when(configHandler.getConfigurable(tenant.getId())).thenReturn(cfg);
+
+        when(catalogApi.getCurrentCatalog(any(String.class), any(TenantContext.class))).thenReturn(catalog);
+        when(catalog.findPlan("planA")).thenReturn(plan);
+        when(plan.getProduct()).thenReturn(product);
+        when(product.getName()).thenReturn("planA-product");
+
+        controller = new PreviewController(configHandler, new PlanProductCache(), catalogApi);
+    }
+
+    private static PreviewItemPOSTRsc item(String planName, String productName, String amount) {
+        return new PreviewItemPOSTRsc(planName, productName, new BigDecimal(amount), "2015-01-01", "2015-02-01");
+    }
+
+    @Test(groups = "fast")
+    public void shouldPreviewTaxesOfProducts() {
+        // Given
+        PreviewPOSTRsc preview = new PreviewPOSTRsc(FRANCE, null, ImmutableList.of(//
+                item(null, "planA-product", "10.00"), item(null, "other-product", "5.00")));
+
+        // When
+        PreviewGETRsc rsc = controller.previewTaxes(preview, tenant);
+
+        // Then
+        assertEquals(rsc.items.size(), 2);
+        PreviewItemGETRsc taxed = rsc.items.get(0);
+        assertEquals(taxed.taxCode, VAT_20_0);
+        assertEquals(taxed.taxItemDescription, "Test VAT");
+        assertEqualsIgnoreScale(taxed.taxAmount, new BigDecimal("2.00"));
+        PreviewItemGETRsc untaxed = rsc.items.get(1);
+        assertNull(untaxed.taxCode);
+        assertEqualsIgnoreScale(untaxed.taxAmount, ZERO);
+        assertEqualsIgnoreScale(rsc.totalTaxAmount, new BigDecimal("2.00"));
+        verifyZeroInteractions(catalogApi);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLookUpProductsOfPlansOnlyOnce() throws Exception {
+        // Given
+        PreviewPOSTRsc preview = new PreviewPOSTRsc(FRANCE, null, ImmutableList.of(item("planA", null, "10.00")));
+
+        // When
+        controller.previewTaxes(preview, tenant);
+        PreviewGETRsc rsc = controller.previewTaxes(preview, tenant);
+
+        // Then
+        assertEquals(rsc.items.get(0).productName, "planA-product");
+        assertEquals(rsc.items.get(0).taxCode, VAT_20_0);
+        verify(catalogApi, times(1)).getCurrentCatalog(any(String.class), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotTaxItemsOfOtherCountries() {
+        // Given
+        PreviewPOSTRsc preview = new PreviewPOSTRsc(USA, null, ImmutableList.of(item(null, "planA-product", "10")));
+
+        // When
+        PreviewGETRsc rsc = controller.previewTaxes(preview, tenant);
+
+        // Then
+        assertNull(rsc.items.get(0).taxCode);
+        assertEqualsIgnoreScale(rsc.totalTaxAmount, ZERO);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldThrowIAEWhenNoItems() {
+        // Expect exception
+        controller.previewTaxes(new PreviewPOSTRsc(FRANCE, null, ImmutableList.<PreviewItemPOSTRsc> of()), tenant);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldThrowIAEWhenNoAmount() {
+        // Given
+        PreviewItemPOSTRsc item = new PreviewItemPOSTRsc(null, "planA-product", null, "2015-01-01", null);
+
+        // Expect exception
+        controller.previewTaxes(new PreviewPOSTRsc(FRANCE, null, ImmutableList.of(item)), tenant);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldThrowIAEWhenNoDate() {
+        // Given
+        PreviewItemPOSTRsc item = new PreviewItemPOSTRsc(null, "planA-product", ZERO, null, null);
+
+        // Expect exception
+        controller.previewTaxes(new PreviewPOSTRsc(FRANCE, null, ImmutableList.of(item)), tenant);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldThrowIAEWhenMalformedDate() {
+        // Given
+        PreviewItemPOSTRsc item = new PreviewItemPOSTRsc(null, "planA-product", ZERO, "2015-13-45", null);
+
+        // Expect exception
+        controller.previewTaxes(new PreviewPOSTRsc(FRANCE, null, ImmutableList.of(item)), tenant);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.killbill.billing.plugin.simpletax.config.http.RequestCredentials.Credentials;
+import org.killbill.billing.plugin.simpletax.plumbing.SecuritySessions;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Tests for {@link RequestCredentials}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestRequestCredentials {
+
+    @Mock
+    private SecuritySessions sessions;
+
+    private RequestCredentials credentials;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        credentials = new RequestCredentials(sessions);
+    }
+
+    private static String basic(String credentials) {
+        return "Basic " + BaseEncoding.base64().encode(credentials.getBytes(UTF_8));
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginWithDecodedCredentials() {
+        // When
+        credentials.login(basic("admin:pass:word "));
+
+        // Then
+        verify(sessions).login("admin", "pass:word");
+    }
+
+    @Test(groups = "fast")
+    public void shouldDecodeUserNameAndPassword() {
+        // When
+        Credentials decoded = RequestCredentials.decode(basic(" admin : password"));
+
+        // Then
+        assertEquals(decoded.username, "admin");
+        assertEquals(decoded.password, "password");
+    }
+
+    @DataProvider(name = "malformedHeaders")
+    public static Object[][] malformedHeaders() {
+        return new Object[][] { { null }, { "" }, { "Basic" }, { "Basic !!!" }, { basic("admin") } };
+    }
+
+    @Test(groups = "fast", dataProvider = "malformedHeaders")
+    public void shouldLogoutOnMalformedHeaders(String authorization) {
+        // When
+        credentials.login(authorization);
+
+        // Then
+        if (authorization != null) {
+            assertNull(RequestCredentials.decode(authorization));
+        }
+        verify(sessions, never()).login(anyString(), anyString());
+        verify(sessions).logout();
+    }
+
+    @Test(groups = "fast")
+    public void shouldLogout() {
+        // When
+        credentials.logout();
+
+        // Then
+        verify(sessions).logout();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.util.UUID.randomUUID;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.killbill.billing.plugin.simpletax.config.http.RouteTable.Match;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link RouteTable}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestRouteTable {
+
+    private RouteTable<String> routes;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        routes = new RouteTable<String>()//
+                .route("GET", "/accounts/{uuid}/vatin", "getVatin")//
+                .route("PUT", "/accounts/{uuid}/vatin", "putVatin")//
+                .route("GET", "/vatins", "listVatins")//
+                .route("GET", "/accounts/default/vatin", "getDefaultVatin")//
+                .route("GET", "/invoices/{uuid}/items/{uuid}", "getItem");
+    }
+
+    @Test(groups = "fast")
+    public void shouldMatchLiteralRoutes() {
+        // When
+        Match<String> match = routes.match("GET", "/vatins");
+
+        // Then
+        assertNotNull(match);
+        assertEquals(match.getHandler(), "listVatins");
+        assertTrue(match.getIdentifiers().isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldMatchRoutesByMethod() {
+        // Given
+        UUID accountId = randomUUID();
+
+        // Expect
+        assertEquals(routes.match("GET", "/accounts/" + accountId + "/vatin").getHandler(), "getVatin");
+        assertEquals(routes.match("PUT", "/accounts/" + accountId + "/vatin").getHandler(), "putVatin");
+        assertNull(routes.match("POST", "/accounts/" + accountId + "/vatin"));
+        assertNull(routes.match("PUT", "/vatins"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldExtractIdentifiersInOrder() {
+        // Given
+        UUID invoiceId = randomUUID();
+        UUID itemId = randomUUID();
+
+        // When
+        Match<String> match = routes.match("GET", "/invoices/" + invoiceId + "/items/"
+                + itemId.toString().toUpperCase());
+
+        // Then
+        assertNotNull(match);
+        assertEquals(match.getHandler(), "getItem");
+        assertEquals(match.getIdentifiers(), ImmutableList.of(invoiceId, itemId));
+    }
+
+    @Test(groups = "fast")
+    public void shouldPreferLiteralSegmentsOverIdentifiers() {
+        // When
+        Match<String> match = routes.match("GET", "/accounts/default/vatin");
+
+        // Then
+        assertNotNull(match);
+        assertEquals(match.getHandler(), "getDefaultVatin");
+    }
+
+    @DataProvider(name = "unknownPaths")
+    public static Object[][] unknownPaths() {
+        return new Object[][] { { null }, { "" }, { "/" }, { "vatins" }, { "/vatins/" }, { "//vatins" },
+                { "/vatins/plop" }, { "/plop" }, { "/accounts" }, { "/accounts/plop/vatin" },
+                { "/accounts/12345678-plop-what-ever-123456789abc/vatin" },
+                { "/accounts/" + randomUUID() + "/plop" }, { "/accounts/" + randomUUID() + "/vatin/" } };
+    }
+
+    @Test(groups = "fast", dataProvider = "unknownPaths")
+    public void shouldNotMatchUnknownPaths(String path) {
+        // Expect
+        assertNull(routes.match("GET", path));
+    }
+
+    @DataProvider(name = "illegalPaths")
+    public static Object[][] illegalPaths() {
+        return new Object[][] { { "" }, { "/" }, { "vatins" }, { "/vatins/" }, { "//vatins" } };
+    }
+
+    @Test(groups = "fast", dataProvider = "illegalPaths", expectedExceptions = IllegalArgumentException.class)
+    public void shouldNotAcceptIllegalRoutePaths(String path) {
+        // Expect exception
+        new RouteTable<String>().route("GET", path, "plop");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldNotAcceptDuplicateRoutes() {
+        // Expect exception
+        routes.route("GET", "/vatins", "plop");
+    }
+}
@@ -16,25 +16,41 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static com.google.common.collect.Iterables.transform;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static com.googlecode.catchexception.CatchException.catchException;
+import static com.googlecode.catchexception.CatchException.caughtException;
 import static java.util.UUID.randomUUID;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_CREATED;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
+import java.io.Reader;
+import java.math.BigDecimal;
 import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.killbill.billing.plugin.simpletax.config.http.ImportController.ImportReportRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewItemGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.PreviewController.PreviewPOSTRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPUTRsc;
 import org.killbill.billing.plugin.simpletax.config.http.TaxCountryController.TaxCountryRsc;
 import org.killbill.billing.plugin.simpletax.config.http.VatinController.VATINRsc;
 import org.killbill.billing.plugin.simpletax.internal.Country;
@@ -43,12 +59,16 @@ import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.test.helpers.ServletMocks;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
 /**
  * @author Benjamin Gandon
  */
@@ -64,6 +84,8 @@ public class TestSimpleTaxServlet {
     private static final String TAX_COUNTRIES_RSC_URI = "/taxCountries";
     private static final String APPLICATION_JSON = "application/json";
     private static final String ACCOUNT_PARAM_NAME = "account";
+    private static final String OFFSET_PARAM_NAME = "offset";
+    private static final String LIMIT_PARAM_NAME = "limit";
 
     @DataProvider(name = "invalidAccountUUIDs")
     public static Object[][] invalidAccountUUIDss() {
@@ -75,6 +97,16 @@ public class TestSimpleTaxServlet {
     private TaxCountryController taxCountryController;
     @Mock
     private VatinController vatinController;
+    @Mock
+    private TaxCodeController taxCodeController;
+    @Mock
+    private ImportController importController;
+    @Mock
+    private PreviewController previewController;
+    @Mock
+    private RequestCredentials requestCredentials;
+    @Mock
+    private StatsController statsController;
 
     @InjectMocks
     private SimpleTaxServlet servlet;
@@ -170,6 +202,50 @@ public class TestSimpleTaxServlet {
         assertEquals(mocks.getResponseContent(), "{\"accountId\":\"" + accountId + "\",\"taxCountry\":\"" + FR + "\"}");
     }
 
+    @Test(groups = "fast")
+    public void shouldRespondNotModifiedWhenAccountTaxCountryTagMatches() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn("/accounts/" + accountId + "/taxCountry");
+        when(mocks.req().getHeader("If-None-Match")).thenReturn("\"abc\"");
+        when(taxCountryController.getAccountTaxCountryTag(accountId, tenant)).thenReturn("\"abc\"");
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verify(taxCountryController, never()).getAccountTaxCountry(any(UUID.class), any(Tenant.class));
+        assertEquals(mocks.getResponseStatus(), SC_NOT_MODIFIED);
+        assertEquals(mocks.getHeaders().get("ETag"), ImmutableList.of("\"abc\""));
+        assertEquals(mocks.getResponseContent(), "");
+    }
+
+    @Test(groups = "fast")
+    public void shouldRenderAccountTaxCountryWithTagWhenTagDiffers() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn("/accounts/" + accountId + "/taxCountry");
+        when(mocks.req().getHeader("If-None-Match")).thenReturn("\"old\"");
+        when(taxCountryController.getAccountTaxCountryTag(accountId, tenant)).thenReturn("\"abc\"");
+        when(taxCountryController.getAccountTaxCountry(accountId, tenant))
+                .thenReturn(new TaxCountryRsc(accountId, FRANCE));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getHeaders().get("ETag"), ImmutableList.of("\"abc\""));
+        assertEquals(mocks.getHeaders().get("Cache-Control"), ImmutableList.of("private, no-cache"));
+        assertEquals(mocks.getResponseContent(), "{\"accountId\":\"" + accountId + "\",\"taxCountry\":\"" + FR + "\"}");
+    }
+
     @Test(groups = "fast")
     public void shouldDispatchGetAccountVATIN() throws Exception {
         // Given
@@ -236,13 +312,14 @@ public class TestSimpleTaxServlet {
         Tenant tenant = withTenant(mocks.req());
 
         when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(taxCountryController.streamTaxCountries(tenant)).thenReturn(ImmutableList.<TaxCountryRsc> of());
 
         // When
         servlet.doGet(mocks.req(), mocks.resp());
 
         // Then
         verifyZeroInteractions(vatinController);
-        verify(taxCountryController).listTaxCountries(null, tenant);
+        verify(taxCountryController).streamTaxCountries(tenant);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -255,13 +332,14 @@ public class TestSimpleTaxServlet {
 
         when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
         when(mocks.req().getHeader(ACCOUNT_PARAM_NAME)).thenReturn("\t");
+        when(taxCountryController.streamTaxCountries(tenant)).thenReturn(ImmutableList.<TaxCountryRsc> of());
 
         // When
         servlet.doGet(mocks.req(), mocks.resp());
 
         // Then
         verifyZeroInteractions(vatinController);
-        verify(taxCountryController).listTaxCountries(null, tenant);
+        verify(taxCountryController).streamTaxCountries(tenant);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -304,6 +382,127 @@ public class TestSimpleTaxServlet {
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
 
+    @Test(groups = "fast")
+    public void shouldStreamTaxCountries() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId1 = randomUUID(), accountId2 = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(taxCountryController.streamTaxCountries(tenant)).thenReturn(ImmutableList.of(//
+                new TaxCountryRsc(accountId1, FRANCE), new TaxCountryRsc(accountId2, FRANCE)));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verify(taxCountryController, never()).listTaxCountries(any(UUID.class), any(Tenant.class));
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContent(), "[{\"accountId\":\"" + accountId1 + "\",\"taxCountry\":\"" + FR
+                + "\"},{\"accountId\":\"" + accountId2 + "\",\"taxCountry\":\"" + FR + "\"}]");
+    }
+
+    @Test(groups = "fast")
+    public void shouldLeaveStreamUnterminatedWhenValuesFail() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        final UUID accountId1 = randomUUID(), accountId2 = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(taxCountryController.streamTaxCountries(tenant)).thenReturn(
+                transform(ImmutableList.of(accountId1, accountId2), new Function<UUID, TaxCountryRsc>() {
+                    @Override
+                    public TaxCountryRsc apply(UUID accountId) {
+                        if (accountId2.equals(accountId)) {
+                            throw new IllegalStateException("boom");
+                        }
+                        return new TaxCountryRsc(accountId, FRANCE);
+                    }
+                }));
+
+        // When
+        catchException(servlet).doGet(mocks.req(), mocks.resp());
+
+        // Then
+        assertTrue(caughtException() instanceof IllegalStateException);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContent(), "[{\"accountId\":\"" + accountId1 + "\",\"taxCountry\":\"" + FR
+                + "\"}");
+    }
+
+    @Test(groups = "fast")
+    public void shouldDispatchGetTaxCountriesPage() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID accountId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn(TAX_COUNTRIES_RSC_URI);
+        when(mocks.req().getParameter(OFFSET_PARAM_NAME)).thenReturn("200");
+        when(mocks.req().getParameter(LIMIT_PARAM_NAME)).thenReturn("50");
+        when(taxCountryController.listTaxCountries(200L, 50L, tenant)).thenReturn(
+                new ListingPage<TaxCountryRsc>(ImmutableList.of(new TaxCountryRsc(accountId, FRANCE)), 250L));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verify(taxCountryController, never()).streamTaxCountries(any(Tenant.class));
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getHeaders().get("X-Killbill-Pagination-CurrentOffset"), ImmutableList.of("200"));
+        assertEquals(mocks.getHeaders().get("X-Killbill-Pagination-NextOffset"), ImmutableList.of("250"));
+        assertEquals(mocks.getResponseContent(), "[{\"accountId\":\"" + accountId + "\",\"taxCountry\":\"" + FR
+                + "\"}]");
+    }
+
+    @Test(groups = "fast")
+    public void shouldDefaultOffsetAndLimitOfVATINsPage() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn(VATINS_RSC_URI);
+        when(mocks.req().getParameter(LIMIT_PARAM_NAME)).thenReturn("10");
+        when(vatinController.listVatins(0L, 10L, tenant)).thenReturn(
+                new ListingPage<VATINRsc>(ImmutableList.<VATINRsc> of(), null));
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verify(vatinController).listVatins(0L, 10L, tenant);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertTrue(mocks.getHeaders().get("X-Killbill-Pagination-NextOffset").isEmpty());
+        assertEquals(mocks.getResponseContent(), "[]");
+    }
+
+    @DataProvider(name = "invalidPagings")
+    public static Object[][] invalidPagings() {
+        return new Object[][] { { "plop", null }, { "-1", null }, { null, "0" }, { null, "1001" }, { "0", "ten" } };
+    }
+
+    @Test(groups = "fast", dataProvider = "invalidPagings")
+    public void shouldRespondBadRequestWhenDispatchingGetVATINsWithInvalidPaging(String offset, String limit)
+            throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn(VATINS_RSC_URI);
+        when(mocks.req().getParameter(OFFSET_PARAM_NAME)).thenReturn(offset);
+        when(mocks.req().getParameter(LIMIT_PARAM_NAME)).thenReturn(limit);
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController);
+        assertEquals(mocks.getResponseStatus(), SC_BAD_REQUEST);
+    }
+
     // ==================== GET /vatins?account=... ====================
 
     @Test(groups = "fast")
@@ -313,13 +512,14 @@ public class TestSimpleTaxServlet {
         Tenant tenant = withTenant(mocks.req());
 
         when(mocks.req().getPathInfo()).thenReturn(VATINS_RSC_URI);
+        when(vatinController.streamVatins(tenant)).thenReturn(ImmutableList.<VATINRsc> of());
 
         // When
         servlet.doGet(mocks.req(), mocks.resp());
 
         // Then
         verifyZeroInteractions(taxCountryController);
-        verify(vatinController).listVatins(null, tenant);
+        verify(vatinController).streamVatins(tenant);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -332,13 +532,14 @@ public class TestSimpleTaxServlet {
 
         when(mocks.req().getPathInfo()).thenReturn(VATINS_RSC_URI);
         when(mocks.req().getHeader(ACCOUNT_PARAM_NAME)).thenReturn("\t");
+        when(vatinController.streamVatins(tenant)).thenReturn(ImmutableList.<VATINRsc> of());
 
         // When
         servlet.doGet(mocks.req(), mocks.resp());
 
         // Then
         verifyZeroInteractions(taxCountryController);
-        verify(vatinController).listVatins(null, tenant);
+        verify(vatinController).streamVatins(tenant);
         assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
         assertEquals(mocks.getResponseStatus(), SC_OK);
     }
@@ -383,6 +584,22 @@ public class TestSimpleTaxServlet {
 
     // ==================== GET /... ====================
 
+    @Test(groups = "fast")
+    public void shouldDispatchGetStats() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+        when(mocks.req().getPathInfo()).thenReturn("/stats");
+
+        // When
+        servlet.doGet(mocks.req(), mocks.resp());
+
+        // Then
+        verify(statsController).getStats(tenant);
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+    }
+
     @Test(groups = "fast")
     public void shouldRespondNotFoundWhenDispatchingGetWithUknownURI() throws Exception {
         // Given
@@ -469,6 +686,27 @@ public class TestSimpleTaxServlet {
         assertEquals(mocks.getResponseStatus(), SC_INTERNAL_SERVER_ERROR);
     }
 
+    @Test(groups = "fast")
+    public void shouldRespondInternalServerErrorWhenSavingTaxCodesOfItemWithoutInvoice() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        UUID invoiceItemId = randomUUID();
+        when(mocks.req().getPathInfo()).thenReturn("/invoiceItems/" + invoiceItemId + "/taxCodes");
+        mocks.withRequestBody("{\"taxCodes\":[{\"name\":\"VAT_20_0%\"}]}");
+        when(taxCodeController.saveTaxCodesOfInvoiceItem(eq(invoiceItemId), any(TaxCodesPUTRsc.class), eq(tenant)))
+                .thenReturn(false);
+
+        // When
+        servlet.doPut(mocks.req(), mocks.resp());
+
+        // Then
+        verify(taxCodeController).saveTaxCodesOfInvoiceItem(eq(invoiceItemId), any(TaxCodesPUTRsc.class),
+                eq(tenant));
+        assertEquals(mocks.getResponseStatus(), SC_INTERNAL_SERVER_ERROR);
+    }
+
     @Test(groups = "fast")
     public void shouldRespondBadRequestWhenDispatchingPutAccountTaxCountryWithInvalidCountry() throws Exception {
         // Given
@@ -616,4 +854,117 @@ public class TestSimpleTaxServlet {
         verifyZeroInteractions(taxCountryController, vatinController);
         assertEquals(mocks.getResponseStatus(), SC_NOT_FOUND);
     }
+
+    // ==================== POST /accountTaxFields ====================
+
+    @Test(groups = "fast")
+    public void shouldDispatchPostAccountTaxFields() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/accountTaxFields");
+        mocks.withRequestBody("{\"accountId\":\"" + randomUUID() + "\",\"taxCountry\":\"" + FR + "\"}\n");
+
+        ImportReportRsc report = new ImportReportRsc();
+        report.records = 1;
+        report.saved = 1;
+        when(importController.importAccountTaxFields(any(Reader.class), eq(tenant))).thenReturn(report);
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController);
+        verify(importController).importAccountTaxFields(any(Reader.class), eq(tenant));
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertTrue(mocks.getResponseContent().contains("\"saved\":1"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldLogWorkerOutAfterLongRunningRequest() throws Exception {
+        // Given
+        SimpleTaxServlet servlet = new SimpleTaxServlet(vatinController, taxCountryController, null,
+                importController, previewController, requestCredentials, new AsyncRequestExecutor(
+                        newDirectExecutorService(), 1, 1000L));
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/accountTaxFields");
+        when(mocks.req().getMethod()).thenReturn("POST");
+        mocks.withRequestBody("");
+        when(importController.importAccountTaxFields(any(Reader.class), eq(tenant))).thenReturn(
+                new ImportReportRsc());
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        InOrder inOrder = inOrder(requestCredentials, importController);
+        inOrder.verify(requestCredentials, atLeastOnce()).login(any(String.class));
+        inOrder.verify(importController).importAccountTaxFields(any(Reader.class), eq(tenant));
+        inOrder.verify(requestCredentials).logout();
+    }
+
+    @Test(groups = "fast")
+    public void shouldDispatchPostPreview() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/preview");
+        mocks.withRequestBody("{\"taxCountry\":\"" + FR + "\",\"items\":[{\"productName\":\"p\","
+                + "\"amount\":10,\"startDate\":\"2015-01-01\"}]}");
+
+        when(previewController.previewTaxes(any(PreviewPOSTRsc.class), eq(tenant))).thenReturn(
+                new PreviewGETRsc(FRANCE, null, ImmutableList.<PreviewItemGETRsc> of(), new BigDecimal("2.00")));
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(taxCountryController, vatinController, importController);
+        verify(requestCredentials).login(any(String.class));
+        verify(requestCredentials).logout();
+        verify(previewController).previewTaxes(any(PreviewPOSTRsc.class), eq(tenant));
+        assertEquals(mocks.getResponseStatus(), SC_OK);
+        assertEquals(mocks.getResponseContentType(), APPLICATION_JSON);
+        assertTrue(mocks.getResponseContent().contains("\"totalTaxAmount\":2.00"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondBadRequestForInvalidPreview() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        Tenant tenant = withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/preview");
+        mocks.withRequestBody("{\"items\":[]}");
+        when(previewController.previewTaxes(any(PreviewPOSTRsc.class), eq(tenant))).thenThrow(
+                new IllegalArgumentException("No items to preview"));
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        assertEquals(mocks.getResponseStatus(), SC_BAD_REQUEST);
+    }
+
+    @Test(groups = "fast")
+    public void shouldRespondBadRequestForMalformedPreview() throws Exception {
+        // Given
+        ServletMocks mocks = new ServletMocks();
+        withTenant(mocks.req());
+
+        when(mocks.req().getPathInfo()).thenReturn("/preview");
+        mocks.withRequestBody("{\"taxCountry\":\"ZZZ\"}");
+
+        // When
+        servlet.doPost(mocks.req(), mocks.resp());
+
+        // Then
+        verifyZeroInteractions(previewController);
+        assertEquals(mocks.getResponseStatus(), SC_BAD_REQUEST);
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.config.http;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig.PROPERTY_PREFIX;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.config.http.StatsController.StatsGETRsc;
+import org.killbill.billing.plugin.simpletax.internal.InvoiceItemIndex;
+import org.killbill.billing.plugin.simpletax.plumbing.SecuritySessions;
+import org.killbill.billing.plugin.simpletax.plumbing.SimpleTaxConfigurationHandler;
+import org.killbill.billing.tenant.api.Tenant;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link StatsController}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestStatsController {
+
+    private static final String VAT_20_0 = "VAT_20_0%";
+
+    @Mock
+    private SimpleTaxConfigurationHandler configHandler;
+    @Mock
+    private SecuritySessions securitySessions;
+    @Mock
+    private CustomFieldService customFieldService;
+    @Mock
+    private Tenant tenant;
+
+    private SimpleTaxConfig cfg;
+    private StatsController controller;
+
+    @BeforeMethod
+    public void setup() {
+        initMocks(this);
+        when(tenant.getId()).thenReturn(randomUUID());
+        cfg = new SimpleTaxConfig(ImmutableMap.of(PROPERTY_PREFIX + "taxCodes." + VAT_20_0 + ".rate", "0.20"));
+        when(configHandler.getConfigurable(tenant.getId())).thenReturn(cfg);
+        controller = new StatsController(configHandler, securitySessions, customFieldService,
+                new InvoiceItemIndex());
+    }
+
+    @Test(groups = "fast")
+    public void shouldServeStatisticsOfSessionsAndCaches() {
+        // Given
+        when(securitySessions.getLoginCount()).thenReturn(2L);
+        when(securitySessions.getReusedSessionCount()).thenReturn(40L);
+        when(customFieldService.getAccountTaxFieldsStats()).thenReturn(new CacheStats(3L, 1L, 1L, 0L, 0L, 5L));
+        cfg.findTaxCodes(VAT_20_0, "test");
+        cfg.findTaxCodes(VAT_20_0, "test");
+
+        // When
+        StatsGETRsc stats = controller.getStats(tenant);
+
+        // Then
+        assertEquals(stats.logins, 2L);
+        assertEquals(stats.reusedSessions, 40L);
+        assertEquals(stats.accountTaxFields.hitCount, 3L);
+        assertEquals(stats.accountTaxFields.missCount, 1L);
+        assertEquals(stats.accountTaxFields.hitRate, 0.75);
+        assertEquals(stats.accountTaxFields.evictionCount, 5L);
+        assertEquals(stats.invoiceItems.hitCount, 0L);
+        assertEquals(stats.parsedTaxCodes.missCount, 1L);
+        assertEquals(stats.parsedTaxCodes.hitCount, 1L);
+    }
+}
@@ -16,16 +16,258 @@
  */
 package org.killbill.billing.plugin.simpletax.config.http;
 
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodeRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesGETRsc;
+import org.killbill.billing.plugin.simpletax.config.http.TaxCodeController.TaxCodesPUTRsc;
+import org.killbill.billing.plugin.simpletax.dao.TaxCodeDao;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.test.helpers.CustomFieldBuilder;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
 /**
  * @author Benjamin Gandon
  */
 @SuppressWarnings("javadoc")
 public class TestTaxCodeController {
 
+    @Mock
+    private CustomFieldService customFieldService;
+    @Mock
+    private InvoiceService invoiceService;
+    @Mock
+    private TaxCodeDao taxCodeDao;
+    @Mock
+    private Tenant tenant;
+
+    private Promise<InvoiceItem> taxable, tax, untaxed;
+    private Invoice invoice;
+    private List<CustomField> taxFields;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        when(tenant.getId()).thenReturn(randomUUID());
+
+        taxable = holder();
+        tax = holder();
+        untaxed = holder();
+        invoice = new InvoiceBuilder(buildAccount(EUR, "FR"))//
+                .withItem(new InvoiceItemBuilder().withType(EXTERNAL_CHARGE).thenSaveTo(taxable))//
+                .withItem(new InvoiceItemBuilder().withType(TAX).withLinkedItem(taxable).thenSaveTo(tax))//
+                .withItem(new InvoiceItemBuilder().withType(EXTERNAL_CHARGE).thenSaveTo(untaxed))//
+                .build();
+        when(invoiceService.findAllInvoiceItemsByInvoice(eq(invoice.getId()), any(TenantContext.class)))//
+                .thenReturn(invoice.getInvoiceItems());
+
+        CustomFieldBuilder builder = new CustomFieldBuilder().withObjectType(INVOICE_ITEM)//
+                .withFieldName(TAX_CODES_FIELD_NAME);
+        taxFields = ImmutableList.of(//
+                builder.withObjectId(taxable.get().getId()).withFieldValue("VAT_20_0%").build(),//
+                builder.withObjectId(randomUUID()).withFieldValue("VAT_5_5%").build());
+    }
+
     @Test
     public void should() {
         ;
     }
+
+    private static void assertTaxCodesOfTaxableItemOnly(List<TaxCodesGETRsc> rscs, Invoice invoice, UUID itemId) {
+        assertEquals(rscs.size(), 1);
+        assertEquals(rscs.get(0).invoiceId, invoice.getId());
+        assertEquals(rscs.get(0).invoiceItemId, itemId);
+        assertEquals(rscs.get(0).taxCodes.iterator().next().name, "VAT_20_0%");
+    }
+
+    @Test(groups = "fast")
+    public void shouldListInvoiceTaxCodesFromAccountFieldsInOneCall() {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService);
+        when(customFieldService.findAllInvoiceItemFieldsByFieldNameAndAccount(eq(TAX_CODES_FIELD_NAME),
+                eq(invoice.getAccountId()), any(TenantContext.class))).thenReturn(taxFields);
+
+        // When
+        List<TaxCodesGETRsc> rscs = controller.listInvoiceTaxCodes(invoice.getId(), tenant);
+
+        // Then
+        assertTaxCodesOfTaxableItemOnly(rscs, invoice, taxable.get().getId());
+        verify(customFieldService, never()).findFieldByNameAndInvoiceItemAndTenant(anyString(), any(UUID.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldListInvoiceTaxCodesFromDedicatedTable() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        when(taxCodeDao.getTaxCodesOfInvoice(tenant.getId(), invoice.getId())).thenReturn(taxFields);
+
+        // When
+        List<TaxCodesGETRsc> rscs = controller.listInvoiceTaxCodes(invoice.getId(), tenant);
+
+        // Then
+        assertTaxCodesOfTaxableItemOnly(rscs, invoice, taxable.get().getId());
+        verify(customFieldService, never()).findAllInvoiceItemFieldsByFieldNameAndAccount(anyString(),
+                any(UUID.class), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldFallBackToCustomFieldsWhenTableCannotBeRead() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        when(taxCodeDao.getTaxCodesOfInvoice(tenant.getId(), invoice.getId())).thenThrow(new SQLException());
+        when(customFieldService.findAllInvoiceItemFieldsByFieldNameAndAccount(eq(TAX_CODES_FIELD_NAME),
+                eq(invoice.getAccountId()), any(TenantContext.class))).thenReturn(taxFields);
+
+        // When
+        List<TaxCodesGETRsc> rscs = controller.listInvoiceTaxCodes(invoice.getId(), tenant);
+
+        // Then
+        assertTaxCodesOfTaxableItemOnly(rscs, invoice, taxable.get().getId());
+    }
+
+    @Test(groups = "fast")
+    public void shouldListNoTaxCodesForUnknownInvoice() {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService);
+        when(invoiceService.findAllInvoiceItemsByInvoice(any(UUID.class), any(TenantContext.class)))//
+                .thenReturn(ImmutableList.<InvoiceItem> of());
+
+        // Expect
+        assertTrue(controller.listInvoiceTaxCodes(randomUUID(), tenant).isEmpty());
+    }
+
+    private static TaxCodesPUTRsc taxCodes(String name) {
+        return new TaxCodesPUTRsc(ImmutableSet.of(new TaxCodeRsc(name)));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadTaxCodesOfInvoiceItemFromDedicatedTable() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        UUID itemId = taxable.get().getId();
+        when(invoiceService.findInvoiceByInvoiceItem(eq(itemId), any(TenantContext.class))).thenReturn(invoice);
+        when(taxCodeDao.getTaxCodesOfInvoice(tenant.getId(), invoice.getId())).thenReturn(taxFields);
+
+        // When
+        TaxCodesGETRsc rsc = controller.getTaxCodesOfInvoiceItem(itemId, tenant);
+
+        // Then
+        assertEquals(rsc.invoiceId, invoice.getId());
+        assertEquals(rsc.invoiceItemId, itemId);
+        assertEquals(rsc.taxCodes.iterator().next().name, "VAT_20_0%");
+        verify(customFieldService, never()).findFieldByNameAndInvoiceItemAndTenant(anyString(), any(UUID.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldStoreTaxCodesInDedicatedTableBeforeMirroringThem() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        UUID itemId = taxable.get().getId();
+        when(invoiceService.findInvoiceByInvoiceItem(eq(itemId), any(TenantContext.class))).thenReturn(invoice);
+        when(customFieldService.saveInvoiceItemField(anyString(), anyString(), any(UUID.class),
+                any(TenantContext.class))).thenReturn(false);
+
+        // When
+        boolean saved = controller.saveTaxCodesOfInvoiceItem(itemId, taxCodes("VAT_5_5%"), tenant);
+
+        // Then
+        assertTrue(saved);
+        InOrder inOrder = inOrder(taxCodeDao, customFieldService);
+        inOrder.verify(taxCodeDao).saveTaxCodes(tenant.getId(), invoice.getAccountId(), invoice.getId(), itemId,
+                "VAT_5_5%");
+        inOrder.verify(customFieldService).saveInvoiceItemField(eq("VAT_5_5%"), eq(TAX_CODES_FIELD_NAME),
+                eq(itemId), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotSaveTaxCodesOfItemWithoutInvoice() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        UUID itemId = randomUUID();
+
+        // When
+        boolean saved = controller.saveTaxCodesOfInvoiceItem(itemId, taxCodes("VAT_5_5%"), tenant);
+
+        // Then
+        assertFalse(saved);
+        verify(taxCodeDao, never()).saveTaxCodes(any(UUID.class), any(UUID.class), any(UUID.class),
+                any(UUID.class), anyString());
+        verify(customFieldService, never()).saveInvoiceItemField(anyString(), anyString(), any(UUID.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotMirrorTaxCodesThatCannotBeStored() throws Exception {
+        // Given
+        TaxCodeController controller = new TaxCodeController(customFieldService, invoiceService, taxCodeDao);
+        UUID itemId = taxable.get().getId();
+        when(invoiceService.findInvoiceByInvoiceItem(eq(itemId), any(TenantContext.class))).thenReturn(invoice);
+        doThrow(new SQLException()).when(taxCodeDao).saveTaxCodes(any(UUID.class), any(UUID.class),
+                any(UUID.class), any(UUID.class), anyString());
+
+        // When
+        boolean saved = controller.saveTaxCodesOfInvoiceItem(itemId, taxCodes("VAT_5_5%"), tenant);
+
+        // Then
+        assertFalse(saved);
+        verify(customFieldService, never()).saveInvoiceItemField(anyString(), anyString(), any(UUID.class),
+                any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldComputeEntityTagOfListedTaxCodes() {
+        // Given
+        UUID itemId = randomUUID(), invoiceId = randomUUID();
+        List<TaxCodesGETRsc> rscs = ImmutableList.of(new TaxCodesGETRsc(itemId, invoiceId,
+                ImmutableSet.of(new TaxCodeRsc("VAT_20_0%"))));
+        List<TaxCodesGETRsc> same = ImmutableList.of(new TaxCodesGETRsc(itemId, invoiceId,
+                ImmutableSet.of(new TaxCodeRsc("VAT_20_0%"))));
+        List<TaxCodesGETRsc> other = ImmutableList.of(new TaxCodesGETRsc(itemId, invoiceId,
+                ImmutableSet.of(new TaxCodeRsc("VAT_5_5%"))));
+
+        // Expect
+        assertEquals(TaxCodeController.entityTagOf(same), TaxCodeController.entityTagOf(rscs));
+        assertNotEquals(TaxCodeController.entityTagOf(other), TaxCodeController.entityTagOf(rscs));
+        assertNotEquals(TaxCodeController.entityTagOf(ImmutableList.<TaxCodesGETRsc> of()),
+                TaxCodeController.entityTagOf(rscs));
+    }
 }
@@ -125,6 +125,26 @@ public class TestTaxCountryController {
         assertEquals(taxCountry2.taxCountry, US);
     }
 
+    @Test(groups = "fast")
+    public void shouldStreamValidTaxCountries() throws Exception {
+        // Given
+        UUID accountId = tenantContext.getAccountId();
+        CustomFieldBuilder builder = new CustomFieldBuilder().withObjectId(accountId).withFieldName("taxCountry");
+        when(customFieldService.iterateAccountFieldsByFieldNameAndTenant(eq("taxCountry"), any(TenantContext.class)))//
+                .thenReturn(newArrayList(//
+                        builder.withFieldValue("US").build(),//
+                        builder.withFieldValue("boom").build(),//
+                        builder.withFieldValue("FR").build()));
+
+        // When
+        List<TaxCountryRsc> taxCountries = newArrayList(controller.streamTaxCountries(tenant));
+
+        // Then
+        assertEquals(taxCountries.size(), 2);
+        assertEquals(taxCountries.get(0).taxCountry, US);
+        assertEquals(taxCountries.get(1).taxCountry, FR);
+    }
+
     @Test(groups = "fast")
     public void shouldListNoTaxCountry() {
         // Given
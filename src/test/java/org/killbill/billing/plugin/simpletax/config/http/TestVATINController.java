@@ -38,6 +38,7 @@ import org.killbill.billing.plugin.simpletax.internal.VATIN;
 import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.test.helpers.CustomFieldBuilder;
 import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
@@ -127,6 +128,46 @@ public class TestVATINController {
         assertEquals(vatin2.vatin, FR_TEST7);
     }
 
+    @Test(groups = "fast")
+    public void shouldStreamValidVATINs() throws Exception {
+        // Given
+        UUID accountId = tenantContext.getAccountId();
+        CustomFieldBuilder builder = new CustomFieldBuilder().withObjectId(accountId).withFieldName("VATIdNum");
+        when(customFieldService.iterateAccountFieldsByFieldNameAndTenant(eq("VATIdNum"), any(TenantContext.class)))//
+                .thenReturn(newArrayList(//
+                        builder.withFieldValue(FR_TEST6_NUM).build(),//
+                        builder.withFieldValue("boom").build(),//
+                        builder.withFieldValue(FR_TEST7_NUM).build()));
+
+        // When
+        List<VATINRsc> vatins = newArrayList(controller.streamVatins(tenant));
+
+        // Then
+        assertEquals(vatins.size(), 2);
+        assertEquals(vatins.get(0).vatin, FR_TEST6);
+        assertEquals(vatins.get(1).vatin, FR_TEST7);
+    }
+
+    @Test(groups = "fast")
+    public void shouldListPageOfVATINs() throws Exception {
+        // Given
+        UUID accountId = tenantContext.getAccountId();
+        CustomFieldBuilder builder = new CustomFieldBuilder().withObjectId(accountId).withFieldName("VATIdNum");
+        when(customFieldService.findAccountFieldsByFieldNameAndTenant(eq("VATIdNum"), eq(10L), eq(5L),
+                any(TenantContext.class)))//
+                .thenReturn(new ListingPage<CustomField>(newArrayList(//
+                        builder.withFieldValue(FR_TEST6_NUM).build()), 15L));
+
+        // When
+        ListingPage<VATINRsc> page = controller.listVatins(10L, 5L, tenant);
+
+        // Then
+        assertEquals(page.getElements().size(), 1);
+        assertEquals(page.getElements().get(0).accountId, accountId);
+        assertEquals(page.getElements().get(0).vatin, FR_TEST6);
+        assertEquals(page.getNextOffset(), Long.valueOf(15L));
+    }
+
     @Test(groups = "fast")
     public void shouldListNoVATIN() {
         // Given
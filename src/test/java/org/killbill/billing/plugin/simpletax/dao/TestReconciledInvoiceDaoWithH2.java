@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.io.Resources.getResource;
+import static java.util.UUID.randomUUID;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+/**
+ * Tests for {@link ReconciledInvoiceDao}, against an in-memory H2 database
+ * that is created with the very scripts that are shipped with the plugin.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestReconciledInvoiceDaoWithH2 {
+
+    private static final String MIGRATION = "migration/V20151102000000__simple_tax_reconciled_invoices.sql";
+
+    private JdbcDataSource dataSource;
+    private ReconciledInvoiceDao dao;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        dao = new ReconciledInvoiceDao(dataSource);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void shutdown() throws SQLException {
+        execute("shutdown");
+    }
+
+    private void execute(String sql) throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.execute(sql);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void runScript(String resourceName) throws IOException, SQLException {
+        // MySQL-specific comments are not understood by H2
+        String script = Resources.toString(getResource(resourceName), UTF_8).replaceAll("(?s)/\\*!.*?\\*/", "");
+        for (String sql : script.split(";")) {
+            if (!sql.trim().isEmpty()) {
+                execute(sql);
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void shouldBeInstalledOnlyOnceTableIsCreated() throws Exception {
+        // Expect
+        assertFalse(dao.isInstalled());
+
+        // When
+        runScript(MIGRATION);
+
+        // Then
+        assertTrue(dao.isInstalled());
+    }
+
+    @Test(groups = "fast")
+    public void shouldStoreAndReplaceReconciledInvoices() throws Exception {
+        // Given
+        runScript(MIGRATION);
+        UUID tenantId = randomUUID(), accountId = randomUUID(), invoiceA = randomUUID(), invoiceB = randomUUID();
+        dao.saveReconciledInvoices(tenantId, accountId, 42, ImmutableMap.of(invoiceA, 1, invoiceB, 2));
+
+        // When
+        dao.saveReconciledInvoices(tenantId, accountId, 42, ImmutableMap.of(invoiceB, 3));
+
+        // Then
+        assertEquals(dao.getReconciledInvoices(tenantId, accountId, 42), ImmutableMap.of(invoiceA, 1, invoiceB, 3));
+        assertTrue(dao.getReconciledInvoices(null, accountId, 42).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldIgnoreInvoicesReconciledWithAnotherConfig() throws Exception {
+        // Given
+        runScript(MIGRATION);
+        UUID accountId = randomUUID(), invoiceA = randomUUID(), invoiceB = randomUUID();
+        dao.saveReconciledInvoices(null, accountId, 42, ImmutableMap.of(invoiceA, 1, invoiceB, 2));
+
+        // When
+        dao.saveReconciledInvoices(null, accountId, 43, ImmutableMap.of(invoiceB, 2));
+
+        // Then
+        assertEquals(dao.getReconciledInvoices(null, accountId, 42), ImmutableMap.of(invoiceA, 1));
+        assertEquals(dao.getReconciledInvoices(null, accountId, 43), ImmutableMap.of(invoiceB, 2));
+    }
+}
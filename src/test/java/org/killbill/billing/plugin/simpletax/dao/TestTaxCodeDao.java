@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ObjectType.INVOICE_ITEM;
+import static org.killbill.billing.plugin.simpletax.dao.TaxCodeDao.DEFAULT_TENANT_ID;
+import static org.killbill.billing.plugin.simpletax.internal.TaxCodeService.TAX_CODES_FIELD_NAME;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link TaxCodeDao}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodeDao {
+
+    @Mock
+    private DataSource dataSource;
+    @Mock
+    private Connection conn;
+    @Mock
+    private PreparedStatement select;
+    @Mock
+    private PreparedStatement update;
+    @Mock
+    private PreparedStatement insert;
+    @Mock
+    private ResultSet rs;
+
+    private TaxCodeDao dao;
+
+    @BeforeMethod(groups = "fast")
+    public void init() throws SQLException {
+        initMocks(this);
+        when(dataSource.getConnection()).thenReturn(conn);
+        when(conn.prepareStatement(startsWith("select"))).thenReturn(select);
+        when(conn.prepareStatement(startsWith("update"))).thenReturn(update);
+        when(conn.prepareStatement(startsWith("insert"))).thenReturn(insert);
+        when(select.executeQuery()).thenReturn(rs);
+        dao = new TaxCodeDao(dataSource);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadTaxCodesOfAccountAsCustomFields() throws SQLException {
+        // Given
+        UUID accountId = randomUUID();
+        UUID itemA = randomUUID();
+        UUID itemB = randomUUID();
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getString(1)).thenReturn(itemA.toString(), itemB.toString());
+        when(rs.getString(2)).thenReturn("VAT_20_0%", "VAT_5_5%");
+
+        // When
+        List<CustomField> fields = dao.getTaxCodesOfAccount(null, accountId);
+
+        // Then
+        assertEquals(fields.size(), 2);
+        assertEquals(fields.get(0).getObjectId(), itemA);
+        assertEquals(fields.get(0).getObjectType(), INVOICE_ITEM);
+        assertEquals(fields.get(0).getFieldName(), TAX_CODES_FIELD_NAME);
+        assertEquals(fields.get(0).getFieldValue(), "VAT_20_0%");
+        assertEquals(fields.get(1).getObjectId(), itemB);
+        assertEquals(fields.get(1).getFieldValue(), "VAT_5_5%");
+        verify(select).setString(1, DEFAULT_TENANT_ID);
+        verify(select).setString(2, accountId.toString());
+        verify(rs).close();
+        verify(select).close();
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldReadTaxCodesOfInvoiceAsCustomFields() throws SQLException {
+        // Given
+        UUID tenantId = randomUUID();
+        UUID invoiceId = randomUUID();
+        UUID itemId = randomUUID();
+        when(rs.next()).thenReturn(true, false);
+        when(rs.getString(1)).thenReturn(itemId.toString());
+        when(rs.getString(2)).thenReturn("VAT_20_0%");
+
+        // When
+        List<CustomField> fields = dao.getTaxCodesOfInvoice(tenantId, invoiceId);
+
+        // Then
+        assertEquals(fields.size(), 1);
+        assertEquals(fields.get(0).getObjectId(), itemId);
+        assertEquals(fields.get(0).getFieldValue(), "VAT_20_0%");
+        verify(conn).prepareStatement(contains("kb_invoice_id = ?"));
+        verify(select).setString(1, tenantId.toString());
+        verify(select).setString(2, invoiceId.toString());
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldUpdateExistingTaxCodes() throws SQLException {
+        // Given
+        UUID tenantId = randomUUID();
+        UUID itemId = randomUUID();
+        when(update.executeBatch()).thenReturn(new int[] { 1 });
+
+        // When
+        dao.saveTaxCodes(tenantId, randomUUID(), randomUUID(), itemId, "VAT_20_0%");
+
+        // Then
+        verify(update).setString(1, "VAT_20_0%");
+        verify(update).setString(3, tenantId.toString());
+        verify(update).setString(4, itemId.toString());
+        verify(conn, never()).prepareStatement(startsWith("insert"));
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldInsertMissingTaxCodes() throws SQLException {
+        // Given
+        UUID accountId = randomUUID();
+        UUID invoiceId = randomUUID();
+        UUID itemId = randomUUID();
+        when(update.executeBatch()).thenReturn(new int[] { 0 });
+
+        // When
+        dao.saveTaxCodes(null, accountId, invoiceId, itemId, "VAT_20_0%");
+
+        // Then
+        verify(insert).setString(1, DEFAULT_TENANT_ID);
+        verify(insert).setString(2, accountId.toString());
+        verify(insert).setString(3, invoiceId.toString());
+        verify(insert).setString(4, itemId.toString());
+        verify(insert).setString(5, "VAT_20_0%");
+        verify(insert).executeBatch();
+        verify(insert).close();
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldInsertOnlyMissingTaxCodesInOneBatch() throws SQLException {
+        // Given
+        UUID itemA = randomUUID();
+        UUID itemB = randomUUID();
+        UUID itemC = randomUUID();
+        when(update.executeBatch()).thenReturn(new int[] { 1, 0, 0 });
+
+        // When
+        dao.saveTaxCodes(null, randomUUID(), randomUUID(),
+                ImmutableMap.of(itemA, "VAT_20_0%", itemB, "VAT_5_5%", itemC, "VAT_2_1%"));
+
+        // Then
+        verify(update, times(3)).addBatch();
+        verify(update).executeBatch();
+        verify(insert, never()).setString(4, itemA.toString());
+        verify(insert).setString(4, itemB.toString());
+        verify(insert).setString(4, itemC.toString());
+        verify(insert, times(2)).addBatch();
+        verify(insert).executeBatch();
+        verify(dataSource).getConnection();
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast")
+    public void shouldCheckExistenceWhenDriverDoesNotReportUpdateCounts() throws SQLException {
+        // Given
+        UUID tenantId = randomUUID();
+        UUID itemA = randomUUID();
+        UUID itemB = randomUUID();
+        when(update.executeBatch()).thenReturn(new int[] { Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO });
+        when(rs.next()).thenReturn(true, false);
+
+        // When
+        dao.saveTaxCodes(tenantId, randomUUID(), randomUUID(), ImmutableMap.of(itemA, "VAT_20_0%", itemB, "VAT_5_5%"));
+
+        // Then
+        verify(conn, times(2)).prepareStatement(startsWith("select 1 from"));
+        verify(select).setString(2, itemA.toString());
+        verify(select).setString(2, itemB.toString());
+        verify(insert, never()).setString(4, itemA.toString());
+        verify(insert).setString(4, itemB.toString());
+        verify(insert).executeBatch();
+        verify(select, times(2)).close();
+        verify(conn).close();
+    }
+
+    @Test(groups = "fast", expectedExceptions = SQLException.class)
+    public void shouldReleaseConnectionOnError() throws SQLException {
+        // Given
+        when(update.executeBatch()).thenThrow(new SQLException("boom"));
+
+        try {
+            // Expect exception
+            dao.saveTaxCodes(null, randomUUID(), randomUUID(), randomUUID(), "VAT_20_0%");
+        } finally {
+            verify(update).close();
+            verify(conn).close();
+            verify(insert, never()).setTimestamp(anyInt(), any(Timestamp.class));
+            verify(insert, never()).setString(anyInt(), anyString());
+        }
+    }
+}
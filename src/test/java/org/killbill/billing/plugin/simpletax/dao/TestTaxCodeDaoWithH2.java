@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.dao;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.io.Resources.getResource;
+import static java.util.UUID.randomUUID;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.killbill.billing.util.customfield.CustomField;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Resources;
+
+/**
+ * Tests for {@link TaxCodeDao}, against an in-memory H2 database that is
+ * created with the very scripts that are shipped with the plugin.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodeDaoWithH2 {
+
+    private static final String DDL = "ddl.sql";
+    private static final String MIGRATION = "migration/V20151026000000__simple_tax_codes.sql";
+
+    private JdbcDataSource dataSource;
+    private TaxCodeDao dao;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        dao = new TaxCodeDao(dataSource);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void shutdown() throws SQLException {
+        execute("shutdown");
+    }
+
+    private void execute(String... statements) throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                for (String sql : statements) {
+                    stmt.execute(sql);
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void runScript(String resourceName) throws IOException, SQLException {
+        // MySQL-specific comments are not understood by H2
+        String script = Resources.toString(getResource(resourceName), UTF_8).replaceAll("(?s)/\\*!.*?\\*/", "");
+        for (String sql : script.split(";")) {
+            if (!sql.trim().isEmpty()) {
+                execute(sql);
+            }
+        }
+    }
+
+    private int countRows() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("select count(*) from " + TaxCodeDao.TABLE_NAME);
+                rs.next();
+                return rs.getInt(1);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static Map<UUID, String> byItem(List<CustomField> taxFields) {
+        Map<UUID, String> taxCodes = Maps.newHashMap();
+        for (CustomField field : taxFields) {
+            taxCodes.put(field.getObjectId(), field.getFieldValue());
+        }
+        return taxCodes;
+    }
+
+    @Test(groups = "fast")
+    public void shouldBeInstalledOnlyOnceTableIsCreated() throws Exception {
+        // Expect
+        assertFalse(dao.isInstalled());
+
+        // When
+        runScript(DDL);
+
+        // Then
+        assertTrue(dao.isInstalled());
+    }
+
+    @Test(groups = "fast")
+    public void shouldStoreAndReplaceTaxCodes() throws Exception {
+        // Given
+        runScript(DDL);
+        UUID tenantId = randomUUID(), accountId = randomUUID(), invoiceA = randomUUID(), invoiceB = randomUUID();
+        UUID item1 = randomUUID(), item2 = randomUUID(), item3 = randomUUID();
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(item1, "VAT_20_0%", item2, "VAT_5_5%"));
+
+        // When
+        dao.saveTaxCodes(tenantId, accountId, invoiceA, ImmutableMap.of(item2, "VAT_10_0%"));
+        dao.saveTaxCodes(tenantId, accountId, invoiceB, item3, "VAT_20_0%");
+
+        // Then
+        assertEquals(countRows(), 3);
+        assertEquals(byItem(dao.getTaxCodesOfInvoice(tenantId, invoiceA)),
+                ImmutableMap.of(item1, "VAT_20_0%", item2, "VAT_10_0%"));
+        assertEquals(byItem(dao.getTaxCodesOfAccount(tenantId, accountId)),
+                ImmutableMap.of(item1, "VAT_20_0%", item2, "VAT_10_0%", item3, "VAT_20_0%"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldKeepTaxCodesOfTenantsApart() throws Exception {
+        // Given
+        runScript(DDL);
+        UUID tenantId = randomUUID(), accountId = randomUUID(), invoiceId = randomUUID(), itemId = randomUUID();
+
+        // When
+        dao.saveTaxCodes(null, accountId, invoiceId, itemId, "VAT_20_0%");
+        dao.saveTaxCodes(tenantId, accountId, invoiceId, itemId, "VAT_5_5%");
+
+        // Then
+        assertEquals(countRows(), 2);
+        assertEquals(byItem(dao.getTaxCodesOfInvoice(null, invoiceId)), ImmutableMap.of(itemId, "VAT_20_0%"));
+        assertEquals(byItem(dao.getTaxCodesOfAccount(tenantId, accountId)), ImmutableMap.of(itemId, "VAT_5_5%"));
+    }
+
+    @Test(groups = "fast")
+    public void shouldMigrateLatestActiveTaxCodesOfEachItem() throws Exception {
+        // Given
+        UUID tenantId = randomUUID(), accountId = randomUUID(), invoiceId = randomUUID();
+        UUID item1 = randomUUID(), item2 = randomUUID();
+        execute("create table tenants (record_id int, id char(36))",
+                "create table invoice_items (id char(36), account_id char(36), invoice_id char(36),"
+                        + " tenant_record_id int)",
+                "create table custom_fields (record_id int, object_id char(36), object_type varchar(30),"
+                        + " field_name varchar(30), field_value varchar(255), is_active boolean,"
+                        + " tenant_record_id int, created_date datetime, updated_date datetime)",
+                "insert into tenants values (1, '" + tenantId + "')",
+                "insert into invoice_items values ('" + item1 + "', '" + accountId + "', '" + invoiceId + "', 1)",
+                "insert into invoice_items values ('" + item2 + "', '" + accountId + "', '" + invoiceId + "', 1)",
+                customField(1, item1, "taxCodes", "VAT_5_5%", true),
+                customField(2, item1, "taxCodes", "VAT_20_0%", true),
+                customField(3, item1, "taxCodes", "VAT_10_0%", false),
+                customField(4, item2, "other", "toto", true),
+                customField(5, item2, "taxCodes", "VAT_5_5%", true));
+
+        // When
+        runScript(MIGRATION);
+
+        // Then
+        assertEquals(countRows(), 2);
+        assertEquals(byItem(dao.getTaxCodesOfAccount(tenantId, accountId)),
+                ImmutableMap.of(item1, "VAT_20_0%", item2, "VAT_5_5%"));
+    }
+
+    private static String customField(int recordId, UUID itemId, String name, String value, boolean active) {
+        return "insert into custom_fields values (" + recordId + ", '" + itemId + "', 'INVOICE_ITEM', '" + name
+                + "', '" + value + "', " + active + ", 1, current_timestamp, current_timestamp)";
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.catalog.api.Currency.EUR;
+import static org.killbill.billing.invoice.api.InvoiceItemType.EXTERNAL_CHARGE;
+import static org.killbill.billing.invoice.api.InvoiceItemType.TAX;
+import static org.killbill.billing.plugin.TestUtils.buildAccount;
+import static org.killbill.billing.test.helpers.Promise.holder;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.UUID;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.test.helpers.InvoiceBuilder;
+import org.killbill.billing.test.helpers.InvoiceItemBuilder;
+import org.killbill.billing.test.helpers.Promise;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link InvoiceItemIndex}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestInvoiceItemIndex {
+
+    private Promise<InvoiceItem> itemA, taxA, itemB;
+    private Invoice invoiceA, invoiceB;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        Account account = buildAccount(EUR, "FR");
+        itemA = holder();
+        taxA = holder();
+        itemB = holder();
+
+        invoiceA = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder().withType(EXTERNAL_CHARGE).thenSaveTo(itemA))//
+                .withItem(new InvoiceItemBuilder().withType(TAX).withLinkedItem(itemA).thenSaveTo(taxA))//
+                .build();
+        invoiceB = new InvoiceBuilder(account)//
+                .withItem(new InvoiceItemBuilder().withType(EXTERNAL_CHARGE).thenSaveTo(itemB))//
+                .build();
+    }
+
+    @Test(groups = "fast")
+    public void shouldMapItemsToTheirInvoice() {
+        // Given
+        InvoiceItemIndex index = new InvoiceItemIndex();
+
+        // When
+        index.index(null, ImmutableList.of(invoiceA, invoiceB));
+
+        // Then
+        assertEquals(index.invoiceIdOf(null, itemA.get().getId()), invoiceA.getId());
+        assertEquals(index.invoiceIdOf(null, taxA.get().getId()), invoiceA.getId());
+        assertEquals(index.invoiceIdOf(null, itemB.get().getId()), invoiceB.getId());
+        assertNull(index.invoiceIdOf(null, randomUUID()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldScopeItemsToTheirTenant() {
+        // Given
+        InvoiceItemIndex index = new InvoiceItemIndex();
+        UUID tenantId = randomUUID();
+
+        // When
+        index.index(tenantId, invoiceA);
+
+        // Then
+        assertEquals(index.invoiceIdOf(tenantId, itemA.get().getId()), invoiceA.getId());
+        assertNull(index.invoiceIdOf(null, itemA.get().getId()));
+        assertNull(index.invoiceIdOf(randomUUID(), itemA.get().getId()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldEvictItemsBeyondMaximumSize() {
+        // Given
+        InvoiceItemIndex index = new InvoiceItemIndex(1L);
+
+        // When
+        index.index(null, invoiceB);
+        index.index(null, invoiceA);
+
+        // Then
+        assertNull(index.invoiceIdOf(null, itemB.get().getId()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRecordHitsAndMisses() {
+        // Given
+        InvoiceItemIndex index = new InvoiceItemIndex();
+        index.index(null, invoiceB);
+
+        // When
+        index.invoiceIdOf(null, itemB.get().getId());
+        index.invoiceIdOf(null, randomUUID());
+
+        // Then
+        assertEquals(index.stats().hitCount(), 1L);
+        assertEquals(index.stats().missCount(), 1L);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static java.util.UUID.randomUUID;
+import static org.killbill.billing.ErrorCode.CAT_NO_SUCH_PLAN;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.plugin.simpletax.internal.PlanProductCache.TenantProducts;
+import org.killbill.billing.plugin.simpletax.util.CheckedSupplier;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link PlanProductCache}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestPlanProductCache {
+
+    @Mock
+    private CheckedSupplier<StaticCatalog, CatalogApiException> catalog;
+    @Mock
+    private StaticCatalog staticCatalog;
+    @Mock
+    private Plan plan;
+    @Mock
+    private Product product;
+
+    @BeforeMethod
+    public void init() throws CatalogApiException {
+        initMocks(this);
+        when(catalog.get()).thenReturn(staticCatalog);
+        when(staticCatalog.getEffectiveDate()).thenReturn(new Date(0L));
+        when(staticCatalog.findPlan("plan")).thenReturn(plan);
+        when(staticCatalog.findPlan("unknown")).thenThrow(new CatalogApiException(CAT_NO_SUCH_PLAN, "unknown"));
+        when(plan.getProduct()).thenReturn(product);
+        when(product.getName()).thenReturn("product");
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnSameCacheForSameTenant() {
+        // Given
+        PlanProductCache cache = new PlanProductCache();
+        UUID tenantId = randomUUID();
+
+        // Expect
+        assertSame(cache.forTenant(tenantId), cache.forTenant(tenantId));
+        assertSame(cache.forTenant(null), cache.forTenant(null));
+        assertNotSame(cache.forTenant(tenantId), cache.forTenant(null));
+    }
+
+    @Test(groups = "fast")
+    public void shouldLookUpCatalogOnlyOncePerPlan() throws Exception {
+        // Given
+        TenantProducts products = new PlanProductCache().forTenant(null);
+
+        // When
+        String productName = products.productNameOf("plan", catalog);
+        String unknownProductName = products.productNameOf("unknown", catalog);
+
+        // Then
+        assertEquals(productName, "product");
+        assertNull(unknownProductName);
+        verify(catalog, times(2)).get();
+
+        // When
+        reset(catalog);
+
+        // Then
+        assertEquals(products.productNameOf("plan", catalog), "product");
+        assertNull(products.productNameOf("unknown", catalog));
+        verify(catalog, times(0)).get();
+        assertEquals(products.size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotCacheAnythingWhenCatalogIsUnavailable() throws Exception {
+        // Given
+        TenantProducts products = new PlanProductCache().forTenant(null);
+        reset(catalog);
+        when(catalog.get()).thenThrow(new CatalogApiException(CAT_NO_SUCH_PLAN, "plan"));
+
+        // When
+        String productName = products.productNameOf("plan", catalog);
+
+        // Then
+        assertNull(productName);
+        assertEquals(products.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDiscardCachedProductsOfPreviousCatalogVersion() throws Exception {
+        // Given
+        TenantProducts products = new PlanProductCache().forTenant(null);
+        products.productNameOf("plan", catalog);
+
+        // When
+        when(staticCatalog.getEffectiveDate()).thenReturn(new Date(1000L));
+        products.productNameOf("unknown", catalog);
+
+        // Then
+        assertEquals(products.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void shouldDiscardInvalidatedTenant() throws Exception {
+        // Given
+        PlanProductCache cache = new PlanProductCache();
+        UUID tenantId = randomUUID();
+        cache.forTenant(tenantId).productNameOf("plan", catalog);
+        cache.forTenant(null).productNameOf("plan", catalog);
+
+        // When
+        cache.invalidate(tenantId);
+
+        // Then
+        assertEquals(cache.forTenant(tenantId).size(), 0);
+        assertEquals(cache.forTenant(null).size(), 1);
+    }
+}
@@ -26,6 +26,8 @@ import static org.killbill.billing.test.helpers.InvoiceItemBuilder.item;
 import static org.killbill.billing.test.helpers.Promise.holder;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.testng.Assert.assertEquals;
@@ -243,6 +245,26 @@ public class TestTaxCodeService {
                 .build());
     }
 
+    /* ********** Tests for resolveTaxCodeTimelinesFromConfig() ********** */
+
+    @Test(groups = "fast")
+    public void shouldResolveTimelinesAndReportUndefinedTaxCodes() {
+        // Given
+        SimpleTaxConfig cfg = mock(SimpleTaxConfig.class);
+        when(cfg.getTaxPlan()).thenReturn(new TaxPlan(ImmutableMap.<String, Set<TaxCode>> of(//
+                "plan1-product", ImmutableSet.of(taxA))));
+        TaxCodeService taxCodeService = new TaxCodeService(catalog, cfg, taxFieldsOfInvoices);
+
+        // When
+        Map<UUID, TaxCodeTimeline> timelines = taxCodeService.resolveTaxCodeTimelinesFromConfig(invoice, null);
+
+        // Then
+        assertEquals(timelines.keySet(), ImmutableSet.of(item1.get().getId()));
+        verify(cfg).reportUndefinedTaxCodes("plan0-product");
+        verify(cfg).reportUndefinedTaxCodes("plan1-product");
+        verify(cfg).reportUndefinedTaxCodes("plan3-product");
+    }
+
     /* *************** Tests for findExistingTaxCodes() *************** */
 
     private static final int MAX_UUID_SEARCH_ITERATIONS = 1000;
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link TaxCodeTimeline}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxCodeTimeline {
+
+    private final LocalDate today = new LocalDate("2015-10-26");
+    private final LocalDate yesterday = today.minusDays(1);
+    private final LocalDate tomorrow = today.plusDays(1);
+
+    private final TaxCode untilToday = new TaxCodeBuilder().withName("untilToday").withStoppingOn(today).build();
+    private final TaxCode justToday = new TaxCodeBuilder().withName("justToday")//
+            .withStartingOn(today).withStoppingOn(tomorrow).build();
+    private final TaxCode fromToday = new TaxCodeBuilder().withName("fromToday").withStartingOn(today).build();
+    private final TaxCode always = new TaxCodeBuilder().withName("always").build();
+
+    @Test(groups = "fast")
+    public void shouldIterateInOriginalOrder() {
+        // Given
+        TaxCodeTimeline timeline = new TaxCodeTimeline(ImmutableList.of(fromToday, untilToday, always));
+
+        // Expect
+        assertEquals(ImmutableList.copyOf(timeline), ImmutableList.of(fromToday, untilToday, always));
+        assertFalse(timeline.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnNullWhenEmpty() {
+        // Given
+        TaxCodeTimeline timeline = new TaxCodeTimeline(ImmutableList.<TaxCode> of());
+
+        // Expect
+        assertTrue(timeline.isEmpty());
+        assertNull(timeline.applicableCodeOn(today));
+    }
+
+    @Test(groups = "fast")
+    public void shouldFindApplicableCodeOnBoundaries() {
+        // Given
+        TaxCodeTimeline timeline = new TaxCodeTimeline(ImmutableList.of(untilToday, fromToday));
+
+        // Expect
+        assertEquals(timeline.applicableCodeOn(yesterday.minusYears(10)), untilToday);
+        assertEquals(timeline.applicableCodeOn(yesterday), untilToday);
+        assertEquals(timeline.applicableCodeOn(today), fromToday);
+        assertEquals(timeline.applicableCodeOn(tomorrow.plusYears(10)), fromToday);
+    }
+
+    @Test(groups = "fast")
+    public void shouldPreferFirstCodeWhenPeriodsOverlap() {
+        // Given
+        TaxCodeTimeline timeline = new TaxCodeTimeline(ImmutableList.of(justToday, always));
+
+        // Expect
+        assertEquals(timeline.applicableCodeOn(yesterday), always);
+        assertEquals(timeline.applicableCodeOn(today), justToday);
+        assertEquals(timeline.applicableCodeOn(tomorrow), always);
+    }
+
+    @Test(groups = "fast")
+    public void shouldReturnNullOutsideOfAnyPeriod() {
+        // Given
+        TaxCodeTimeline timeline = new TaxCodeTimeline(ImmutableList.of(justToday));
+
+        // Expect
+        assertNull(timeline.applicableCodeOn(yesterday));
+        assertEquals(timeline.applicableCodeOn(today), justToday);
+        assertNull(timeline.applicableCodeOn(tomorrow));
+    }
+
+    @Test(groups = "fast", expectedExceptions = NullPointerException.class)
+    public void shouldThrowNPEOnNullDate() {
+        // Expect exception
+        new TaxCodeTimeline(ImmutableList.of(always)).applicableCodeOn(null);
+    }
+
+    @Test(groups = "fast")
+    public void shouldComputeEpochDays() {
+        // Given
+        LocalDate epoch = new LocalDate("1970-01-01");
+
+        // Expect
+        for (LocalDate date : ImmutableList.of(epoch, today, new LocalDate("1900-02-28"), new LocalDate("2000-02-29"),
+                new LocalDate("2000-03-01"), new LocalDate("1969-12-31"), new LocalDate("2400-12-31"))) {
+            assertEquals(TaxCodeTimeline.epochDay(date), Days.daysBetween(epoch, date).getDays());
+        }
+    }
+}
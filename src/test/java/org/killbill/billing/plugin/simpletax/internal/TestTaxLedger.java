@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static java.util.UUID.randomUUID;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.TaxLedger.AccountLedger;
+import org.killbill.billing.plugin.simpletax.internal.TaxLedger.Entry;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link TaxLedger}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxLedger {
+
+    private final SimpleTaxConfig cfg = new SimpleTaxConfig(ImmutableMap.<String, String> of());
+
+    private static final String TAX_A = "taxA";
+    private static final String TAX_B = "taxB";
+
+    @Test(groups = "fast")
+    public void shouldReturnSameLedgerForSameAccountAndConfig() {
+        // Given
+        TaxLedger ledger = new TaxLedger();
+        UUID accountId = randomUUID();
+
+        // Expect
+        assertSame(ledger.forAccount(null, accountId, cfg), ledger.forAccount(null, accountId, cfg));
+        assertNotSame(ledger.forAccount(null, accountId, cfg), ledger.forAccount(randomUUID(), accountId, cfg));
+    }
+
+    @Test(groups = "fast")
+    public void shouldDiscardLedgerWhenConfigChanges() {
+        // Given
+        TaxLedger ledger = new TaxLedger();
+        UUID accountId = randomUUID();
+        UUID itemId = randomUUID();
+        ledger.forAccount(null, accountId, cfg).record(itemId, new BigDecimal("10"), TAX_A, new BigDecimal("2"));
+
+        // When
+        SimpleTaxConfig newCfg = new SimpleTaxConfig(ImmutableMap.<String, String> of());
+        AccountLedger fresh = ledger.forAccount(null, accountId, newCfg);
+
+        // Then
+        assertEquals(fresh.size(), 0);
+        assertNull(fresh.get(itemId));
+    }
+
+    @Test(groups = "fast")
+    public void shouldBeSettledOnlyWhenNothingChanged() {
+        // Given
+        AccountLedger ledger = new TaxLedger().forAccount(null, randomUUID(), cfg);
+        UUID itemId = randomUUID();
+        ledger.record(itemId, new BigDecimal("10.00"), TAX_A, new BigDecimal("2.00"));
+
+        // Expect
+        assertTrue(ledger.isSettled(itemId, new BigDecimal("10"), TAX_A, new BigDecimal("2")));
+
+        assertFalse(ledger.isSettled(randomUUID(), new BigDecimal("10"), TAX_A, new BigDecimal("2")));
+        assertFalse(ledger.isSettled(itemId, new BigDecimal("9"), TAX_A, new BigDecimal("2")));
+        assertFalse(ledger.isSettled(itemId, new BigDecimal("10"), TAX_B, new BigDecimal("2")));
+        assertFalse(ledger.isSettled(itemId, new BigDecimal("10"), null, new BigDecimal("2")));
+        assertFalse(ledger.isSettled(itemId, new BigDecimal("10"), TAX_A, new BigDecimal("1.99")));
+    }
+
+    @Test(groups = "fast")
+    public void shouldOverwritePreviousEntry() {
+        // Given
+        AccountLedger ledger = new TaxLedger().forAccount(null, randomUUID(), cfg);
+        UUID itemId = randomUUID();
+        ledger.record(itemId, new BigDecimal("10"), TAX_A, new BigDecimal("2"));
+
+        // When
+        ledger.record(itemId, new BigDecimal("5"), null, BigDecimal.ZERO);
+
+        // Then
+        assertEquals(ledger.size(), 1);
+        assertEquals(ledger.get(itemId), new Entry(new BigDecimal("5.00"), null, new BigDecimal("0.00")));
+        assertTrue(ledger.isSettled(itemId, new BigDecimal("5"), null, BigDecimal.ZERO));
+    }
+
+    @Test(groups = "fast")
+    public void shouldBeReconciledOnlyWithSameSignature() {
+        // Given
+        AccountLedger ledger = new TaxLedger().forAccount(null, randomUUID(), cfg);
+        UUID invoiceId = randomUUID();
+
+        // When
+        ledger.markReconciled(invoiceId, 3);
+
+        // Then
+        assertTrue(ledger.isReconciled(invoiceId, 3));
+        assertFalse(ledger.isReconciled(invoiceId, 4));
+        assertFalse(ledger.isReconciled(randomUUID(), 3));
+        assertFalse(ledger.isReconciled(null, 3));
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotBeReconciledWhenMarkedDirty() {
+        // Given
+        TaxLedger ledger = new TaxLedger();
+        UUID accountId = randomUUID();
+        AccountLedger accountLedger = ledger.forAccount(null, accountId, cfg);
+        UUID invoiceA = randomUUID();
+        UUID invoiceB = randomUUID();
+        accountLedger.markReconciled(invoiceA, 1);
+        accountLedger.markReconciled(invoiceB, 1);
+
+        // When
+        ledger.markDirty(null, accountId, invoiceA);
+        ledger.markDirty(randomUUID(), accountId, invoiceB);
+
+        // Then
+        assertFalse(accountLedger.isReconciled(invoiceA, 1));
+        assertTrue(accountLedger.isReconciled(invoiceB, 1));
+        assertFalse(accountLedger.isReconciled(invoiceB, 2));
+    }
+
+    @Test(groups = "fast")
+    public void shouldEnforceEqualityWithConsistentHashCode() {
+        // Given
+        Entry entryA = new Entry(new BigDecimal("10"), "taxA", new BigDecimal("2"));
+        Entry entryB = new Entry(new BigDecimal("10.000"), "taxA", new BigDecimal("2.0"));
+        Entry entryC = new Entry(new BigDecimal("10"), "taxB", new BigDecimal("2"));
+
+        // Expect
+        assertFalse(entryA.equals(null));
+        assertTrue(entryA.equals(entryA));
+        assertFalse(entryA.equals(new Object()));
+
+        assertTrue(entryA.equals(entryB));
+        assertEquals(entryA.hashCode(), entryB.hashCode());
+
+        assertFalse(entryA.equals(entryC));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRestoreReconciledInvoicesOnlyOnce() {
+        // Given
+        AccountLedger ledger = new TaxLedger().forAccount(null, randomUUID(), cfg);
+        UUID invoiceA = randomUUID();
+        UUID invoiceB = randomUUID();
+        ledger.markReconciled(invoiceA, 2);
+
+        // When
+        boolean firstClaim = ledger.claimRestoration();
+        ledger.restoreReconciledInvoices(ImmutableMap.of(invoiceA, 1, invoiceB, 1));
+
+        // Then
+        assertTrue(firstClaim);
+        assertFalse(ledger.claimRestoration());
+        assertTrue(ledger.isReconciled(invoiceA, 2));
+        assertTrue(ledger.isReconciled(invoiceB, 1));
+    }
+
+    @Test(groups = "fast")
+    public void shouldDrainOnlyNewlyReconciledInvoices() {
+        // Given
+        AccountLedger ledger = new TaxLedger().forAccount(null, randomUUID(), cfg);
+        UUID invoiceA = randomUUID();
+        UUID invoiceB = randomUUID();
+        UUID invoiceC = randomUUID();
+        ledger.restoreReconciledInvoices(ImmutableMap.of(invoiceA, 1));
+        ledger.markReconciled(invoiceB, 2);
+        ledger.markReconciled(invoiceC, 3);
+        ledger.markDirty(invoiceC);
+
+        // Expect
+        assertEquals(ledger.drainUnsavedReconciliations(), ImmutableMap.of(invoiceB, 2));
+        assertTrue(ledger.drainUnsavedReconciliations().isEmpty());
+        assertTrue(ledger.isReconciled(invoiceB, 2));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.internal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Set;
+
+import org.killbill.billing.test.helpers.TaxCodeBuilder;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link TaxPlan}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxPlan {
+
+    private static final Country FR = new Country("FR");
+    private static final Country US = new Country("US");
+    private static final Country DE = new Country("DE");
+
+    private final TaxCode anywhere = new TaxCodeBuilder().withName("anywhere").build();
+    private final TaxCode inFrance = new TaxCodeBuilder().withName("inFrance").withCountry(FR).build();
+    private final TaxCode inUS = new TaxCodeBuilder().withName("inUS").withCountry(US).build();
+
+    private final TaxPlan plan = new TaxPlan(ImmutableMap.<String, Set<TaxCode>> of(//
+            "productA", ImmutableSet.of(inFrance, anywhere, inUS),//
+            "productB", ImmutableSet.<TaxCode> of()));
+
+    @Test(groups = "fast")
+    public void shouldReturnNullForUnconfiguredProducts() {
+        // Expect
+        assertNull(plan.timelineFor("productB", FR));
+        assertNull(plan.timelineFor("unknown", FR));
+        assertNull(plan.timelineFor(null, FR));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRetainTaxCodesOfAccountCountry() {
+        // Expect
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", FR)), ImmutableList.of(inFrance, anywhere));
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", US)), ImmutableList.of(anywhere, inUS));
+    }
+
+    @Test(groups = "fast")
+    public void shouldRetainUnrestrictedTaxCodesForOtherOrUnknownCountries() {
+        // Expect
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", DE)), ImmutableList.of(anywhere));
+        assertEquals(ImmutableList.copyOf(plan.timelineFor("productA", null)), ImmutableList.of(anywhere));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.plumbing;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.security.api.SecurityApi;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Tests for {@link SecuritySessions}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestSecuritySessions {
+
+    @Mock
+    private OSGIKillbillAPI services;
+    @Mock
+    private SecurityApi securityApi;
+
+    private SecuritySessions sessions;
+
+    @BeforeMethod(groups = "fast")
+    public void init() {
+        initMocks(this);
+        when(services.getSecurityApi()).thenReturn(securityApi);
+        when(securityApi.isSubjectAuthenticated()).thenReturn(true);
+        sessions = new SecuritySessions(services);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginOnlyOnceWithSameCredentials() {
+        // When
+        sessions.login("user", "secret");
+        sessions.login("user", "secret");
+        sessions.login("user", "secret");
+
+        // Then
+        verify(securityApi, times(1)).login("user", "secret");
+        verify(securityApi, never()).logout();
+        assertEquals(sessions.getLoginCount(), 1L);
+        assertEquals(sessions.getReusedSessionCount(), 2L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginAgainWithOtherCredentials() {
+        // When
+        sessions.login("user", "secret");
+        sessions.login("other", "secret");
+
+        // Then
+        verify(securityApi).login("user", "secret");
+        verify(securityApi).logout();
+        verify(securityApi).login("other", "secret");
+        assertEquals(sessions.getLoginCount(), 2L);
+        assertEquals(sessions.getReusedSessionCount(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginAgainAfterLogout() {
+        // Given
+        sessions.login(null, null);
+
+        // When
+        sessions.logout();
+        sessions.logout();
+        sessions.login(null, null);
+
+        // Then
+        verify(securityApi, times(2)).login(null, null);
+        verify(securityApi, times(1)).logout();
+        assertEquals(sessions.getLoginCount(), 2L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldNotShareSessionsAcrossThreads() throws Exception {
+        // Given
+        sessions.login("user", "secret");
+
+        // When
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sessions.login("user", "secret");
+            }
+        });
+        other.start();
+        other.join();
+
+        // Then
+        verify(securityApi, times(2)).login("user", "secret");
+        assertEquals(sessions.getLoginCount(), 2L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginAgainWhenSubjectIsNoLongerAuthenticated() {
+        // Given
+        sessions.login("user", "secret");
+        when(securityApi.isSubjectAuthenticated()).thenReturn(false);
+
+        // When
+        sessions.login("user", "secret");
+
+        // Then
+        verify(securityApi, times(2)).login("user", "secret");
+        assertEquals(sessions.getLoginCount(), 2L);
+        assertEquals(sessions.getReusedSessionCount(), 0L);
+    }
+
+    @Test(groups = "fast")
+    public void shouldLoginAgainWhenSessionIsTooOld() {
+        // Given
+        final AtomicLong now = new AtomicLong();
+        SecuritySessions sessions = new SecuritySessions(services, 10L, new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        });
+        sessions.login("user", "secret");
+
+        // When
+        now.set(9L);
+        sessions.login("user", "secret");
+        now.set(10L);
+        sessions.login("user", "secret");
+
+        // Then
+        verify(securityApi, times(2)).login("user", "secret");
+        assertEquals(sessions.getLoginCount(), 2L);
+        assertEquals(sessions.getReusedSessionCount(), 1L);
+    }
+}
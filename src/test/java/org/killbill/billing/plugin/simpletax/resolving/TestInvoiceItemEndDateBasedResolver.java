@@ -202,6 +202,23 @@ public class TestInvoiceItemEndDateBasedResolver {
         assertEqualsIgnoreScale(tax.getRate(), new BigDecimal("0.196"));
     }
 
+    @Test(groups = "fast")
+    public void shouldKeepEndDateWhenThereIsNoAccount() {
+        // Given
+        SimpleTaxConfig cfg = mock(SimpleTaxConfig.class);
+        when(cfg.getTaxationTimeZone()).thenReturn(DateTimeZone.UTC);
+        TaxComputationContext ctx = new TaxComputationContext(cfg, null, null, allInvoices, toAdjustedAmount,
+                byAdjustedAmount, taxCodeService);
+        TaxResolver resolver = new InvoiceItemEndDateBasedResolver(ctx);
+
+        // When
+        TaxCode tax = resolver.applicableCodeForItem(taxCodes, itemFromYesterdayToToday);
+
+        // Then
+        assertNotNull(tax);
+        assertEquals(tax.getName(), "JUST_TODAY");
+    }
+
     @Test(groups = "fast")
     public void shouldSelectEverGoingTaxes() {
         // Expect
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.resolving;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.plugin.simpletax.TaxComputationContext;
+import org.killbill.billing.plugin.simpletax.config.SimpleTaxConfig;
+import org.killbill.billing.plugin.simpletax.internal.Country;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.AbstractTaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.StatelessTaxResolver;
+import org.killbill.billing.plugin.simpletax.resolving.fixtures.ThrowingTaxResolver;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TaxResolverFactory}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestTaxResolverFactory {
+
+    @Mock
+    private TaxComputationContext ctx;
+
+    @BeforeClass(groups = "fast")
+    public void init() {
+        initMocks(this);
+    }
+
+    private static TaxResolverFactory factoryFor(Class<? extends TaxResolver> clazz) throws Exception {
+        return TaxResolverFactory.of(clazz.getConstructor(TaxComputationContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void shouldShareStatelessResolvers() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryFor(NullTaxResolver.class);
+
+        // When
+        TaxResolver resolver = factory.newResolver(ctx);
+
+        // Then
+        assertTrue(resolver instanceof NullTaxResolver);
+        assertSame(factory.newResolver(ctx), resolver);
+        assertEquals(factory.getResolverClass(), NullTaxResolver.class);
+    }
+
+    @Test(groups = "fast")
+    public void shouldBuildStatelessResolversWithConfigurationOnly() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryFor(StatelessTaxResolver.class);
+        SimpleTaxConfig cfg = mock(SimpleTaxConfig.class);
+        TaxComputationContext accountCtx = mock(TaxComputationContext.class);
+        when(accountCtx.getConfig()).thenReturn(cfg);
+        when(accountCtx.getAccount()).thenReturn(mock(Account.class));
+        when(accountCtx.getAccountTaxCountry()).thenReturn(new Country("FR"));
+
+        // When
+        StatelessTaxResolver resolver = (StatelessTaxResolver) factory.newResolver(accountCtx);
+
+        // Then
+        assertSame(resolver.ctx.getConfig(), cfg);
+        assertNull(resolver.ctx.getAccount());
+        assertNull(resolver.ctx.getAccountTaxCountry());
+        assertTrue(resolver.ctx.getAllInvoices().isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void shouldBuildNewInstancesOfOtherResolvers() throws Exception {
+        // Given
+        TaxResolverFactory factory = factoryFor(InvoiceItemEndDateBasedResolver.class);
+
+        // When
+        TaxResolver resolver = factory.newResolver(ctx);
+
+        // Then
+        assertTrue(resolver instanceof InvoiceItemEndDateBasedResolver);
+        assertNotSame(factory.newResolver(ctx), resolver);
+    }
+
+    @Test(groups = "fast", expectedExceptions = InstantiationException.class)
+    public void shouldThrowInstantiationExceptionForAbstractResolvers() throws Exception {
+        // Expect exception
+        factoryFor(AbstractTaxResolver.class).newResolver(ctx);
+    }
+
+    @Test(groups = "fast", expectedExceptions = InvocationTargetException.class)
+    public void shouldThrowInvocationTargetExceptionForThrowingResolvers() throws Exception {
+        // Expect exception
+        factoryFor(ThrowingTaxResolver.class).newResolver(ctx);
+    }
+
+    @Test(groups = "fast", expectedExceptions = NullPointerException.class)
+    public void shouldThrowNPEOnNullConstructor() {
+        // Expect exception
+        TaxResolverFactory.of(null);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Benjamin Gandon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.killbill.billing.plugin.simpletax.util;
+
+import static java.util.UUID.randomUUID;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link OpenAddressingUUIDMap}.
+ *
+ * @author Benjamin Gandon
+ */
+@SuppressWarnings("javadoc")
+public class TestOpenAddressingUUIDMap {
+
+    @Test(groups = "fast")
+    public void shouldReturnNullForMissingOrNullKeys() {
+        // Given
+        OpenAddressingUUIDMap<String> map = new OpenAddressingUUIDMap<String>(0);
+
+        // Expect
+        assertNull(map.get(randomUUID()));
+        assertNull(map.get(null));
+        assertEquals(map.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void shouldStoreAndRetrieveManyEntries() {
+        // Given
+        ImmutableList.Builder<UUID> builder = ImmutableList.builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(randomUUID());
+        }
+        List<UUID> keys = builder.build();
+        OpenAddressingUUIDMap<Integer> map = new OpenAddressingUUIDMap<Integer>(keys.size());
+
+        // When
+        for (int i = 0; i < keys.size(); i++) {
+            map.put(keys.get(i), i);
+        }
+
+        // Then
+        assertEquals(map.size(), keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(map.get(keys.get(i)), Integer.valueOf(i));
+        }
+        assertNull(map.get(randomUUID()));
+    }
+
+    @Test(groups = "fast")
+    public void shouldReplaceExistingValue() {
+        // Given
+        UUID key = new UUID(0L, 0L);
+        OpenAddressingUUIDMap<String> map = new OpenAddressingUUIDMap<String>(1);
+        map.put(key, "toto");
+
+        // When
+        map.put(key, "titi");
+
+        // Then
+        assertEquals(map.get(key), "titi");
+        assertEquals(map.size(), 1);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void shouldThrowISEWhenFull() {
+        // Given
+        OpenAddressingUUIDMap<String> map = new OpenAddressingUUIDMap<String>(1);
+        map.put(randomUUID(), "toto");
+
+        // Expect exception
+        map.put(randomUUID(), "titi");
+    }
+
+    @Test(groups = "fast", expectedExceptions = NullPointerException.class)
+    public void shouldThrowNPEOnNullValue() {
+        // Expect exception
+        new OpenAddressingUUIDMap<String>(1).put(randomUUID(), null);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void shouldThrowIAEOnNegativeSize() {
+        // Expect exception
+        new OpenAddressingUUIDMap<String>(-1);
+    }
+}